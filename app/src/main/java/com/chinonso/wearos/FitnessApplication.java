@@ -0,0 +1,20 @@
+package com.chinonso.wearos;
+
+import android.app.Application;
+import android.content.Context;
+
+// Oggetti condivisi da service e activity: per ora il client HTTP, cosi' pool di
+// connessioni e sessioni TLS sono gli stessi per upload e registrazione
+public class FitnessApplication extends Application {
+    private HttpTransport transport;
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        transport = new HttpTransport(false);
+    }
+
+    public static HttpTransport transport(Context context) {
+        return ((FitnessApplication) context.getApplicationContext()).transport;
+    }
+}
@@ -29,18 +29,16 @@ import androidx.appcompat.app.AlertDialog;
 import androidx.appcompat.app.AppCompatActivity;
 import androidx.core.app.ActivityCompat;
 import androidx.core.content.ContextCompat;
+import androidx.wear.ambient.AmbientModeSupport;
 
 import java.util.ArrayList;
 import java.util.List;
 import android.graphics.Bitmap;
 import android.widget.ImageView;
-import com.google.zxing.BarcodeFormat;
-import com.google.zxing.MultiFormatWriter;
-import com.google.zxing.common.BitMatrix;
-import android.graphics.Color;
 import android.widget.Toast;
 
-public class MainActivity extends AppCompatActivity implements MonitoringService.UIUpdateCallback {
+public class MainActivity extends AppCompatActivity implements MonitoringService.UIUpdateCallback,
+        AmbientModeSupport.AmbientCallbackProvider {
     private static final String TAG = "MainActivity";
     private static final int PERMISSION_REQUEST_BODY_SENSORS = 1;
     private static final int PERMISSION_REQUEST_LOCATION = 2;
@@ -59,6 +57,7 @@ public class MainActivity extends AppCompatActivity implements MonitoringService
 
     private MonitoringService monitoringService;
     private boolean isBound = false;
+    private AmbientModeSupport.AmbientController ambientController;
 
     private ServiceConnection connection = new ServiceConnection() {
         @Override
@@ -66,6 +65,7 @@ public class MainActivity extends AppCompatActivity implements MonitoringService
             MonitoringService.LocalBinder binder = (MonitoringService.LocalBinder) service;
             monitoringService = binder.getService();
             isBound = true;
+            monitoringService.setAmbient(ambientController.isAmbient());
             monitoringService.registerUIUpdateCallback(MainActivity.this);
 
             String selectedWorkout = workoutSpinner.getSelectedItem().toString();
@@ -89,37 +89,57 @@ public class MainActivity extends AppCompatActivity implements MonitoringService
     @Override
     public void onHeartRateUpdate(int heartRate) {
         heartRateTextView.setText("Heart Rate: " + heartRate + " bpm");
-        Log.d(TAG, "Heart Rate updated: " + heartRate);
     }
 
     @Override
     public void onStepCountUpdate(int stepCount) {
         stepCountTextView.setText("Steps: " + stepCount);
-        Log.d(TAG, "Step Count updated: " + stepCount);
     }
 
     @Override
     public void onCaloriesUpdate(double calories) {
         caloriesTextView.setText("Calories: " + String.format("%.2f", calories) + " kcal");
-        Log.d(TAG, "Calories updated: " + calories);
     }
 
     @Override
     public void onAltitudeUpdate(double altitude) {
         altitudeTextView.setText("Altitude: " + String.format("%.2f", altitude) + " m");
-        Log.d(TAG, "Altitude updated: " + altitude);
     }
 
     @Override
     public void onGPSUpdate(String gpsInfo) {
         gpsTextView.setText("GPS: " + gpsInfo);
-        Log.d(TAG, "GPS updated: " + gpsInfo);
     }
 
     @Override
     public void onTimerUpdate(String timerText) {
         timerTextView.setText(timerText);
-        Log.d(TAG, "Timer updated: " + timerText);
+    }
+
+    @Override
+    public AmbientModeSupport.AmbientCallback getAmbientCallback() {
+        return new AmbientModeSupport.AmbientCallback() {
+            @Override
+            public void onEnterAmbient(Bundle ambientDetails) {
+                if (isBound) {
+                    monitoringService.setAmbient(true);
+                }
+            }
+
+            @Override
+            public void onUpdateAmbient() {
+                if (isBound) {
+                    monitoringService.onAmbientUpdate();
+                }
+            }
+
+            @Override
+            public void onExitAmbient() {
+                if (isBound) {
+                    monitoringService.setAmbient(false);
+                }
+            }
+        };
     }
 
     @Override
@@ -127,6 +147,7 @@ public class MainActivity extends AppCompatActivity implements MonitoringService
         super.onCreate(savedInstanceState);
         requestWindowFeature(Window.FEATURE_NO_TITLE);
         setContentView(R.layout.round_activity_main);
+        ambientController = AmbientModeSupport.attach(this);
         qrCodeImageView = findViewById(R.id.qrCodeImageView);
         Button showQRCodeButton = findViewById(R.id.showQRCodeButton);
         showQRCodeButton.setOnClickListener(v -> showQRCode());
@@ -267,6 +288,7 @@ public class MainActivity extends AppCompatActivity implements MonitoringService
         intent.setAction("stop");
         startService(intent);
         if (isBound) {
+            monitoringService.unregisterUIUpdateCallback(this);
             unbindService(connection);
             isBound = false;
         }
@@ -331,7 +353,7 @@ public class MainActivity extends AppCompatActivity implements MonitoringService
             // Calcola la dimensione ottimale per il QR code (80% della dimensione minima dello schermo)
             int qrCodeSize = (int) (Math.min(screenWidth, screenHeight) * 0.8);
 
-            Bitmap qrCodeBitmap = generateQRCode(userId, qrCodeSize);
+            Bitmap qrCodeBitmap = QrCodeCache.get(this, userId, qrCodeSize);
 
             AlertDialog.Builder builder = new AlertDialog.Builder(this, android.R.style.Theme_DeviceDefault_Dialog_NoActionBar);
             View dialogView = getLayoutInflater().inflate(R.layout.dialog_qr_code, null);
@@ -353,20 +375,6 @@ public class MainActivity extends AppCompatActivity implements MonitoringService
         }
     }
 
-    private Bitmap generateQRCode(String text, int size) throws Exception {
-        BitMatrix bitMatrix = new MultiFormatWriter().encode(text, BarcodeFormat.QR_CODE, size, size);
-        int width = bitMatrix.getWidth();
-        int height = bitMatrix.getHeight();
-        Bitmap bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.RGB_565);
-
-        for (int x = 0; x < width; x++) {
-            for (int y = 0; y < height; y++) {
-                bitmap.setPixel(x, y, bitMatrix.get(x, y) ? Color.BLACK : Color.WHITE);
-            }
-        }
-
-        return bitmap;
-    }
     @Override
     protected void onSaveInstanceState(Bundle outState) {
         super.onSaveInstanceState(outState);
@@ -380,15 +388,27 @@ public class MainActivity extends AppCompatActivity implements MonitoringService
     @Override
     protected void onResume() {
         super.onResume();
-        if (isMonitoringStarted) {
+        if (isBound) {
+            monitoringService.registerUIUpdateCallback(this);
+        } else if (isMonitoringStarted) {
             bindToMonitoringService();
         }
     }
 
+    // Con l'activity non visibile il servizio smette di pubblicare lo stato della UI
+    @Override
+    protected void onStop() {
+        super.onStop();
+        if (isBound) {
+            monitoringService.unregisterUIUpdateCallback(this);
+        }
+    }
+
     @Override
     protected void onDestroy() {
         super.onDestroy();
         if (isBound) {
+            monitoringService.unregisterUIUpdateCallback(this);
             unbindService(connection);
             isBound = false;
         }
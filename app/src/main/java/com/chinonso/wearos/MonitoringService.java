@@ -8,61 +8,96 @@ import android.app.NotificationManager;
 import android.app.PendingIntent;
 import android.app.Service;
 import android.content.Context;
+import android.content.BroadcastReceiver;
 import android.content.Intent;
+import android.content.IntentFilter;
 import android.content.SharedPreferences;
 import android.content.pm.PackageManager;
 import android.hardware.Sensor;
 import android.hardware.SensorEvent;
-import android.hardware.SensorEventListener;
+import android.hardware.SensorEventListener2;
 import android.hardware.SensorManager;
+import android.hardware.TriggerEvent;
+import android.hardware.TriggerEventListener;
 import android.location.Location;
 import android.location.LocationListener;
 import android.location.LocationManager;
+import android.net.ConnectivityManager;
+import android.net.Network;
+import android.net.NetworkCapabilities;
+import android.os.BatteryManager;
 import android.os.Binder;
 import android.os.Build;
 import android.os.Bundle;
 import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.IBinder;
 import android.os.PowerManager;
+import android.os.SystemClock;
 import android.provider.Settings;
 import android.util.Log;
 import androidx.core.app.ActivityCompat;
 import androidx.core.app.NotificationCompat;
-import org.json.JSONArray;
-import org.json.JSONException;
-import org.json.JSONObject;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.PrintWriter;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
 import java.util.List;
-import okhttp3.Call;
-import okhttp3.Callback;
-import okhttp3.MediaType;
-import okhttp3.OkHttpClient;
-import okhttp3.Request;
-import okhttp3.RequestBody;
-import okhttp3.Response;
-
-public class MonitoringService extends Service implements SensorEventListener, LocationListener {
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import okio.Buffer;
+
+public class MonitoringService extends Service implements SensorEventListener2, LocationListener {
     private static final String TAG = "MonitoringService";
     private static final String SERVER_URL = "https://fitapi.adrianofrongillo.ovh/api/bulk-data";
     private static final String CHANNEL_ID = "FitnessTrackingChannel";
+    private static final String DAILY_WORKOUT = "Monitoraggio Giornaliero";
     private static final int NOTIFICATION_ID = 1;
     private static final long DAILY_MONITORING_INTERVAL = 5 * 60 * 1000; // 5 minuti
-    private static final int MAX_DATA_POINTS = 100;
-    private static final long SEND_INTERVAL = 60 * 60 * 1000; // 1 ora in millisecondi
-    private static final long LOCATION_UPDATE_INTERVAL = 10000; // 10 secondi
+    private static final int OUTBOX_SEGMENT_SIZE = 16 * 1024;
+    private static final int SAMPLE_RING_CAPACITY = 4096;
     private static final long LOCATION_UPDATE_FASTEST_INTERVAL = 5000; // 5 secondi
     private static final long LOCATION_UPDATE_TIMEOUT = 30000; // 30 secondi
-    private static final long FORCE_UPDATE_INTERVAL = 5 * 60 * 1000; // 5 minuti
-
-    private String currentWorkout = "";
-    private int heartRate = 0;
-    private int stepCount = 0;
-    private double calories = 0;
-    private double altitude = 0;
+    private static final long TRACK_KEEPALIVE_INTERVAL = 5 * 60 * 1000; // 5 minuti
+    // GPS e rete consegnano spesso fix quasi insieme: dentro la finestra passa solo il migliore
+    private static final long FIX_WINDOW = 2000;
+    private static final long FIX_MAX_AGE = 30000; // 30 secondi
+    private static final float FIX_MAX_SPEED = 50; // m/s, oltre e' un salto del provider
+    // Latenza massima con cui il sensor hub consegna gli eventi accumulati nella FIFO
+    private static final int DAILY_REPORT_LATENCY_US = 60 * 1000 * 1000; // 60 secondi
+    private static final int WORKOUT_REPORT_LATENCY_US = 10 * 1000 * 1000; // 10 secondi
+    private static final long SENSOR_FLUSH_TIMEOUT = 2000;
+    private static final long UPLOAD_WAKE_LOCK_TIMEOUT = 60 * 1000;
+    // La connessione viene aperta poco prima dell'upload, e resta nel pool per 5 minuti
+    private static final long WARM_UP_LEAD = 10 * 1000;
+    private static final int MAX_ENERGY_LEDGERS = 30;
+    private static final int MAX_TRACES = 3;
+    private static final int DEFAULT_ROLLUP_SECONDS = 60;
+    private static final int DEFAULT_TRACK_MAX_DEVIATION_METERS = 10;
+    // Storico sull'orologio: grezzi per 7 giorni, poi solo aggregati fino a 90, al massimo 32 MB
+    private static final int HISTORY_CHUNK = 512;
+    private static final long HISTORY_RAW_RETENTION = 7L * 24 * 60 * 60 * 1000;
+    private static final long HISTORY_RETENTION = 90L * 24 * 60 * 60 * 1000;
+    private static final long HISTORY_MAX_BYTES = 32L * 1024 * 1024;
+
+    // Scritti dal thread di acquisizione, letti dal main thread per la UI
+    private volatile String currentWorkout = "";
+    private volatile int heartRate = 0;
+    private volatile int stepCount = 0;
+    private volatile double altitude = 0;
+    private volatile LocationRecord lastLocation;
+    // Solo main thread: la stringa per la UI si formatta solo quando cambia la posizione
+    private LocationRecord formattedLocation;
     private String gpsInfo = "";
-    private String timerText = "00:00:00";
     private int initialStepCount = -1;
     private boolean isMonitoring = false;
 
@@ -71,46 +106,157 @@ public class MonitoringService extends Service implements SensorEventListener, L
     private LocationManager locationManager;
 
     private String userId;
+    private String deviceId;
     private int weight;
     private int height;
     private String gender;
-
-    private OkHttpClient client = new OkHttpClient();
-    public static final MediaType JSON = MediaType.get("application/json; charset=utf-8");
+    private int age;
+
+    private HttpTransport transport;
+    private boolean compactPayload;
+    // In monitoraggio giornaliero i valori numerici arrivano al server come
+    // aggregati per finestra invece che come singoli campioni.
+    private long rollupResolution;
+    // Debug: con la preferenza "recordTrace" gli eventi grezzi finiscono in files/traces
+    // per ReplayHarness. Solo ingestion thread.
+    private boolean recordTrace;
+    private SensorTrace.Writer traceWriter;
+    // Solo ingestion thread: un solo fix per finestra arriva a traccia e UI
+    private FixSelector fixSelector;
+    // Solo ingestion thread: i fix allineati con i precedenti non vengono inviati
+    private TrackSimplifier trackSimplifier;
+    // Solo ingestion thread: provider e frequenza del GPS in base a velocita' e attivita'
+    private LocationSamplingController locationController;
+    private boolean locationCheckScheduled;
+    private Sensor significantMotionSensor;
+    private int lastStepTotal = -1;
 
     private long startTime;
-    private Handler handler = new Handler();
-    private Handler sendDataHandler = new Handler();
-    private Handler forceUpdateHandler = new Handler();
+    // Durata e calorie non vengono registrate: si ricavano da START e dalle serie primarie
+    private final DerivedMetrics derivedMetrics = new DerivedMetrics();
+    private UiStateDispatcher uiDispatcher;
+    // Sensori, GPS e timer girano su ingestionThread, unico produttore del ring;
+    // uploadThread e' l'unico consumatore e l'unico a toccare l'outbox.
+    private HandlerThread ingestionThread;
+    private Handler ingestionHandler;
+    private HandlerThread uploadThread;
+    private Handler uploadHandler;
+    // Filtri, aggregazione e ring: alimentata solo dall'ingestion thread
+    private final CapturePipeline capture = new CapturePipeline(SAMPLE_RING_CAPACITY, this::onSampleOffered);
+    private final SampleRing sampleRing = capture.ring();
+    private final AtomicBoolean drainScheduled = new AtomicBoolean();
 
     private PowerManager.WakeLock wakeLock;
-
-    private List<DataPoint> dataPoints = new ArrayList<>();
-    private Location lastKnownLocation;
-    private long lastLocationUpdateTime;
+    private PowerManager.WakeLock uploadWakeLock;
+    // In modalita' batched i sensori accumulano gli eventi nella FIFO hardware e
+    // il processore non resta sveglio per tutta la sessione
+    private boolean batchedCapture;
+    // Scritta dal main thread, letta dall'upload thread: si sostituisce sempre la lista intera
+    private volatile List<Sensor> registeredSensors = Collections.emptyList();
+    private final AtomicInteger pendingSensorFlushes = new AtomicInteger();
+    private int flushMaxSamples;
+
+    private SampleOutbox outbox;
+    // Storico interrogabile: anche questo appartiene all'upload thread
+    private SessionStore sessionStore;
+    private final SampleBuffer historyBuffer = new SampleBuffer(HISTORY_CHUNK);
+    // Con molto arretrato partono fino a MAX_IN_FLIGHT batch insieme, un corpo per ognuno
+    private UploadBatcher uploadBatcher;
+    private final List<BatchRequestBody> uploadBodies = new ArrayList<>();
+    private UploadScheduler uploadScheduler;
+    private long uploadStartedAt;
+    private PipelineMetrics metrics;
+    // Consumi della sessione corrente (o dell'ultima, finche' non ne parte un'altra)
+    private volatile EnergyLedger energyLedger;
+    private volatile int batteryPercent = -1;
+    // I log per singolo evento allocano stringhe: solo con "setprop log.tag.MonitoringService DEBUG"
+    private boolean logEvents;
+    private ConnectivityManager connectivityManager;
     private float lastPressureReading = 0;
 
     public class LocalBinder extends Binder {
         MonitoringService getService() {
             return MonitoringService.this;
         }
+
+        PipelineMetrics.Snapshot getMetrics() {
+            return MonitoringService.this.getMetrics();
+        }
     }
 
     private final IBinder binder = new LocalBinder();
 
-    private Runnable sendDataRunnable = new Runnable() {
+    private final Runnable uploadCheckRunnable = new Runnable() {
+        @Override
+        public void run() {
+            energyLedger.onWakeup(EnergyLedger.WAKEUP_UPLOAD_CHECK);
+            checkUploads();
+        }
+    };
+
+    private final Runnable warmUpRunnable = new Runnable() {
         @Override
         public void run() {
-            sendDataToServer();
-            sendDataHandler.postDelayed(this, SEND_INTERVAL);
+            energyLedger.onWakeup(EnergyLedger.WAKEUP_WARM_UP);
+            transport.warmUp(SERVER_URL);
+        }
+    };
+
+    private final Runnable locationCheckRunnable = new Runnable() {
+        @Override
+        public void run() {
+            energyLedger.onWakeup(EnergyLedger.WAKEUP_LOCATION_CHECK);
+            locationCheckScheduled = false;
+            scheduleLocationCheck();
+        }
+    };
+
+    // Il trigger arriva sul main thread, il controller vive sull'ingestion thread
+    private final TriggerEventListener significantMotionListener = new TriggerEventListener() {
+        @Override
+        public void onTrigger(TriggerEvent event) {
+            ingestionHandler.post(() -> {
+                locationController.onSignificantMotion(SystemClock.elapsedRealtime());
+                scheduleLocationCheck();
+            });
         }
     };
 
-    private Runnable forceUpdateRunnable = new Runnable() {
+    private final Runnable drainRunnable = new Runnable() {
         @Override
         public void run() {
-            forceLocationUpdate();
-            forceUpdateHandler.postDelayed(this, FORCE_UPDATE_INTERVAL);
+            drainScheduled.set(false);
+            energyLedger.onWakeup(EnergyLedger.WAKEUP_DRAIN);
+            drainRing();
+            checkUploads();
+        }
+    };
+
+    private final BroadcastReceiver batteryReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            int level = intent.getIntExtra(BatteryManager.EXTRA_LEVEL, -1);
+            int scale = intent.getIntExtra(BatteryManager.EXTRA_SCALE, -1);
+            int plugged = intent.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0);
+            if (level >= 0 && scale > 0) {
+                batteryPercent = level * 100 / scale;
+                energyLedger.onBatteryLevel(batteryPercent);
+                uploadScheduler.setPowerState(batteryPercent, plugged != 0);
+                checkUploads();
+            }
+        }
+    };
+
+    private final ConnectivityManager.NetworkCallback networkCallback = new ConnectivityManager.NetworkCallback() {
+        @Override
+        public void onCapabilitiesChanged(Network network, NetworkCapabilities capabilities) {
+            uploadScheduler.setUnmetered(capabilities.hasCapability(NetworkCapabilities.NET_CAPABILITY_NOT_METERED));
+            checkUploads();
+        }
+
+        @Override
+        public void onLost(Network network) {
+            uploadScheduler.setUnmetered(false);
         }
     };
 
@@ -120,31 +266,102 @@ public class MonitoringService extends Service implements SensorEventListener, L
 
         createNotificationChannel();
 
+        metrics = new PipelineMetrics(SystemClock.elapsedRealtime());
+        transport = FitnessApplication.transport(this);
+        uiDispatcher = new UiStateDispatcher(new UiStateDispatcher.Source() {
+            @Override
+            public UiState uiState() {
+                long now = System.currentTimeMillis();
+                return new UiState(heartRate, stepCount, derivedMetrics.calories(now), altitude, gpsInfo(),
+                        derivedMetrics.elapsedSeconds(now));
+            }
+
+            @Override
+            public boolean isTicking() {
+                return isMonitoring;
+            }
+        });
+        logEvents = Log.isLoggable(TAG, Log.DEBUG);
+
+        ingestionThread = new HandlerThread("MonitoringIngestion");
+        ingestionThread.start();
+        ingestionHandler = new Handler(ingestionThread.getLooper());
+        uploadThread = new HandlerThread("MonitoringUpload");
+        uploadThread.start();
+        uploadHandler = new Handler(uploadThread.getLooper());
+
         PowerManager powerManager = (PowerManager) getSystemService(POWER_SERVICE);
         wakeLock = powerManager.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK,
                 "MonitoringService::WakeLock");
+        uploadWakeLock = powerManager.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK,
+                "MonitoringService::UploadWakeLock");
+        uploadWakeLock.setReferenceCounted(false);
+
+        batchedCapture = getSharedPreferences("MonitoringServicePrefs", MODE_PRIVATE)
+                .getBoolean("batchedCapture", true);
 
         sensorManager = (SensorManager) getSystemService(SENSOR_SERVICE);
-        heartRateSensor = sensorManager.getDefaultSensor(TYPE_HEART_RATE);
-        stepCountSensor = sensorManager.getDefaultSensor(Sensor.TYPE_STEP_COUNTER);
-        pressureSensor = sensorManager.getDefaultSensor(Sensor.TYPE_PRESSURE);
+        heartRateSensor = findSensor(TYPE_HEART_RATE);
+        stepCountSensor = findSensor(Sensor.TYPE_STEP_COUNTER);
+        pressureSensor = findSensor(Sensor.TYPE_PRESSURE);
+        significantMotionSensor = sensorManager.getDefaultSensor(Sensor.TYPE_SIGNIFICANT_MOTION);
 
         Log.d(TAG, "Heart Rate Sensor: " + (heartRateSensor != null ? "Available" : "Not available"));
         Log.d(TAG, "Step Count Sensor: " + (stepCountSensor != null ? "Available" : "Not available"));
         Log.d(TAG, "Pressure Sensor: " + (pressureSensor != null ? "Available" : "Not available"));
 
         locationManager = (LocationManager) getSystemService(Context.LOCATION_SERVICE);
+        locationController = new LocationSamplingController(locationSource);
 
         SharedPreferences sharedPreferences = getSharedPreferences("UserData", MODE_PRIVATE);
         userId = sharedPreferences.getString("userId", "");
         weight = sharedPreferences.getInt("weight", 0);
         height = sharedPreferences.getInt("height", 0);
         gender = sharedPreferences.getString("gender", "");
+        age = sharedPreferences.getInt("age", 0); // facoltativa: senza si usa CalorieModel.DEFAULT_AGE
+
+        try {
+            outbox = new SampleOutbox(new File(getFilesDir(), "outbox"), OUTBOX_SEGMENT_SIZE);
+            uploadBatcher = new UploadBatcher(outbox, HttpTransport.MAX_IN_FLIGHT, UploadScheduler.MIN_BATCH);
+            Log.d(TAG, "Outbox opened, pending segments: " + outbox.pendingSegments());
+        } catch (IOException e) {
+            Log.e(TAG, "Error opening outbox", e);
+        }
+        try {
+            sessionStore = new SessionStore(new File(getFilesDir(), "history"),
+                    HISTORY_RAW_RETENTION, HISTORY_RETENTION, HISTORY_MAX_BYTES);
+            uploadHandler.post(this::compactHistory);
+        } catch (IOException e) {
+            Log.e(TAG, "Error opening session history", e);
+        }
 
         SharedPreferences prefs = getSharedPreferences("MonitoringServicePrefs", MODE_PRIVATE);
+        energyLedger = openEnergyLedger(prefs.getLong("sessionStart", 0));
+
+        uploadScheduler = new UploadScheduler(SystemClock::elapsedRealtime, this::startUpload, new Random());
+        registerReceiver(batteryReceiver, new IntentFilter(Intent.ACTION_BATTERY_CHANGED), null, uploadHandler);
+        connectivityManager = (ConnectivityManager) getSystemService(Context.CONNECTIVITY_SERVICE);
+        connectivityManager.registerDefaultNetworkCallback(networkCallback, uploadHandler);
+
+        // Identifica l'outbox presso il server: le sequenze dei campioni sono per dispositivo
+        deviceId = prefs.getString("deviceId", null);
+        if (deviceId == null) {
+            deviceId = UUID.randomUUID().toString();
+            prefs.edit().putString("deviceId", deviceId).apply();
+        }
         isMonitoring = prefs.getBoolean("isMonitoring", false);
+        compactPayload = "compact".equals(prefs.getString("payloadFormat", "json"));
+        rollupResolution = prefs.getInt("rollupResolutionSeconds", DEFAULT_ROLLUP_SECONDS) * 1000L;
+        recordTrace = prefs.getBoolean("recordTrace", false);
+        trackSimplifier = new TrackSimplifier(
+                prefs.getInt("trackMaxDeviationMeters", DEFAULT_TRACK_MAX_DEVIATION_METERS),
+                TRACK_KEEPALIVE_INTERVAL, capture::addLocation);
+        fixSelector = new FixSelector(FIX_WINDOW, FIX_MAX_AGE, FIX_MAX_SPEED, this::updateLocationInfo);
+        currentWorkout = prefs.getString("workout", "");
         if (isMonitoring) {
             resumeMonitoring();
+        } else {
+            uploadHandler.post(this::flushUploads);
         }
     }
 
@@ -174,9 +391,16 @@ public class MonitoringService extends Service implements SensorEventListener, L
     public void onDestroy() {
         super.onDestroy();
         stopMonitoring();
-        if (wakeLock.isHeld()) {
-            wakeLock.release();
-        }
+        releaseSessionWakeLock();
+        unregisterReceiver(batteryReceiver);
+        connectivityManager.unregisterNetworkCallback(networkCallback);
+        // L'upload thread si ferma dopo aver ricevuto l'ultimo marker dall'ingestion thread
+        ingestionHandler.post(() -> {
+            uploadHandler.post(this::saveEnergyLedger);
+            uploadHandler.post(this::flushHistory);
+            uploadThread.quitSafely();
+        });
+        ingestionThread.quitSafely();
     }
     @Override
     public IBinder onBind(Intent intent) {
@@ -188,95 +412,212 @@ public class MonitoringService extends Service implements SensorEventListener, L
             initialStepCount = -1;
             this.stepCount = 0;
             Log.d(TAG, "Step count reset to 0 at the start of monitoring");
+            currentWorkout = workoutType;
+            startTime = System.currentTimeMillis();
+            energyLedger = openEnergyLedger(startTime);
+            derivedMetrics.start(startTime, CalorieModel.forSession(workoutType, weight, gender, age));
+
             SharedPreferences.Editor editor = getSharedPreferences("MonitoringServicePrefs", MODE_PRIVATE).edit();
             editor.putBoolean("isMonitoring", true);
+            editor.putLong("sessionStart", startTime);
+            editor.putInt("initialStepCount", -1);
+            editor.putString("workout", workoutType);
             editor.apply();
-            startLocationUpdates();
-            forceLocationUpdate();
+            ingestionHandler.post(() -> {
+                addDataPoint(SampleType.START, System.currentTimeMillis(), workoutType);
+                startIngestionStages(workoutType);
+                openTrace();
+                fixSelector.reset();
+                trackSimplifier.reset();
+            });
 
+            ingestionHandler.post(this::forceLocationUpdate);
 
-            if (heartRateSensor != null) {
-                boolean hrRegistered = sensorManager.registerListener(this, heartRateSensor, SensorManager.SENSOR_DELAY_NORMAL);
-                Log.d(TAG, "Heart rate sensor registered: " + hrRegistered);
-            }
-            if (!wakeLock.isHeld()) {
-                wakeLock.acquire();
-            }
+            acquireSessionWakeLock();
 
-            currentWorkout = workoutType;
-
-            if ("Monitoraggio Giornaliero".equals(currentWorkout)) {
+            if (DAILY_WORKOUT.equals(currentWorkout)) {
                 startDailyMonitoring();
             } else {
                 startRegularMonitoring();
             }
 
-            startTime = System.currentTimeMillis();
-            handler.post(updateTimerRunnable);
             startForeground(NOTIFICATION_ID, createNotification());
 
-            addDataPoint("start", currentWorkout);
-
-            sendDataHandler.postDelayed(sendDataRunnable, SEND_INTERVAL);
-            forceUpdateHandler.postDelayed(forceUpdateRunnable, FORCE_UPDATE_INTERVAL);
+            uploadHandler.post(uploadCheckRunnable);
         }
     }
 
     private void startDailyMonitoring() {
-        sensorManager.registerListener(this, heartRateSensor, SensorManager.SENSOR_DELAY_NORMAL);
-        sensorManager.registerListener(this, stepCountSensor, SensorManager.SENSOR_DELAY_NORMAL);
-        sensorManager.registerListener(this, pressureSensor, SensorManager.SENSOR_DELAY_NORMAL);
-        startLocationUpdates();
+        registerSensors(SensorManager.SENSOR_DELAY_NORMAL, DAILY_REPORT_LATENCY_US);
+        startLocationUpdates(DAILY_WORKOUT);
     }
 
     private void startRegularMonitoring() {
-        sensorManager.registerListener(this, heartRateSensor, SensorManager.SENSOR_DELAY_FASTEST);
-        sensorManager.registerListener(this, stepCountSensor, SensorManager.SENSOR_DELAY_FASTEST);
-        sensorManager.registerListener(this, pressureSensor, SensorManager.SENSOR_DELAY_FASTEST);
-        startLocationUpdates();
+        registerSensors(SensorManager.SENSOR_DELAY_FASTEST, WORKOUT_REPORT_LATENCY_US);
+        startLocationUpdates(currentWorkout);
     }
 
     private void resumeMonitoring() {
         if (!isMonitoring) {
             isMonitoring = true;
-            if (!wakeLock.isHeld()) {
-                wakeLock.acquire();
-            }
-            sensorManager.registerListener(this, heartRateSensor, SensorManager.SENSOR_DELAY_FASTEST);
-            sensorManager.registerListener(this, stepCountSensor, SensorManager.SENSOR_DELAY_FASTEST);
-            sensorManager.registerListener(this, pressureSensor, SensorManager.SENSOR_DELAY_FASTEST);
-            startLocationUpdates();
-            handler.post(updateTimerRunnable);
+            startTime = energyLedger.sessionStart() != 0 ? energyLedger.sessionStart() : System.currentTimeMillis();
+            derivedMetrics.start(startTime, CalorieModel.forSession(currentWorkout, weight, gender, age));
+            // I totali della sessione erano solo in memoria: si ricostruiscono dallo storico
+            // prima che l'upload thread ci scriva i nuovi campioni
+            long resumedAt = System.currentTimeMillis();
+            uploadHandler.post(() -> restoreDerivedMetrics(resumedAt));
+            acquireSessionWakeLock();
+            String workout = currentWorkout;
+            int savedInitialStepCount = getSharedPreferences("MonitoringServicePrefs", MODE_PRIVATE)
+                    .getInt("initialStepCount", -1);
+            ingestionHandler.post(() -> {
+                initialStepCount = savedInitialStepCount;
+                startIngestionStages(workout);
+                openTrace();
+            });
+            if (DAILY_WORKOUT.equals(currentWorkout)) {
+                startDailyMonitoring();
+            } else {
+                startRegularMonitoring();
+            }
             startForeground(NOTIFICATION_ID, createNotification());
-            sendDataHandler.postDelayed(sendDataRunnable, SEND_INTERVAL);
-            forceUpdateHandler.postDelayed(forceUpdateRunnable, FORCE_UPDATE_INTERVAL);
+            uploadHandler.post(this::flushUploads);
         }
     }
 
     private void stopMonitoring() {
         if (isMonitoring) {
             isMonitoring = false;
+            derivedMetrics.stop(System.currentTimeMillis());
+            uiDispatcher.invalidate();
             SharedPreferences.Editor editor = getSharedPreferences("MonitoringServicePrefs", MODE_PRIVATE).edit();
             editor.putBoolean("isMonitoring", false);
             editor.apply();
 
-            if (wakeLock.isHeld()) {
-                wakeLock.release();
-            }
+            releaseSessionWakeLock();
             sensorManager.unregisterListener(this);
+            registeredSensors = Collections.emptyList();
             stopLocationUpdates();
-            handler.removeCallbacks(updateTimerRunnable);
-            sendDataHandler.removeCallbacks(sendDataRunnable);
-            forceUpdateHandler.removeCallbacks(forceUpdateRunnable);
 
-            addDataPoint("stop", currentWorkout);
-
-            sendDataToServer();
-            dataPoints.clear();
+            String workout = currentWorkout;
+            ingestionHandler.post(() -> {
+                capture.flush();
+                ingestionHandler.removeCallbacks(closeFixWindowRunnable);
+                fixSelector.closeWindow();
+                trackSimplifier.flush();
+                addDataPoint(SampleType.STOP, System.currentTimeMillis(), workout);
+                closeTrace();
+                uploadHandler.post(this::flushUploads);
+                uploadHandler.post(this::saveEnergyLedger);
+            });
             stopForeground(true);
         }
     }
 
+    // In batched mode si preferiscono i sensori wake-up: il sensor hub sveglia il
+    // processore prima che la FIFO si riempia, senza wake lock per tutta la sessione
+    private Sensor findSensor(int type) {
+        Sensor sensor = batchedCapture ? sensorManager.getDefaultSensor(type, true) : null;
+        return sensor != null ? sensor : sensorManager.getDefaultSensor(type);
+    }
+
+    private void registerSensors(int samplingPeriod, int maxReportLatencyUs) {
+        registerSensor(heartRateSensor, samplingPeriod, maxReportLatencyUs);
+        registerSensor(stepCountSensor, samplingPeriod, maxReportLatencyUs);
+        registerSensor(pressureSensor, samplingPeriod, maxReportLatencyUs);
+    }
+
+    private void registerSensor(Sensor sensor, int samplingPeriod, int maxReportLatencyUs) {
+        if (sensor == null) {
+            return;
+        }
+        boolean registered = batchedCapture
+                ? sensorManager.registerListener(this, sensor, samplingPeriod, maxReportLatencyUs, ingestionHandler)
+                : sensorManager.registerListener(this, sensor, samplingPeriod, ingestionHandler);
+        if (registered) {
+            List<Sensor> sensors = new ArrayList<>(registeredSensors);
+            sensors.add(sensor);
+            registeredSensors = Collections.unmodifiableList(sensors);
+        }
+        Log.d(TAG, sensor.getName() + " registered: " + registered
+                + (batchedCapture ? ", fifo " + sensor.getFifoMaxEventCount() + ", wake-up " + sensor.isWakeUpSensor() : ""));
+    }
+
+    private void acquireSessionWakeLock() {
+        if (!batchedCapture && !wakeLock.isHeld()) {
+            wakeLock.acquire();
+            energyLedger.onWakeLockAcquired(EnergyLedger.WAKE_LOCK_SESSION, SystemClock.elapsedRealtime());
+        }
+    }
+
+    private void releaseSessionWakeLock() {
+        if (wakeLock.isHeld()) {
+            wakeLock.release();
+            energyLedger.onWakeLockReleased(EnergyLedger.WAKE_LOCK_SESSION, SystemClock.elapsedRealtime());
+        }
+    }
+
+    // Upload thread
+    private void releaseUploadWakeLock() {
+        uploadWakeLock.release();
+        energyLedger.onWakeLockReleased(EnergyLedger.WAKE_LOCK_UPLOAD, SystemClock.elapsedRealtime());
+    }
+
+    // Il registro viene ripreso se il servizio riparte durante la stessa sessione
+    private EnergyLedger openEnergyLedger(long sessionStart) {
+        EnergyLedger ledger = null;
+        File file = energyLedgerFile(sessionStart);
+        if (sessionStart != 0 && file.exists()) {
+            try {
+                ledger = EnergyLedger.load(file);
+            } catch (IOException e) {
+                Log.e(TAG, "Error loading energy ledger " + file.getName(), e);
+            }
+        }
+        if (ledger == null) {
+            ledger = new EnergyLedger(sessionStart);
+            pruneEnergyLedgers();
+        }
+        if (batteryPercent >= 0) {
+            ledger.onBatteryLevel(batteryPercent);
+        }
+        return ledger;
+    }
+
+    // Upload thread
+    private void saveEnergyLedger() {
+        EnergyLedger ledger = energyLedger;
+        if (ledger.sessionStart() == 0) {
+            return;
+        }
+        try {
+            ledger.save(energyLedgerFile(ledger.sessionStart()), SystemClock.elapsedRealtime());
+        } catch (IOException e) {
+            Log.e(TAG, "Error saving energy ledger", e);
+        }
+    }
+
+    private File energyLedgerFile(long sessionStart) {
+        return new File(new File(getFilesDir(), "energy"), sessionStart + ".properties");
+    }
+
+    private void pruneEnergyLedgers() {
+        File dir = new File(getFilesDir(), "energy");
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            Log.e(TAG, "Cannot create energy ledger directory");
+            return;
+        }
+        File[] files = dir.listFiles((d, name) -> name.endsWith(".properties"));
+        if (files == null || files.length < MAX_ENERGY_LEDGERS) {
+            return;
+        }
+        // I nomi sono i millisecondi di inizio sessione, tutti della stessa lunghezza
+        Arrays.sort(files);
+        for (int i = 0; i <= files.length - MAX_ENERGY_LEDGERS; i++) {
+            files[i].delete();
+        }
+    }
+
     private Notification createNotification() {
         Intent notificationIntent = new Intent(this, MainActivity.class);
         notificationIntent.setAction(Intent.ACTION_MAIN);
@@ -284,7 +625,7 @@ public class MonitoringService extends Service implements SensorEventListener, L
         notificationIntent.addFlags(Intent.FLAG_ACTIVITY_NEW_TASK | Intent.FLAG_ACTIVITY_SINGLE_TOP);
         PendingIntent pendingIntent = PendingIntent.getActivity(this, 0, notificationIntent, PendingIntent.FLAG_UPDATE_CURRENT | PendingIntent.FLAG_IMMUTABLE);
 
-        String contentText = "Monitoraggio Giornaliero".equals(currentWorkout)
+        String contentText = DAILY_WORKOUT.equals(currentWorkout)
                 ? "Monitoraggio Giornaliero Attivo"
                 : "Monitoraggio " + currentWorkout + " Attivo";
 
@@ -307,35 +648,74 @@ public class MonitoringService extends Service implements SensorEventListener, L
         }
     }
     private static final long GPS_TIMEOUT = 30000;
-    private void startLocationUpdates() {
-        if (ActivityCompat.checkSelfPermission(this, Manifest.permission.ACCESS_FINE_LOCATION) != PackageManager.PERMISSION_GRANTED) {
-            Log.e(TAG, "Location permission not granted");
-            return;
+    private void startLocationUpdates(String workout) {
+        ingestionHandler.post(() -> {
+            locationController.start(workout, SystemClock.elapsedRealtime());
+            scheduleLocationCheck();
+        });
+    }
+
+    private void stopLocationUpdates() {
+        ingestionHandler.post(() -> {
+            locationController.stop();
+            ingestionHandler.removeCallbacks(locationCheckRunnable);
+            locationCheckScheduled = false;
+        });
+    }
+
+    // Ingestion thread: il controller dice quando controllare se l'utente e' fermo
+    private void scheduleLocationCheck() {
+        long delay = locationController.poll(SystemClock.elapsedRealtime());
+        if (delay >= 0 && !locationCheckScheduled) {
+            locationCheckScheduled = true;
+            ingestionHandler.postDelayed(locationCheckRunnable, delay);
         }
-        if (!hasGPSHardware()) {
-            Log.e(TAG, "Device does not have GPS hardware.");
-            return;
+    }
+
+    // Chiamato dal controller sull'ingestion thread
+    private final LocationSamplingController.LocationSource locationSource = new LocationSamplingController.LocationSource() {
+        @Override
+        public void removeUpdates() {
+            locationManager.removeUpdates(MonitoringService.this);
+            energyLedger.onProvidersStopped(SystemClock.elapsedRealtime());
         }
-        try {
-            // Request updates from both GPS and Network providers
-            List<String> providers = locationManager.getProviders(true);
-            for (String provider : providers) {
-                locationManager.requestLocationUpdates(
-                        provider,
-                        LOCATION_UPDATE_INTERVAL,
-                        5, // Minimum distance in meters
-                        this
-                );
-                Log.d(TAG, provider + " location updates requested successfully");
+
+        @Override
+        public void requestUpdates(String provider, long interval, float minDistance) {
+            if (ActivityCompat.checkSelfPermission(MonitoringService.this, Manifest.permission.ACCESS_FINE_LOCATION) != PackageManager.PERMISSION_GRANTED) {
+                Log.e(TAG, "Location permission not granted");
+                return;
+            }
+            if (LocationManager.GPS_PROVIDER.equals(provider) && !hasGPSHardware()) {
+                Log.e(TAG, "Device does not have GPS hardware.");
+                return;
+            }
+            try {
+                if (!locationManager.isProviderEnabled(provider)) {
+                    Log.d(TAG, provider + " provider disabled");
+                    return;
+                }
+                locationManager.requestLocationUpdates(provider, interval, minDistance,
+                        MonitoringService.this, ingestionThread.getLooper());
+                energyLedger.onProviderStarted(provider, SystemClock.elapsedRealtime());
+                Log.d(TAG, provider + " location updates every " + interval + " ms / " + minDistance + " m");
+            } catch (Exception e) {
+                Log.e(TAG, "Error requesting location updates: " + e.getMessage());
             }
-        } catch (Exception e) {
-            Log.e(TAG, "Error requesting location updates: " + e.getMessage());
         }
-    }
 
-    private void stopLocationUpdates() {
-        locationManager.removeUpdates(this);
-    }
+        @Override
+        public void watchForMotion(boolean enabled) {
+            if (significantMotionSensor == null) {
+                return;
+            }
+            if (enabled) {
+                sensorManager.requestTriggerSensor(significantMotionListener, significantMotionSensor);
+            } else {
+                sensorManager.cancelTriggerSensor(significantMotionListener, significantMotionSensor);
+            }
+        }
+    };
 
     private void forceLocationUpdate() {
         if (ActivityCompat.checkSelfPermission(this, Manifest.permission.ACCESS_FINE_LOCATION) != PackageManager.PERMISSION_GRANTED) {
@@ -343,59 +723,77 @@ public class MonitoringService extends Service implements SensorEventListener, L
             return;
         }
 
+        // Le ultime posizioni note passano dal selettore: se sono vecchie vengono scartate
         Location lastKnownLocationGPS = locationManager.getLastKnownLocation(LocationManager.GPS_PROVIDER);
         Location lastKnownLocationNetwork = locationManager.getLastKnownLocation(LocationManager.NETWORK_PROVIDER);
 
         if (lastKnownLocationGPS != null) {
-            updateLocationInfo(lastKnownLocationGPS);
-            Log.d(TAG, "Last known GPS location obtained");
-        } else if (lastKnownLocationNetwork != null) {
-            updateLocationInfo(lastKnownLocationNetwork);
-            Log.d(TAG, "Last known network location obtained");
-        } else {
+            offerFix(lastKnownLocationGPS);
+        }
+        if (lastKnownLocationNetwork != null) {
+            offerFix(lastKnownLocationNetwork);
+        }
+        if (lastKnownLocationGPS == null && lastKnownLocationNetwork == null) {
             Log.e(TAG, "No last known location available");
         }
     }
 
-    private void updateLocationInfo(Location location) {
-        if (location == null) {
-            Log.e(TAG, "Received null location");
-            return;
+    private final Runnable closeFixWindowRunnable = () -> fixSelector.closeWindow();
+
+    private void offerFix(Location location) {
+        long now = SystemClock.elapsedRealtime();
+        long age = now - location.getElapsedRealtimeNanos() / 1000000;
+        LocationRecord record = new LocationRecord(location.getLatitude(), location.getLongitude(),
+                location.hasAltitude() ? location.getAltitude() : Double.NaN,
+                location.hasAccuracy() ? location.getAccuracy() : Float.NaN,
+                location.hasSpeed() ? location.getSpeed() : Float.NaN,
+                location.hasBearing() ? location.getBearing() : Float.NaN,
+                location.getProvider());
+        if (traceWriter != null) {
+            try {
+                traceWriter.location(SystemClock.elapsedRealtimeNanos(), location.getTime(),
+                        location.getElapsedRealtimeNanos(), record);
+            } catch (IOException e) {
+                Log.e(TAG, "Error writing sensor trace", e);
+                closeTrace();
+            }
         }
+        if (fixSelector.add(now, location.getTime(), age, record)) {
+            ingestionHandler.removeCallbacks(closeFixWindowRunnable);
+            ingestionHandler.postDelayed(closeFixWindowRunnable, fixSelector.window());
+        }
+    }
 
-        Log.d(TAG, "Location update received");
-        Log.d(TAG, "Provider: " + location.getProvider());
-        Log.d(TAG, "Accuracy: " + location.getAccuracy());
-        Log.d(TAG, "Time: " + new Date(location.getTime()).toString());
-
-        lastKnownLocation = location;
-        String gpsInfo = String.format("Lat: %.6f, Lon: %.6f", location.getLatitude(), location.getLongitude());
-        this.gpsInfo = gpsInfo;
-        Log.d(TAG, "GPS Info: " + gpsInfo);
-        addDataPoint("gps", gpsInfo);
-
-        updateAltitude(location);
+    // Sink del FixSelector: arriva solo il fix scelto nella finestra
+    private void updateLocationInfo(long timestamp, LocationRecord record) {
+        if (logEvents) {
+            Log.d(TAG, "Location " + record.provider + ", accuracy " + record.accuracy + ", time " + new Date(timestamp));
+        }
+        lastLocation = record;
+        if (record.hasAltitude()) {
+            this.altitude = record.altitude;
+        }
+        trackSimplifier.add(timestamp, record);
 
-        notifyUIUpdates();
+        uiDispatcher.invalidate();
     }
 
-    private void updateAltitude(Location location) {
-        if (location != null && location.hasAltitude()) {
-            this.altitude = location.getAltitude();
-            Log.d(TAG, "Altitude from GPS: " + this.altitude);
-        } else if (lastPressureReading != 0) {
-            this.altitude = SensorManager.getAltitude(SensorManager.PRESSURE_STANDARD_ATMOSPHERE, lastPressureReading);
+    // Altitudine barometrica: i fix GPS portano la loro dentro il LocationRecord
+    private void updateAltitude(long timestamp) {
+        this.altitude = Barometer.altitude(Barometer.PRESSURE_STANDARD_ATMOSPHERE, lastPressureReading);
+        if (logEvents) {
             Log.d(TAG, "Altitude from pressure sensor: " + this.altitude);
-        } else {
-            Log.d(TAG, "No altitude data available");
         }
-        addDataPoint("altitude", this.altitude);
+        addDataPoint(SampleType.ALTITUDE, timestamp, this.altitude);
     }
 
     @Override
     public void onLocationChanged(Location location) {
+        metrics.onSensorEvent(PipelineMetrics.SOURCE_LOCATION);
         if (location != null) {
-            updateLocationInfo(location);
+            locationController.onLocation(location.hasSpeed() ? location.getSpeed() : Float.NaN, SystemClock.elapsedRealtime());
+            scheduleLocationCheck();
+            offerFix(location);
         } else {
             Log.e(TAG, "Received null location");
         }
@@ -412,29 +810,62 @@ public class MonitoringService extends Service implements SensorEventListener, L
 
     @Override
     public void onSensorChanged(SensorEvent event) {
-        Log.d(TAG, "Sensor event received: " + event.sensor.getType());
+        if (logEvents) {
+            Log.d(TAG, "Sensor event received: " + event.sensor.getType());
+        }
+        long deliveredNanos = SystemClock.elapsedRealtimeNanos();
+        long timestamp = EventClock.toWallClock(event.timestamp, deliveredNanos, System.currentTimeMillis());
+        if (traceWriter != null) {
+            try {
+                traceWriter.sensor(event.sensor.getType(), event.timestamp, deliveredNanos, event.values);
+            } catch (IOException e) {
+                Log.e(TAG, "Error writing sensor trace", e);
+                closeTrace();
+            }
+        }
         if (event.sensor.getType() == TYPE_HEART_RATE) {
+            metrics.onSensorEvent(PipelineMetrics.SOURCE_HEART_RATE);
             this.heartRate = (int) event.values[0];
-            Log.d(TAG, "Heart Rate: " + this.heartRate);
-            Log.d(TAG, "Raw heart rate values: " + java.util.Arrays.toString(event.values));
-            addDataPoint("heart_rate", heartRate);
+            if (logEvents) {
+                Log.d(TAG, "Heart Rate: " + this.heartRate);
+                Log.d(TAG, "Raw heart rate values: " + Arrays.toString(event.values));
+            }
+            derivedMetrics.onHeartRate(timestamp, heartRate);
+            addDataPoint(SampleType.HEART_RATE, timestamp, heartRate);
         } else if (event.sensor.getType() == Sensor.TYPE_STEP_COUNTER) {
+            metrics.onSensorEvent(PipelineMetrics.SOURCE_STEPS);
             int totalSteps = (int) event.values[0];
-            if (initialStepCount == -1) {
-                initialStepCount = totalSteps;
+            if (lastStepTotal >= 0 && totalSteps > lastStepTotal) {
+                locationController.onSteps(SystemClock.elapsedRealtime());
+                scheduleLocationCheck();
+            }
+            lastStepTotal = totalSteps;
+            // Inizio sessione, oppure contatore azzerato da un riavvio: si riparte dai passi gia' contati
+            if (initialStepCount == -1 || totalSteps - initialStepCount < stepCount) {
+                setInitialStepCount(totalSteps - stepCount);
                 Log.d(TAG, "Initial step count set to: " + initialStepCount);
             }
             this.stepCount = totalSteps - initialStepCount;
-            this.calories = calculateCalories(this.stepCount);
-            Log.d(TAG, "Step Count: " + this.stepCount + ", Calories: " + this.calories);
-            addDataPoint("step_count", stepCount);
-            addDataPoint("calories", calories);
+            derivedMetrics.onSteps(this.stepCount);
+            if (logEvents) {
+                Log.d(TAG, "Step Count: " + this.stepCount);
+            }
+            addDataPoint(SampleType.STEP_COUNT, timestamp, stepCount);
         } else if (event.sensor.getType() == Sensor.TYPE_PRESSURE) {
+            metrics.onSensorEvent(PipelineMetrics.SOURCE_PRESSURE);
             lastPressureReading = event.values[0];
-            updateAltitude(null);
+            updateAltitude(timestamp);
         }
 
-        notifyUIUpdates();
+        uiDispatcher.invalidate();
+    }
+
+    // Thread di acquisizione: gli eventi in FIFO sono gia' stati consegnati prima di questo callback
+    @Override
+    public void onFlushCompleted(Sensor sensor) {
+        if (pendingSensorFlushes.decrementAndGet() == 0) {
+            uploadHandler.post(sensorFlushDoneRunnable);
+        }
     }
 
     @Override
@@ -446,97 +877,328 @@ public class MonitoringService extends Service implements SensorEventListener, L
         this.currentWorkout = workout;
     }
 
-    private void addDataPoint(String dataType, Object value) {
-        dataPoints.add(new DataPoint(dataType, value, System.currentTimeMillis()));
+    // Solo dal thread di acquisizione: e' l'unico produttore del ring
+    private void addDataPoint(int type, long timestamp, double value) {
+        capture.add(type, timestamp, value);
+    }
 
-        if (dataPoints.size() >= MAX_DATA_POINTS) {
-            sendDataToServer();
+    private void addDataPoint(int type, long timestamp, String value) {
+        capture.addText(type, timestamp, value);
+    }
+
+    private void onSampleOffered(boolean accepted) {
+        if (!accepted) {
+            Log.w(TAG, "Sample ring full, dropped samples: " + sampleRing.dropped());
         }
+        scheduleDrain();
     }
 
-    private void sendDataToServer() {
-        if (dataPoints.isEmpty()) {
+    // adb shell run-as com.chinonso.wearos cat files/traces/<ora>.trace > sessione.trace
+    private void openTrace() {
+        if (!recordTrace || traceWriter != null) {
             return;
         }
-
-        JSONArray jsonArray = new JSONArray();
-        for (DataPoint dp : dataPoints) {
-            try {
-                JSONObject json = new JSONObject();
-                json.put("userId", userId);
-                json.put("type", dp.type);
-                json.put("value", dp.value);
-                json.put("timestamp", dp.timestamp);
-                json.put("workout", currentWorkout);
-                jsonArray.put(json);
-            } catch (JSONException e) {
-                Log.e(TAG, "Error creating JSON", e);
+        File dir = new File(getFilesDir(), "traces");
+        File[] traces = dir.listFiles();
+        if (traces != null && traces.length >= MAX_TRACES) {
+            Arrays.sort(traces);
+            for (int i = 0; i <= traces.length - MAX_TRACES; i++) {
+                traces[i].delete();
             }
         }
+        long now = System.currentTimeMillis();
+        File file = new File(dir, now + ".trace");
+        try {
+            dir.mkdirs();
+            traceWriter = new SensorTrace.Writer(new FileOutputStream(file), now, SystemClock.elapsedRealtimeNanos());
+            Log.d(TAG, "Recording sensor trace to " + file);
+        } catch (IOException e) {
+            Log.e(TAG, "Error opening sensor trace", e);
+        }
+    }
+
+    private void closeTrace() {
+        if (traceWriter == null) {
+            return;
+        }
+        try {
+            Log.d(TAG, "Sensor trace closed: " + traceWriter.events() + " events, " + traceWriter.size() + " bytes");
+            traceWriter.close();
+        } catch (IOException e) {
+            Log.e(TAG, "Error closing sensor trace", e);
+        }
+        traceWriter = null;
+    }
 
-        Log.d(TAG, "Sending data to server: " + jsonArray.toString());
+    private void startIngestionStages(String workout) {
+        capture.start(FilterPolicy.forWorkout(workout), DAILY_WORKOUT.equals(workout) ? rollupResolution : 0);
+    }
 
-        RequestBody body = RequestBody.create(jsonArray.toString(), JSON);
-        Request request = new Request.Builder()
-                .url(SERVER_URL)
-                .post(body)
-                .build();
+    private void scheduleDrain() {
+        if (drainScheduled.compareAndSet(false, true)) {
+            uploadHandler.post(drainRunnable);
+        }
+    }
 
-        client.newCall(request).enqueue(new Callback() {
-            @Override
-            public void onFailure(Call call, IOException e) {
-                Log.e(TAG, "Error sending data to server", e);
+    // Upload thread: sposta i campioni dal ring all'outbox
+    private void drainRing() {
+        if (outbox == null) {
+            return;
+        }
+        metrics.onRingDepth(sampleRing.size());
+        long now = System.currentTimeMillis();
+        while (!sampleRing.isEmpty()) {
+            int type = sampleRing.peekType();
+            // Gli aggregati hanno il timestamp di inizio finestra: la latenza sarebbe gonfiata
+            if (!SampleType.isRollup(type)) {
+                metrics.onBuffered(sampleRing.peekTimestamp(), now);
             }
-
-            @Override
-            public void onResponse(Call call, Response response) throws IOException {
-                if (!response.isSuccessful()) {
-                    Log.e(TAG, "Unexpected code " + response);
+            try {
+                if (SampleType.isText(type)) {
+                    outbox.appendText(type, sampleRing.peekTimestamp(), sampleRing.peekText());
+                } else if (SampleType.isLocation(type)) {
+                    outbox.appendLocation(sampleRing.peekTimestamp(), sampleRing.peekLocation());
                 } else {
-                    Log.d(TAG, "Data sent successfully");
-                    dataPoints.clear();
+                    outbox.append(type, sampleRing.peekTimestamp(), sampleRing.peekValue());
                 }
+            } catch (IOException e) {
+                Log.e(TAG, "Error writing to outbox", e);
+            }
+            recordHistory(type);
+            sampleRing.poll();
+        }
+    }
+
+    // Upload thread: copia nello storico il campione in testa al ring.
+    // START e STOP aprono e chiudono la sessione; i campioni vanno su disco a blocchi.
+    private void recordHistory(int type) {
+        if (sessionStore == null) {
+            return;
+        }
+        long timestamp = sampleRing.peekTimestamp();
+        try {
+            if (type == SampleType.START) {
+                flushHistory();
+                sessionStore.beginSession(timestamp, sampleRing.peekText());
+            }
+            if (SampleType.isText(type)) {
+                historyBuffer.addText(type, timestamp, sampleRing.peekText());
+            } else if (SampleType.isLocation(type)) {
+                historyBuffer.addLocation(timestamp, sampleRing.peekLocation());
+            } else {
+                historyBuffer.add(type, timestamp, sampleRing.peekValue());
+            }
+            if (type == SampleType.STOP) {
+                flushHistory();
+                sessionStore.endSession(timestamp);
+                compactHistory();
+            } else if (historyBuffer.size() >= HISTORY_CHUNK) {
+                flushHistory();
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Error writing session history", e);
+        }
+    }
+
+    // Upload thread, dopo un riavvio del servizio a sessione in corso
+    private void restoreDerivedMetrics(long until) {
+        if (sessionStore == null || !sessionStore.hasOpenSession()) {
+            return;
+        }
+        SampleBuffer history = new SampleBuffer(1024);
+        try {
+            long sessionId = sessionStore.lastSession().start;
+            sessionStore.query(sessionId, until, sessionId, DerivedMetrics.HISTORY_TYPES, history);
+        } catch (IOException e) {
+            Log.e(TAG, "Error reading session history", e);
+            return;
+        }
+        derivedMetrics.restore(history);
+        int restoredSteps = derivedMetrics.steps();
+        Log.d(TAG, "Derived metrics restored from " + history.size() + " samples, steps " + restoredSteps);
+        ingestionHandler.post(() -> {
+            if (restoredSteps > stepCount) {
+                if (initialStepCount != -1) {
+                    setInitialStepCount(initialStepCount - (restoredSteps - stepCount));
+                }
+                stepCount = restoredSteps;
             }
         });
     }
 
-    private double calculateCalories(int stepCount) {
-        double caloriesBurned = 0;
-        double met = 0;
+    // Ingestion thread: salvato perche' il contatore hardware conta dal boot, non dalla sessione
+    private void setInitialStepCount(int initialStepCount) {
+        this.initialStepCount = initialStepCount;
+        getSharedPreferences("MonitoringServicePrefs", MODE_PRIVATE).edit()
+                .putInt("initialStepCount", initialStepCount).apply();
+    }
 
-        switch (currentWorkout) {
-            case "Walking":
-                met = 3.5;
-                break;
-            case "Running":
-                met = 7.0;
-                break;
-            case "Cycling":
-                met = 8.0;
-                break;
-            case "Monitoraggio Giornaliero":
-                met = 1.5; // MET medio per attività leggere durante il giorno
-                break;
-            default:
-                met = 3.5;
+    private void flushHistory() {
+        if (sessionStore == null || historyBuffer.isEmpty()) {
+            return;
+        }
+        try {
+            sessionStore.append(historyBuffer);
+        } catch (IOException e) {
+            Log.e(TAG, "Error writing session history", e);
         }
+        historyBuffer.clear();
+    }
 
-        double weightInKg = weight * 0.45359237;
-        double heightInCm = height * 2.54;
+    private void compactHistory() {
+        if (sessionStore == null) {
+            return;
+        }
+        try {
+            sessionStore.compact(System.currentTimeMillis());
+        } catch (IOException e) {
+            Log.e(TAG, "Error compacting session history", e);
+        }
+    }
 
-        if (gender.equalsIgnoreCase("male")) {
-            caloriesBurned = (met * 3.5 * weightInKg) / 200;
-        } else if (gender.equalsIgnoreCase("female")) {
-            caloriesBurned = (met * 3.5 * weightInKg) / 200 * 0.9;
+    // Upload thread: chiede allo scheduler se e' il momento di inviare
+    private void checkUploads() {
+        if (outbox == null) {
+            return;
         }
+        uploadScheduler.setBacklog(outbox.pendingSamples());
+        metrics.onBacklog(outbox.pendingSamples());
+        long delay = uploadScheduler.poll();
+        uploadHandler.removeCallbacks(uploadCheckRunnable);
+        uploadHandler.postDelayed(uploadCheckRunnable, delay);
+        uploadHandler.removeCallbacks(warmUpRunnable);
+        if (delay > WARM_UP_LEAD && outbox.pendingSamples() > 0 && !uploadScheduler.isInFlight()) {
+            uploadHandler.postDelayed(warmUpRunnable, delay - WARM_UP_LEAD);
+        }
+    }
 
-        long activityDuration = (System.currentTimeMillis() - startTime) / 1000;
-        caloriesBurned *= (stepCount / 100.0) * (activityDuration / 3600.0);
+    // Fine sessione o riavvio: invia quello che c'e' senza aspettare l'intervallo
+    private void flushUploads() {
+        drainRing();
+        uploadScheduler.requestFlush();
+        checkUploads();
+    }
 
-        return caloriesBurned;
+    // Chiamato dallo scheduler. In batched mode prima si svuotano le FIFO dei sensori,
+    // cosi' il batch contiene anche gli eventi non ancora consegnati.
+    private void startUpload(int maxSamples) {
+        uploadWakeLock.acquire(UPLOAD_WAKE_LOCK_TIMEOUT);
+        energyLedger.onWakeLockAcquired(EnergyLedger.WAKE_LOCK_UPLOAD, SystemClock.elapsedRealtime());
+        List<Sensor> sensors = registeredSensors;
+        if (!batchedCapture || sensors.isEmpty()) {
+            uploadAfterIngestion(maxSamples);
+            return;
+        }
+        flushMaxSamples = maxSamples;
+        pendingSensorFlushes.set(sensors.size());
+        uploadHandler.postDelayed(sensorFlushDoneRunnable, SENSOR_FLUSH_TIMEOUT);
+        if (!sensorManager.flush(this)) {
+            uploadHandler.removeCallbacks(sensorFlushDoneRunnable);
+            uploadAfterIngestion(maxSamples);
+        }
     }
 
-    private List<UIUpdateCallback> uiUpdateCallbacks = new ArrayList<>();
+    private final Runnable sensorFlushDoneRunnable = new Runnable() {
+        @Override
+        public void run() {
+            uploadHandler.removeCallbacks(this);
+            energyLedger.onWakeup(EnergyLedger.WAKEUP_SENSOR_FLUSH);
+            if (pendingSensorFlushes.getAndSet(-1) == -1) {
+                return; // gia' gestito (timeout o ultimo onFlushCompleted)
+            }
+            uploadAfterIngestion(flushMaxSamples);
+        }
+    };
+
+    // Gli ultimi campioni sono in coda sull'ingestion thread: si parte dopo di loro,
+    // chiudendo anche le finestre di aggregazione gia' terminate
+    private void uploadAfterIngestion(int maxSamples) {
+        ingestionHandler.post(() -> {
+            capture.closeWindowsBefore(System.currentTimeMillis());
+            uploadHandler.post(() -> uploadBatch(maxSamples));
+        });
+    }
+
+    // Invia i segmenti piu' vecchi, fino a maxSamples campioni per batch. Se ne restano
+    // altri si preparano altri batch, fino a HttpTransport.MAX_IN_FLIGHT in parallelo.
+    // I segmenti vengono cancellati solo quando il server conferma il loro batch.
+    private void uploadBatch(int maxSamples) {
+        drainRing();
+        flushHistory();
+
+        uploadBodies.clear();
+        int unreadable = uploadBatcher.unreadableSegments();
+        int batches = uploadBatcher.prepare(maxSamples);
+        if (uploadBatcher.unreadableSegments() > unreadable) {
+            Log.e(TAG, "Dropped " + (uploadBatcher.unreadableSegments() - unreadable) + " unreadable outbox segments");
+        }
+        if (batches == 0) {
+            uploadScheduler.onNothingToUpload();
+            releaseUploadWakeLock();
+            return;
+        }
+        for (int i = 0; i < batches; i++) {
+            uploadBodies.add(new BatchRequestBody(uploadBatcher.batch(i), userId, uploadBatcher.workout(i),
+                    compactPayload, deviceId, uploadBatcher.firstSequence(i)));
+        }
+
+        Log.d(TAG, "Sending " + uploadBatcher.samples() + " samples to server in " + batches + " batches");
+        uploadStartedAt = SystemClock.elapsedRealtime();
+        boolean retry = uploadScheduler.consecutiveFailures() > 0;
+        for (int i = 0; i < batches; i++) {
+            metrics.onUploadStarted(uploadBatcher.batch(i).size(), retry);
+            if (Log.isLoggable(TAG, Log.VERBOSE)) {
+                logPayload(uploadBodies.get(i));
+            }
+        }
+        transport.postBatches(SERVER_URL, new ArrayList<>(uploadBodies),
+                (successful, ackedThrough) -> uploadHandler.post(() -> onUploadFinished(successful, ackedThrough)));
+    }
+
+    private void onUploadFinished(boolean[] successful, long ackedThrough) {
+        long latency = SystemClock.elapsedRealtime() - uploadStartedAt;
+        int samples = 0;
+        int failed = 0;
+        for (int i = 0; i < successful.length; i++) {
+            int batchSamples = uploadBatcher.batch(i).size();
+            long bytes = uploadBodies.get(i).bytesWritten();
+            metrics.onUploadFinished(successful[i], batchSamples, bytes, latency);
+            energyLedger.onRequest(bytes, successful[i]);
+            if (successful[i]) {
+                samples += batchSamples;
+            } else {
+                failed++;
+            }
+        }
+        try {
+            uploadBatcher.finish(successful, ackedThrough);
+        } catch (IOException e) {
+            Log.e(TAG, "Error saving the acknowledged sequence", e);
+        }
+        uploadBodies.clear();
+        // Un solo batch fallito basta per il backoff; quelli riusciti sono gia' confermati
+        uploadScheduler.onUploadFinished(failed == 0, samples);
+        releaseUploadWakeLock();
+        saveEnergyLedger();
+        if (failed > 0) {
+            Log.e(TAG, "Error sending data to server: " + failed + " of " + successful.length + " batches failed");
+            Log.d(TAG, "Next upload attempt in " + (uploadScheduler.nextAttemptAt() - SystemClock.elapsedRealtime()) + " ms");
+        } else {
+            Log.d(TAG, "Data sent successfully");
+        }
+        checkUploads();
+    }
+
+    private void logPayload(BatchRequestBody body) {
+        Buffer buffer = new Buffer();
+        try {
+            body.writePayload(buffer);
+        } catch (IOException e) {
+            Log.v(TAG, "Error encoding payload for logging", e);
+            return;
+        }
+        Log.v(TAG, "Sending data to server: " + (compactPayload ? buffer.readByteString().hex() : buffer.readUtf8()));
+    }
 
     public interface UIUpdateCallback {
         void onHeartRateUpdate(int heartRate);
@@ -547,43 +1209,173 @@ public class MonitoringService extends Service implements SensorEventListener, L
         void onTimerUpdate(String timerText);
     }
 
+    // Main thread
     public void registerUIUpdateCallback(UIUpdateCallback callback) {
-        uiUpdateCallbacks.add(callback);
+        uiDispatcher.addCallback(callback);
     }
 
     public void unregisterUIUpdateCallback(UIUpdateCallback callback) {
-        uiUpdateCallbacks.remove(callback);
+        uiDispatcher.removeCallback(callback);
+    }
+
+    // In ambient la UI si aggiorna al massimo una volta al minuto
+    public void setAmbient(boolean ambient) {
+        uiDispatcher.setAmbient(ambient);
     }
 
-    private void notifyUIUpdates() {
-        for (UIUpdateCallback callback : uiUpdateCallbacks) {
-            callback.onHeartRateUpdate(heartRate);
-            callback.onStepCountUpdate(stepCount);
-            callback.onCaloriesUpdate(calories);
-            callback.onAltitudeUpdate(altitude);
-            callback.onGPSUpdate(gpsInfo);
-            callback.onTimerUpdate(timerText);
+    public void onAmbientUpdate() {
+        uiDispatcher.invalidate();
+    }
+
+    public boolean isMonitoring() {
+        return isMonitoring;
+    }
+
+    private String gpsInfo() {
+        LocationRecord location = lastLocation;
+        if (location != formattedLocation) {
+            formattedLocation = location;
+            gpsInfo = String.format("Lat: %.6f, Lon: %.6f", location.latitude, location.longitude);
         }
+        return gpsInfo;
     }
 
-    private Runnable updateTimerRunnable = new Runnable() {
-        @Override
-        public void run() {
-            long currentTime = System.currentTimeMillis();
-            long elapsedTime = currentTime - startTime;
+    public PipelineMetrics.Snapshot getMetrics() {
+        return metrics.snapshot(SystemClock.elapsedRealtime(), sampleRing.size(), sampleRing.dropped());
+    }
 
-            int seconds = (int) (elapsedTime / 1000) % 60;
-            int minutes = (int) ((elapsedTime / (1000 * 60)) % 60);
-            int hours = (int) ((elapsedTime / (1000 * 60 * 60)) % 24);
-            timerText = String.format("%02d:%02d:%02d", hours, minutes, seconds);
-            addDataPoint("timer", timerText);
+    // adb shell dumpsys activity service com.chinonso.wearos/.MonitoringService [compression|history]
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        if (args != null && args.length > 0 && "compression".equals(args[0])) {
+            dumpCompressionReport(writer);
+            return;
+        }
+        if (args != null && args.length > 0 && "history".equals(args[0])) {
+            dumpHistory(writer);
+            return;
+        }
+        writer.println("Monitoring: " + isMonitoring + (isMonitoring ? " (" + currentWorkout + ")" : ""));
+        writer.println("Capture mode: " + (batchedCapture ? "batched" : "realtime"));
+        getMetrics().dump(writer);
+        capture.filter().dump(writer);
+        derivedMetrics.dump(writer, System.currentTimeMillis());
+        writer.println("HTTP transport: " + transport.connectionCount() + " connections"
+                + ", " + transport.batchesSent() + " batches"
+                + ", warm-ups " + transport.warmUps() + " (" + transport.warmUpFailures() + " failed)");
+        writer.println("Upload scheduler: batch " + uploadScheduler.batchSize()
+                + ", avg rtt " + uploadScheduler.averageRtt() + " ms"
+                + ", consecutive failures " + uploadScheduler.consecutiveFailures());
+        writer.println("Location sampling: mode " + locationController.mode()
+                + ", interval " + locationController.interval() + " ms"
+                + ", stationary " + locationController.isStationary()
+                + ", speed " + String.format("%.1f", locationController.speed()) + " m/s"
+                + ", reconfigurations " + locationController.reconfigurations());
+        writer.println("Fix selector: " + fixSelector.received() + " fixes, " + fixSelector.emitted() + " chosen"
+                + ", stale " + fixSelector.rejectedStale() + ", implausible " + fixSelector.rejectedImplausible());
+        writer.println("Track simplifier: " + trackSimplifier.received() + " fixes, " + trackSimplifier.emitted() + " sent");
+        if (sessionStore != null) {
+            sessionStore.dump(writer);
+        }
+        energyLedger.dump(writer, SystemClock.elapsedRealtime());
+    }
 
-            handler.postDelayed(this, 1000);
+    // Misura i formati di invio sui segmenti in attesa nell'outbox, cioe' su dati veri dell'orologio.
+    // L'outbox appartiene all'upload thread: il report viene calcolato li'.
+    private void dumpCompressionReport(PrintWriter writer) {
+        CompressionReport[] report = new CompressionReport[1];
+        CountDownLatch done = new CountDownLatch(1);
+        uploadHandler.post(() -> {
+            try {
+                // Al massimo un batch: con l'outbox pieno (giorni offline) non si legge tutto in memoria
+                SampleBuffer samples = new SampleBuffer(UploadScheduler.MAX_BATCH);
+                String workout = null;
+                for (File segment : outbox.sealedSegments()) {
+                    if (!samples.isEmpty() && samples.size() + outbox.sampleCount(segment) > UploadScheduler.MAX_BATCH) {
+                        break;
+                    }
+                    if (workout == null) {
+                        workout = outbox.workout(segment);
+                    }
+                    outbox.read(segment, samples);
+                }
+                if (!samples.isEmpty()) {
+                    report[0] = CompressionReport.of(samples, userId, workout);
+                }
+            } catch (IOException e) {
+                Log.e(TAG, "Error building compression report", e);
+            } finally {
+                done.countDown();
+            }
+        });
+        try {
+            if (!done.await(5, TimeUnit.SECONDS)) {
+                writer.println("Timed out waiting for the upload thread");
+                return;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
         }
-    };
+        if (report[0] == null) {
+            writer.println("No pending samples in the outbox");
+        } else {
+            report[0].dump(writer);
+        }
+    }
 
-    public boolean isMonitoring() {
-        return isMonitoring;
+    // Ultime sessioni e tempi di due query tipiche, eseguite sull'upload thread
+    private void dumpHistory(PrintWriter writer) {
+        StringBuilder report = new StringBuilder();
+        CountDownLatch done = new CountDownLatch(1);
+        uploadHandler.post(() -> {
+            try {
+                if (sessionStore == null) {
+                    report.append("Session history not available\n");
+                    return;
+                }
+                flushHistory();
+                long now = System.currentTimeMillis();
+                List<SessionStore.Session> sessions = sessionStore.sessions(0, Long.MAX_VALUE);
+                report.append(sessions.size()).append(" sessions, ").append(sessionStore.blockCount())
+                        .append(" hourly blocks, ").append(sessionStore.totalBytes() / 1024).append(" KB\n");
+                for (int i = 0; i < Math.min(10, sessions.size()); i++) {
+                    SessionStore.Session session = sessions.get(i);
+                    report.append("  ").append(new Date(session.start)).append(" ").append(session.workout)
+                            .append(session.end != 0 ? ", " + (session.end - session.start) / 60000 + " min" : ", in progress")
+                            .append('\n');
+                }
+                SampleBuffer samples = new SampleBuffer(1024);
+                long started = SystemClock.elapsedRealtimeNanos();
+                int heartRate = sessionStore.query(now - HISTORY_RAW_RETENTION, now, 0,
+                        SessionStore.typeMask(SampleType.rollup(SampleType.HEART_RATE, SampleType.STAT_MEAN)), samples);
+                long elapsed = SystemClock.elapsedRealtimeNanos() - started;
+                report.append("Heart rate, last 7 days: ").append(heartRate).append(" windows in ")
+                        .append(elapsed / 1000).append(" us\n");
+                if (!sessions.isEmpty()) {
+                    samples.clear();
+                    started = SystemClock.elapsedRealtimeNanos();
+                    int track = sessionStore.track(sessions.get(0), samples);
+                    elapsed = SystemClock.elapsedRealtimeNanos() - started;
+                    report.append("Track of the last session: ").append(track).append(" points in ")
+                            .append(elapsed / 1000).append(" us\n");
+                }
+            } catch (IOException e) {
+                Log.e(TAG, "Error querying session history", e);
+            } finally {
+                done.countDown();
+            }
+        });
+        try {
+            if (!done.await(5, TimeUnit.SECONDS)) {
+                writer.println("Timed out waiting for the upload thread");
+                return;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        writer.print(report);
     }
 
     private boolean isGpsEnabled() {
@@ -0,0 +1,46 @@
+package com.chinonso.wearos;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.util.Log;
+import android.util.LruCache;
+import com.google.zxing.WriterException;
+import java.io.File;
+import java.io.IOException;
+
+// Bitmap del QR dell'userId, in memoria e in cacheDir/qr come PNG, per chiave userId +
+// dimensione (QrCodeFiles): un nuovo userId non ritrova mai il QR del precedente.
+// Finche' l'userId resta quello, il QR si disegna una volta sola (QrCodeRenderer + un'unica setPixels)
+// e alle aperture successive del dialog e' gia' pronto. Da usare sul thread principale.
+public final class QrCodeCache {
+    private static final String TAG = "QrCodeCache";
+    private static final String DIR = "qr";
+    private static final LruCache<String, Bitmap> memory = new LruCache<>(2);
+
+    private QrCodeCache() {}
+
+    public static Bitmap get(Context context, String userId, int size) throws WriterException {
+        String key = QrCodeFiles.key(userId, size);
+        Bitmap bitmap = memory.get(key);
+        if (bitmap != null) {
+            return bitmap;
+        }
+        File file = QrCodeFiles.file(new File(context.getCacheDir(), DIR), userId, size);
+        if (file.exists()) {
+            bitmap = BitmapFactory.decodeFile(file.getPath());
+        }
+        if (bitmap == null) {
+            bitmap = Bitmap.createBitmap(size, size, Bitmap.Config.RGB_565);
+            bitmap.setPixels(QrCodeRenderer.render(userId, size), 0, size, 0, 0, size, size);
+            Bitmap rendered = bitmap;
+            try {
+                QrCodeFiles.save(file, out -> rendered.compress(Bitmap.CompressFormat.PNG, 100, out));
+            } catch (IOException e) {
+                Log.e(TAG, "Error saving QR code", e);
+            }
+        }
+        memory.put(key, bitmap);
+        return bitmap;
+    }
+}
@@ -20,7 +20,6 @@ import java.util.UUID;
 import okhttp3.Call;
 import okhttp3.Callback;
 import okhttp3.MediaType;
-import okhttp3.OkHttpClient;
 import okhttp3.Request;
 import okhttp3.RequestBody;
 import okhttp3.Response;
@@ -35,7 +34,6 @@ public class RegistrationActivity extends AppCompatActivity {
     private Spinner genderSpinner;
     private Button registerButton;
 
-    private OkHttpClient client = new OkHttpClient();
     public static final MediaType JSON = MediaType.get("application/json; charset=utf-8");
 
     @Override
@@ -98,7 +96,7 @@ public class RegistrationActivity extends AppCompatActivity {
                 .post(body)
                 .build();
 
-        client.newCall(request).enqueue(new Callback() {
+        FitnessApplication.transport(this).client().newCall(request).enqueue(new Callback() {
             @Override
             public void onFailure(Call call, IOException e) {
                 Log.e(TAG, "Error sending user data to server", e);
@@ -111,6 +109,7 @@ public class RegistrationActivity extends AppCompatActivity {
                 } else {
                     Log.d(TAG, "User data sent successfully");
                 }
+                response.close();
             }
         });
     }
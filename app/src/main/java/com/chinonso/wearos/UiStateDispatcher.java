@@ -0,0 +1,136 @@
+package com.chinonso.wearos;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.view.Choreographer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// Pubblica lo stato della UI al massimo una volta per frame, tramite Choreographer.
+// invalidate() si puo' chiamare da qualsiasi thread e gli eventi arrivati prima del
+// frame vengono accorpati; ai callback arrivano solo i campi cambiati.
+// Senza callback registrati non pubblica nulla; i tempi (ambient, tick del timer) li
+// decide UiThrottle.
+// Tutto il resto gira sul main thread.
+final class UiStateDispatcher implements Choreographer.FrameCallback {
+    interface Source {
+        UiState uiState();
+
+        // Il timer avanza: serve un aggiornamento periodico anche senza eventi
+        boolean isTicking();
+    }
+
+    private final Source source;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final Choreographer choreographer;
+    private final List<MonitoringService.UIUpdateCallback> callbacks = new ArrayList<>();
+    private final AtomicBoolean invalidated = new AtomicBoolean();
+    private final UiThrottle throttle = new UiThrottle();
+    private boolean frameScheduled;
+    private UiState published;
+
+    private final Runnable scheduleRunnable = this::scheduleFrame;
+    private final Runnable tickRunnable = this::invalidate;
+
+    // Va creato sul main thread
+    UiStateDispatcher(Source source) {
+        this.source = source;
+        this.choreographer = Choreographer.getInstance();
+    }
+
+    void addCallback(MonitoringService.UIUpdateCallback callback) {
+        if (!callbacks.contains(callback)) {
+            callbacks.add(callback);
+        }
+        // Chi arriva adesso deve ricevere lo stato completo
+        published = null;
+        reschedule();
+    }
+
+    void removeCallback(MonitoringService.UIUpdateCallback callback) {
+        callbacks.remove(callback);
+        if (callbacks.isEmpty()) {
+            choreographer.removeFrameCallback(this);
+            mainHandler.removeCallbacks(tickRunnable);
+            frameScheduled = false;
+        }
+    }
+
+    void setAmbient(boolean ambient) {
+        if (throttle.setAmbient(ambient)) {
+            mainHandler.removeCallbacks(tickRunnable);
+            reschedule();
+        }
+    }
+
+    void invalidate() {
+        if (invalidated.compareAndSet(false, true)) {
+            mainHandler.post(scheduleRunnable);
+        }
+    }
+
+    private void reschedule() {
+        choreographer.removeFrameCallback(this);
+        frameScheduled = false;
+        invalidated.set(true);
+        scheduleFrame();
+    }
+
+    private void scheduleFrame() {
+        if (frameScheduled || callbacks.isEmpty()) {
+            return;
+        }
+        long delay = throttle.frameDelay(SystemClock.uptimeMillis());
+        frameScheduled = true;
+        choreographer.postFrameCallbackDelayed(this, delay);
+    }
+
+    @Override
+    public void doFrame(long frameTimeNanos) {
+        frameScheduled = false;
+        invalidated.set(false);
+        if (callbacks.isEmpty()) {
+            return;
+        }
+        UiState state = source.uiState();
+        int dirty = state.diff(published);
+        published = state;
+        throttle.onPublished(SystemClock.uptimeMillis());
+        if (dirty != 0) {
+            deliver(state, dirty);
+        }
+
+        mainHandler.removeCallbacks(tickRunnable);
+        long tick = throttle.tickDelay(source.isTicking());
+        if (tick >= 0) {
+            mainHandler.postDelayed(tickRunnable, tick);
+        }
+    }
+
+    private void deliver(UiState state, int dirty) {
+        String timerText = (dirty & UiState.TIMER) != 0 ? state.timerText() : null;
+        for (int i = 0; i < callbacks.size(); i++) {
+            MonitoringService.UIUpdateCallback callback = callbacks.get(i);
+            if ((dirty & UiState.HEART_RATE) != 0) {
+                callback.onHeartRateUpdate(state.heartRate);
+            }
+            if ((dirty & UiState.STEP_COUNT) != 0) {
+                callback.onStepCountUpdate(state.stepCount);
+            }
+            if ((dirty & UiState.CALORIES) != 0) {
+                callback.onCaloriesUpdate(state.calories);
+            }
+            if ((dirty & UiState.ALTITUDE) != 0) {
+                callback.onAltitudeUpdate(state.altitude);
+            }
+            if ((dirty & UiState.GPS) != 0) {
+                callback.onGPSUpdate(state.gpsInfo);
+            }
+            if (timerText != null) {
+                callback.onTimerUpdate(timerText);
+            }
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package com.chinonso.wearos;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import okio.Buffer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+// Costruzione del corpo della richiesta di upload, cioe' quello che faceva
+// sendDataToServer: JSON o formato compatto, con e senza gzip.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class BatchSerializationBenchmark {
+    @Param({"100", "1000", "10000"})
+    int points;
+
+    private SampleBuffer batch;
+    private final Buffer sink = new Buffer();
+    private final ByteArrayOutputStream out = new ByteArrayOutputStream(64 * 1024);
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(42);
+        batch = new SampleBuffer(points);
+        long timestamp = 1700000000000L;
+        double altitude = 120.5;
+        int heartRate = 120;
+        int steps = 0;
+        for (int i = 0; i < points; i++) {
+            timestamp += 250 + random.nextInt(20);
+            switch (i % 4) {
+                case 0:
+                    heartRate += random.nextInt(3) - 1;
+                    batch.add(SampleType.HEART_RATE, timestamp, heartRate);
+                    break;
+                case 1:
+                    steps += 3;
+                    batch.add(SampleType.STEP_COUNT, timestamp, steps);
+                    break;
+                case 2:
+                    altitude += (random.nextInt(5) - 2) * 0.1;
+                    batch.add(SampleType.ALTITUDE, timestamp, altitude);
+                    break;
+                default:
+                    batch.addLocation(timestamp, new LocationRecord(45.4642 + i * 1e-5, 9.19 + i * 1e-5,
+                            altitude, 4.5f, 3.1f, 87.0f, "gps"));
+            }
+        }
+    }
+
+    @Benchmark
+    public long json() throws IOException {
+        sink.clear();
+        new BatchRequestBody(batch, "user", "Running", false).writePayload(sink);
+        return sink.size();
+    }
+
+    @Benchmark
+    public long jsonGzip() throws IOException {
+        sink.clear();
+        BatchRequestBody body = new BatchRequestBody(batch, "user", "Running", false);
+        body.writeTo(sink);
+        return body.bytesWritten();
+    }
+
+    @Benchmark
+    public int compact() throws IOException {
+        out.reset();
+        CompactBatchFormat.encode(batch, "user", "Running", out);
+        return out.size();
+    }
+
+    @Benchmark
+    public long compactGzip() throws IOException {
+        sink.clear();
+        BatchRequestBody body = new BatchRequestBody(batch, "user", "Running", true);
+        body.writeTo(sink);
+        return body.bytesWritten();
+    }
+}
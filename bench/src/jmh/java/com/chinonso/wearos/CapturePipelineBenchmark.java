@@ -0,0 +1,96 @@
+package com.chinonso.wearos;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+// Costo per evento di quello che fa onSensorChanged su MonitoringService: timestamp,
+// calcolo della quota e passaggio per CapturePipeline fino al ring.
+// Gli eventi replicano un allenamento: barometro a 25 Hz, battito e passi a 1 Hz.
+// Con "-prof gc" (attivo di default in build.gradle) si vede che il percorso non alloca.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class CapturePipelineBenchmark {
+    private static final int EVENTS = 4096;
+
+    @Param({"none", "Running", "Monitoraggio Giornaliero"})
+    String policy;
+
+    private final int[] types = new int[EVENTS];
+    private final long[] eventNanos = new long[EVENTS];
+    private final float[] values = new float[EVENTS];
+    private final CalorieModel calorieModel = CalorieModel.forSession("Running", 160, "male", 0);
+    private CapturePipeline capture;
+    private SampleRing ring;
+    private int next;
+    private long offered;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(42);
+        long nanos = 1000L * 1000 * 1000 * 1000;
+        float pressure = 1001.2f;
+        int heartRate = 120;
+        int steps = 0;
+        for (int i = 0; i < EVENTS; i++) {
+            nanos += 40L * 1000 * 1000;
+            eventNanos[i] = nanos;
+            if (i % 25 == 0) {
+                types[i] = i % 50 == 0 ? SampleType.HEART_RATE : SampleType.STEP_COUNT;
+                heartRate += random.nextInt(3) - 1;
+                steps += 2 + random.nextInt(2);
+                values[i] = types[i] == SampleType.HEART_RATE ? heartRate : steps;
+            } else {
+                types[i] = SampleType.ALTITUDE;
+                pressure += (float) random.nextGaussian() * 0.03f;
+                values[i] = pressure;
+            }
+        }
+        capture = new CapturePipeline(4096, accepted -> offered++);
+        ring = capture.ring();
+        boolean none = "none".equals(policy);
+        capture.start(none ? FilterPolicy.NONE : FilterPolicy.forWorkout(policy),
+                "Monitoraggio Giornaliero".equals(policy) ? 60000 : 0);
+    }
+
+    @Benchmark
+    public long ingestEvent() {
+        int i = next;
+        next = (i + 1) & (EVENTS - 1);
+        long nowNanos = eventNanos[i] + 5L * 1000 * 1000;
+        long timestamp = EventClock.toWallClock(eventNanos[i], nowNanos, 1700000000000L + nowNanos / 1000000);
+        int type = types[i];
+        if (type == SampleType.ALTITUDE) {
+            capture.add(type, timestamp, Barometer.altitude(Barometer.PRESSURE_STANDARD_ATMOSPHERE, values[i]));
+        } else {
+            capture.add(type, timestamp, values[i]);
+        }
+        // Consumatore nello stesso thread: il ring non si riempie mai
+        while (!ring.isEmpty()) {
+            ring.poll();
+        }
+        return offered;
+    }
+
+    @Benchmark
+    public float altitude() {
+        int i = next;
+        next = (i + 1) & (EVENTS - 1);
+        return Barometer.altitude(Barometer.PRESSURE_STANDARD_ATMOSPHERE, values[i]);
+    }
+
+    @Benchmark
+    public double calories() {
+        int i = next;
+        next = (i + 1) & (EVENTS - 1);
+        return calorieModel.stepCalories(i, i) + calorieModel.heartRateKcalPerMinute(120 + (i & 63));
+    }
+}
@@ -0,0 +1,100 @@
+package com.chinonso.wearos;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+// Throughput di encode/decode dei blocchi Gorilla su una serie simile a quelle
+// dell'orologio: un campione al secondo con jitter, valori che cambiano poco.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class GorillaCodecBenchmark {
+    @Param({"4000"})
+    int samples;
+
+    private long[] timestamps;
+    private double[] values;
+    private final GorillaCodec.BitWriter bits = new GorillaCodec.BitWriter();
+    private byte[] encoded;
+    private SampleBuffer batch;
+    private byte[] compactBatch;
+    private final ByteArrayOutputStream out = new ByteArrayOutputStream(64 * 1024);
+
+    @Setup
+    public void setUp() throws IOException {
+        Random random = new Random(42);
+        timestamps = new long[samples];
+        values = new double[samples];
+        batch = new SampleBuffer(samples * 2);
+        long timestamp = 1700000000000L;
+        double altitude = 120.5;
+        int heartRate = 70;
+        for (int i = 0; i < samples; i++) {
+            timestamp += 1000 + random.nextInt(40) - 20;
+            altitude += (random.nextInt(5) - 2) * 0.1;
+            heartRate += random.nextInt(3) - 1;
+            timestamps[i] = timestamp;
+            values[i] = altitude;
+            batch.add(SampleType.ALTITUDE, timestamp, altitude);
+            batch.add(SampleType.HEART_RATE, timestamp, heartRate);
+        }
+        encodeSeries();
+        ByteArrayOutputStream copy = new ByteArrayOutputStream();
+        bits.writeTo(copy);
+        encoded = copy.toByteArray();
+        compactBatch = CompactBatchFormat.encode(batch, "user", "Running");
+    }
+
+    @Benchmark
+    public int encodeSeries() {
+        bits.reset();
+        GorillaCodec.TimestampEncoder timestampEncoder = new GorillaCodec.TimestampEncoder(timestamps[0]);
+        GorillaCodec.DoubleEncoder valueEncoder = new GorillaCodec.DoubleEncoder();
+        for (int i = 0; i < samples; i++) {
+            timestampEncoder.encode(bits, timestamps[i]);
+        }
+        for (int i = 0; i < samples; i++) {
+            valueEncoder.encode(bits, values[i]);
+        }
+        return bits.byteLength();
+    }
+
+    @Benchmark
+    public double decodeSeries() throws IOException {
+        GorillaCodec.BitReader reader = new GorillaCodec.BitReader(encoded, encoded.length);
+        GorillaCodec.TimestampDecoder timestampDecoder = new GorillaCodec.TimestampDecoder(timestamps[0]);
+        GorillaCodec.DoubleDecoder valueDecoder = new GorillaCodec.DoubleDecoder();
+        long timestampSum = 0;
+        for (int i = 0; i < samples; i++) {
+            timestampSum += timestampDecoder.decode(reader);
+        }
+        double valueSum = 0;
+        for (int i = 0; i < samples; i++) {
+            valueSum += valueDecoder.decode(reader);
+        }
+        return valueSum + timestampSum;
+    }
+
+    @Benchmark
+    public int encodeCompactBatch() throws IOException {
+        out.reset();
+        CompactBatchFormat.encode(batch, "user", "Running", out);
+        return out.size();
+    }
+
+    @Benchmark
+    public int decodeCompactBatch() throws IOException {
+        return CompactBatchFormat.decode(new ByteArrayInputStream(compactBatch)).samples.size();
+    }
+}
@@ -0,0 +1,50 @@
+package com.chinonso.wearos;
+
+import com.google.zxing.BarcodeFormat;
+import com.google.zxing.MultiFormatWriter;
+import com.google.zxing.WriterException;
+import com.google.zxing.common.BitMatrix;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+// QR dell'userId alla dimensione del dialog (80% di uno schermo da 454 px):
+// QrCodeRenderer a risoluzione di modulo contro la BitMatrix a piena risoluzione letta
+// pixel per pixel, come faceva MainActivity.generateQRCode con setPixel().
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class QrCodeBenchmark {
+    private static final String USER_ID = "3f2b9c1e-7a4d-4e2b-9f1a-1234567890ab";
+
+    @Param({"363"})
+    int size;
+
+    private int[] pixels;
+
+    @Benchmark
+    public int[] moduleResolution() throws WriterException {
+        if (pixels == null) {
+            pixels = new int[size * size];
+        }
+        QrCodeRenderer.render(USER_ID, size, pixels);
+        return pixels;
+    }
+
+    @Benchmark
+    public int[] perPixel() throws WriterException {
+        BitMatrix matrix = new MultiFormatWriter().encode(USER_ID, BarcodeFormat.QR_CODE, size, size);
+        int[] result = new int[size * size];
+        for (int x = 0; x < size; x++) {
+            for (int y = 0; y < size; y++) {
+                result[y * size + x] = matrix.get(x, y) ? QrCodeRenderer.BLACK : QrCodeRenderer.WHITE;
+            }
+        }
+        return result;
+    }
+}
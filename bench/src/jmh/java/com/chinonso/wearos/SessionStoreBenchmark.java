@@ -0,0 +1,97 @@
+package com.chinonso.wearos;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+// Query tipiche dello storico sull'orologio, su 30 giorni gia' compattati: ogni giorno
+// monitoraggio giornaliero (aggregati al minuto di battito e passi) piu' un'ora di corsa
+// (battito a 1 Hz e un fix ogni 2 secondi).
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class SessionStoreBenchmark {
+    private static final long DAY = 24 * SessionStore.HOUR;
+    private static final long START = 1700000000000L;
+    private static final int DAYS = 30;
+
+    private File dir;
+    private SessionStore store;
+    private SessionStore.Session lastWorkout;
+    private final SampleBuffer result = new SampleBuffer(16 * 1024);
+    private final long heartRateMean = SessionStore.typeMask(SampleType.rollup(SampleType.HEART_RATE, SampleType.STAT_MEAN));
+
+    @Setup
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("history").toFile();
+        store = new SessionStore(dir, 7 * DAY, 90 * DAY, 32L * 1024 * 1024);
+        Random random = new Random(42);
+        SampleBuffer samples = new SampleBuffer(1024);
+        for (int day = 0; day < DAYS; day++) {
+            long dayStart = START + day * DAY;
+            long workoutStart = dayStart + 20 * SessionStore.HOUR;
+            store.beginSession(dayStart, "Monitoraggio Giornaliero");
+            for (long t = dayStart; t < workoutStart; t += 60 * 1000) {
+                for (int stat = 0; stat < SampleType.STAT_TYPES; stat++) {
+                    samples.add(SampleType.rollup(SampleType.HEART_RATE, stat), t, 60 + random.nextInt(40));
+                    samples.add(SampleType.rollup(SampleType.STEP_COUNT, stat), t, random.nextInt(100));
+                }
+                append(samples);
+            }
+            store.beginSession(workoutStart, "Running");
+            for (long t = workoutStart; t < workoutStart + SessionStore.HOUR; t += 1000) {
+                samples.add(SampleType.HEART_RATE, t, 120 + random.nextInt(40));
+                if (t % 2000 == 0) {
+                    samples.addLocation(t, new LocationRecord(45 + (t - START) * 1e-9, 9, 100, 5, 3, 0, "gps"));
+                }
+                append(samples);
+            }
+            store.append(samples);
+            samples.clear();
+            store.endSession(workoutStart + SessionStore.HOUR);
+        }
+        store.compact(START + DAYS * DAY);
+        lastWorkout = store.lastSession();
+    }
+
+    private void append(SampleBuffer samples) throws IOException {
+        if (samples.size() >= 512) {
+            store.append(samples);
+            samples.clear();
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    @Benchmark
+    public int heartRateLastWeek() throws IOException {
+        result.clear();
+        long now = START + DAYS * DAY;
+        return store.query(now - 7 * DAY, now, 0, heartRateMean, result);
+    }
+
+    @Benchmark
+    public int workoutTrack() throws IOException {
+        result.clear();
+        return store.track(lastWorkout, result);
+    }
+}
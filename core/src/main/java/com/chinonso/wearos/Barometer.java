@@ -0,0 +1,13 @@
+package com.chinonso.wearos;
+
+// Stessa formula di SensorManager.getAltitude, senza dipendere da Android
+public final class Barometer {
+    public static final float PRESSURE_STANDARD_ATMOSPHERE = 1013.25f;
+
+    private Barometer() {}
+
+    // Pressioni in hPa, risultato in metri
+    public static float altitude(float seaLevelPressure, float pressure) {
+        return 44330.0f * (1.0f - (float) Math.pow(pressure / seaLevelPressure, 1.0f / 5.255f));
+    }
+}
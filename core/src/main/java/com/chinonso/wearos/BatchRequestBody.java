@@ -0,0 +1,98 @@
+package com.chinonso.wearos;
+
+import java.io.IOException;
+import okhttp3.MediaType;
+import okhttp3.RequestBody;
+import okio.Buffer;
+import okio.BufferedSink;
+import okio.ForwardingSink;
+import okio.GzipSink;
+import okio.Okio;
+import okio.Sink;
+
+// Corpo della richiesta che serializza il batch in streaming, passando per gzip.
+// Il batch non viene mai copiato in una stringa o in un array: la memoria usata
+// e' quella dei buffer di okio, indipendente dal numero di campioni.
+// Non modificare il SampleBuffer finche' la chiamata non e' terminata: OkHttp
+// puo' richiamare writeTo() in caso di retry.
+// Con deviceId il batch e' numerato: il campione i ha sequenza firstSequence + i e il
+// server risponde con il cursore di conferma (vedi HttpTransport.ackedThrough).
+public final class BatchRequestBody extends RequestBody {
+    public static final MediaType JSON = MediaType.get("application/json; charset=utf-8");
+    public static final MediaType COMPACT = MediaType.get(CompactBatchFormat.CONTENT_TYPE);
+    public static final String CONTENT_ENCODING = "gzip";
+
+    private final SampleBuffer samples;
+    private final String userId;
+    private final String workout;
+    private final boolean compact;
+    private final String deviceId;
+    private final long firstSequence;
+    private volatile long bytesWritten;
+
+    public BatchRequestBody(SampleBuffer samples, String userId, String workout, boolean compact) {
+        this(samples, userId, workout, compact, null, -1);
+    }
+
+    public BatchRequestBody(SampleBuffer samples, String userId, String workout, boolean compact,
+                            String deviceId, long firstSequence) {
+        this.samples = samples;
+        this.userId = userId;
+        this.workout = workout;
+        this.compact = compact;
+        this.deviceId = deviceId;
+        this.firstSequence = firstSequence;
+    }
+
+    public long firstSequence() {
+        return firstSequence;
+    }
+
+    // Ultima sequenza del batch, -1 se non e' numerato
+    public long lastSequence() {
+        return deviceId == null ? -1 : firstSequence + samples.size() - 1;
+    }
+
+    @Override
+    public MediaType contentType() {
+        return compact ? COMPACT : JSON;
+    }
+
+    @Override
+    public void writeTo(BufferedSink sink) throws IOException {
+        CountingSink counter = new CountingSink(sink);
+        BufferedSink gzipSink = Okio.buffer(new GzipSink(counter));
+        writePayload(gzipSink);
+        gzipSink.close();
+        bytesWritten = counter.count;
+    }
+
+    // Byte compressi scritti dall'ultima writeTo()
+    public long bytesWritten() {
+        return bytesWritten;
+    }
+
+    // Scrive il payload non compresso, usato anche per il log di debug
+    public void writePayload(BufferedSink sink) throws IOException {
+        if (compact) {
+            CompactBatchFormat.encode(samples, userId, workout, deviceId, firstSequence, sink.outputStream());
+        } else {
+            JsonBatchWriter.write(samples, userId, workout, deviceId, firstSequence, sink);
+        }
+        sink.flush();
+    }
+
+    private static final class CountingSink extends ForwardingSink {
+        long count;
+
+        CountingSink(Sink delegate) {
+            super(delegate);
+        }
+
+        @Override
+        public void write(Buffer source, long byteCount) throws IOException {
+            super.write(source, byteCount);
+            count += byteCount;
+        }
+    }
+}
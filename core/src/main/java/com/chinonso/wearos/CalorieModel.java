@@ -0,0 +1,91 @@
+package com.chinonso.wearos;
+
+// Modello delle calorie di una sessione, risolto una volta sola all'avvio: MET del tipo
+// di allenamento, peso in kg, coefficiente per sesso ed eta'. Poi ogni stima costa O(1).
+// - stepCalories(): la stima storica dai passi e dal MET, con gli stessi numeri di prima
+// - heartRateKcalPerMinute(): equazione di Keytel et al. (2005), da integrare sulla serie
+//   del battito (vedi DerivedMetrics). Con sesso non indicato si usa la media delle due.
+// Il peso arriva dalle preferenze in libbre; l'eta' e' facoltativa (DEFAULT_AGE).
+public final class CalorieModel {
+    public static final int DEFAULT_AGE = 35;
+    private static final double KG_PER_POUND = 0.45359237;
+    private static final double KJ_PER_KCAL = 4.184;
+
+    private final double met;
+    private final double weightKg;
+    private final int age;
+    // kcal per passo per secondo di attivita'
+    private final double stepCoefficient;
+    // Keytel: kcal/min = heartRateIntercept + heartRateSlope * bpm
+    private final double heartRateIntercept;
+    private final double heartRateSlope;
+
+    private CalorieModel(String workout, int weightPounds, String gender, int age) {
+        met = met(workout);
+        weightKg = weightPounds * KG_PER_POUND;
+        this.age = age > 0 ? age : DEFAULT_AGE;
+
+        double sexFactor = "male".equalsIgnoreCase(gender) ? 1 : "female".equalsIgnoreCase(gender) ? 0.9 : 0;
+        stepCoefficient = met * 3.5 * weightKg / 200 * sexFactor / 100 / 3600;
+
+        double maleIntercept = -55.0969 + 0.1988 * weightKg + 0.2017 * this.age;
+        double femaleIntercept = -20.4022 - 0.1263 * weightKg + 0.074 * this.age;
+        double intercept;
+        double slope;
+        if ("male".equalsIgnoreCase(gender)) {
+            intercept = maleIntercept;
+            slope = 0.6309;
+        } else if ("female".equalsIgnoreCase(gender)) {
+            intercept = femaleIntercept;
+            slope = 0.4472;
+        } else {
+            intercept = (maleIntercept + femaleIntercept) / 2;
+            slope = (0.6309 + 0.4472) / 2;
+        }
+        heartRateIntercept = intercept / KJ_PER_KCAL;
+        heartRateSlope = slope / KJ_PER_KCAL;
+    }
+
+    public static CalorieModel forSession(String workout, int weightPounds, String gender, int age) {
+        return new CalorieModel(workout, weightPounds, gender, age);
+    }
+
+    public static double met(String workout) {
+        if (workout == null) {
+            return 3.5;
+        }
+        switch (workout) {
+            case "Walking":
+                return 3.5;
+            case "Running":
+                return 7.0;
+            case "Cycling":
+                return 8.0;
+            case "Monitoraggio Giornaliero":
+                return 1.5; // MET medio per attività leggere durante il giorno
+            default:
+                return 3.5;
+        }
+    }
+
+    public double met() {
+        return met;
+    }
+
+    public double weightKg() {
+        return weightKg;
+    }
+
+    public int age() {
+        return age;
+    }
+
+    public double stepCalories(int stepCount, long activitySeconds) {
+        return stepCoefficient * stepCount * activitySeconds;
+    }
+
+    // A riposo la retta va sotto zero (l'equazione e' tarata sull'esercizio): si tronca a 0
+    public double heartRateKcalPerMinute(int bpm) {
+        return Math.max(0, heartRateIntercept + heartRateSlope * bpm);
+    }
+}
@@ -0,0 +1,73 @@
+package com.chinonso.wearos;
+
+// Percorso di un campione dal callback del sensore al ring: i tipi aggregabili vanno
+// direttamente a RollupStage quando e' attivo, cosi' count/min/max/mean descrivono tutto
+// il flusso del sensore e non solo i campioni che il filtro avrebbe tenuto; gli altri
+// passano da SampleFilter. Poi SampleRing.
+// Solo ingestion thread, che e' l'unico produttore del ring; il consumatore
+// (upload thread) legge direttamente da ring().
+public final class CapturePipeline {
+    public interface Listener {
+        // Dopo ogni campione offerto al ring; accepted e' false se il ring era pieno
+        void onOffered(boolean accepted);
+    }
+
+    private final SampleRing ring;
+    private final SampleFilter filter = new SampleFilter();
+    private final Listener listener;
+    private RollupStage rollupStage;
+
+    public CapturePipeline(int ringCapacity, Listener listener) {
+        this.ring = new SampleRing(ringCapacity);
+        this.listener = listener;
+    }
+
+    public SampleRing ring() {
+        return ring;
+    }
+
+    public SampleFilter filter() {
+        return filter;
+    }
+
+    // rollupResolution in ms, 0 per inviare i singoli campioni
+    public void start(FilterPolicy policy, long rollupResolution) {
+        filter.setPolicy(policy);
+        rollupStage = rollupResolution > 0 ? new RollupStage(rollupResolution, this::offer) : null;
+    }
+
+    public void add(int type, long timestamp, double value) {
+        if (rollupStage != null && SampleType.isRollable(type)) {
+            rollupStage.add(type, timestamp, value);
+        } else if (filter.accept(type, timestamp, value)) {
+            offer(type, timestamp, value);
+        }
+    }
+
+    public void addText(int type, long timestamp, String text) {
+        listener.onOffered(ring.offerText(type, timestamp, text));
+    }
+
+    public void addLocation(long timestamp, LocationRecord location) {
+        listener.onOffered(ring.offerLocation(timestamp, location));
+    }
+
+    // Chiude le finestre di aggregazione finite prima di now
+    public void closeWindowsBefore(long now) {
+        if (rollupStage != null) {
+            rollupStage.closeWindowsBefore(now);
+        }
+    }
+
+    // Fine sessione: le finestre aperte vengono emesse e l'aggregazione si ferma
+    public void flush() {
+        if (rollupStage != null) {
+            rollupStage.flush();
+            rollupStage = null;
+        }
+    }
+
+    private void offer(int type, long timestamp, double value) {
+        listener.onOffered(ring.offer(type, timestamp, value));
+    }
+}
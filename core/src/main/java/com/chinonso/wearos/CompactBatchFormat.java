@@ -0,0 +1,344 @@
+package com.chinonso.wearos;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+// Formato binario compatto per /api/bulk-data (Content-Type: application/x-fitness-batch).
+//
+//   'F' 'B' versione
+//   userId, workout, deviceId   stringhe: varint lunghezza + utf-8 (deviceId vuoto se il
+//                               batch non e' numerato, vedi SampleOutbox)
+//   firstSequence           varint
+//   baseTimestamp           varint (ms)
+//   numero di serie         varint
+//   per ogni serie: tipo (1 byte), numero di campioni (varint), lunghezza (varint) e
+//     blocco di bit GorillaCodec con i timestamp (delta-of-delta, il primo dal
+//     baseTimestamp) seguiti dai valori double in XOR e, se il batch e' numerato, dai
+//     numeri di sequenza dei campioni della serie, delta-of-delta da firstSequence
+//     (le serie sono intercalate con regolarita': quasi sempre un bit per campione).
+//     Dopo il blocco i delta zigzag per i tipi interi o le stringhe per i testuali.
+//     Per le posizioni il blocco contiene, dopo i timestamp, una serie XOR per campo
+//     (lat, lon, altitude, accuracy, speed, bearing) e dopo il blocco i provider.
+// I tipi interi restano a varint: un delta di 1-2 bpm occupa gia' un byte, meno
+// di quanto costerebbe lo XOR del double corrispondente.
+public final class CompactBatchFormat {
+    public static final String CONTENT_TYPE = "application/x-fitness-batch";
+
+    private static final int MAGIC_0 = 'F';
+    private static final int MAGIC_1 = 'B';
+    private static final int VERSION = 1;
+    private static final int MAX_TYPE = 255;
+    private static final int LOCATION_FIELDS = 6;
+
+    private CompactBatchFormat() {}
+
+    public static final class Batch {
+        public final String userId;
+        public final String workout;
+        public final long baseTimestamp;
+        public final SampleBuffer samples;
+        // Batch non numerato: deviceId "" e sequences null; sequences e' allineato a samples
+        public final String deviceId;
+        public final long firstSequence;
+        public final long[] sequences;
+
+        Batch(String userId, String workout, long baseTimestamp, SampleBuffer samples,
+              String deviceId, long firstSequence, long[] sequences) {
+            this.userId = userId;
+            this.workout = workout;
+            this.baseTimestamp = baseTimestamp;
+            this.samples = samples;
+            this.deviceId = deviceId;
+            this.firstSequence = firstSequence;
+            this.sequences = sequences;
+        }
+    }
+
+    public static byte[] encode(SampleBuffer samples, String userId, String workout) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(64 + samples.size() * 4);
+        encode(samples, userId, workout, out);
+        return out.toByteArray();
+    }
+
+    public static void encode(SampleBuffer samples, String userId, String workout, OutputStream out) throws IOException {
+        encode(samples, userId, workout, null, -1, out);
+    }
+
+    // Con deviceId != null il campione i ha numero di sequenza firstSequence + i
+    public static void encode(SampleBuffer samples, String userId, String workout, String deviceId, long firstSequence,
+                              OutputStream out) throws IOException {
+        boolean sequenced = deviceId != null && !deviceId.isEmpty();
+        if (!sequenced) {
+            firstSequence = 0;
+        }
+        int size = samples.size();
+        long baseTimestamp = Long.MAX_VALUE;
+        boolean[] present = new boolean[MAX_TYPE + 1];
+        int seriesCount = 0;
+        for (int i = 0; i < size; i++) {
+            baseTimestamp = Math.min(baseTimestamp, samples.timestamp(i));
+            int type = samples.type(i);
+            if (!present[type]) {
+                present[type] = true;
+                seriesCount++;
+            }
+        }
+        if (size == 0) {
+            baseTimestamp = 0;
+        }
+
+        out.write(MAGIC_0);
+        out.write(MAGIC_1);
+        out.write(VERSION);
+        writeString(out, userId);
+        writeString(out, workout);
+        writeString(out, sequenced ? deviceId : "");
+        writeVarint(out, firstSequence);
+        writeVarint(out, baseTimestamp);
+        writeVarint(out, seriesCount);
+
+        GorillaCodec.BitWriter bits = new GorillaCodec.BitWriter();
+        for (int type = 1; type <= MAX_TYPE; type++) {
+            if (!present[type]) {
+                continue;
+            }
+            int count = 0;
+            for (int i = 0; i < size; i++) {
+                if (samples.type(i) == type) {
+                    count++;
+                }
+            }
+            out.write(type);
+            writeVarint(out, count);
+
+            bits.reset();
+            GorillaCodec.TimestampEncoder timestamps = new GorillaCodec.TimestampEncoder(baseTimestamp);
+            for (int i = 0; i < size; i++) {
+                if (samples.type(i) == type) {
+                    timestamps.encode(bits, samples.timestamp(i));
+                }
+            }
+            boolean text = SampleType.isText(type);
+            boolean integral = SampleType.isIntegral(type);
+            boolean location = SampleType.isLocation(type);
+            if (location) {
+                for (int field = 0; field < LOCATION_FIELDS; field++) {
+                    GorillaCodec.DoubleEncoder values = new GorillaCodec.DoubleEncoder();
+                    for (int i = 0; i < size; i++) {
+                        if (samples.type(i) == type) {
+                            values.encode(bits, locationField(samples.location(i), field));
+                        }
+                    }
+                }
+            } else if (!text && !integral) {
+                GorillaCodec.DoubleEncoder values = new GorillaCodec.DoubleEncoder();
+                for (int i = 0; i < size; i++) {
+                    if (samples.type(i) == type) {
+                        values.encode(bits, samples.value(i));
+                    }
+                }
+            }
+            if (sequenced) {
+                GorillaCodec.TimestampEncoder sequences = new GorillaCodec.TimestampEncoder(firstSequence);
+                for (int i = 0; i < size; i++) {
+                    if (samples.type(i) == type) {
+                        sequences.encode(bits, firstSequence + i);
+                    }
+                }
+            }
+            writeVarint(out, bits.byteLength());
+            bits.writeTo(out);
+
+            if (text) {
+                for (int i = 0; i < size; i++) {
+                    if (samples.type(i) == type) {
+                        writeString(out, samples.text(i));
+                    }
+                }
+            } else if (location) {
+                for (int i = 0; i < size; i++) {
+                    if (samples.type(i) == type) {
+                        writeString(out, samples.location(i).provider);
+                    }
+                }
+            } else if (integral) {
+                long previousValue = 0;
+                for (int i = 0; i < size; i++) {
+                    if (samples.type(i) == type) {
+                        long value = (long) samples.value(i);
+                        writeVarint(out, zigzag(value - previousValue));
+                        previousValue = value;
+                    }
+                }
+            }
+        }
+    }
+
+    // Decoder di riferimento: i campioni vengono restituiti raggruppati per serie
+    public static Batch decode(InputStream in) throws IOException {
+        if (readByte(in) != MAGIC_0 || readByte(in) != MAGIC_1) {
+            throw new IOException("Not a compact batch");
+        }
+        int version = readByte(in);
+        if (version != VERSION) {
+            throw new IOException("Unsupported compact batch version " + version);
+        }
+        String userId = readString(in);
+        String workout = readString(in);
+        String deviceId = readString(in);
+        long firstSequence = readVarint(in);
+        boolean sequenced = !deviceId.isEmpty();
+        long baseTimestamp = readVarint(in);
+        int seriesCount = (int) readVarint(in);
+
+        SampleBuffer samples = new SampleBuffer(64);
+        long[] sequences = sequenced ? new long[64] : null;
+        long[] timestamps = new long[64];
+        for (int s = 0; s < seriesCount; s++) {
+            int seriesStart = samples.size();
+            int type = readByte(in);
+            if (!SampleType.isValid(type)) {
+                throw new IOException("Unknown sample type " + type);
+            }
+            int count = (int) readVarint(in);
+            if (timestamps.length < count) {
+                timestamps = new long[count];
+            }
+            byte[] block = readBytes(in, (int) readVarint(in));
+            GorillaCodec.BitReader bits = new GorillaCodec.BitReader(block, block.length);
+            GorillaCodec.TimestampDecoder decoder = new GorillaCodec.TimestampDecoder(baseTimestamp);
+            for (int i = 0; i < count; i++) {
+                timestamps[i] = decoder.decode(bits);
+            }
+
+            if (SampleType.isLocation(type)) {
+                decodeLocations(in, bits, timestamps, count, samples);
+            } else {
+                decodeValues(in, bits, type, timestamps, count, samples);
+            }
+            if (sequenced) {
+                if (sequences.length < samples.size()) {
+                    sequences = Arrays.copyOf(sequences, Math.max(samples.size(), sequences.length * 2));
+                }
+                GorillaCodec.TimestampDecoder sequenceDecoder = new GorillaCodec.TimestampDecoder(firstSequence);
+                for (int i = 0; i < count; i++) {
+                    sequences[seriesStart + i] = sequenceDecoder.decode(bits);
+                }
+            }
+        }
+        return new Batch(userId, workout, baseTimestamp, samples, deviceId, firstSequence,
+                sequenced ? Arrays.copyOf(sequences, samples.size()) : null);
+    }
+
+    private static void decodeValues(InputStream in, GorillaCodec.BitReader bits, int type, long[] timestamps,
+                                     int count, SampleBuffer samples) throws IOException {
+        long previousValue = 0;
+        GorillaCodec.DoubleDecoder values = new GorillaCodec.DoubleDecoder();
+        for (int i = 0; i < count; i++) {
+            if (SampleType.isText(type)) {
+                samples.addText(type, timestamps[i], readString(in));
+            } else if (SampleType.isIntegral(type)) {
+                previousValue += unzigzag(readVarint(in));
+                samples.add(type, timestamps[i], previousValue);
+            } else {
+                samples.add(type, timestamps[i], values.decode(bits));
+            }
+        }
+    }
+
+    private static void decodeLocations(InputStream in, GorillaCodec.BitReader bits, long[] timestamps,
+                                        int count, SampleBuffer samples) throws IOException {
+        double[][] fields = new double[LOCATION_FIELDS][count];
+        for (int field = 0; field < LOCATION_FIELDS; field++) {
+            GorillaCodec.DoubleDecoder values = new GorillaCodec.DoubleDecoder();
+            for (int i = 0; i < count; i++) {
+                fields[field][i] = values.decode(bits);
+            }
+        }
+        for (int i = 0; i < count; i++) {
+            samples.addLocation(timestamps[i], new LocationRecord(fields[0][i], fields[1][i], fields[2][i],
+                    (float) fields[3][i], (float) fields[4][i], (float) fields[5][i], readString(in)));
+        }
+    }
+
+    private static double locationField(LocationRecord location, int field) {
+        switch (field) {
+            case 0:
+                return location.latitude;
+            case 1:
+                return location.longitude;
+            case 2:
+                return location.altitude;
+            case 3:
+                return location.accuracy;
+            case 4:
+                return location.speed;
+            default:
+                return location.bearing;
+        }
+    }
+
+    static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    static long unzigzag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    static void writeVarint(OutputStream out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    static long readVarint(InputStream in) throws IOException {
+        long result = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = readByte(in);
+            result |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return result;
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    private static void writeString(OutputStream out, String value) throws IOException {
+        byte[] bytes = (value != null ? value : "").getBytes(StandardCharsets.UTF_8);
+        writeVarint(out, bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(InputStream in) throws IOException {
+        return new String(readBytes(in, (int) readVarint(in)), StandardCharsets.UTF_8);
+    }
+
+    private static byte[] readBytes(InputStream in, int length) throws IOException {
+        byte[] bytes = new byte[length];
+        int offset = 0;
+        while (offset < bytes.length) {
+            int read = in.read(bytes, offset, bytes.length - offset);
+            if (read < 0) {
+                throw new EOFException();
+            }
+            offset += read;
+        }
+        return bytes;
+    }
+
+    private static int readByte(InputStream in) throws IOException {
+        int b = in.read();
+        if (b < 0) {
+            throw new EOFException();
+        }
+        return b;
+    }
+}
@@ -0,0 +1,97 @@
+package com.chinonso.wearos;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.zip.GZIPOutputStream;
+import okio.Buffer;
+
+// Confronto delle dimensioni di un batch reale nei vari formati di invio,
+// piu' il dettaglio per serie dei blocchi GorillaCodec (bit per campione
+// contro i 16 byte di timestamp + double non compressi).
+public final class CompressionReport {
+    private static final int MAX_TYPE = 255;
+
+    public final int samples;
+    public final long jsonBytes;
+    public final long jsonGzipBytes;
+    public final long compactBytes;
+    public final long compactGzipBytes;
+    private final int[] seriesSamples = new int[MAX_TYPE + 1];
+    private final int[] seriesBlockBytes = new int[MAX_TYPE + 1];
+
+    private CompressionReport(SampleBuffer batch, String userId, String workout) throws IOException {
+        samples = batch.size();
+
+        Buffer json = new Buffer();
+        JsonBatchWriter.write(batch, userId, workout, json);
+        byte[] jsonPayload = json.readByteArray();
+        jsonBytes = jsonPayload.length;
+        jsonGzipBytes = gzipSize(jsonPayload);
+
+        byte[] compactPayload = CompactBatchFormat.encode(batch, userId, workout);
+        compactBytes = compactPayload.length;
+        compactGzipBytes = gzipSize(compactPayload);
+
+        for (int i = 0; i < samples; i++) {
+            seriesSamples[batch.type(i)]++;
+        }
+        GorillaCodec.BitWriter bits = new GorillaCodec.BitWriter();
+        for (int type = 1; type <= MAX_TYPE; type++) {
+            if (seriesSamples[type] == 0 || SampleType.isText(type) || SampleType.isLocation(type)) {
+                continue;
+            }
+            bits.reset();
+            GorillaCodec.TimestampEncoder timestamps = new GorillaCodec.TimestampEncoder(batch.timestamp(0));
+            GorillaCodec.DoubleEncoder values = new GorillaCodec.DoubleEncoder();
+            for (int i = 0; i < samples; i++) {
+                if (batch.type(i) == type) {
+                    timestamps.encode(bits, batch.timestamp(i));
+                }
+            }
+            for (int i = 0; i < samples; i++) {
+                if (batch.type(i) == type) {
+                    values.encode(bits, batch.value(i));
+                }
+            }
+            seriesBlockBytes[type] = bits.byteLength();
+        }
+    }
+
+    public static CompressionReport of(SampleBuffer batch, String userId, String workout) throws IOException {
+        return new CompressionReport(batch, userId, workout);
+    }
+
+    public int seriesBlockBytes(int type) {
+        return seriesBlockBytes[type];
+    }
+
+    public void dump(PrintWriter writer) {
+        writer.println("Compression report (" + samples + " samples):");
+        writer.println("  json: " + jsonBytes + " bytes, gzip " + jsonGzipBytes + " (" + ratio(jsonBytes, jsonGzipBytes) + "x)");
+        writer.println("  compact: " + compactBytes + " bytes, gzip " + compactGzipBytes
+                + " (" + ratio(jsonBytes, compactGzipBytes) + "x vs json)");
+        for (int type = 1; type <= MAX_TYPE; type++) {
+            if (seriesBlockBytes[type] == 0) {
+                continue;
+            }
+            long raw = seriesSamples[type] * 16L;
+            writer.println("  " + SampleType.name(type) + ": " + seriesSamples[type] + " samples, gorilla "
+                    + seriesBlockBytes[type] + " bytes ("
+                    + String.format("%.1f", seriesBlockBytes[type] * 8.0 / seriesSamples[type]) + " bits/sample, "
+                    + ratio(raw, seriesBlockBytes[type]) + "x)");
+        }
+    }
+
+    private static String ratio(long before, long after) {
+        return after == 0 ? "-" : String.format("%.1f", (double) before / after);
+    }
+
+    private static long gzipSize(byte[] payload) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(payload.length / 4 + 64);
+        try (GZIPOutputStream gzip = new GZIPOutputStream(out)) {
+            gzip.write(payload);
+        }
+        return out.size();
+    }
+}
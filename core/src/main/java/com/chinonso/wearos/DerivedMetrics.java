@@ -0,0 +1,203 @@
+package com.chinonso.wearos;
+
+import java.io.PrintWriter;
+import java.util.Map;
+import java.util.TreeMap;
+
+// Valori ricavati dalle serie primarie e dall'inizio della sessione: durata, calorie,
+// battito medio e massimo, cadenza. Si calcolano solo quando servono (UI, riepilogo)
+// invece di essere registrati e inviati: il server ha gia' START/STOP e le serie
+// di battito e passi per ricostruirli.
+// Le calorie dal battito si integrano a ogni campione (rettangoli, lacune oltre
+// MAX_HEART_RATE_GAP escluse); quando il battito copre almeno meta' della sessione
+// calories() usa quelle, altrimenti la stima dai passi.
+// Sono totali in memoria: se il servizio viene riavviato a sessione in corso, restore()
+// li ricostruisce dai campioni gia' salvati in SessionStore.
+// Aggiornato dall'ingestion thread, letto dal main thread.
+public final class DerivedMetrics {
+    // Nel monitoraggio giornaliero il battito arriva ogni qualche minuto
+    private static final long MAX_HEART_RATE_GAP = 5 * 60 * 1000;
+    private static final long ROLLUP_WINDOW = 60 * 1000;
+
+    // Tipi da chiedere a SessionStore per restore()
+    public static final long HISTORY_TYPES = SessionStore.typeMask(SampleType.HEART_RATE, SampleType.STEP_COUNT,
+            SampleType.rollup(SampleType.HEART_RATE, SampleType.STAT_COUNT),
+            SampleType.rollup(SampleType.HEART_RATE, SampleType.STAT_MEAN),
+            SampleType.rollup(SampleType.HEART_RATE, SampleType.STAT_MAX),
+            SampleType.rollup(SampleType.STEP_COUNT, SampleType.STAT_MAX));
+
+    private long sessionStart;
+    private long sessionEnd;
+    private CalorieModel calorieModel = CalorieModel.forSession(null, 0, "", 0);
+
+    private int steps;
+    private long heartRateSum;
+    private int heartRateCount;
+    private int maxHeartRate;
+    private long lastHeartRateAt;
+    private int lastHeartRate;
+    private long heartRateMillis;
+    private double heartRateCalories;
+
+    public synchronized void start(long sessionStart, CalorieModel calorieModel) {
+        this.sessionStart = sessionStart;
+        this.sessionEnd = 0;
+        this.calorieModel = calorieModel;
+        steps = 0;
+        heartRateSum = 0;
+        heartRateCount = 0;
+        maxHeartRate = 0;
+        lastHeartRateAt = 0;
+        lastHeartRate = 0;
+        heartRateMillis = 0;
+        heartRateCalories = 0;
+    }
+
+    public synchronized void stop(long now) {
+        if (sessionStart != 0 && sessionEnd == 0) {
+            sessionEnd = now;
+        }
+    }
+
+    // 0 quando l'orologio non e' indossato: non conta nella media ne' nelle calorie
+    public synchronized void onHeartRate(long timestamp, int bpm) {
+        integrate(lastHeartRateAt, lastHeartRate, timestamp);
+        lastHeartRateAt = timestamp;
+        lastHeartRate = bpm;
+        if (bpm <= 0) {
+            return;
+        }
+        heartRateSum += bpm;
+        heartRateCount++;
+        maxHeartRate = Math.max(maxHeartRate, bpm);
+    }
+
+    // Dopo start(), con i campioni della sessione letti dallo storico (HISTORY_TYPES).
+    // Si usa il battito grezzo e, prima del primo campione grezzo (ore gia' compattate o
+    // aggregazione attiva), gli aggregati per finestra: media pesata sul numero di
+    // campioni, massimo e integrale delle medie. I totali si sommano a quelli dei campioni
+    // arrivati dal vivo nel frattempo; i passi ripartono dall'ultimo conteggio salvato.
+    public synchronized void restore(SampleBuffer history) {
+        int heartRateWindows = SampleType.rollup(SampleType.HEART_RATE, SampleType.STAT_COUNT);
+        int heartRateMax = SampleType.rollup(SampleType.HEART_RATE, SampleType.STAT_MAX);
+        int stepsMax = SampleType.rollup(SampleType.STEP_COUNT, SampleType.STAT_MAX);
+
+        long firstRaw = Long.MAX_VALUE;
+        int restoredSteps = 0;
+        for (int i = 0; i < history.size(); i++) {
+            int type = history.type(i);
+            if (type == SampleType.HEART_RATE) {
+                firstRaw = Math.min(firstRaw, history.timestamp(i));
+            } else if (type == SampleType.STEP_COUNT || type == stepsMax) {
+                restoredSteps = Math.max(restoredSteps, (int) history.value(i));
+            }
+        }
+        steps = Math.max(steps, restoredSteps);
+        // Le finestre dello store sono al minuto: quella del primo campione grezzo lo contiene gia'
+        long rollupsBefore = firstRaw == Long.MAX_VALUE ? firstRaw : firstRaw - Math.floorMod(firstRaw, ROLLUP_WINDOW);
+
+        // Timestamp -> {campioni, media, massimo}
+        TreeMap<Long, double[]> points = new TreeMap<>();
+        for (int i = 0; i < history.size(); i++) {
+            int type = history.type(i);
+            long timestamp = history.timestamp(i);
+            boolean rollup = SampleType.isRollup(type) && SampleType.rollupBase(type) == SampleType.HEART_RATE;
+            if (type != SampleType.HEART_RATE && !(rollup && timestamp < rollupsBefore)) {
+                continue;
+            }
+            double[] point = points.get(timestamp);
+            if (point == null) {
+                point = new double[]{1, 0, 0};
+                points.put(timestamp, point);
+            }
+            if (type == heartRateWindows) {
+                point[0] = history.value(i);
+            } else if (type == heartRateMax) {
+                point[2] = history.value(i);
+            } else if (type == SampleType.HEART_RATE || SampleType.rollupStat(type) == SampleType.STAT_MEAN) {
+                point[1] = history.value(i);
+            }
+        }
+
+        long previousAt = 0;
+        int previous = 0;
+        for (Map.Entry<Long, double[]> entry : points.entrySet()) {
+            double[] point = entry.getValue();
+            int bpm = (int) Math.round(point[1]);
+            integrate(previousAt, previous, entry.getKey());
+            previousAt = entry.getKey();
+            previous = bpm;
+            if (bpm > 0) {
+                heartRateSum += Math.round(point[1] * point[0]);
+                heartRateCount += (int) point[0];
+                maxHeartRate = Math.max(maxHeartRate, Math.max(bpm, (int) point[2]));
+            }
+        }
+    }
+
+    private void integrate(long previousAt, int previousBpm, long timestamp) {
+        long interval = timestamp - previousAt;
+        if (previousBpm > 0 && interval > 0 && interval <= MAX_HEART_RATE_GAP) {
+            heartRateCalories += calorieModel.heartRateKcalPerMinute(previousBpm) * interval / 60000.0;
+            heartRateMillis += interval;
+        }
+    }
+
+    // Passi dall'inizio della sessione
+    public synchronized void onSteps(int sessionSteps) {
+        steps = sessionSteps;
+    }
+
+    public synchronized long elapsedSeconds(long now) {
+        if (sessionStart == 0) {
+            return 0;
+        }
+        return Math.max(0, (sessionEnd != 0 ? sessionEnd : now) - sessionStart) / 1000;
+    }
+
+    public synchronized double calories(long now) {
+        long seconds = elapsedSeconds(now);
+        if (seconds > 0 && heartRateMillis / 1000 * 2 >= seconds) {
+            return heartRateCalories;
+        }
+        return stepCalories(now);
+    }
+
+    public synchronized int steps() {
+        return steps;
+    }
+
+    public synchronized double stepCalories(long now) {
+        return calorieModel.stepCalories(steps, elapsedSeconds(now));
+    }
+
+    public synchronized double heartRateCalories() {
+        return heartRateCalories;
+    }
+
+    public synchronized int averageHeartRate() {
+        return heartRateCount == 0 ? 0 : (int) Math.round((double) heartRateSum / heartRateCount);
+    }
+
+    public synchronized int maxHeartRate() {
+        return maxHeartRate;
+    }
+
+    // Passi al minuto, media della sessione
+    public synchronized double cadence(long now) {
+        long seconds = elapsedSeconds(now);
+        return seconds == 0 ? 0 : steps * 60.0 / seconds;
+    }
+
+    public synchronized void dump(PrintWriter writer, long now) {
+        writer.println("Session summary: " + UiState.formatTimer(elapsedSeconds(now))
+                + (sessionEnd != 0 ? " (stopped)" : "")
+                + ", steps " + steps
+                + ", calories " + String.format("%.1f", calories(now))
+                + " (steps " + String.format("%.1f", stepCalories(now))
+                + ", heart rate " + String.format("%.1f", heartRateCalories)
+                + " over " + heartRateMillis / 60000 + " min)"
+                + ", heart rate avg " + averageHeartRate() + " max " + maxHeartRate
+                + ", cadence " + String.format("%.1f", cadence(now)) + "/min");
+    }
+}
@@ -0,0 +1,207 @@
+package com.chinonso.wearos;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+
+// Registro dei consumi di una sessione: per quanto tempo sono stati tenuti i wake lock
+// e accesi i provider di posizione, quante volte ogni runnable ha svegliato un thread,
+// quanto traffico e' stato fatto e di quanto e' scesa la batteria.
+// Le durate sono in ms di elapsedRealtime. Viene salvato in un file .properties
+// accanto alla sessione, cosi' si possono confrontare le modalita' di acquisizione.
+public final class EnergyLedger {
+    public static final int WAKE_LOCK_SESSION = 0;
+    public static final int WAKE_LOCK_UPLOAD = 1;
+    private static final String[] WAKE_LOCK_NAMES = {"session", "upload"};
+
+    public static final int WAKEUP_LOCATION_CHECK = 0;
+    public static final int WAKEUP_UPLOAD_CHECK = 1;
+    public static final int WAKEUP_DRAIN = 2;
+    public static final int WAKEUP_SENSOR_FLUSH = 3;
+    public static final int WAKEUP_WARM_UP = 4;
+    private static final String[] WAKEUP_NAMES = {"location_check", "upload_check", "drain", "sensor_flush", "warm_up"};
+
+    private final long sessionStart;
+    private final long[] wakeLockHeldSince = new long[WAKE_LOCK_NAMES.length];
+    private final long[] wakeLockTotal = new long[WAKE_LOCK_NAMES.length];
+    private final long[] wakeups = new long[WAKEUP_NAMES.length];
+    // provider -> {acceso da (0 = spento), totale ms}
+    private final Map<String, long[]> providers = new LinkedHashMap<>();
+    private long networkBytes;
+    private long requests;
+    private long failedRequests;
+    private int batteryStart = -1;
+    private int batteryLast = -1;
+    private int batteryMin = -1;
+
+    public EnergyLedger(long sessionStart) {
+        this.sessionStart = sessionStart;
+    }
+
+    public long sessionStart() {
+        return sessionStart;
+    }
+
+    public synchronized void onWakeLockAcquired(int lock, long now) {
+        if (wakeLockHeldSince[lock] == 0) {
+            wakeLockHeldSince[lock] = now;
+        }
+    }
+
+    public synchronized void onWakeLockReleased(int lock, long now) {
+        if (wakeLockHeldSince[lock] != 0) {
+            wakeLockTotal[lock] += now - wakeLockHeldSince[lock];
+            wakeLockHeldSince[lock] = 0;
+        }
+    }
+
+    public synchronized void onProviderStarted(String provider, long now) {
+        long[] state = providers.get(provider);
+        if (state == null) {
+            state = new long[2];
+            providers.put(provider, state);
+        }
+        if (state[0] == 0) {
+            state[0] = now;
+        }
+    }
+
+    public synchronized void onProvidersStopped(long now) {
+        for (long[] state : providers.values()) {
+            if (state[0] != 0) {
+                state[1] += now - state[0];
+                state[0] = 0;
+            }
+        }
+    }
+
+    public synchronized void onWakeup(int source) {
+        wakeups[source]++;
+    }
+
+    public synchronized void onRequest(long bytes, boolean success) {
+        requests++;
+        networkBytes += bytes;
+        if (!success) {
+            failedRequests++;
+        }
+    }
+
+    public synchronized void onBatteryLevel(int percent) {
+        if (batteryStart < 0) {
+            batteryStart = percent;
+        }
+        batteryLast = percent;
+        batteryMin = batteryMin < 0 ? percent : Math.min(batteryMin, percent);
+    }
+
+    public synchronized long wakeLockHeld(int lock, long now) {
+        long held = wakeLockTotal[lock];
+        return wakeLockHeldSince[lock] != 0 ? held + now - wakeLockHeldSince[lock] : held;
+    }
+
+    public synchronized long providerOn(String provider, long now) {
+        long[] state = providers.get(provider);
+        if (state == null) {
+            return 0;
+        }
+        return state[0] != 0 ? state[1] + now - state[0] : state[1];
+    }
+
+    public synchronized long wakeups(int source) {
+        return wakeups[source];
+    }
+
+    public synchronized int batteryDelta() {
+        return batteryStart < 0 ? 0 : batteryLast - batteryStart;
+    }
+
+    public synchronized void dump(PrintWriter writer, long now) {
+        writer.println("Energy ledger (session " + sessionStart + "):");
+        for (int i = 0; i < WAKE_LOCK_NAMES.length; i++) {
+            writer.println("  wake lock " + WAKE_LOCK_NAMES[i] + ": " + wakeLockHeld(i, now) / 1000 + " s");
+        }
+        for (String provider : providers.keySet()) {
+            writer.println("  location " + provider + " on: " + providerOn(provider, now) / 1000 + " s");
+        }
+        for (int i = 0; i < WAKEUP_NAMES.length; i++) {
+            writer.println("  wakeups " + WAKEUP_NAMES[i] + ": " + wakeups[i]);
+        }
+        writer.println("  network: " + requests + " requests (" + failedRequests + " failed), " + networkBytes + " bytes");
+        writer.println("  battery: " + batteryStart + "% -> " + batteryLast + "% (min " + batteryMin + "%, delta " + batteryDelta() + ")");
+    }
+
+    // I periodi ancora aperti vengono salvati come chiusi a "now": dopo un riavvio si riparte da li'
+    public synchronized void save(File file, long now) throws IOException {
+        Properties properties = new Properties();
+        properties.setProperty("sessionStart", Long.toString(sessionStart));
+        for (int i = 0; i < WAKE_LOCK_NAMES.length; i++) {
+            properties.setProperty("wakeLock." + WAKE_LOCK_NAMES[i], Long.toString(wakeLockHeld(i, now)));
+        }
+        for (String provider : providers.keySet()) {
+            properties.setProperty("provider." + provider, Long.toString(providerOn(provider, now)));
+        }
+        for (int i = 0; i < WAKEUP_NAMES.length; i++) {
+            properties.setProperty("wakeups." + WAKEUP_NAMES[i], Long.toString(wakeups[i]));
+        }
+        properties.setProperty("network.bytes", Long.toString(networkBytes));
+        properties.setProperty("network.requests", Long.toString(requests));
+        properties.setProperty("network.failed", Long.toString(failedRequests));
+        properties.setProperty("battery.start", Integer.toString(batteryStart));
+        properties.setProperty("battery.last", Integer.toString(batteryLast));
+        properties.setProperty("battery.min", Integer.toString(batteryMin));
+
+        File tmp = new File(file.getPath() + ".tmp");
+        try (OutputStream out = new FileOutputStream(tmp)) {
+            properties.store(out, "Energy ledger");
+        }
+        if (!tmp.renameTo(file)) {
+            throw new IOException("Cannot write " + file);
+        }
+    }
+
+    public static EnergyLedger load(File file) throws IOException {
+        Properties properties = new Properties();
+        try (InputStream in = new FileInputStream(file)) {
+            properties.load(in);
+        }
+        EnergyLedger ledger = new EnergyLedger(Long.parseLong(properties.getProperty("sessionStart", "0")));
+        for (int i = 0; i < WAKE_LOCK_NAMES.length; i++) {
+            ledger.wakeLockTotal[i] = longProperty(properties, "wakeLock." + WAKE_LOCK_NAMES[i]);
+        }
+        for (String name : properties.stringPropertyNames()) {
+            if (name.startsWith("provider.")) {
+                ledger.providers.put(name.substring("provider.".length()), new long[]{0, longProperty(properties, name)});
+            }
+        }
+        for (int i = 0; i < WAKEUP_NAMES.length; i++) {
+            ledger.wakeups[i] = longProperty(properties, "wakeups." + WAKEUP_NAMES[i]);
+        }
+        ledger.networkBytes = longProperty(properties, "network.bytes");
+        ledger.requests = longProperty(properties, "network.requests");
+        ledger.failedRequests = longProperty(properties, "network.failed");
+        ledger.batteryStart = (int) longProperty(properties, "battery.start", -1);
+        ledger.batteryLast = (int) longProperty(properties, "battery.last", -1);
+        ledger.batteryMin = (int) longProperty(properties, "battery.min", -1);
+        return ledger;
+    }
+
+    private static long longProperty(Properties properties, String name) {
+        return longProperty(properties, name, 0);
+    }
+
+    private static long longProperty(Properties properties, String name, long defaultValue) {
+        try {
+            return Long.parseLong(properties.getProperty(name, Long.toString(defaultValue)));
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+}
@@ -0,0 +1,20 @@
+package com.chinonso.wearos;
+
+// Converte il timestamp di un SensorEvent (nanosecondi sulla base di elapsedRealtime)
+// in ora di sistema. Con il batching gli eventi arrivano anche decine di secondi dopo
+// la misura, quindi l'ora di consegna non va bene come timestamp del campione.
+public final class EventClock {
+    // Oltre questa eta' il timestamp del driver non e' credibile (alcuni usano uptime)
+    private static final long MAX_EVENT_AGE_NANOS = 60L * 60 * 1000 * 1000 * 1000;
+    private static final long MAX_CLOCK_SKEW_NANOS = 1000L * 1000 * 1000;
+
+    private EventClock() {}
+
+    public static long toWallClock(long eventNanos, long nowElapsedNanos, long nowWallMillis) {
+        long age = nowElapsedNanos - eventNanos;
+        if (age > MAX_EVENT_AGE_NANOS || age < -MAX_CLOCK_SKEW_NANOS) {
+            return nowWallMillis;
+        }
+        return nowWallMillis - Math.max(0, age) / 1000000;
+    }
+}
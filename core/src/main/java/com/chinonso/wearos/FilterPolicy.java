@@ -0,0 +1,64 @@
+package com.chinonso.wearos;
+
+// Impostazioni dei filtri di SampleFilter per ogni tipo di campione, una per tipo di allenamento.
+// Per ogni tipo:
+// - deadband: il valore passa solo se si scosta dall'ultimo registrato piu' di
+//   max(absolute, relative * |ultimo|); 0 significa "solo se cambia", -1 disattiva
+// - minInterval: ms minimi fra due campioni registrati
+// - keepAlive: dopo questi ms il campione passa comunque, cosi' il server sa che
+//   il sensore e' vivo anche se il valore non cambia (0 = mai)
+public final class FilterPolicy {
+    static final class Rule {
+        final double absoluteDeadband;
+        final double relativeDeadband;
+        final long minInterval;
+        final long keepAlive;
+
+        Rule(double absoluteDeadband, double relativeDeadband, long minInterval, long keepAlive) {
+            this.absoluteDeadband = absoluteDeadband;
+            this.relativeDeadband = relativeDeadband;
+            this.minInterval = minInterval;
+            this.keepAlive = keepAlive;
+        }
+    }
+
+    public static final FilterPolicy NONE = new FilterPolicy("none");
+
+    public final String name;
+    private final Rule[] rules = new Rule[SampleType.ALTITUDE + 1];
+
+    private FilterPolicy(String name) {
+        this.name = name;
+    }
+
+    private FilterPolicy rule(int type, double absoluteDeadband, double relativeDeadband, long minInterval, long keepAlive) {
+        rules[type] = new Rule(absoluteDeadband, relativeDeadband, minInterval, keepAlive);
+        return this;
+    }
+
+    Rule rule(int type) {
+        return type < rules.length ? rules[type] : null;
+    }
+
+    public static FilterPolicy forWorkout(String workout) {
+        if (workout == null) {
+            workout = "";
+        }
+        // Il monitoraggio giornaliero non ha regole sue: battito, passi e quota vanno a
+        // RollupStage senza passare dal filtro
+        switch (workout) {
+            case "Cycling":
+                // Velocita' piu' alte: la quota cambia in fretta
+                return new FilterPolicy("cycling")
+                        .rule(SampleType.HEART_RATE, 0, 0, 1000, 30000)
+                        .rule(SampleType.STEP_COUNT, 0, 0, 1000, 60000)
+                        .rule(SampleType.ALTITUDE, 0.5, 0, 500, 30000);
+            default:
+                // Il barometro a SENSOR_DELAY_FASTEST ha un rumore sotto il metro
+                return new FilterPolicy("workout")
+                        .rule(SampleType.HEART_RATE, 0, 0, 1000, 30000)
+                        .rule(SampleType.STEP_COUNT, 0, 0, 1000, 60000)
+                        .rule(SampleType.ALTITUDE, 1, 0, 1000, 30000);
+        }
+    }
+}
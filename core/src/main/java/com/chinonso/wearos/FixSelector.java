@@ -0,0 +1,139 @@
+package com.chinonso.wearos;
+
+// Fusione dei fix che GPS e rete consegnano quasi insieme: i fix che arrivano entro
+// una breve finestra vengono confrontati e passa solo il migliore (accuratezza,
+// penalizzata dall'eta'). Vengono scartati:
+// - i fix troppo vecchi o precedenti all'ultimo accettato
+// - i salti impossibili: distanza dall'ultimo fix accettato, tolti i raggi di
+//   accuratezza, superiore a maxSpeed per il tempo trascorso. Dopo MAX_REJECTIONS
+//   scarti di fila il fix viene accettato, cosi' un'ancora sbagliata non blocca la traccia.
+// Tempi in ms; "now" e' elapsedRealtime, i timestamp dei fix sono wall clock.
+// Va usato da un solo thread.
+public final class FixSelector {
+    public interface Sink {
+        void emit(long timestamp, LocationRecord location);
+    }
+
+    private static final int MAX_REJECTIONS = 3;
+    private static final float UNKNOWN_ACCURACY = 1000;
+    private static final double AGE_PENALTY = 1.0; // metri per secondo di eta'
+
+    private final long window;
+    private final long maxAge;
+    private final float maxSpeed;
+    private final Sink sink;
+
+    private LocationRecord best;
+    private long bestTimestamp;
+    private long bestAge;
+    private long windowEnd;
+
+    private LocationRecord last;
+    private long lastTimestamp;
+    private int consecutiveRejections;
+
+    private long received;
+    private long rejectedStale;
+    private long rejectedImplausible;
+    private long emitted;
+
+    public FixSelector(long window, long maxAge, float maxSpeed, Sink sink) {
+        this.window = window;
+        this.maxAge = maxAge;
+        this.maxSpeed = maxSpeed;
+        this.sink = sink;
+    }
+
+    // Restituisce true se il fix ha aperto una finestra: il chiamante deve chiamare
+    // closeWindow() dopo window() ms
+    public boolean add(long now, long timestamp, long age, LocationRecord fix) {
+        received++;
+        if (best != null && now >= windowEnd) {
+            closeWindow();
+        }
+        if (age > maxAge || last != null && timestamp <= lastTimestamp) {
+            rejectedStale++;
+            return false;
+        }
+        if (isImplausible(timestamp, fix)) {
+            rejectedImplausible++;
+            return false;
+        }
+        if (best == null) {
+            best = fix;
+            bestTimestamp = timestamp;
+            bestAge = age;
+            windowEnd = now + window;
+            return true;
+        }
+        if (score(fix, age) < score(best, bestAge)) {
+            best = fix;
+            bestTimestamp = timestamp;
+            bestAge = age;
+        }
+        return false;
+    }
+
+    public void closeWindow() {
+        if (best == null) {
+            return;
+        }
+        LocationRecord chosen = best;
+        best = null;
+        last = chosen;
+        lastTimestamp = bestTimestamp;
+        emitted++;
+        sink.emit(bestTimestamp, chosen);
+    }
+
+    public void reset() {
+        best = null;
+        last = null;
+        consecutiveRejections = 0;
+    }
+
+    public long window() {
+        return window;
+    }
+
+    public long received() {
+        return received;
+    }
+
+    public long rejectedStale() {
+        return rejectedStale;
+    }
+
+    public long rejectedImplausible() {
+        return rejectedImplausible;
+    }
+
+    public long emitted() {
+        return emitted;
+    }
+
+    private boolean isImplausible(long timestamp, LocationRecord fix) {
+        if (last == null) {
+            return false;
+        }
+        double seconds = (timestamp - lastTimestamp) / 1000.0;
+        double distance = fix.distanceTo(last) - accuracy(fix) - accuracy(last);
+        if (distance <= maxSpeed * seconds) {
+            consecutiveRejections = 0;
+            return false;
+        }
+        if (++consecutiveRejections > MAX_REJECTIONS) {
+            consecutiveRejections = 0;
+            return false;
+        }
+        return true;
+    }
+
+    private static double score(LocationRecord fix, long age) {
+        return accuracy(fix) + AGE_PENALTY * age / 1000.0;
+    }
+
+    private static float accuracy(LocationRecord fix) {
+        return Float.isNaN(fix.accuracy) ? UNKNOWN_ACCURACY : fix.accuracy;
+    }
+}
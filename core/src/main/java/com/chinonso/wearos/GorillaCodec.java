@@ -0,0 +1,213 @@
+package com.chinonso.wearos;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+// Compressione delle serie temporali nello stile di Facebook Gorilla:
+// - timestamp come delta-of-delta, con prefissi di lunghezza variabile
+//   ('0' = stesso intervallo del campione precedente)
+// - double in XOR con il valore precedente: '0' se uguale, altrimenti solo i bit
+//   significativi, riusando la finestra leading/trailing precedente quando ci stanno.
+// Con campioni regolari e valori che cambiano poco (frequenza cardiaca, altitudine)
+// servono pochi bit per campione. Encoder e decoder non allocano per campione.
+public final class GorillaCodec {
+    private GorillaCodec() {}
+
+    public static final class BitWriter {
+        private byte[] buffer = new byte[256];
+        private int bitLength;
+
+        public void writeBit(boolean bit) {
+            ensureCapacity(1);
+            if (bit) {
+                buffer[bitLength >>> 3] |= (byte) (0x80 >>> (bitLength & 7));
+            }
+            bitLength++;
+        }
+
+        // Scrive i "count" bit meno significativi di value, dal piu' significativo
+        public void writeBits(long value, int count) {
+            ensureCapacity(count);
+            for (int i = count - 1; i >= 0; i--) {
+                if (((value >>> i) & 1) != 0) {
+                    buffer[bitLength >>> 3] |= (byte) (0x80 >>> (bitLength & 7));
+                }
+                bitLength++;
+            }
+        }
+
+        public int byteLength() {
+            return (bitLength + 7) >>> 3;
+        }
+
+        public void writeTo(OutputStream out) throws IOException {
+            out.write(buffer, 0, byteLength());
+        }
+
+        public void reset() {
+            Arrays.fill(buffer, 0, byteLength(), (byte) 0);
+            bitLength = 0;
+        }
+
+        private void ensureCapacity(int bits) {
+            int needed = (bitLength + bits + 7) >>> 3;
+            if (needed > buffer.length) {
+                buffer = Arrays.copyOf(buffer, Math.max(needed, buffer.length * 2));
+            }
+        }
+    }
+
+    public static final class BitReader {
+        private final byte[] data;
+        private final int limit;
+        private int position;
+
+        public BitReader(byte[] data, int length) {
+            this.data = data;
+            this.limit = length * 8;
+        }
+
+        public boolean readBit() throws IOException {
+            if (position >= limit) {
+                throw new EOFException();
+            }
+            boolean bit = (data[position >>> 3] & (0x80 >>> (position & 7))) != 0;
+            position++;
+            return bit;
+        }
+
+        public long readBits(int count) throws IOException {
+            long value = 0;
+            for (int i = 0; i < count; i++) {
+                value = (value << 1) | (readBit() ? 1 : 0);
+            }
+            return value;
+        }
+    }
+
+    public static final class TimestampEncoder {
+        private long previous;
+        private long previousDelta;
+
+        // Il primo timestamp viene codificato come delta dal riferimento
+        public TimestampEncoder(long reference) {
+            previous = reference;
+        }
+
+        public void encode(BitWriter out, long timestamp) {
+            long delta = timestamp - previous;
+            long dod = CompactBatchFormat.zigzag(delta - previousDelta);
+            if (dod == 0) {
+                out.writeBit(false);
+            } else if (dod < 1 << 7) {
+                out.writeBits(0b10, 2);
+                out.writeBits(dod, 7);
+            } else if (dod < 1 << 9) {
+                out.writeBits(0b110, 3);
+                out.writeBits(dod, 9);
+            } else if (dod < 1 << 12) {
+                out.writeBits(0b1110, 4);
+                out.writeBits(dod, 12);
+            } else {
+                out.writeBits(0b1111, 4);
+                out.writeBits(dod, 64);
+            }
+            previous = timestamp;
+            previousDelta = delta;
+        }
+    }
+
+    public static final class TimestampDecoder {
+        private long previous;
+        private long previousDelta;
+
+        public TimestampDecoder(long reference) {
+            previous = reference;
+        }
+
+        public long decode(BitReader in) throws IOException {
+            long dod;
+            if (!in.readBit()) {
+                dod = 0;
+            } else if (!in.readBit()) {
+                dod = in.readBits(7);
+            } else if (!in.readBit()) {
+                dod = in.readBits(9);
+            } else if (!in.readBit()) {
+                dod = in.readBits(12);
+            } else {
+                dod = in.readBits(64);
+            }
+            previousDelta += CompactBatchFormat.unzigzag(dod);
+            previous += previousDelta;
+            return previous;
+        }
+    }
+
+    public static final class DoubleEncoder {
+        private long previous;
+        private int leading = Integer.MAX_VALUE;
+        private int trailing;
+        private boolean first = true;
+
+        public void encode(BitWriter out, double value) {
+            long bits = Double.doubleToRawLongBits(value);
+            if (first) {
+                out.writeBits(bits, 64);
+                previous = bits;
+                first = false;
+                return;
+            }
+            long xor = bits ^ previous;
+            previous = bits;
+            if (xor == 0) {
+                out.writeBit(false);
+                return;
+            }
+            out.writeBit(true);
+            int newLeading = Math.min(Long.numberOfLeadingZeros(xor), 31);
+            int newTrailing = Long.numberOfTrailingZeros(xor);
+            if (leading != Integer.MAX_VALUE && newLeading >= leading && newTrailing >= trailing) {
+                // Ci sta nella finestra precedente
+                out.writeBit(false);
+                out.writeBits(xor >>> trailing, 64 - leading - trailing);
+            } else {
+                leading = newLeading;
+                trailing = newTrailing;
+                int significant = 64 - leading - trailing;
+                out.writeBit(true);
+                out.writeBits(leading, 5);
+                out.writeBits(significant == 64 ? 0 : significant, 6);
+                out.writeBits(xor >>> trailing, significant);
+            }
+        }
+    }
+
+    public static final class DoubleDecoder {
+        private long previous;
+        private int leading;
+        private int trailing;
+        private boolean first = true;
+
+        public double decode(BitReader in) throws IOException {
+            if (first) {
+                previous = in.readBits(64);
+                first = false;
+            } else if (in.readBit()) {
+                if (in.readBit()) {
+                    leading = (int) in.readBits(5);
+                    int significant = (int) in.readBits(6);
+                    if (significant == 0) {
+                        significant = 64;
+                    }
+                    trailing = 64 - leading - significant;
+                }
+                long xor = in.readBits(64 - leading - trailing) << trailing;
+                previous ^= xor;
+            }
+            return Double.longBitsToDouble(previous);
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package com.chinonso.wearos;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// Istogramma a bucket esponenziali (potenze di 2): record() non alloca e non usa lock.
+// Pensato per un solo thread che scrive; gli altri possono leggere in qualsiasi momento.
+public final class Histogram {
+    private static final int BUCKETS = 40;
+    private static final int COUNT = BUCKETS;
+    private static final int SUM = BUCKETS + 1;
+    private static final int MAX = BUCKETS + 2;
+
+    private final AtomicLongArray cells = new AtomicLongArray(BUCKETS + 3);
+
+    public void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        int bucket = Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(value));
+        cells.lazySet(bucket, cells.get(bucket) + 1);
+        cells.lazySet(SUM, cells.get(SUM) + value);
+        if (value > cells.get(MAX)) {
+            cells.lazySet(MAX, value);
+        }
+        cells.set(COUNT, cells.get(COUNT) + 1);
+    }
+
+    public long count() {
+        return cells.get(COUNT);
+    }
+
+    public long max() {
+        return cells.get(MAX);
+    }
+
+    public double mean() {
+        long count = count();
+        return count == 0 ? 0 : (double) cells.get(SUM) / count;
+    }
+
+    // Limite superiore del bucket che contiene il percentile richiesto
+    public long percentile(double p) {
+        long count = count();
+        if (count == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(p * count);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += cells.get(i);
+            if (seen >= rank) {
+                return Math.min(max(), i == 0 ? 0 : (1L << i) - 1);
+            }
+        }
+        return max();
+    }
+
+    @Override
+    public String toString() {
+        return String.format(java.util.Locale.US, "n=%d mean=%.1f p50=%d p95=%d p99=%d max=%d",
+                count(), mean(), percentile(0.50), percentile(0.95), percentile(0.99), max());
+    }
+}
@@ -0,0 +1,156 @@
+package com.chinonso.wearos;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.ConnectionPool;
+import okhttp3.Dispatcher;
+import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
+import okhttp3.Request;
+import okhttp3.Response;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+// Client HTTP unico per tutta l'app (l'istanza e' in FitnessApplication): un solo pool di
+// connessioni e un solo SSLSocketFactory, quindi le sessioni TLS vengono riprese fra
+// una richiesta e l'altra. HTTP/2 viene negoziato con ALPN sui server https.
+// - warmUp(): una HEAD poco prima di un upload programmato, cosi' DNS, TCP e TLS
+//   sono gia' fatti quando parte il batch; il pool tiene la connessione per KEEP_ALIVE
+// - postBatches(): piu' batch insieme, al massimo MAX_IN_FLIGHT per host. Con HTTP/2
+//   viaggiano tutti sulla stessa connessione. Per i batch numerati il server risponde
+//   {"ackedThrough": n}, l'ultima sequenza ricevuta senza buchi: il callback riceve
+//   il massimo fra le risposte, -1 se nessuna lo riportava (server vecchio).
+public final class HttpTransport {
+    public interface BatchCallback {
+        // Una volta sola, quando tutti i batch hanno avuto risposta; su un thread di OkHttp
+        void onFinished(boolean[] successful, long ackedThrough);
+    }
+
+    public static final int MAX_IN_FLIGHT = 4;
+    private static final long KEEP_ALIVE_MINUTES = 5;
+    private static final int MAX_IDLE_CONNECTIONS = 2;
+    private static final String ACKED_THROUGH = "ackedThrough";
+
+    private final OkHttpClient client;
+    private final AtomicLong warmUps = new AtomicLong();
+    private final AtomicLong warmUpFailures = new AtomicLong();
+    private final AtomicLong batchesSent = new AtomicLong();
+
+    // h2PriorKnowledge: HTTP/2 in chiaro senza negoziazione, solo per server che lo
+    // supportano (es. MockWebServer nelle prove); i server https usano ALPN
+    public HttpTransport(boolean h2PriorKnowledge) {
+        Dispatcher dispatcher = new Dispatcher();
+        dispatcher.setMaxRequestsPerHost(MAX_IN_FLIGHT);
+        client = new OkHttpClient.Builder()
+                .dispatcher(dispatcher)
+                .connectionPool(new ConnectionPool(MAX_IDLE_CONNECTIONS, KEEP_ALIVE_MINUTES, TimeUnit.MINUTES))
+                .protocols(h2PriorKnowledge
+                        ? Collections.singletonList(Protocol.H2_PRIOR_KNOWLEDGE)
+                        : Arrays.asList(Protocol.HTTP_2, Protocol.HTTP_1_1))
+                .connectTimeout(15, TimeUnit.SECONDS)
+                .readTimeout(30, TimeUnit.SECONDS)
+                .writeTimeout(30, TimeUnit.SECONDS)
+                .build();
+    }
+
+    public OkHttpClient client() {
+        return client;
+    }
+
+    // Apre (o rinfresca) la connessione verso l'host di url; la risposta non interessa
+    public void warmUp(String url) {
+        warmUps.incrementAndGet();
+        Request request = new Request.Builder().url(url).head().build();
+        client.newCall(request).enqueue(new Callback() {
+            @Override
+            public void onFailure(Call call, IOException e) {
+                warmUpFailures.incrementAndGet();
+            }
+
+            @Override
+            public void onResponse(Call call, Response response) {
+                response.close();
+            }
+        });
+    }
+
+    public void postBatches(String url, List<BatchRequestBody> batches, BatchCallback callback) {
+        boolean[] successful = new boolean[batches.size()];
+        AtomicLong ackedThrough = new AtomicLong(-1);
+        AtomicInteger remaining = new AtomicInteger(batches.size());
+        for (int i = 0; i < batches.size(); i++) {
+            int index = i;
+            Request request = new Request.Builder()
+                    .url(url)
+                    .header("Content-Encoding", BatchRequestBody.CONTENT_ENCODING)
+                    .post(batches.get(i))
+                    .build();
+            batchesSent.incrementAndGet();
+            client.newCall(request).enqueue(new Callback() {
+                @Override
+                public void onFailure(Call call, IOException e) {
+                    finished();
+                }
+
+                @Override
+                public void onResponse(Call call, Response response) {
+                    successful[index] = response.isSuccessful();
+                    if (successful[index]) {
+                        try {
+                            long acked = ackedThrough(response.body().string());
+                            ackedThrough.accumulateAndGet(acked, Math::max);
+                        } catch (IOException e) {
+                            successful[index] = false;
+                        }
+                    }
+                    response.close();
+                    finished();
+                }
+
+                private void finished() {
+                    if (remaining.decrementAndGet() == 0) {
+                        callback.onFinished(successful, ackedThrough.get());
+                    }
+                }
+            });
+        }
+    }
+
+    // Il valore di "ackedThrough" nella risposta JSON, -1 se manca o non e' una sequenza
+    // (risposta non JSON, valore non intero, chiave solo in un oggetto annidato)
+    public static long ackedThrough(String body) {
+        Object value;
+        try {
+            value = new JSONObject(body).opt(ACKED_THROUGH);
+        } catch (JSONException e) {
+            return -1;
+        }
+        if (!(value instanceof Integer) && !(value instanceof Long)) {
+            return -1;
+        }
+        return Math.max(-1, ((Number) value).longValue());
+    }
+
+    public long warmUps() {
+        return warmUps.get();
+    }
+
+    public long warmUpFailures() {
+        return warmUpFailures.get();
+    }
+
+    public long batchesSent() {
+        return batchesSent.get();
+    }
+
+    public int connectionCount() {
+        return client.connectionPool().connectionCount();
+    }
+}
@@ -0,0 +1,115 @@
+package com.chinonso.wearos;
+
+import java.io.IOException;
+import okio.BufferedSink;
+
+// Scrive un batch nello stesso JSON che /api/bulk-data ha sempre ricevuto,
+// direttamente sul sink e senza costruire JSONObject intermedi.
+// Con deviceId ogni campione porta anche "deviceId" e "seq" (vedi SampleOutbox).
+public final class JsonBatchWriter {
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private JsonBatchWriter() {}
+
+    public static void write(SampleBuffer samples, String userId, String workout, BufferedSink sink) throws IOException {
+        write(samples, userId, workout, null, -1, sink);
+    }
+
+    public static void write(SampleBuffer samples, String userId, String workout, String deviceId, long firstSequence,
+                             BufferedSink sink) throws IOException {
+        sink.writeByte('[');
+        for (int i = 0; i < samples.size(); i++) {
+            int type = samples.type(i);
+            if (i > 0) {
+                sink.writeByte(',');
+            }
+            sink.writeUtf8("{\"userId\":");
+            writeString(sink, userId);
+            if (deviceId != null) {
+                sink.writeUtf8(",\"deviceId\":");
+                writeString(sink, deviceId);
+                sink.writeUtf8(",\"seq\":").writeDecimalLong(firstSequence + i);
+            }
+            sink.writeUtf8(",\"type\":\"").writeUtf8(SampleType.name(type)).writeUtf8("\",\"value\":");
+            if (SampleType.isText(type)) {
+                writeString(sink, samples.text(i));
+            } else if (SampleType.isLocation(type)) {
+                writeLocation(sink, samples.location(i));
+            } else if (SampleType.isIntegral(type)) {
+                sink.writeDecimalLong((long) samples.value(i));
+            } else {
+                writeNumber(sink, samples.value(i));
+            }
+            sink.writeUtf8(",\"timestamp\":").writeDecimalLong(samples.timestamp(i));
+            sink.writeUtf8(",\"workout\":");
+            writeString(sink, workout);
+            sink.writeByte('}');
+        }
+        sink.writeByte(']');
+    }
+
+    // {"lat":..,"lon":..,"accuracy":..,"altitude":..,"speed":..,"bearing":..,"provider":".."}
+    static void writeLocation(BufferedSink sink, LocationRecord location) throws IOException {
+        sink.writeUtf8("{\"lat\":");
+        writeNumber(sink, location.latitude);
+        sink.writeUtf8(",\"lon\":");
+        writeNumber(sink, location.longitude);
+        sink.writeUtf8(",\"accuracy\":");
+        writeFloat(sink, location.accuracy);
+        sink.writeUtf8(",\"altitude\":");
+        writeNumber(sink, location.altitude);
+        sink.writeUtf8(",\"speed\":");
+        writeFloat(sink, location.speed);
+        sink.writeUtf8(",\"bearing\":");
+        writeFloat(sink, location.bearing);
+        sink.writeUtf8(",\"provider\":");
+        writeString(sink, location.provider);
+        sink.writeByte('}');
+    }
+
+    // Come org.json: i valori interi escono senza ".0", NaN e infiniti come null
+    static void writeNumber(BufferedSink sink, double value) throws IOException {
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+            sink.writeUtf8("null");
+        } else if (value == Math.rint(value) && Math.abs(value) < 1e15) {
+            sink.writeDecimalLong((long) value);
+        } else {
+            sink.writeUtf8(Double.toString(value));
+        }
+    }
+
+    // I float non vanno allargati a double: 4.7f uscirebbe come 4.699999809265137
+    static void writeFloat(BufferedSink sink, float value) throws IOException {
+        if (Float.isNaN(value) || Float.isInfinite(value)) {
+            sink.writeUtf8("null");
+        } else if (value == Math.rint(value) && Math.abs(value) < 1e7f) {
+            sink.writeDecimalLong((long) value);
+        } else {
+            sink.writeUtf8(Float.toString(value));
+        }
+    }
+
+    static void writeString(BufferedSink sink, String value) throws IOException {
+        if (value == null) {
+            sink.writeUtf8("null");
+            return;
+        }
+        sink.writeByte('"');
+        int start = 0;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c != '"' && c != '\\' && c >= 0x20) {
+                continue;
+            }
+            sink.writeUtf8(value, start, i);
+            if (c == '"' || c == '\\') {
+                sink.writeByte('\\').writeByte(c);
+            } else {
+                sink.writeUtf8("\\u00").writeByte(HEX[c >> 4]).writeByte(HEX[c & 0xF]);
+            }
+            start = i + 1;
+        }
+        sink.writeUtf8(value, start, value.length());
+        sink.writeByte('"');
+    }
+}
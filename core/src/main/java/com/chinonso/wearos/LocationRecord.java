@@ -0,0 +1,38 @@
+package com.chinonso.wearos;
+
+// Un fix di posizione con tutti i suoi campi numerici, inviato come unico campione
+// di tipo "location" al posto della stringa "Lat: .., Lon: .." e del punto di altitudine.
+// I campi non forniti dal provider valgono NaN.
+public final class LocationRecord {
+    private static final double EARTH_RADIUS = 6371008.8;
+
+    public final double latitude;
+    public final double longitude;
+    public final double altitude;
+    public final float accuracy;
+    public final float speed;
+    public final float bearing;
+    public final String provider;
+
+    public LocationRecord(double latitude, double longitude, double altitude,
+                          float accuracy, float speed, float bearing, String provider) {
+        this.latitude = latitude;
+        this.longitude = longitude;
+        this.altitude = altitude;
+        this.accuracy = accuracy;
+        this.speed = speed;
+        this.bearing = bearing;
+        this.provider = provider != null ? provider : "";
+    }
+
+    public boolean hasAltitude() {
+        return !Double.isNaN(altitude);
+    }
+
+    // Distanza in metri, approssimazione equirettangolare (va bene sotto qualche km)
+    public double distanceTo(LocationRecord other) {
+        double x = Math.toRadians(other.longitude - longitude) * Math.cos(Math.toRadians((latitude + other.latitude) / 2));
+        double y = Math.toRadians(other.latitude - latitude);
+        return Math.sqrt(x * x + y * y) * EARTH_RADIUS;
+    }
+}
@@ -0,0 +1,229 @@
+package com.chinonso.wearos;
+
+// Decide con quali provider, intervallo e distanza minima chiedere la posizione.
+// - in movimento l'intervallo segue la velocita': un fix ogni "spacing" metri,
+//   entro i limiti del tipo di allenamento
+// - fermo (niente passi, movimento o velocita' per STATIONARY_DELAY): solo rete,
+//   oppure niente del tutto nel monitoraggio giornaliero
+// - al primo passo o movimento significativo si torna subito al GPS
+// Gli aggiornamenti vengono registrati di nuovo solo quando la configurazione cambia.
+// Non usa API Android: il LocationManager e' dietro LocationSource e i tempi
+// (elapsedRealtime) sono passati dal chiamante. Va usato da un solo thread.
+public final class LocationSamplingController {
+    public interface LocationSource {
+        void removeUpdates();
+
+        void requestUpdates(String provider, long interval, float minDistance);
+
+        // Da fermi: armare un sensore che segnali la ripresa del movimento
+        void watchForMotion(boolean enabled);
+    }
+
+    public static final String GPS_PROVIDER = "gps";
+    public static final String NETWORK_PROVIDER = "network";
+
+    public static final int MODE_OFF = 0;
+    public static final int MODE_NETWORK = 1;
+    public static final int MODE_GPS = 2;
+
+    public static final long STATIONARY_DELAY = 2 * 60 * 1000;
+    private static final long NETWORK_INTERVAL = 60 * 1000;
+    private static final float MOVING_SPEED = 1.0f; // m/s, sotto e' rumore del GPS
+    private static final double EWMA_WEIGHT = 0.3;
+    private static final long[] INTERVALS = {1000, 2000, 5000, 10000, 15000, 30000, 60000, 120000};
+
+    private static final class Policy {
+        final float spacing;
+        final long minInterval;
+        final long maxInterval;
+        final float typicalSpeed;
+        final int stationaryMode;
+
+        Policy(float spacing, long minInterval, long maxInterval, float typicalSpeed, int stationaryMode) {
+            this.spacing = spacing;
+            this.minInterval = minInterval;
+            this.maxInterval = maxInterval;
+            this.typicalSpeed = typicalSpeed;
+            this.stationaryMode = stationaryMode;
+        }
+    }
+
+    private final LocationSource source;
+    private Policy policy;
+    private boolean started;
+
+    private double speed;
+    private long lastMovementAt;
+    private boolean stationary;
+    private boolean watchingMotion;
+
+    private int mode = -1;
+    private long interval;
+    private float minDistance;
+    private int reconfigurations;
+
+    public LocationSamplingController(LocationSource source) {
+        this.source = source;
+    }
+
+    public void start(String workout, long now) {
+        policy = policyFor(workout);
+        started = true;
+        speed = policy.typicalSpeed;
+        lastMovementAt = now;
+        stationary = false;
+        mode = -1;
+        apply();
+    }
+
+    public void stop() {
+        if (started) {
+            started = false;
+            mode = -1;
+            source.removeUpdates();
+            if (watchingMotion) {
+                watchingMotion = false;
+                source.watchForMotion(false);
+            }
+        }
+    }
+
+    // speed in m/s, NaN se il provider non la fornisce
+    public void onLocation(float locationSpeed, long now) {
+        if (!started || Float.isNaN(locationSpeed)) {
+            return;
+        }
+        speed = EWMA_WEIGHT * locationSpeed + (1 - EWMA_WEIGHT) * speed;
+        if (locationSpeed >= MOVING_SPEED) {
+            onMovement(now);
+        } else {
+            apply();
+        }
+    }
+
+    // Il contapassi e' avanzato
+    public void onSteps(long now) {
+        if (started) {
+            onMovement(now);
+        }
+    }
+
+    // Sensore di movimento significativo (accelerometro) scattato
+    public void onSignificantMotion(long now) {
+        if (started) {
+            onMovement(now);
+        }
+    }
+
+    // Da richiamare periodicamente; restituisce fra quanti ms, -1 se non serve finche' non ci si muove
+    public long poll(long now) {
+        if (!started || stationary) {
+            return -1;
+        }
+        long stationaryAt = lastMovementAt + STATIONARY_DELAY;
+        if (now < stationaryAt) {
+            return stationaryAt - now;
+        }
+        stationary = true;
+        speed = 0;
+        apply();
+        return -1;
+    }
+
+    public int mode() {
+        return mode;
+    }
+
+    public long interval() {
+        return interval;
+    }
+
+    public float minDistance() {
+        return minDistance;
+    }
+
+    public boolean isStationary() {
+        return stationary;
+    }
+
+    public int reconfigurations() {
+        return reconfigurations;
+    }
+
+    public double speed() {
+        return speed;
+    }
+
+    private void onMovement(long now) {
+        lastMovementAt = now;
+        if (stationary) {
+            stationary = false;
+            speed = Math.max(speed, policy.typicalSpeed);
+        }
+        apply();
+    }
+
+    private void apply() {
+        int newMode;
+        long newInterval;
+        float newDistance;
+        if (stationary) {
+            newMode = policy.stationaryMode;
+            newInterval = NETWORK_INTERVAL;
+            newDistance = 0;
+        } else {
+            newMode = MODE_GPS;
+            newInterval = quantize(1000 * policy.spacing / Math.max(speed, 0.3), policy.minInterval, policy.maxInterval);
+            newDistance = policy.spacing / 2;
+        }
+        if (watchingMotion != stationary) {
+            watchingMotion = stationary;
+            source.watchForMotion(stationary);
+        }
+        if (newMode == mode && newInterval == interval && newDistance == minDistance) {
+            return;
+        }
+        mode = newMode;
+        interval = newInterval;
+        minDistance = newDistance;
+        reconfigurations++;
+
+        source.removeUpdates();
+        if (mode == MODE_GPS) {
+            source.requestUpdates(GPS_PROVIDER, interval, minDistance);
+            source.requestUpdates(NETWORK_PROVIDER, Math.max(interval, NETWORK_INTERVAL), minDistance);
+        } else if (mode == MODE_NETWORK) {
+            source.requestUpdates(NETWORK_PROVIDER, interval, 0);
+        }
+    }
+
+    // Si sceglie il gradino piu' vicino: piccole variazioni di velocita' non
+    // fanno registrare di nuovo il listener
+    private static long quantize(double interval, long min, long max) {
+        long best = INTERVALS[0];
+        for (long candidate : INTERVALS) {
+            if (Math.abs(candidate - interval) < Math.abs(best - interval)) {
+                best = candidate;
+            }
+        }
+        return Math.max(min, Math.min(max, best));
+    }
+
+    private static Policy policyFor(String workout) {
+        if (workout == null) {
+            workout = "";
+        }
+        switch (workout) {
+            case "Running":
+                return new Policy(15, 2000, 10000, 3.0f, MODE_NETWORK);
+            case "Cycling":
+                return new Policy(30, 1000, 10000, 6.0f, MODE_NETWORK);
+            case "Walking":
+                return new Policy(10, 5000, 15000, 1.4f, MODE_NETWORK);
+            case "Monitoraggio Giornaliero":
+                return new Policy(100, 30000, 120000, 1.0f, MODE_OFF);
+            default:
+                return new Policy(20, 5000, 30000, 1.5f, MODE_NETWORK);
+        }
+    }
+}
@@ -0,0 +1,137 @@
+package com.chinonso.wearos;
+
+import java.io.PrintWriter;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// Contatori della pipeline sensori -> outbox -> server, stampati da "dumpsys activity service".
+// Gli aggiornamenti non allocano: ogni contatore ha un solo thread che scrive
+// (ingestion thread per gli eventi, upload thread per il resto).
+public final class PipelineMetrics {
+    public static final int SOURCE_HEART_RATE = 0;
+    public static final int SOURCE_STEPS = 1;
+    public static final int SOURCE_PRESSURE = 2;
+    public static final int SOURCE_LOCATION = 3;
+    private static final String[] SOURCE_NAMES = {"heart_rate", "steps", "pressure", "location"};
+
+    private static final int UPLOADS = 0;
+    private static final int UPLOAD_FAILURES = 1;
+    private static final int UPLOAD_RETRIES = 2;
+    private static final int BYTES_UPLOADED = 3;
+    private static final int SAMPLES_UPLOADED = 4;
+    private static final int MAX_RING_DEPTH = 5;
+    private static final int OUTBOX_BACKLOG = 6;
+
+    private final AtomicLongArray events = new AtomicLongArray(SOURCE_NAMES.length);
+    private final AtomicLongArray counters = new AtomicLongArray(7);
+    private final Histogram eventToBuffer = new Histogram();
+    private final Histogram batchSizes = new Histogram();
+    private final Histogram uploadLatency = new Histogram();
+    private volatile long startedAt;
+
+    public PipelineMetrics(long now) {
+        startedAt = now;
+    }
+
+    // Ingestion thread
+
+    public void onSensorEvent(int source) {
+        events.lazySet(source, events.get(source) + 1);
+    }
+
+    // Upload thread
+
+    // Solo campioni grezzi: sampleTimestamp e' l'istante dell'evento
+    public void onBuffered(long sampleTimestamp, long now) {
+        eventToBuffer.record(now - sampleTimestamp);
+    }
+
+    public void onRingDepth(int depth) {
+        if (depth > counters.get(MAX_RING_DEPTH)) {
+            counters.lazySet(MAX_RING_DEPTH, depth);
+        }
+    }
+
+    public void onBacklog(int pendingSamples) {
+        counters.lazySet(OUTBOX_BACKLOG, pendingSamples);
+    }
+
+    public void onUploadStarted(int samples, boolean retry) {
+        batchSizes.record(samples);
+        increment(UPLOADS, 1);
+        if (retry) {
+            increment(UPLOAD_RETRIES, 1);
+        }
+    }
+
+    public void onUploadFinished(boolean success, int samples, long bytes, long latency) {
+        uploadLatency.record(latency);
+        increment(BYTES_UPLOADED, bytes);
+        if (success) {
+            increment(SAMPLES_UPLOADED, samples);
+        } else {
+            increment(UPLOAD_FAILURES, 1);
+        }
+    }
+
+    public Snapshot snapshot(long now, int ringDepth, long ringDropped) {
+        return new Snapshot(this, now, ringDepth, ringDropped);
+    }
+
+    private void increment(int counter, long delta) {
+        counters.lazySet(counter, counters.get(counter) + delta);
+    }
+
+    public static final class Snapshot {
+        public final long uptimeMs;
+        public final long[] events;
+        public final double[] eventsPerSecond;
+        public final int ringDepth;
+        public final long maxRingDepth;
+        public final long ringDropped;
+        public final long outboxBacklog;
+        public final long uploads;
+        public final long uploadFailures;
+        public final long uploadRetries;
+        public final long bytesUploaded;
+        public final long samplesUploaded;
+        public final String eventToBufferMs;
+        public final String batchSizes;
+        public final String uploadLatencyMs;
+
+        Snapshot(PipelineMetrics metrics, long now, int ringDepth, long ringDropped) {
+            uptimeMs = Math.max(1, now - metrics.startedAt);
+            events = new long[SOURCE_NAMES.length];
+            eventsPerSecond = new double[SOURCE_NAMES.length];
+            for (int i = 0; i < events.length; i++) {
+                events[i] = metrics.events.get(i);
+                eventsPerSecond[i] = events[i] * 1000.0 / uptimeMs;
+            }
+            this.ringDepth = ringDepth;
+            this.ringDropped = ringDropped;
+            maxRingDepth = metrics.counters.get(MAX_RING_DEPTH);
+            outboxBacklog = metrics.counters.get(OUTBOX_BACKLOG);
+            uploads = metrics.counters.get(UPLOADS);
+            uploadFailures = metrics.counters.get(UPLOAD_FAILURES);
+            uploadRetries = metrics.counters.get(UPLOAD_RETRIES);
+            bytesUploaded = metrics.counters.get(BYTES_UPLOADED);
+            samplesUploaded = metrics.counters.get(SAMPLES_UPLOADED);
+            eventToBufferMs = metrics.eventToBuffer.toString();
+            batchSizes = metrics.batchSizes.toString();
+            uploadLatencyMs = metrics.uploadLatency.toString();
+        }
+
+        public void dump(PrintWriter writer) {
+            writer.println("Pipeline metrics (" + uptimeMs / 1000 + " s):");
+            for (int i = 0; i < events.length; i++) {
+                writer.printf(java.util.Locale.US, "  events %-10s %8d  %.2f/s%n", SOURCE_NAMES[i], events[i], eventsPerSecond[i]);
+            }
+            writer.println("  event->buffer ms  " + eventToBufferMs);
+            writer.println("  ring depth        " + ringDepth + " (max " + maxRingDepth + ", dropped " + ringDropped + ")");
+            writer.println("  outbox backlog    " + outboxBacklog + " samples");
+            writer.println("  batch sizes       " + batchSizes);
+            writer.println("  upload latency ms " + uploadLatencyMs);
+            writer.println("  uploads           " + uploads + " (failures " + uploadFailures + ", retries " + uploadRetries + ")");
+            writer.println("  uploaded          " + samplesUploaded + " samples, " + bytesUploaded + " bytes");
+        }
+    }
+}
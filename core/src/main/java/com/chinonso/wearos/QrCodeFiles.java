@@ -0,0 +1,64 @@
+package com.chinonso.wearos;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+// File dei QR salvati da QrCodeCache. Il nome e' la chiave: primi 8 byte dello SHA-256
+// dell'userId in esadecimale, "_" e la dimensione. Con un altro userId (nuova
+// registrazione) o un'altra dimensione il file vecchio non viene mai trovato, e save()
+// lo cancella: nella cartella ne resta uno solo.
+public final class QrCodeFiles {
+    public interface Writer {
+        void write(OutputStream out) throws IOException;
+    }
+
+    private static final String SUFFIX = ".png";
+
+    private QrCodeFiles() {}
+
+    public static String key(String userId, int size) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(userId.getBytes(StandardCharsets.UTF_8));
+            StringBuilder key = new StringBuilder();
+            for (int i = 0; i < 8; i++) {
+                key.append(String.format("%02x", digest[i]));
+            }
+            return key.append('_').append(size).toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public static File file(File dir, String userId, int size) {
+        return new File(dir, key(userId, size) + SUFFIX);
+    }
+
+    // Scrive file passando da un .tmp, dopo aver cancellato tutto il resto della cartella
+    public static void save(File file, Writer writer) throws IOException {
+        File dir = file.getParentFile();
+        File[] old = dir.listFiles();
+        if (old != null) {
+            for (File f : old) {
+                f.delete();
+            }
+        } else if (!dir.mkdirs()) {
+            throw new IOException("Cannot create " + dir);
+        }
+        File tmp = new File(dir, file.getName() + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(tmp)) {
+            writer.write(out);
+        } catch (IOException e) {
+            tmp.delete();
+            throw e;
+        }
+        if (!tmp.renameTo(file)) {
+            tmp.delete();
+            throw new IOException("Cannot rename " + tmp);
+        }
+    }
+}
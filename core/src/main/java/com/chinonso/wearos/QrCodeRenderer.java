@@ -0,0 +1,59 @@
+package com.chinonso.wearos;
+
+import com.google.zxing.WriterException;
+import com.google.zxing.qrcode.decoder.ErrorCorrectionLevel;
+import com.google.zxing.qrcode.encoder.ByteMatrix;
+import com.google.zxing.qrcode.encoder.Encoder;
+import java.util.Arrays;
+
+// Disegna un QR code in un array ARGB size x size, pronto per un'unica Bitmap.setPixels().
+// Si codifica a risoluzione di modulo (una cella per modulo, ~25x25 per un userId) e si
+// scala con nearest-neighbour: ogni riga di moduli viene disegnata una volta e poi copiata
+// per le righe di pixel che le corrispondono. Come MultiFormatWriter: correzione L,
+// 4 moduli di margine bianco, scala intera centrata quando lo spazio basta.
+public final class QrCodeRenderer {
+    public static final int BLACK = 0xFF000000;
+    public static final int WHITE = 0xFFFFFFFF;
+    private static final int QUIET_ZONE = 4;
+
+    private QrCodeRenderer() {}
+
+    public static int[] render(String text, int size) throws WriterException {
+        int[] pixels = new int[size * size];
+        render(text, size, pixels);
+        return pixels;
+    }
+
+    public static void render(String text, int size, int[] pixels) throws WriterException {
+        ByteMatrix modules = Encoder.encode(text, ErrorCorrectionLevel.L).getMatrix();
+        int width = modules.getWidth() + 2 * QUIET_ZONE;
+
+        // Colonna di modulo per ogni colonna di pixel, -1 nel margine
+        int scale = size / width;
+        int offset = scale > 0 ? (size - width * scale) / 2 : 0;
+        int[] columns = new int[size];
+        for (int x = 0; x < size; x++) {
+            int module = scale > 0 ? (x - offset) / scale : (int) ((long) x * width / size);
+            columns[x] = x < offset ? -1 : module - QUIET_ZONE;
+        }
+
+        int[] row = new int[size];
+        int lastModuleRow = Integer.MIN_VALUE;
+        for (int y = 0; y < size; y++) {
+            int moduleRow = columns[y];
+            if (moduleRow < 0 || moduleRow >= modules.getHeight()) {
+                Arrays.fill(pixels, y * size, (y + 1) * size, WHITE);
+                continue;
+            }
+            if (moduleRow != lastModuleRow) {
+                for (int x = 0; x < size; x++) {
+                    int column = columns[x];
+                    row[x] = column >= 0 && column < modules.getWidth() && modules.get(column, moduleRow) == 1
+                            ? BLACK : WHITE;
+                }
+                lastModuleRow = moduleRow;
+            }
+            System.arraycopy(row, 0, pixels, y * size, size);
+        }
+    }
+}
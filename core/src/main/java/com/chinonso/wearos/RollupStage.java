@@ -0,0 +1,83 @@
+package com.chinonso.wearos;
+
+// Riduce i campioni numerici ad aggregati per finestra (count/min/max/mean/last).
+// Le finestre sono allineate all'orologio (es. ai minuti esatti), cosi' i dati di
+// piu' dispositivi si possono unire lato server; il timestamp di ogni aggregato e'
+// l'inizio della finestra. Una finestra viene emessa quando arriva un campione
+// della finestra successiva oppure con closeWindowsBefore()/flush().
+// Non alloca per campione. Va usato da un solo thread.
+public final class RollupStage {
+    public interface Sink {
+        void emit(int type, long timestamp, double value);
+    }
+
+    private static final int TYPES = SampleType.ALTITUDE + 1;
+
+    private final long resolution;
+    private final Sink sink;
+    private final long[] windowStart = new long[TYPES];
+    private final int[] count = new int[TYPES];
+    private final double[] min = new double[TYPES];
+    private final double[] max = new double[TYPES];
+    private final double[] sum = new double[TYPES];
+    private final double[] last = new double[TYPES];
+
+    public RollupStage(long resolution, Sink sink) {
+        if (resolution <= 0) {
+            throw new IllegalArgumentException("Resolution must be positive: " + resolution);
+        }
+        this.resolution = resolution;
+        this.sink = sink;
+    }
+
+    public long resolution() {
+        return resolution;
+    }
+
+    public void add(int type, long timestamp, double value) {
+        long start = timestamp - Math.floorMod(timestamp, resolution);
+        if (count[type] > 0 && start > windowStart[type]) {
+            emit(type);
+        }
+        if (count[type] == 0) {
+            windowStart[type] = start;
+            min[type] = value;
+            max[type] = value;
+            sum[type] = 0;
+        }
+        // Un campione in ritardo (es. orologio corretto all'indietro) finisce nella finestra aperta
+        count[type]++;
+        min[type] = Math.min(min[type], value);
+        max[type] = Math.max(max[type], value);
+        sum[type] += value;
+        last[type] = value;
+    }
+
+    // Emette le finestre gia' terminate a "now", es. prima di un upload
+    public void closeWindowsBefore(long now) {
+        for (int type = 1; type < TYPES; type++) {
+            if (count[type] > 0 && windowStart[type] + resolution <= now) {
+                emit(type);
+            }
+        }
+    }
+
+    // Fine sessione: emette anche le finestre parziali
+    public void flush() {
+        for (int type = 1; type < TYPES; type++) {
+            if (count[type] > 0) {
+                emit(type);
+            }
+        }
+    }
+
+    private void emit(int type) {
+        long timestamp = windowStart[type];
+        sink.emit(SampleType.rollup(type, SampleType.STAT_COUNT), timestamp, count[type]);
+        sink.emit(SampleType.rollup(type, SampleType.STAT_MIN), timestamp, min[type]);
+        sink.emit(SampleType.rollup(type, SampleType.STAT_MAX), timestamp, max[type]);
+        sink.emit(SampleType.rollup(type, SampleType.STAT_MEAN), timestamp, sum[type] / count[type]);
+        sink.emit(SampleType.rollup(type, SampleType.STAT_LAST), timestamp, last[type]);
+        count[type] = 0;
+    }
+}
@@ -0,0 +1,90 @@
+package com.chinonso.wearos;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+// Buffer colonnare di campioni: un array primitivo per timestamp, tipo e valore.
+// I rari valori testuali e le posizioni finiscono in una tabella a parte e la colonna
+// dei valori ne contiene l'indice. Dopo la prima crescita gli append non allocano piu'.
+public final class SampleBuffer {
+    private long[] timestamps;
+    private byte[] types;
+    private double[] values;
+    private final ArrayList<Object> objects = new ArrayList<>();
+    private int size;
+
+    public SampleBuffer(int initialCapacity) {
+        timestamps = new long[initialCapacity];
+        types = new byte[initialCapacity];
+        values = new double[initialCapacity];
+    }
+
+    public void add(int type, long timestamp, double value) {
+        ensureCapacity(size + 1);
+        types[size] = (byte) type;
+        timestamps[size] = timestamp;
+        values[size] = value;
+        size++;
+    }
+
+    public void addText(int type, long timestamp, String text) {
+        ensureCapacity(size + 1);
+        types[size] = (byte) type;
+        timestamps[size] = timestamp;
+        values[size] = objects.size();
+        objects.add(text);
+        size++;
+    }
+
+    public void addLocation(long timestamp, LocationRecord location) {
+        ensureCapacity(size + 1);
+        types[size] = (byte) SampleType.LOCATION;
+        timestamps[size] = timestamp;
+        values[size] = objects.size();
+        objects.add(location);
+        size++;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public int type(int index) {
+        return types[index];
+    }
+
+    public long timestamp(int index) {
+        return timestamps[index];
+    }
+
+    public double value(int index) {
+        return values[index];
+    }
+
+    public String text(int index) {
+        return (String) objects.get((int) values[index]);
+    }
+
+    public LocationRecord location(int index) {
+        return (LocationRecord) objects.get((int) values[index]);
+    }
+
+    public void clear() {
+        size = 0;
+        objects.clear();
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity <= timestamps.length) {
+            return;
+        }
+        int newCapacity = Math.max(capacity, timestamps.length * 2);
+        timestamps = Arrays.copyOf(timestamps, newCapacity);
+        types = Arrays.copyOf(types, newCapacity);
+        values = Arrays.copyOf(values, newCapacity);
+    }
+}
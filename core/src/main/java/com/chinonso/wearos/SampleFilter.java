@@ -0,0 +1,91 @@
+package com.chinonso.wearos;
+
+import java.io.PrintWriter;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// Catena di filtri applicata ai campioni numerici che vanno al ring senza RollupStage:
+// keep-alive, intervallo minimo, deadband, nell'ordine. Il confronto e' con l'ultimo
+// valore registrato, non con l'ultimo letto, cosi' una deriva lenta viene comunque registrata.
+// Solo ingestion thread; i contatori si possono leggere da qualunque thread.
+public final class SampleFilter {
+    private static final int TYPES = SampleType.ALTITUDE + 1;
+
+    private static final int PASSED = 0;
+    private static final int KEEP_ALIVE = 1;
+    private static final int SUPPRESSED_INTERVAL = 2;
+    private static final int SUPPRESSED_DEADBAND = 3;
+    private static final int COUNTERS = 4;
+
+    private volatile FilterPolicy policy = FilterPolicy.NONE;
+    private final boolean[] hasLast = new boolean[TYPES];
+    private final long[] lastTimestamps = new long[TYPES];
+    private final double[] lastValues = new double[TYPES];
+    private final AtomicLongArray counters = new AtomicLongArray(TYPES * COUNTERS);
+
+    // Nuova sessione: il primo campione di ogni tipo passa sempre
+    public void setPolicy(FilterPolicy policy) {
+        this.policy = policy;
+        for (int type = 0; type < TYPES; type++) {
+            hasLast[type] = false;
+        }
+    }
+
+    public boolean accept(int type, long timestamp, double value) {
+        FilterPolicy.Rule rule = policy.rule(type);
+        if (rule == null) {
+            return true;
+        }
+        if (hasLast[type]) {
+            long elapsed = timestamp - lastTimestamps[type];
+            if (rule.keepAlive > 0 && elapsed >= rule.keepAlive) {
+                increment(type, KEEP_ALIVE);
+                return record(type, timestamp, value);
+            }
+            if (elapsed < rule.minInterval) {
+                increment(type, SUPPRESSED_INTERVAL);
+                return false;
+            }
+            if (rule.absoluteDeadband >= 0) {
+                double last = lastValues[type];
+                double band = Math.max(rule.absoluteDeadband, rule.relativeDeadband * Math.abs(last));
+                if (Math.abs(value - last) <= band) {
+                    increment(type, SUPPRESSED_DEADBAND);
+                    return false;
+                }
+            }
+        }
+        return record(type, timestamp, value);
+    }
+
+    public long suppressed(int type) {
+        return type < TYPES ? counters.get(type * COUNTERS + SUPPRESSED_INTERVAL) + counters.get(type * COUNTERS + SUPPRESSED_DEADBAND) : 0;
+    }
+
+    public void dump(PrintWriter writer) {
+        writer.println("Sample filters (" + policy.name + "):");
+        for (int type = 1; type < TYPES; type++) {
+            int base = type * COUNTERS;
+            long passed = counters.get(base + PASSED);
+            long interval = counters.get(base + SUPPRESSED_INTERVAL);
+            long deadband = counters.get(base + SUPPRESSED_DEADBAND);
+            if (passed + interval + deadband == 0) {
+                continue;
+            }
+            writer.printf(java.util.Locale.US, "  %-10s passed %8d (keep-alive %d), suppressed interval %d, deadband %d%n",
+                    SampleType.name(type), passed, counters.get(base + KEEP_ALIVE), interval, deadband);
+        }
+    }
+
+    private boolean record(int type, long timestamp, double value) {
+        hasLast[type] = true;
+        lastTimestamps[type] = timestamp;
+        lastValues[type] = value;
+        increment(type, PASSED);
+        return true;
+    }
+
+    private void increment(int type, int counter) {
+        int index = type * COUNTERS + counter;
+        counters.lazySet(index, counters.get(index) + 1);
+    }
+}
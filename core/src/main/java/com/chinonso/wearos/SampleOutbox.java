@@ -0,0 +1,427 @@
+package com.chinonso.wearos;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+// Coda di uscita append-only su segmenti mappati in memoria.
+// Ogni record e' [tipo:1][timestamp:8][valore:8] oppure, per i testi,
+// [tipo:1][timestamp:8][lunghezza:2][utf-8], per le posizioni
+// [tipo:1][timestamp:8][lat:8][lon:8][alt:8][accuracy:4][speed:4][bearing:4][provider:1+utf-8].
+// Il byte del tipo viene scritto per ultimo: un record interrotto a meta' resta
+// a zero e la lettura si ferma li'.
+// I segmenti vengono cancellati solo dopo la conferma dell'upload.
+//
+// Ogni segmento inizia con l'allenamento della sessione a cui appartengono i suoi
+// campioni, [lunghezza:1][utf-8] (lunghezza scritta per ultima, come il tipo dei record):
+// cosi' quello che resta di una sessione precedente o di un processo terminato viene
+// inviato con il suo allenamento e non con quello corrente. Un START chiude il segmento
+// attivo, quindi un segmento non contiene mai due sessioni. L'allenamento corrente e'
+// salvato in "workout" per i segmenti aperti dopo un riavvio.
+//
+// Ogni campione ha un numero di sequenza del dispositivo, crescente e senza buchi:
+// il nome di un segmento e' la sequenza del suo primo campione, i successivi seguono.
+// Il server conferma con un cursore (l'ultima sequenza ricevuta senza buchi) e
+// acknowledgeThrough() taglia esattamente fino li': i segmenti coperti vengono cancellati,
+// di un segmento coperto a meta' read() restituisce solo la parte non confermata.
+// Il cursore e' salvato in "acked", cosi' la numerazione riprende da li' anche
+// quando l'outbox e' vuoto.
+public final class SampleOutbox {
+    private static final String SUFFIX = ".seg";
+    private static final String ACKED_FILE = "acked";
+    private static final String WORKOUT_FILE = "workout";
+    private static final int MAX_WORKOUT_BYTES = 255;
+    private static final int HEADER_SIZE = 1 + 8;
+    private static final int MAX_TEXT_BYTES = 1024;
+    private static final int MAX_PROVIDER_BYTES = 32;
+    private static final int LOCATION_SIZE = 8 + 8 + 8 + 4 + 4 + 4 + 1;
+
+    private final File dir;
+    private final int segmentSize;
+    private final List<File> sealed = new ArrayList<>();
+    private final List<Integer> sealedCounts = new ArrayList<>();
+    private final List<String> sealedWorkouts = new ArrayList<>();
+    private int sealedSamples;
+
+    private long nextSequence;
+    private long ackedThrough = -1;
+    private String workout;
+    private File activeFile;
+    private MappedByteBuffer active;
+    private int activeCount;
+
+    public SampleOutbox(File dir, int segmentSize) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Cannot create outbox directory " + dir);
+        }
+        this.dir = dir;
+        this.segmentSize = segmentSize;
+
+        ackedThrough = readAcked();
+        workout = readWorkout();
+        // Tutto cio' che e' rimasto dalla sessione precedente e non e' confermato e' da reinviare
+        File[] files = dir.listFiles((d, name) -> name.endsWith(SUFFIX));
+        long expected = ackedThrough + 1;
+        if (files != null) {
+            Arrays.sort(files, (a, b) -> Long.compare(firstSequence(a), firstSequence(b)));
+            for (File file : files) {
+                int count;
+                String segmentWorkout;
+                try {
+                    count = file.length() == 0 ? 0 : readRecords(file, null, Long.MIN_VALUE);
+                    segmentWorkout = count == 0 ? "" : segmentWorkout(file);
+                } catch (IOException e) {
+                    count = 0; // intestazione rovinata: il segmento non si puo' leggere
+                    segmentWorkout = "";
+                }
+                long first = firstSequence(file);
+                if (count == 0 || first < 0 || first + count - 1 <= ackedThrough) {
+                    file.delete();
+                    continue;
+                }
+                addSealed(file, count, segmentWorkout);
+                expected = first + count;
+            }
+        }
+        nextSequence = Math.max(expected, ackedThrough + 1);
+    }
+
+    public void append(int type, long timestamp, double value) throws IOException {
+        MappedByteBuffer buffer = reserve(HEADER_SIZE + 8);
+        int position = buffer.position();
+        buffer.putLong(position + 1, timestamp);
+        buffer.putDouble(position + HEADER_SIZE, value);
+        buffer.put(position, (byte) type);
+        buffer.position(position + HEADER_SIZE + 8);
+        activeCount++;
+        nextSequence++;
+    }
+
+    public void appendText(int type, long timestamp, String text) throws IOException {
+        if (type == SampleType.START) {
+            startSession(text);
+        }
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        int length = Math.min(bytes.length, MAX_TEXT_BYTES);
+        MappedByteBuffer buffer = reserve(HEADER_SIZE + 2 + length);
+        int position = buffer.position();
+        buffer.putLong(position + 1, timestamp);
+        buffer.putShort(position + HEADER_SIZE, (short) length);
+        for (int i = 0; i < length; i++) {
+            buffer.put(position + HEADER_SIZE + 2 + i, bytes[i]);
+        }
+        buffer.put(position, (byte) type);
+        buffer.position(position + HEADER_SIZE + 2 + length);
+        activeCount++;
+        nextSequence++;
+    }
+
+    public void appendLocation(long timestamp, LocationRecord location) throws IOException {
+        byte[] provider = location.provider.getBytes(StandardCharsets.UTF_8);
+        int providerLength = Math.min(provider.length, MAX_PROVIDER_BYTES);
+        MappedByteBuffer buffer = reserve(HEADER_SIZE + LOCATION_SIZE + providerLength);
+        int position = buffer.position();
+        int offset = position + HEADER_SIZE;
+        buffer.putLong(position + 1, timestamp);
+        buffer.putDouble(offset, location.latitude);
+        buffer.putDouble(offset + 8, location.longitude);
+        buffer.putDouble(offset + 16, location.altitude);
+        buffer.putFloat(offset + 24, location.accuracy);
+        buffer.putFloat(offset + 28, location.speed);
+        buffer.putFloat(offset + 32, location.bearing);
+        buffer.put(offset + 36, (byte) providerLength);
+        for (int i = 0; i < providerLength; i++) {
+            buffer.put(offset + LOCATION_SIZE + i, provider[i]);
+        }
+        buffer.put(position, (byte) SampleType.LOCATION);
+        buffer.position(offset + LOCATION_SIZE + providerLength);
+        activeCount++;
+        nextSequence++;
+    }
+
+    // Chiude il segmento attivo e lo rende disponibile per l'invio
+    public boolean seal() {
+        if (active == null || activeCount == 0) {
+            return false;
+        }
+        active.force();
+        addSealed(activeFile, activeCount, workout);
+        active = null;
+        activeFile = null;
+        activeCount = 0;
+        return true;
+    }
+
+    // Allenamento della sessione dei campioni del segmento
+    public String workout(File segment) {
+        int index = sealed.indexOf(segment);
+        return index < 0 ? "" : sealedWorkouts.get(index);
+    }
+
+    // Allenamento dei prossimi campioni
+    public String workout() {
+        return workout;
+    }
+
+    public int activeCount() {
+        return activeCount;
+    }
+
+    public int pendingSegments() {
+        return sealed.size();
+    }
+
+    public File oldestSealed() {
+        return sealed.isEmpty() ? null : sealed.get(0);
+    }
+
+    // Segmenti chiusi, dal piu' vecchio
+    public List<File> sealedSegments() {
+        return Collections.unmodifiableList(sealed);
+    }
+
+    // Campioni non ancora confermati del segmento
+    public int sampleCount(File segment) {
+        int index = sealed.indexOf(segment);
+        return index < 0 ? 0 : sealedCounts.get(index) - acknowledgedPart(segment, sealedCounts.get(index));
+    }
+
+    // Campioni in attesa di conferma, compresi quelli del segmento attivo
+    public int pendingSamples() {
+        int trimmed = sealed.isEmpty() ? 0 : acknowledgedPart(sealed.get(0), sealedCounts.get(0));
+        return sealedSamples - trimmed + activeCount;
+    }
+
+    // Sequenza del primo campione non confermato del segmento
+    public long pendingSequence(File segment) {
+        return Math.max(firstSequence(segment), ackedThrough + 1);
+    }
+
+    // Primo campione non confermato (del segmento attivo se non ce ne sono di sigillati)
+    public long firstPendingSequence() {
+        return sealed.isEmpty() ? Math.max(nextSequence - activeCount, ackedThrough + 1) : pendingSequence(sealed.get(0));
+    }
+
+    // Sequenza che avra' il prossimo campione
+    public long nextSequence() {
+        return nextSequence;
+    }
+
+    public long ackedThrough() {
+        return ackedThrough;
+    }
+
+    // Aggiunge a into i campioni non ancora confermati del segmento; con into == null li conta
+    public int read(File segment, SampleBuffer into) throws IOException {
+        return readRecords(segment, into, ackedThrough);
+    }
+
+    // Il server ha ricevuto tutto fino a sequence compreso
+    public void acknowledgeThrough(long sequence) throws IOException {
+        if (sequence <= ackedThrough) {
+            return;
+        }
+        ackedThrough = Math.min(sequence, nextSequence - 1);
+        writeAcked();
+        while (!sealed.isEmpty() && firstSequence(sealed.get(0)) + sealedCounts.get(0) - 1 <= ackedThrough) {
+            acknowledge(sealed.get(0));
+        }
+    }
+
+    private int acknowledgedPart(File segment, int count) {
+        return (int) Math.max(0, Math.min(count, ackedThrough + 1 - firstSequence(segment)));
+    }
+
+    // Salta i record con sequenza <= skipThrough. Un record che esce dal file (scrittura
+    // interrotta o segmento danneggiato) chiude il segmento come un tipo a zero;
+    // un'intestazione illeggibile e' un IOException.
+    private int readRecords(File segment, SampleBuffer into, long skipThrough) throws IOException {
+        long sequence = firstSequence(segment);
+        int count = 0;
+        try (RandomAccessFile file = new RandomAccessFile(segment, "r");
+             FileChannel channel = file.getChannel()) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            int recordsStart = buffer.limit() == 0 ? 1 : 1 + (buffer.get(0) & 0xFF);
+            if (recordsStart > buffer.limit()) {
+                throw new IOException("Damaged outbox segment " + segment.getName());
+            }
+            buffer.position(recordsStart);
+            while (buffer.remaining() >= HEADER_SIZE) {
+                int type = buffer.get();
+                if (!SampleType.isValid(type)) {
+                    break;
+                }
+                boolean skip = sequence <= skipThrough;
+                SampleBuffer target = skip ? null : into;
+                try {
+                    long timestamp = buffer.getLong();
+                    if (SampleType.isText(type)) {
+                        byte[] bytes = new byte[buffer.getShort() & 0xFFFF];
+                        buffer.get(bytes);
+                        if (target != null) {
+                            target.addText(type, timestamp, new String(bytes, StandardCharsets.UTF_8));
+                        }
+                    } else if (SampleType.isLocation(type)) {
+                        double latitude = buffer.getDouble();
+                        double longitude = buffer.getDouble();
+                        double altitude = buffer.getDouble();
+                        float accuracy = buffer.getFloat();
+                        float speed = buffer.getFloat();
+                        float bearing = buffer.getFloat();
+                        byte[] provider = new byte[buffer.get() & 0xFF];
+                        buffer.get(provider);
+                        if (target != null) {
+                            target.addLocation(timestamp, new LocationRecord(latitude, longitude, altitude,
+                                    accuracy, speed, bearing, new String(provider, StandardCharsets.UTF_8)));
+                        }
+                    } else {
+                        double value = buffer.getDouble();
+                        if (target != null) {
+                            target.add(type, timestamp, value);
+                        }
+                    }
+                } catch (BufferUnderflowException e) {
+                    break;
+                }
+                sequence++;
+                if (!skip) {
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    public void acknowledge(File segment) {
+        int index = sealed.indexOf(segment);
+        if (index >= 0) {
+            sealed.remove(index);
+            sealedWorkouts.remove(index);
+            sealedSamples -= sealedCounts.remove(index);
+        }
+        if (!segment.delete()) {
+            segment.deleteOnExit();
+        }
+    }
+
+    private long readAcked() {
+        File file = new File(dir, ACKED_FILE);
+        if (!file.exists()) {
+            return -1;
+        }
+        try (RandomAccessFile in = new RandomAccessFile(file, "r")) {
+            String line = in.readLine();
+            return line != null ? Long.parseLong(line.trim()) : -1;
+        } catch (IOException | NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private void writeAcked() throws IOException {
+        File tmp = new File(dir, ACKED_FILE + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(tmp)) {
+            out.write(Long.toString(ackedThrough).getBytes(StandardCharsets.UTF_8));
+            out.getFD().sync();
+        }
+        if (!tmp.renameTo(new File(dir, ACKED_FILE))) {
+            throw new IOException("Cannot rename " + tmp);
+        }
+    }
+
+    // Un START apre una sessione: i suoi campioni partono da un segmento nuovo
+    private void startSession(String workout) throws IOException {
+        String value = workout != null ? workout : "";
+        if (!seal() && active != null) {
+            // Segmento attivo ancora vuoto: si riscrive l'intestazione
+            writeHeader(active, value);
+        }
+        if (!value.equals(this.workout)) {
+            this.workout = value;
+            writeWorkout();
+        }
+    }
+
+    private String readWorkout() {
+        File file = new File(dir, WORKOUT_FILE);
+        if (!file.exists()) {
+            return "";
+        }
+        try (RandomAccessFile in = new RandomAccessFile(file, "r")) {
+            byte[] bytes = new byte[(int) in.length()];
+            in.readFully(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            return "";
+        }
+    }
+
+    private void writeWorkout() throws IOException {
+        File tmp = new File(dir, WORKOUT_FILE + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(tmp)) {
+            out.write(workout.getBytes(StandardCharsets.UTF_8));
+            out.getFD().sync();
+        }
+        if (!tmp.renameTo(new File(dir, WORKOUT_FILE))) {
+            throw new IOException("Cannot rename " + tmp);
+        }
+    }
+
+    private static String segmentWorkout(File segment) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(segment, "r")) {
+            byte[] bytes = new byte[file.read()];
+            file.readFully(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+    }
+
+    private static void writeHeader(MappedByteBuffer buffer, String workout) {
+        byte[] bytes = workout.getBytes(StandardCharsets.UTF_8);
+        int length = Math.min(bytes.length, MAX_WORKOUT_BYTES);
+        for (int i = 0; i < length; i++) {
+            buffer.put(1 + i, bytes[i]);
+        }
+        buffer.put(0, (byte) length);
+        buffer.position(1 + length);
+    }
+
+    private void addSealed(File segment, int count, String workout) {
+        sealed.add(segment);
+        sealedWorkouts.add(workout);
+        sealedCounts.add(count);
+        sealedSamples += count;
+    }
+
+    private MappedByteBuffer reserve(int recordSize) throws IOException {
+        if (active != null && active.remaining() < recordSize) {
+            seal();
+        }
+        if (active == null) {
+            activeFile = new File(dir, nextSequence + SUFFIX);
+            try (RandomAccessFile file = new RandomAccessFile(activeFile, "rw");
+                 FileChannel channel = file.getChannel()) {
+                file.setLength(segmentSize);
+                active = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+            }
+            writeHeader(active, workout);
+        }
+        return active;
+    }
+
+    private static long firstSequence(File file) {
+        String name = file.getName();
+        try {
+            return Long.parseLong(name.substring(0, name.length() - SUFFIX.length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+}
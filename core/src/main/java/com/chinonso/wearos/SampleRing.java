@@ -0,0 +1,117 @@
+package com.chinonso.wearos;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+// Ring buffer single-producer/single-consumer per passare i campioni dal thread
+// dei sensori a quello che scrive l'outbox. Le colonne sono primitive come in
+// SampleBuffer (testi e posizioni in una colonna di riferimenti); offer/peek/poll non allocano. Se il ring e' pieno il campione
+// viene scartato e contato, il produttore non si blocca mai.
+public final class SampleRing {
+    private final int mask;
+    private final long[] timestamps;
+    private final byte[] types;
+    private final double[] values;
+    private final Object[] objects;
+
+    // head: prossimo da leggere (scritto solo dal consumatore)
+    // tail: prossimo da scrivere (scritto solo dal produttore)
+    private final AtomicLong head = new AtomicLong();
+    private final AtomicLong tail = new AtomicLong();
+    private long producerHeadCache;
+    private long consumerTailCache;
+    private volatile long dropped;
+
+    public SampleRing(int capacity) {
+        if (Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("Capacity must be a power of two: " + capacity);
+        }
+        mask = capacity - 1;
+        timestamps = new long[capacity];
+        types = new byte[capacity];
+        values = new double[capacity];
+        objects = new Object[capacity];
+    }
+
+    // Lato produttore
+
+    public boolean offer(int type, long timestamp, double value) {
+        return offer(type, timestamp, value, null);
+    }
+
+    public boolean offerText(int type, long timestamp, String text) {
+        return offer(type, timestamp, 0, text);
+    }
+
+    public boolean offerLocation(long timestamp, LocationRecord location) {
+        return offer(SampleType.LOCATION, timestamp, 0, location);
+    }
+
+    private boolean offer(int type, long timestamp, double value, Object object) {
+        long t = tail.get();
+        if (t - producerHeadCache > mask) {
+            producerHeadCache = head.get();
+            if (t - producerHeadCache > mask) {
+                dropped++;
+                return false;
+            }
+        }
+        int index = (int) t & mask;
+        types[index] = (byte) type;
+        timestamps[index] = timestamp;
+        values[index] = value;
+        objects[index] = object;
+        tail.lazySet(t + 1);
+        return true;
+    }
+
+    // Lato consumatore
+
+    public boolean isEmpty() {
+        long h = head.get();
+        if (h < consumerTailCache) {
+            return false;
+        }
+        consumerTailCache = tail.get();
+        return h >= consumerTailCache;
+    }
+
+    public int peekType() {
+        return types[index()];
+    }
+
+    public long peekTimestamp() {
+        return timestamps[index()];
+    }
+
+    public double peekValue() {
+        return values[index()];
+    }
+
+    public String peekText() {
+        return (String) objects[index()];
+    }
+
+    public LocationRecord peekLocation() {
+        return (LocationRecord) objects[index()];
+    }
+
+    public void poll() {
+        long h = head.get();
+        objects[(int) h & mask] = null;
+        head.lazySet(h + 1);
+    }
+
+    // Letture approssimate, per statistiche
+
+    public int size() {
+        return (int) (tail.get() - head.get());
+    }
+
+    public long dropped() {
+        return dropped;
+    }
+
+    private int index() {
+        return (int) head.get() & mask;
+    }
+}
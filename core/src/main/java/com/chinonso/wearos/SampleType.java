@@ -0,0 +1,99 @@
+package com.chinonso.wearos;
+
+// Codici numerici dei tipi di dato inviati a /api/bulk-data.
+// Lo 0 non e' usato, cosi' un byte a zero puo' fare da terminatore.
+// Dal codice 16 in poi ci sono gli aggregati per finestra prodotti da RollupStage:
+// ROLLUP_BASE + tipo * 5 + statistica, con nome "<tipo>_<statistica>" (es. "heart_rate_mean").
+public final class SampleType {
+    public static final int HEART_RATE = 1;
+    public static final int STEP_COUNT = 2;
+    public static final int CALORIES = 3;
+    public static final int ALTITUDE = 4;
+    public static final int GPS = 5;
+    public static final int TIMER = 6;
+    public static final int START = 7;
+    public static final int STOP = 8;
+    public static final int LOCATION = 9;
+
+    public static final int STAT_COUNT = 0;
+    public static final int STAT_MIN = 1;
+    public static final int STAT_MAX = 2;
+    public static final int STAT_MEAN = 3;
+    public static final int STAT_LAST = 4;
+    public static final int STAT_TYPES = 5;
+
+    private static final int ROLLUP_BASE = 16;
+
+    private static final String[] BASE_NAMES = {
+            null, "heart_rate", "step_count", "calories", "altitude", "gps", "timer", "start", "stop", "location"
+    };
+    private static final String[] STAT_NAMES = {"count", "min", "max", "mean", "last"};
+    private static final String[] NAMES = new String[ROLLUP_BASE + (ALTITUDE + 1) * STAT_TYPES];
+
+    static {
+        System.arraycopy(BASE_NAMES, 0, NAMES, 0, BASE_NAMES.length);
+        for (int base = HEART_RATE; base <= ALTITUDE; base++) {
+            for (int stat = 0; stat < STAT_TYPES; stat++) {
+                NAMES[rollup(base, stat)] = BASE_NAMES[base] + "_" + STAT_NAMES[stat];
+            }
+        }
+    }
+
+    private SampleType() {}
+
+    public static String name(int type) {
+        return NAMES[type];
+    }
+
+    public static int fromName(String name) {
+        for (int i = 1; i < NAMES.length; i++) {
+            if (name.equals(NAMES[i])) {
+                return i;
+            }
+        }
+        throw new IllegalArgumentException("Unknown sample type: " + name);
+    }
+
+    public static boolean isValid(int type) {
+        return type > 0 && type < NAMES.length && NAMES[type] != null;
+    }
+
+    public static boolean isText(int type) {
+        return type == GPS || type == TIMER || type == START || type == STOP;
+    }
+
+    // Campione con un LocationRecord al posto del valore numerico
+    public static boolean isLocation(int type) {
+        return type == LOCATION;
+    }
+
+    // Valori che il server ha sempre ricevuto come interi (es. 72 e non 72.0)
+    public static boolean isIntegral(int type) {
+        if (isRollup(type)) {
+            int stat = rollupStat(type);
+            return stat == STAT_COUNT || stat != STAT_MEAN && isIntegral(rollupBase(type));
+        }
+        return type == HEART_RATE || type == STEP_COUNT;
+    }
+
+    // Solo i tipi numerici semplici possono essere aggregati
+    public static boolean isRollable(int type) {
+        return type >= HEART_RATE && type <= ALTITUDE;
+    }
+
+    public static int rollup(int base, int stat) {
+        return ROLLUP_BASE + base * STAT_TYPES + stat;
+    }
+
+    public static boolean isRollup(int type) {
+        return type >= ROLLUP_BASE && type < NAMES.length;
+    }
+
+    public static int rollupBase(int type) {
+        return (type - ROLLUP_BASE) / STAT_TYPES;
+    }
+
+    public static int rollupStat(int type) {
+        return (type - ROLLUP_BASE) % STAT_TYPES;
+    }
+}
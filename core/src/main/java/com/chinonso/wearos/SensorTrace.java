@@ -0,0 +1,201 @@
+package com.chinonso.wearos;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+// File di traccia con gli eventi grezzi visti da onSensorChanged/onLocationChanged,
+// per rigiocare una sessione sulla JVM (tools/ReplayHarness).
+// Formato: magic, versione, ora di sistema e elapsedRealtimeNanos all'apertura, poi record:
+// - KIND_SENSOR: tipo sensore, delta dell'istante di consegna, ritardo evento -> consegna,
+//   numero di valori e valori float
+// - KIND_LOCATION: delta dell'istante di consegna, time del fix rispetto all'apertura,
+//   eta' del fix alla consegna, lat/lon/alt double, accuracy/speed/bearing float, provider
+// Gli interi sono varint (zigzag dove possono essere negativi): un evento del barometro
+// occupa circa 10 byte.
+public final class SensorTrace {
+    public static final int KIND_SENSOR = 1;
+    public static final int KIND_LOCATION = 2;
+
+    private static final int MAGIC = 0x46545243; // "FTRC"
+    private static final int VERSION = 1;
+    private static final int MAX_VALUES = 16;
+
+    private SensorTrace() {}
+
+    // Un record letto; il Reader riusa sempre la stessa istanza
+    public static final class Event {
+        public int kind;
+        public int sensorType;
+        public long deliveredNanos;
+        public long eventNanos;
+        public final float[] values = new float[MAX_VALUES];
+        public int valueCount;
+        public long time;
+        public LocationRecord location;
+    }
+
+    public static final class Writer implements Closeable {
+        private final DataOutputStream out;
+        private final long startWall;
+        private long lastDelivered;
+        private long events;
+
+        public Writer(OutputStream out, long wallMillis, long elapsedNanos) throws IOException {
+            this.out = new DataOutputStream(new BufferedOutputStream(out, 16 * 1024));
+            this.startWall = wallMillis;
+            this.lastDelivered = elapsedNanos;
+            this.out.writeInt(MAGIC);
+            this.out.writeByte(VERSION);
+            this.out.writeLong(wallMillis);
+            this.out.writeLong(elapsedNanos);
+        }
+
+        public void sensor(int sensorType, long eventNanos, long deliveredNanos, float[] values) throws IOException {
+            int count = Math.min(values.length, MAX_VALUES);
+            out.writeByte(KIND_SENSOR);
+            writeVarint(out, sensorType);
+            writeDelivered(deliveredNanos);
+            writeVarint(out, zigzag(deliveredNanos - eventNanos));
+            writeVarint(out, count);
+            for (int i = 0; i < count; i++) {
+                out.writeFloat(values[i]);
+            }
+            events++;
+        }
+
+        // fixElapsedNanos: Location.getElapsedRealtimeNanos()
+        public void location(long deliveredNanos, long time, long fixElapsedNanos, LocationRecord location) throws IOException {
+            out.writeByte(KIND_LOCATION);
+            writeDelivered(deliveredNanos);
+            writeVarint(out, zigzag(time - startWall));
+            writeVarint(out, zigzag(deliveredNanos - fixElapsedNanos));
+            out.writeDouble(location.latitude);
+            out.writeDouble(location.longitude);
+            out.writeDouble(location.altitude);
+            out.writeFloat(location.accuracy);
+            out.writeFloat(location.speed);
+            out.writeFloat(location.bearing);
+            out.writeUTF(location.provider);
+            events++;
+        }
+
+        public long events() {
+            return events;
+        }
+
+        public int size() {
+            return out.size();
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.close();
+        }
+
+        private void writeDelivered(long deliveredNanos) throws IOException {
+            writeVarint(out, zigzag(deliveredNanos - lastDelivered));
+            lastDelivered = deliveredNanos;
+        }
+    }
+
+    public static final class Reader implements Closeable {
+        private final DataInputStream in;
+        public final long startWall;
+        public final long startElapsedNanos;
+        private long lastDelivered;
+
+        public Reader(InputStream in) throws IOException {
+            this.in = new DataInputStream(new BufferedInputStream(in, 16 * 1024));
+            if (this.in.readInt() != MAGIC) {
+                throw new IOException("Not a sensor trace");
+            }
+            int version = this.in.readUnsignedByte();
+            if (version != VERSION) {
+                throw new IOException("Unsupported trace version: " + version);
+            }
+            startWall = this.in.readLong();
+            startElapsedNanos = this.in.readLong();
+            lastDelivered = startElapsedNanos;
+        }
+
+        // false a fine file
+        public boolean next(Event event) throws IOException {
+            int kind = in.read();
+            if (kind == -1) {
+                return false;
+            }
+            event.kind = kind;
+            if (kind == KIND_SENSOR) {
+                event.sensorType = (int) readVarint(in);
+                event.deliveredNanos = readDelivered();
+                event.eventNanos = event.deliveredNanos - unzigzag(readVarint(in));
+                event.valueCount = (int) readVarint(in);
+                if (event.valueCount > MAX_VALUES) {
+                    throw new IOException("Corrupted trace: " + event.valueCount + " values");
+                }
+                for (int i = 0; i < event.valueCount; i++) {
+                    event.values[i] = in.readFloat();
+                }
+                event.location = null;
+            } else if (kind == KIND_LOCATION) {
+                event.deliveredNanos = readDelivered();
+                event.time = startWall + unzigzag(readVarint(in));
+                event.eventNanos = event.deliveredNanos - unzigzag(readVarint(in));
+                event.location = new LocationRecord(in.readDouble(), in.readDouble(), in.readDouble(),
+                        in.readFloat(), in.readFloat(), in.readFloat(), in.readUTF());
+                event.valueCount = 0;
+            } else {
+                throw new IOException("Corrupted trace: record kind " + kind);
+            }
+            return true;
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+
+        private long readDelivered() throws IOException {
+            lastDelivered += unzigzag(readVarint(in));
+            return lastDelivered;
+        }
+    }
+
+    private static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static long unzigzag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private static void writeVarint(DataOutputStream out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    private static long readVarint(DataInputStream in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.read();
+            if (b == -1) {
+                throw new EOFException("Truncated trace");
+            }
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Corrupted trace: varint too long");
+    }
+}
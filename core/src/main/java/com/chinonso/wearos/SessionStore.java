@@ -0,0 +1,451 @@
+package com.chinonso.wearos;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+// Storico locale di sessioni e campioni, interrogabile senza passare dal server.
+// - "sessions": una riga per sessione (inizio, fine, allenamento), riscritta a ogni
+//   inizio/fine sessione
+// - un file per ora di orologio (<inizio ora>.blk) con i campioni di quell'ora, in chunk
+//   di una sola serie: intestazione (lunghezza, sessione, primo e ultimo timestamp, tipo)
+//   e payload CompactBatchFormat. Una query apre solo le ore del suo intervallo e
+//   decodifica solo i chunk la cui intestazione corrisponde, saltando gli altri.
+// Per i tipi numerici grezzi (battito, passi, quota) lo store scrive anche gli aggregati
+// al minuto. Compattazione (compact()): dopo rawRetention le ore vengono riscritte
+// senza i campioni grezzi aggregabili, un chunk per sessione e serie (<inizio ora>.cblk);
+// dopo retention, o oltre maxBytes, le ore piu' vecchie vengono cancellate.
+// Va usato da un solo thread (l'upload thread nel service).
+public final class SessionStore {
+    public static final class Session {
+        public final long start;
+        public final long end; // 0 finche' la sessione e' in corso
+        public final String workout;
+
+        Session(long start, long end, String workout) {
+            this.start = start;
+            this.end = end;
+            this.workout = workout;
+        }
+    }
+
+    public static final long HOUR = 60 * 60 * 1000;
+    private static final long ROLLUP_RESOLUTION = 60 * 1000;
+    private static final int HEADER_SIZE = 4 + 8 + 8 + 8 + 1;
+    private static final String RAW_SUFFIX = ".blk";
+    private static final String COMPACTED_SUFFIX = ".cblk";
+    private static final String SESSIONS = "sessions";
+
+    private final File dir;
+    private final long rawRetention;
+    private final long retention;
+    private final long maxBytes;
+
+    private final List<Session> sessions = new ArrayList<>();
+    // Ora di inizio -> file del blocco
+    private final TreeMap<Long, File> blocks = new TreeMap<>();
+    private long totalBytes;
+
+    private Session current;
+    private RollupStage rollups;
+    private final SampleBuffer pendingRollups = new SampleBuffer(64);
+    private final SampleBuffer bucketSamples = new SampleBuffer(256);
+    private final SampleBuffer chunk = new SampleBuffer(256);
+    private final ByteArrayOutputStream payload = new ByteArrayOutputStream(4096);
+    private byte[] blockBytes = new byte[16 * 1024];
+
+    public SessionStore(File dir, long rawRetention, long retention, long maxBytes) throws IOException {
+        this.dir = dir;
+        this.rawRetention = rawRetention;
+        this.retention = retention;
+        this.maxBytes = maxBytes;
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Cannot create " + dir);
+        }
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.getName().endsWith(".tmp")) {
+                    file.delete(); // riscrittura interrotta
+                    continue;
+                }
+                long bucket = bucketOf(file);
+                if (bucket != Long.MIN_VALUE) {
+                    blocks.put(bucket, file);
+                    totalBytes += file.length();
+                }
+            }
+        }
+        loadSessions();
+        // Sessione rimasta aperta (processo terminato): si continua a scrivere li'
+        if (!sessions.isEmpty() && sessions.get(sessions.size() - 1).end == 0) {
+            current = sessions.get(sessions.size() - 1);
+            rollups = new RollupStage(ROLLUP_RESOLUTION, pendingRollups::add);
+        }
+    }
+
+    public void beginSession(long start, String workout) throws IOException {
+        if (current != null) {
+            endSession(start);
+        }
+        current = new Session(start, 0, workout != null ? workout : "");
+        sessions.add(current);
+        rollups = new RollupStage(ROLLUP_RESOLUTION, pendingRollups::add);
+        saveSessions();
+    }
+
+    public void endSession(long end) throws IOException {
+        if (current == null) {
+            return;
+        }
+        rollups.flush();
+        writeChunks(pendingRollups);
+        pendingRollups.clear();
+        sessions.set(sessions.size() - 1, new Session(current.start, Math.max(end, current.start), current.workout));
+        current = null;
+        rollups = null;
+        saveSessions();
+    }
+
+    public boolean hasOpenSession() {
+        return current != null;
+    }
+
+    // Aggiunge i campioni alla sessione in corso; senza sessione vengono ignorati
+    public void append(SampleBuffer samples) throws IOException {
+        if (current == null || samples.isEmpty()) {
+            return;
+        }
+        for (int i = 0; i < samples.size(); i++) {
+            if (SampleType.isRollable(samples.type(i))) {
+                rollups.add(samples.type(i), samples.timestamp(i), samples.value(i));
+            }
+        }
+        writeChunks(samples);
+        if (!pendingRollups.isEmpty()) {
+            writeChunks(pendingRollups);
+            pendingRollups.clear();
+        }
+    }
+
+    // Sessioni iniziate in [from, to), dalla piu' recente
+    public List<Session> sessions(long from, long to) {
+        List<Session> result = new ArrayList<>();
+        for (int i = sessions.size() - 1; i >= 0; i--) {
+            Session session = sessions.get(i);
+            if (session.start >= from && session.start < to) {
+                result.add(session);
+            }
+        }
+        return result;
+    }
+
+    public Session lastSession() {
+        return sessions.isEmpty() ? null : sessions.get(sessions.size() - 1);
+    }
+
+    public static long typeMask(int... types) {
+        long mask = 0;
+        for (int type : types) {
+            mask |= 1L << type;
+        }
+        return mask;
+    }
+
+    // Campioni con timestamp in [from, to) dei tipi in typeMask; sessionId 0 = tutte.
+    // Restituisce quanti ne ha aggiunti a into, in ordine di ora e poi di scrittura.
+    public int query(long from, long to, long sessionId, long typeMask, SampleBuffer into) throws IOException {
+        int added = 0;
+        Long fromBucket = blocks.floorKey(from);
+        Map<Long, File> range = blocks.subMap(fromBucket != null ? fromBucket : from, true, to, false);
+        for (File file : range.values()) {
+            // Un blocco sono pochi KB: una sola lettura, poi si scorrono le intestazioni in memoria
+            ByteBuffer block = readBlock(file);
+            while (block.remaining() >= HEADER_SIZE) {
+                int size = block.getInt();
+                long session = block.getLong();
+                long minTimestamp = block.getLong();
+                long maxTimestamp = block.getLong();
+                int type = block.get();
+                if (size < 0 || size > block.remaining()) {
+                    break; // chunk troncato da una scrittura interrotta
+                }
+                if ((sessionId == 0 || session == sessionId) && (typeMask & (1L << type)) != 0
+                        && minTimestamp < to && maxTimestamp >= from) {
+                    SampleBuffer decoded = decodeChunk(block, size);
+                    for (int i = 0; i < decoded.size(); i++) {
+                        long timestamp = decoded.timestamp(i);
+                        if (timestamp >= from && timestamp < to) {
+                            copy(decoded, i, into);
+                            added++;
+                        }
+                    }
+                }
+                block.position(block.position() + size);
+            }
+        }
+        return added;
+    }
+
+    public int track(Session session, SampleBuffer into) throws IOException {
+        long end = session.end != 0 ? session.end + 1 : Long.MAX_VALUE;
+        return query(session.start, end, session.start, typeMask(SampleType.LOCATION), into);
+    }
+
+    // Compattazione e retention, da chiamare ogni tanto (es. a fine sessione)
+    public void compact(long now) throws IOException {
+        List<Long> buckets = new ArrayList<>(blocks.keySet());
+        for (long bucket : buckets) {
+            File file = blocks.get(bucket);
+            if (bucket + HOUR <= now - retention) {
+                delete(bucket);
+            } else if (bucket + HOUR <= now - rawRetention && file.getName().endsWith(RAW_SUFFIX)
+                    && (current == null || bucket + HOUR <= current.start)) {
+                rewriteCompacted(bucket, file);
+            }
+        }
+        while (totalBytes > maxBytes && blocks.size() > 1) {
+            delete(blocks.firstKey());
+        }
+        long oldest = blocks.isEmpty() ? now : blocks.firstKey();
+        boolean changed = false;
+        while (!sessions.isEmpty() && sessions.get(0) != current && sessions.get(0).end != 0 && sessions.get(0).end < oldest) {
+            sessions.remove(0);
+            changed = true;
+        }
+        if (changed) {
+            saveSessions();
+        }
+    }
+
+    public long totalBytes() {
+        return totalBytes;
+    }
+
+    public int blockCount() {
+        return blocks.size();
+    }
+
+    public int sessionCount() {
+        return sessions.size();
+    }
+
+    public void dump(PrintWriter writer) {
+        writer.println("Session history: " + sessions.size() + " sessions, " + blocks.size() + " hourly blocks, "
+                + totalBytes / 1024 + " KB" + (current != null ? ", recording " + current.start : ""));
+    }
+
+    // Un chunk per ogni ora toccata dai campioni (di solito una, due a cavallo dell'ora)
+    private void writeChunks(SampleBuffer samples) throws IOException {
+        long done = Long.MIN_VALUE;
+        while (true) {
+            long bucket = Long.MAX_VALUE;
+            for (int i = 0; i < samples.size(); i++) {
+                long sampleBucket = bucketStart(samples.timestamp(i));
+                if (sampleBucket > done && sampleBucket < bucket) {
+                    bucket = sampleBucket;
+                }
+            }
+            if (bucket == Long.MAX_VALUE) {
+                return;
+            }
+            bucketSamples.clear();
+            for (int i = 0; i < samples.size(); i++) {
+                if (bucketStart(samples.timestamp(i)) == bucket) {
+                    copy(samples, i, bucketSamples);
+                }
+            }
+            File file = blocks.get(bucket);
+            if (file == null) {
+                file = new File(dir, bucket + RAW_SUFFIX);
+                blocks.put(bucket, file);
+            }
+            try (FileOutputStream out = new FileOutputStream(file, true)) {
+                totalBytes += writeSeries(out, current.start, bucketSamples);
+            }
+            done = bucket;
+        }
+    }
+
+    // Un chunk per ogni tipo presente
+    private int writeSeries(FileOutputStream file, long sessionId, SampleBuffer samples) throws IOException {
+        long types = 0;
+        for (int i = 0; i < samples.size(); i++) {
+            types |= 1L << samples.type(i);
+        }
+        int written = 0;
+        for (int type = 1; type < 64; type++) {
+            if ((types & (1L << type)) == 0) {
+                continue;
+            }
+            chunk.clear();
+            for (int i = 0; i < samples.size(); i++) {
+                if (samples.type(i) == type) {
+                    copy(samples, i, chunk);
+                }
+            }
+            written += writeChunk(file, sessionId, type, chunk);
+        }
+        return written;
+    }
+
+    private int writeChunk(FileOutputStream file, long sessionId, int type, SampleBuffer samples) throws IOException {
+        long minTimestamp = Long.MAX_VALUE;
+        long maxTimestamp = Long.MIN_VALUE;
+        for (int i = 0; i < samples.size(); i++) {
+            minTimestamp = Math.min(minTimestamp, samples.timestamp(i));
+            maxTimestamp = Math.max(maxTimestamp, samples.timestamp(i));
+        }
+        payload.reset();
+        CompactBatchFormat.encode(samples, "", "", payload);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file, HEADER_SIZE + payload.size()));
+        out.writeInt(payload.size());
+        out.writeLong(sessionId);
+        out.writeLong(minTimestamp);
+        out.writeLong(maxTimestamp);
+        out.writeByte(type);
+        payload.writeTo(out);
+        out.flush();
+        return HEADER_SIZE + payload.size();
+    }
+
+    // Un chunk per sessione, senza i grezzi aggregabili (ne restano gli aggregati al minuto)
+    private void rewriteCompacted(long bucket, File file) throws IOException {
+        TreeMap<Long, SampleBuffer> bySession = new TreeMap<>();
+        ByteBuffer block = readBlock(file);
+        while (block.remaining() >= HEADER_SIZE) {
+            int size = block.getInt();
+            long session = block.getLong();
+            block.position(block.position() + 8 + 8 + 1);
+            if (size < 0 || size > block.remaining()) {
+                break;
+            }
+            SampleBuffer decoded = decodeChunk(block, size);
+            block.position(block.position() + size);
+            SampleBuffer merged = bySession.get(session);
+            if (merged == null) {
+                merged = new SampleBuffer(decoded.size());
+                bySession.put(session, merged);
+            }
+            for (int i = 0; i < decoded.size(); i++) {
+                if (!SampleType.isRollable(decoded.type(i))) {
+                    copy(decoded, i, merged);
+                }
+            }
+        }
+        File compacted = new File(dir, bucket + COMPACTED_SUFFIX);
+        File tmp = new File(dir, bucket + COMPACTED_SUFFIX + ".tmp");
+        long size = 0;
+        try (FileOutputStream out = new FileOutputStream(tmp)) {
+            for (Map.Entry<Long, SampleBuffer> entry : bySession.entrySet()) {
+                if (!entry.getValue().isEmpty()) {
+                    size += writeSeries(out, entry.getKey(), entry.getValue());
+                }
+            }
+        }
+        if (!tmp.renameTo(compacted)) {
+            tmp.delete();
+            throw new IOException("Cannot rename " + tmp);
+        }
+        totalBytes += size - file.length();
+        file.delete();
+        blocks.put(bucket, compacted);
+    }
+
+    private ByteBuffer readBlock(File file) throws IOException {
+        try (RandomAccessFile in = new RandomAccessFile(file, "r")) {
+            int length = (int) in.length();
+            if (blockBytes.length < length) {
+                blockBytes = new byte[Math.max(length, blockBytes.length * 2)];
+            }
+            in.readFully(blockBytes, 0, length);
+            return ByteBuffer.wrap(blockBytes, 0, length);
+        }
+    }
+
+    private SampleBuffer decodeChunk(ByteBuffer block, int size) throws IOException {
+        return CompactBatchFormat.decode(new ByteArrayInputStream(block.array(), block.position(), size)).samples;
+    }
+
+    private void delete(long bucket) {
+        File file = blocks.remove(bucket);
+        totalBytes -= file.length();
+        file.delete();
+    }
+
+    private void loadSessions() throws IOException {
+        File file = new File(dir, SESSIONS);
+        if (!file.exists()) {
+            return;
+        }
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+            for (String line; (line = reader.readLine()) != null; ) {
+                String[] fields = line.split("\t", 3);
+                if (fields.length == 3) {
+                    try {
+                        sessions.add(new Session(Long.parseLong(fields[0]), Long.parseLong(fields[1]), fields[2]));
+                    } catch (NumberFormatException e) {
+                        // riga rovinata: si salta
+                    }
+                }
+            }
+        }
+    }
+
+    private void saveSessions() throws IOException {
+        File tmp = new File(dir, SESSIONS + ".tmp");
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(tmp), StandardCharsets.UTF_8)) {
+            for (Session session : sessions) {
+                writer.write(session.start + "\t" + session.end + "\t" + session.workout.replace('\n', ' ') + "\n");
+            }
+        }
+        if (!tmp.renameTo(new File(dir, SESSIONS))) {
+            throw new IOException("Cannot rename " + tmp);
+        }
+    }
+
+    private static long bucketStart(long timestamp) {
+        return timestamp - Math.floorMod(timestamp, HOUR);
+    }
+
+    private static long bucketOf(File file) {
+        String name = file.getName();
+        String suffix = name.endsWith(RAW_SUFFIX) ? RAW_SUFFIX : name.endsWith(COMPACTED_SUFFIX) ? COMPACTED_SUFFIX : null;
+        if (suffix == null) {
+            return Long.MIN_VALUE;
+        }
+        try {
+            return Long.parseLong(name.substring(0, name.length() - suffix.length()));
+        } catch (NumberFormatException e) {
+            return Long.MIN_VALUE;
+        }
+    }
+
+    private static void copy(SampleBuffer from, int index, SampleBuffer to) {
+        int type = from.type(index);
+        if (SampleType.isText(type)) {
+            to.addText(type, from.timestamp(index), from.text(index));
+        } else if (SampleType.isLocation(type)) {
+            to.addLocation(from.timestamp(index), from.location(index));
+        } else {
+            to.add(type, from.timestamp(index), from.value(index));
+        }
+    }
+}
@@ -0,0 +1,132 @@
+package com.chinonso.wearos;
+
+// Semplificazione in streaming di una traccia GPS con finestra ad apertura
+// (error-bounded sliding window): dall'ultimo punto emesso si allunga il segmento
+// finche' tutti i fix intermedi restano entro maxDeviation metri; quando uno esce,
+// si emette il fix precedente e si riparte da li'. Sui tratti rettilinei restano
+// solo gli estremi.
+// Un punto viene comunque emesso dopo maxInterval ms, cosi' anche da fermi il server
+// riceve una posizione periodica. La finestra ha una dimensione massima, quindi
+// il costo per fix e' limitato. Va usato da un solo thread.
+public final class TrackSimplifier {
+    public interface Sink {
+        void emit(long timestamp, LocationRecord location);
+    }
+
+    private static final double EARTH_RADIUS = 6371008.8;
+    private static final int MAX_WINDOW = 128;
+
+    private final double maxDeviation;
+    private final long maxInterval;
+    private final Sink sink;
+
+    // Ultimo punto emesso
+    private LocationRecord anchor;
+    private long anchorTimestamp;
+    private double cosAnchorLatitude;
+    // Fix successivi all'ancora, non ancora emessi (l'ultimo e' il candidato)
+    private final long[] windowTimestamps = new long[MAX_WINDOW];
+    private final LocationRecord[] window = new LocationRecord[MAX_WINDOW];
+    private int windowSize;
+    private long emitted;
+    private long received;
+
+    public TrackSimplifier(double maxDeviation, long maxInterval, Sink sink) {
+        this.maxDeviation = maxDeviation;
+        this.maxInterval = maxInterval;
+        this.sink = sink;
+    }
+
+    public void add(long timestamp, LocationRecord location) {
+        received++;
+        if (anchor == null) {
+            emitAnchor(timestamp, location);
+            return;
+        }
+        if (windowSize > 0 && !withinTolerance(location)) {
+            // Il nuovo fix non e' compatibile con il segmento: si chiude sul candidato
+            promoteCandidate();
+        }
+        if (windowSize == MAX_WINDOW) {
+            promoteCandidate();
+        }
+        windowTimestamps[windowSize] = timestamp;
+        window[windowSize] = location;
+        windowSize++;
+        if (timestamp - anchorTimestamp >= maxInterval) {
+            promoteCandidate();
+        }
+    }
+
+    // Fine sessione: l'ultimo fix ricevuto non deve andare perso
+    public void flush() {
+        if (windowSize > 0) {
+            emitAnchor(windowTimestamps[windowSize - 1], window[windowSize - 1]);
+            clearWindow(windowSize);
+        }
+    }
+
+    public void reset() {
+        clearWindow(windowSize);
+        anchor = null;
+    }
+
+    public long received() {
+        return received;
+    }
+
+    public long emitted() {
+        return emitted;
+    }
+
+    // Tutti i fix in finestra devono stare entro maxDeviation dal segmento ancora -> location
+    private boolean withinTolerance(LocationRecord location) {
+        double endX = x(location);
+        double endY = y(location);
+        for (int i = 0; i < windowSize; i++) {
+            if (distanceToSegment(x(window[i]), y(window[i]), endX, endY) > maxDeviation) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void promoteCandidate() {
+        int last = windowSize - 1;
+        emitAnchor(windowTimestamps[last], window[last]);
+        clearWindow(windowSize);
+    }
+
+    private void emitAnchor(long timestamp, LocationRecord location) {
+        anchor = location;
+        anchorTimestamp = timestamp;
+        cosAnchorLatitude = Math.cos(Math.toRadians(location.latitude));
+        emitted++;
+        sink.emit(timestamp, location);
+    }
+
+    private void clearWindow(int count) {
+        for (int i = 0; i < count; i++) {
+            window[i] = null;
+        }
+        windowSize = 0;
+    }
+
+    // Proiezione equirettangolare locale, in metri rispetto all'ancora
+    private double x(LocationRecord location) {
+        return Math.toRadians(location.longitude - anchor.longitude) * cosAnchorLatitude * EARTH_RADIUS;
+    }
+
+    private double y(LocationRecord location) {
+        return Math.toRadians(location.latitude - anchor.latitude) * EARTH_RADIUS;
+    }
+
+    // Distanza del punto (px, py) dal segmento (0, 0) -> (endX, endY)
+    private static double distanceToSegment(double px, double py, double endX, double endY) {
+        double lengthSquared = endX * endX + endY * endY;
+        double t = lengthSquared == 0 ? 0 : Math.max(0, Math.min(1, (px * endX + py * endY) / lengthSquared));
+        double dx = px - t * endX;
+        double dy = py - t * endY;
+        return Math.sqrt(dx * dx + dy * dy);
+    }
+}
@@ -0,0 +1,68 @@
+package com.chinonso.wearos;
+
+// Fotografia immutabile dei valori mostrati a schermo.
+// diff() dice quali campi sono cambiati rispetto all'ultima pubblicata,
+// cosi' alla UI arrivano solo gli aggiornamenti necessari.
+public final class UiState {
+    public static final int HEART_RATE = 1;
+    public static final int STEP_COUNT = 1 << 1;
+    public static final int CALORIES = 1 << 2;
+    public static final int ALTITUDE = 1 << 3;
+    public static final int GPS = 1 << 4;
+    public static final int TIMER = 1 << 5;
+    public static final int ALL = HEART_RATE | STEP_COUNT | CALORIES | ALTITUDE | GPS | TIMER;
+
+    public final int heartRate;
+    public final int stepCount;
+    public final double calories;
+    public final double altitude;
+    public final String gpsInfo;
+    public final long elapsedSeconds;
+
+    public UiState(int heartRate, int stepCount, double calories, double altitude, String gpsInfo, long elapsedSeconds) {
+        this.heartRate = heartRate;
+        this.stepCount = stepCount;
+        this.calories = calories;
+        this.altitude = altitude;
+        this.gpsInfo = gpsInfo;
+        this.elapsedSeconds = elapsedSeconds;
+    }
+
+    // Con previous == null e' tutto da aggiornare
+    public int diff(UiState previous) {
+        if (previous == null) {
+            return ALL;
+        }
+        int dirty = 0;
+        if (heartRate != previous.heartRate) {
+            dirty |= HEART_RATE;
+        }
+        if (stepCount != previous.stepCount) {
+            dirty |= STEP_COUNT;
+        }
+        if (Double.compare(calories, previous.calories) != 0) {
+            dirty |= CALORIES;
+        }
+        if (Double.compare(altitude, previous.altitude) != 0) {
+            dirty |= ALTITUDE;
+        }
+        if (gpsInfo == null ? previous.gpsInfo != null : !gpsInfo.equals(previous.gpsInfo)) {
+            dirty |= GPS;
+        }
+        if (elapsedSeconds != previous.elapsedSeconds) {
+            dirty |= TIMER;
+        }
+        return dirty;
+    }
+
+    public String timerText() {
+        return formatTimer(elapsedSeconds);
+    }
+
+    public static String formatTimer(long elapsedSeconds) {
+        int seconds = (int) (elapsedSeconds % 60);
+        int minutes = (int) ((elapsedSeconds / 60) % 60);
+        int hours = (int) ((elapsedSeconds / (60 * 60)) % 24);
+        return String.format("%02d:%02d:%02d", hours, minutes, seconds);
+    }
+}
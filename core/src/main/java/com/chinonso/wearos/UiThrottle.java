@@ -0,0 +1,46 @@
+package com.chinonso.wearos;
+
+// Tempi di pubblicazione dello stato della UI, separati da Choreographer e Handler:
+// - interattivo: il frame parte subito e, se il timer avanza, si ripubblica ogni secondo
+// - ambient: al massimo una pubblicazione ogni AMBIENT_INTERVAL e nessun tick (il
+//   timer avanza con onUpdateAmbient()); uscendo da ambient si pubblica subito
+// Tempi in ms sullo stesso orologio monotono (uptimeMillis). Va usato da un solo thread.
+public final class UiThrottle {
+    public static final long TICK_INTERVAL = 1000;
+    public static final long AMBIENT_INTERVAL = 60 * 1000;
+
+    private boolean ambient;
+    private boolean published;
+    private long lastPublishedAt;
+
+    // Restituisce true se lo stato e' cambiato e il frame va ripianificato
+    public boolean setAmbient(boolean ambient) {
+        if (this.ambient == ambient) {
+            return false;
+        }
+        this.ambient = ambient;
+        return true;
+    }
+
+    public boolean isAmbient() {
+        return ambient;
+    }
+
+    // Fra quanti ms pubblicare un frame invalidato adesso
+    public long frameDelay(long now) {
+        if (!ambient || !published) {
+            return 0;
+        }
+        return Math.max(0, lastPublishedAt + AMBIENT_INTERVAL - now);
+    }
+
+    public void onPublished(long now) {
+        published = true;
+        lastPublishedAt = now;
+    }
+
+    // Fra quanti ms invalidare di nuovo per il timer, -1 se non serve
+    public long tickDelay(boolean ticking) {
+        return ticking && !ambient ? TICK_INTERVAL : -1;
+    }
+}
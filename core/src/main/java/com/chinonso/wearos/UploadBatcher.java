@@ -0,0 +1,141 @@
+package com.chinonso.wearos;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+// Un giro di upload dall'outbox, usato da MonitoringService:
+// - prepare(): i segmenti sigillati piu' vecchi diventano fino a maxBatches batch di al
+//   massimo maxSamples campioni. Un batch e' un intervallo di sequenze senza buchi: un
+//   segmento che non segue il precedente (es. cancellato perche' illeggibile) ne apre un
+//   altro, come un segmento di un'altra sessione (allenamento diverso). Segmenti vuoti o
+//   illeggibili vengono confermati subito.
+// - finish(): con le risposte del server. Se c'e' il cursore di conferma si taglia
+//   l'outbox esattamente fin li': un batch arrivato dopo un buco resta e viene reinviato,
+//   il server scarta i doppioni. Senza cursore (server vecchio), o con un buco che il
+//   dispositivo non puo' piu' colmare, si confermano i segmenti dei batch riusciti.
+// I buffer dei batch vengono riusati fra un giro e l'altro e restano validi fino al
+// prepare() successivo. Va usato da un solo thread.
+public final class UploadBatcher {
+    private final SampleOutbox outbox;
+    private final SampleBuffer[] batches;
+    private final long[] firstSequences;
+    private final String[] workouts;
+    private final List<List<File>> segments = new ArrayList<>();
+    private final int initialCapacity;
+    private int batchCount;
+    private int samples;
+    private int unreadableSegments;
+
+    public UploadBatcher(SampleOutbox outbox, int maxBatches, int initialCapacity) {
+        this.outbox = outbox;
+        this.batches = new SampleBuffer[maxBatches];
+        this.firstSequences = new long[maxBatches];
+        this.workouts = new String[maxBatches];
+        this.initialCapacity = initialCapacity;
+    }
+
+    // Restituisce il numero di batch pronti, 0 se non c'e' nulla da inviare
+    public int prepare(int maxSamples) {
+        outbox.seal();
+        segments.clear();
+        batchCount = 0;
+        samples = 0;
+        List<File> sealed = outbox.sealedSegments();
+        int next = 0;
+        while (next < sealed.size() && batchCount < batches.length) {
+            if (batches[batchCount] == null) {
+                batches[batchCount] = new SampleBuffer(initialCapacity);
+            }
+            SampleBuffer batch = batches[batchCount];
+            batch.clear();
+            List<File> batchSegments = new ArrayList<>();
+            long firstSequence = -1;
+            long expectedSequence = -1;
+            String workout = next < sealed.size() ? outbox.workout(sealed.get(next)) : "";
+            while (next < sealed.size()) {
+                File segment = sealed.get(next);
+                long sequence = outbox.pendingSequence(segment);
+                if (!batch.isEmpty() && (batch.size() + outbox.sampleCount(segment) > maxSamples
+                        || sequence != expectedSequence || !outbox.workout(segment).equals(workout))) {
+                    break;
+                }
+                try {
+                    int read = outbox.read(segment, batch);
+                    if (firstSequence < 0 && read > 0) {
+                        firstSequence = sequence;
+                    }
+                    expectedSequence = sequence + read;
+                } catch (IOException e) {
+                    unreadableSegments++;
+                }
+                batchSegments.add(segment);
+                next++;
+            }
+            if (batch.isEmpty()) {
+                // Solo segmenti vuoti o illeggibili; sealed e' una vista, si riparte dall'inizio
+                acknowledge(batchSegments);
+                next -= batchSegments.size();
+                continue;
+            }
+            firstSequences[batchCount] = firstSequence;
+            workouts[batchCount] = workout;
+            segments.add(batchSegments);
+            samples += batch.size();
+            batchCount++;
+        }
+        return batchCount;
+    }
+
+    // Esito dei batch di prepare(), nello stesso ordine. Restituisce true se l'outbox e'
+    // stato tagliato col cursore del server.
+    public boolean finish(boolean[] successful, long ackedThrough) throws IOException {
+        boolean useCursor = ackedThrough >= 0 && ackedThrough >= outbox.firstPendingSequence() - 1;
+        if (useCursor) {
+            outbox.acknowledgeThrough(ackedThrough);
+        } else {
+            for (int i = 0; i < Math.min(successful.length, segments.size()); i++) {
+                if (successful[i]) {
+                    acknowledge(segments.get(i));
+                }
+            }
+        }
+        segments.clear();
+        return useCursor;
+    }
+
+    public int batchCount() {
+        return batchCount;
+    }
+
+    public SampleBuffer batch(int index) {
+        return batches[index];
+    }
+
+    // Sequenza del primo campione del batch
+    public long firstSequence(int index) {
+        return firstSequences[index];
+    }
+
+    // Allenamento della sessione a cui appartengono i campioni del batch
+    public String workout(int index) {
+        return workouts[index];
+    }
+
+    // Campioni in tutti i batch preparati
+    public int samples() {
+        return samples;
+    }
+
+    // Segmenti scartati perche' illeggibili, dall'inizio
+    public int unreadableSegments() {
+        return unreadableSegments;
+    }
+
+    private void acknowledge(List<File> batchSegments) {
+        for (File segment : batchSegments) {
+            outbox.acknowledge(segment);
+        }
+    }
+}
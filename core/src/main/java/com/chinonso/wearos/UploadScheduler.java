@@ -0,0 +1,179 @@
+package com.chinonso.wearos;
+
+import java.util.Random;
+
+// Decide quando inviare i dati e quanti campioni mettere in ogni richiesta.
+// - al massimo un upload in corso
+// - dopo un errore backoff esponenziale con jitter, senza nuovi tentativi nel frattempo
+// - la dimensione del batch segue la velocita' misurata della rete
+// - con batteria scarica si invia meno spesso, in carica o su Wi-Fi non a consumo prima
+// Non usa API Android: tempo e trasporto sono iniettati, cosi' gira anche sulla JVM.
+// Tutti i metodi vanno chiamati dallo stesso thread.
+public final class UploadScheduler {
+    public interface Clock {
+        long elapsedRealtime();
+    }
+
+    public interface Transport {
+        // Invia fino a maxSamples campioni e poi chiama onUploadFinished(), oppure
+        // onNothingToUpload() se non c'era nulla da inviare
+        void upload(int maxSamples);
+    }
+
+    public static final long DEFAULT_INTERVAL = 60 * 60 * 1000; // 1 ora
+    public static final long PREFERRED_INTERVAL = 5 * 60 * 1000; // in carica o su Wi-Fi
+    public static final int LOW_BATTERY_PERCENT = 15;
+    public static final int MIN_BATCH = 100;
+    public static final int MAX_BATCH = 4000;
+
+    static final long MIN_BACKOFF = 30 * 1000;
+    static final long MAX_BACKOFF = 60 * 60 * 1000;
+    private static final long TARGET_UPLOAD_TIME = 2000;
+    static final int LOW_BATTERY_FACTOR = 4;
+    private static final double EWMA_WEIGHT = 0.3;
+
+    private final Clock clock;
+    private final Transport transport;
+    private final Random random;
+
+    private boolean inFlight;
+    private long uploadStartedAt;
+    private long lastUploadAt;
+    private long nextAttemptAt;
+    private int consecutiveFailures;
+    private boolean flushRequested;
+
+    private int backlog;
+    private int batchSize = MIN_BATCH;
+    private double samplesPerMs;
+    private long averageRtt;
+
+    private int batteryPercent = 100;
+    private boolean charging;
+    private boolean unmetered;
+
+    public UploadScheduler(Clock clock, Transport transport, Random random) {
+        this.clock = clock;
+        this.transport = transport;
+        this.random = random;
+        this.lastUploadAt = clock.elapsedRealtime();
+    }
+
+    public void setBacklog(int pendingSamples) {
+        backlog = pendingSamples;
+    }
+
+    public void setPowerState(int batteryPercent, boolean charging) {
+        this.batteryPercent = batteryPercent;
+        this.charging = charging;
+    }
+
+    public void setUnmetered(boolean unmetered) {
+        this.unmetered = unmetered;
+    }
+
+    // Invia appena possibile (es. fine sessione), rispettando comunque il backoff
+    public void requestFlush() {
+        flushRequested = true;
+    }
+
+    // Avvia un upload se e' il momento; restituisce fra quanti ms richiamarlo
+    public long poll() {
+        long now = clock.elapsedRealtime();
+        if (inFlight) {
+            return interval();
+        }
+        if (now < nextAttemptAt) {
+            return nextAttemptAt - now;
+        }
+        if (backlog == 0) {
+            flushRequested = false;
+            return interval();
+        }
+
+        long dueAt = lastUploadAt + interval();
+        boolean full = backlog >= batchSize && !isLowBattery();
+        if (flushRequested || full || now >= dueAt) {
+            flushRequested = false;
+            inFlight = true;
+            uploadStartedAt = now;
+            transport.upload(batchSize);
+            return interval();
+        }
+        return dueAt - now;
+    }
+
+    public void onUploadFinished(boolean success, int samples) {
+        long now = clock.elapsedRealtime();
+        inFlight = false;
+        if (success) {
+            consecutiveFailures = 0;
+            nextAttemptAt = 0;
+            lastUploadAt = now;
+            updateBatchSize(samples, Math.max(1, now - uploadStartedAt));
+        } else {
+            consecutiveFailures++;
+            batchSize = Math.max(MIN_BATCH, batchSize / 2);
+            nextAttemptAt = now + backoff();
+        }
+    }
+
+    // L'upload e' stato avviato ma non c'era nulla da inviare (es. backlog gia' confermato):
+    // nessuna richiesta, quindi niente misura di RTT e throughput e il backoff resta com'e'
+    public void onNothingToUpload() {
+        inFlight = false;
+        lastUploadAt = clock.elapsedRealtime();
+    }
+
+    public boolean isInFlight() {
+        return inFlight;
+    }
+
+    public int batchSize() {
+        return batchSize;
+    }
+
+    public int consecutiveFailures() {
+        return consecutiveFailures;
+    }
+
+    public long averageRtt() {
+        return averageRtt;
+    }
+
+    public long nextAttemptAt() {
+        return nextAttemptAt;
+    }
+
+    long interval() {
+        if (charging || unmetered) {
+            return PREFERRED_INTERVAL;
+        }
+        return isLowBattery() ? DEFAULT_INTERVAL * LOW_BATTERY_FACTOR : DEFAULT_INTERVAL;
+    }
+
+    private boolean isLowBattery() {
+        return !charging && batteryPercent <= LOW_BATTERY_PERCENT;
+    }
+
+    // Backoff esponenziale con "equal jitter": meta' fissa, meta' casuale
+    private long backoff() {
+        int exponent = Math.min(consecutiveFailures - 1, 20);
+        long ceiling = Math.min(MAX_BACKOFF, MIN_BACKOFF << exponent);
+        long half = ceiling / 2;
+        return half + (long) (random.nextDouble() * half);
+    }
+
+    // Il batch deve poter partire e tornare in circa TARGET_UPLOAD_TIME
+    private void updateBatchSize(int samples, long rtt) {
+        averageRtt = averageRtt == 0 ? rtt : (long) (EWMA_WEIGHT * rtt + (1 - EWMA_WEIGHT) * averageRtt);
+        if (samples < batchSize / 2) {
+            // Batch non pieno: la misura non dice nulla sulla capacita' della rete
+            return;
+        }
+        double measured = (double) samples / rtt;
+        samplesPerMs = samplesPerMs == 0 ? measured : EWMA_WEIGHT * measured + (1 - EWMA_WEIGHT) * samplesPerMs;
+        int target = (int) (samplesPerMs * TARGET_UPLOAD_TIME);
+        batchSize = Math.max(MIN_BATCH, Math.min(MAX_BATCH, Math.min(target, batchSize * 2)));
+    }
+}
@@ -0,0 +1,266 @@
+package com.chinonso.wearos;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import okio.GzipSource;
+import okio.Okio;
+import org.json.JSONArray;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+// Protocollo di conferma fra SampleOutbox e server, con UploadBatcher e HttpTransport come
+// in MonitoringService. Il server deduplica come quello vero: per il dispositivo tiene
+// l'ultima sequenza ricevuta senza buchi, restituita come "ackedThrough", e le sequenze
+// gia' arrivate oltre il buco.
+public class AckProtocolTest {
+    private static final int SEGMENT_SAMPLES = 100;
+    private static final int MAX_BATCH_SAMPLES = 300;
+    private static final String DEVICE_ID = "test-device";
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private final DedupServer dedup = new DedupServer();
+    private MockWebServer server;
+    private HttpTransport transport;
+    private String url;
+    private File dir;
+    private SampleOutbox outbox;
+    private long appended;
+    private long nextTimestamp = 1700000000000L;
+
+    @Before
+    public void setUp() throws IOException {
+        server = new MockWebServer();
+        server.setDispatcher(dedup);
+        server.start();
+        url = server.url("/api/bulk-data").toString();
+        transport = new HttpTransport(false);
+        dir = folder.newFolder("outbox");
+        outbox = new SampleOutbox(dir, 64 * 1024);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        transport.client().dispatcher().executorService().shutdown();
+        transport.client().connectionPool().evictAll();
+        server.shutdown();
+    }
+
+    @Test
+    public void uploadTrimsTheOutbox() throws Exception {
+        append(1000);
+        upload(false, null);
+        assertEquals(0, outbox.pendingSamples());
+        assertEquals(appended - 1, dedup.ackedThrough());
+        assertEquals(appended, dedup.accepted());
+        assertEquals(0, dedup.duplicates());
+    }
+
+    @Test
+    public void lostResponsesAreResentAndDeduplicated() throws Exception {
+        append(500);
+        // Salvati dal server, ma le risposte non arrivano
+        dedup.dropNextResponses(Integer.MAX_VALUE);
+        upload(true, null);
+        dedup.dropNextResponses(0);
+        assertEquals(500, outbox.pendingSamples());
+
+        upload(true, null);
+        assertEquals(0, outbox.pendingSamples());
+        assertEquals(500, dedup.accepted());
+        assertEquals(500, dedup.duplicates());
+    }
+
+    @Test
+    public void partialFailureTrimsThroughTheGapOnly() throws Exception {
+        append(1000);
+        // Batch 0..299, 300..599, 600..899, 900..999: fallisce il secondo
+        dedup.failBatchWith(300);
+        upload(false, null);
+        assertEquals(299, dedup.ackedThrough());
+        assertEquals(700, dedup.accepted());
+        assertEquals(700, outbox.pendingSamples());
+
+        // Si reinvia dal buco: i campioni gia' arrivati oltre il buco sono doppioni
+        upload(false, null);
+        assertEquals(0, outbox.pendingSamples());
+        assertEquals(appended, dedup.accepted());
+        assertEquals(400, dedup.duplicates());
+    }
+
+    @Test
+    public void samplesAppendedInFlightStayQueued() throws Exception {
+        append(300);
+        upload(false, () -> append(50));
+        assertEquals(50, outbox.pendingSamples());
+
+        upload(false, null);
+        assertEquals(0, outbox.pendingSamples());
+        assertEquals(appended, dedup.accepted());
+        assertEquals(0, dedup.duplicates());
+    }
+
+    @Test
+    public void cursorSurvivesReopening() throws Exception {
+        append(300);
+        upload(false, () -> append(50));
+        outbox.seal();
+        long ackedThrough = outbox.ackedThrough();
+
+        outbox = new SampleOutbox(dir, 64 * 1024);
+        assertEquals(ackedThrough, outbox.ackedThrough());
+        assertEquals(50, outbox.pendingSamples());
+        assertEquals(appended, outbox.nextSequence());
+
+        upload(false, null);
+        assertEquals(0, outbox.pendingSamples());
+        assertEquals(appended, dedup.accepted());
+        assertEquals(0, dedup.duplicates());
+    }
+
+    private void append(int samples) {
+        try {
+            for (int i = 0; i < samples; i++) {
+                outbox.append(SampleType.HEART_RATE, nextTimestamp, 60 + i % 40);
+                nextTimestamp += 1000;
+                if (++appended % SEGMENT_SAMPLES == 0) {
+                    outbox.seal();
+                }
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    // Un giro di upload come in MonitoringService; inFlight viene eseguito prima delle risposte
+    private void upload(boolean compact, Runnable inFlight) throws IOException, InterruptedException {
+        UploadBatcher batcher = new UploadBatcher(outbox, HttpTransport.MAX_IN_FLIGHT, MAX_BATCH_SAMPLES);
+        List<BatchRequestBody> bodies = new ArrayList<>();
+        int batches = batcher.prepare(MAX_BATCH_SAMPLES);
+        for (int i = 0; i < batches; i++) {
+            bodies.add(new BatchRequestBody(batcher.batch(i), "test", batcher.workout(i), compact, DEVICE_ID,
+                    batcher.firstSequence(i)));
+        }
+
+        CountDownLatch done = new CountDownLatch(1);
+        AtomicReference<boolean[]> results = new AtomicReference<>();
+        AtomicLong acked = new AtomicLong();
+        CountDownLatch appendedInFlight = new CountDownLatch(1);
+        transport.postBatches(url, bodies, (successful, ackedThrough) -> {
+            try {
+                appendedInFlight.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            results.set(successful);
+            acked.set(ackedThrough);
+            done.countDown();
+        });
+        if (inFlight != null) {
+            inFlight.run();
+        }
+        appendedInFlight.countDown();
+        assertTrue("upload timed out", done.await(30, TimeUnit.SECONDS));
+        batcher.finish(results.get(), acked.get());
+    }
+
+    // failBatchWith(): il batch con quella sequenza riceve 503 senza salvare nulla;
+    // dropNextResponses(): salva ma risponde 500, come una risposta persa
+    private static final class DedupServer extends Dispatcher {
+        private long ackedThrough = -1;
+        private final TreeSet<Long> ahead = new TreeSet<>();
+        private long accepted;
+        private long duplicates;
+        private long failSequence = -1;
+        private int dropNextResponses;
+
+        @Override
+        public synchronized MockResponse dispatch(RecordedRequest request) {
+            long[] sequences;
+            try {
+                sequences = sequences(request);
+            } catch (IOException e) {
+                return new MockResponse().setResponseCode(400);
+            }
+            for (long sequence : sequences) {
+                if (sequence == failSequence) {
+                    failSequence = -1;
+                    return new MockResponse().setResponseCode(503);
+                }
+            }
+            for (long sequence : sequences) {
+                record(sequence);
+            }
+            if (dropNextResponses > 0) {
+                dropNextResponses--;
+                return new MockResponse().setResponseCode(500);
+            }
+            return new MockResponse().setBody("{\"status\":\"ok\",\"ackedThrough\":" + ackedThrough + "}");
+        }
+
+        synchronized void failBatchWith(long sequence) {
+            failSequence = sequence;
+        }
+
+        synchronized void dropNextResponses(int n) {
+            dropNextResponses = n;
+        }
+
+        synchronized long ackedThrough() {
+            return ackedThrough;
+        }
+
+        synchronized long accepted() {
+            return accepted;
+        }
+
+        synchronized long duplicates() {
+            return duplicates;
+        }
+
+        private void record(long sequence) {
+            if (sequence <= ackedThrough || !ahead.add(sequence)) {
+                duplicates++;
+                return;
+            }
+            accepted++;
+            while (!ahead.isEmpty() && ahead.first() == ackedThrough + 1) {
+                ackedThrough = ahead.pollFirst();
+            }
+        }
+
+        private static long[] sequences(RecordedRequest request) throws IOException {
+            byte[] payload = Okio.buffer(new GzipSource(request.getBody())).readByteArray();
+            String contentType = request.getHeader("Content-Type");
+            if (contentType != null && contentType.startsWith(CompactBatchFormat.CONTENT_TYPE)) {
+                return CompactBatchFormat.decode(new ByteArrayInputStream(payload)).sequences;
+            }
+            JSONArray samples = new JSONArray(new String(payload, StandardCharsets.UTF_8));
+            long[] sequences = new long[samples.length()];
+            for (int i = 0; i < sequences.length; i++) {
+                sequences[i] = samples.getJSONObject(i).getLong("seq");
+            }
+            return sequences;
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package com.chinonso.wearos;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+// Valori di riferimento: 160 lb, uomo, 35 anni (vedi il commit che ha introdotto CalorieModel)
+public class CalorieModelTest {
+    @Test
+    public void stepCaloriesMatchPreviousFormula() {
+        CalorieModel model = CalorieModel.forSession("Running", 160, "male", 35);
+        // 5000 passi in un'ora di corsa
+        assertEquals(444.52, model.stepCalories(5000, 3600), 0.005);
+        assertEquals(7.0, model.met(), 0);
+        assertEquals(72.575, model.weightKg(), 0.001);
+
+        // Donna: coefficiente 0.9, stesso MET
+        CalorieModel female = CalorieModel.forSession("Running", 160, "female", 35);
+        assertEquals(444.52 * 0.9, female.stepCalories(5000, 3600), 0.005);
+        // Sesso non indicato: nessuna stima dai passi, come prima
+        assertEquals(0, CalorieModel.forSession("Running", 160, "", 35).stepCalories(5000, 3600), 0);
+        assertEquals(0, model.stepCalories(0, 3600), 0);
+    }
+
+    @Test
+    public void metByWorkout() {
+        assertEquals(3.5, CalorieModel.met("Walking"), 0);
+        assertEquals(8.0, CalorieModel.met("Cycling"), 0);
+        assertEquals(1.5, CalorieModel.met("Monitoraggio Giornaliero"), 0);
+        assertEquals(3.5, CalorieModel.met("Yoga"), 0);
+        assertEquals(3.5, CalorieModel.met(null), 0);
+        assertEquals(3.5, CalorieModel.forSession(null, 160, "male", 35).met(), 0);
+    }
+
+    @Test
+    public void heartRateEstimateMatchesKeytel() {
+        CalorieModel model = CalorieModel.forSession("Running", 160, "male", 35);
+        assertEquals(14.585, model.heartRateKcalPerMinute(150), 0.0005);
+        // Lineare nel battito: 0.6309 kJ per bpm
+        assertEquals(0.6309 / 4.184 * 10, model.heartRateKcalPerMinute(160) - model.heartRateKcalPerMinute(150), 1e-9);
+        // L'equazione non dipende dal workout
+        assertEquals(14.585, CalorieModel.forSession("Walking", 160, "MALE", 35).heartRateKcalPerMinute(150), 0.0005);
+    }
+
+    @Test
+    public void heartRateEstimateBySexAndAge() {
+        double male = CalorieModel.forSession("Running", 160, "male", 35).heartRateKcalPerMinute(150);
+        double female = CalorieModel.forSession("Running", 160, "female", 35).heartRateKcalPerMinute(150);
+        double unknown = CalorieModel.forSession("Running", 160, null, 35).heartRateKcalPerMinute(150);
+        // (-20.4022 - 0.1263 * 72.575 + 0.074 * 35 + 0.4472 * 150) / 4.184
+        assertEquals(9.585, female, 0.0005);
+        assertEquals((male + female) / 2, unknown, 1e-9);
+
+        // Eta' non indicata: DEFAULT_AGE
+        CalorieModel noAge = CalorieModel.forSession("Running", 160, "male", 0);
+        assertEquals(CalorieModel.DEFAULT_AGE, noAge.age());
+        assertEquals(male, noAge.heartRateKcalPerMinute(150), 1e-9);
+        assertTrue(CalorieModel.forSession("Running", 160, "male", 50).heartRateKcalPerMinute(150) > male);
+    }
+
+    @Test
+    public void restingHeartRateIsTruncatedAtZero() {
+        CalorieModel model = CalorieModel.forSession("Running", 160, "male", 35);
+        assertEquals(0, model.heartRateKcalPerMinute(50), 0);
+        assertEquals(0, model.heartRateKcalPerMinute(0), 0);
+        assertTrue(model.heartRateKcalPerMinute(100) > 0);
+    }
+}
@@ -0,0 +1,78 @@
+package com.chinonso.wearos;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+
+public class CapturePipelineTest {
+    private static final long MINUTE = 60 * 1000;
+    private static final long START = 1700000000000L - Math.floorMod(1700000000000L, MINUTE);
+    private static final String DAILY = "Monitoraggio Giornaliero";
+
+    @Test
+    public void rollupSeesUnfilteredConstantHeartRate() {
+        CapturePipeline pipeline = new CapturePipeline(4096, accepted -> { });
+        pipeline.start(FilterPolicy.forWorkout(DAILY), MINUTE);
+        // 3 minuti a 1 Hz sempre a 72 bpm: il filtro ne terrebbe uno ogni 30 secondi
+        for (int i = 0; i < 180; i++) {
+            pipeline.add(SampleType.HEART_RATE, START + i * 1000L, 72);
+        }
+        pipeline.flush();
+
+        List<double[]> counts = drain(pipeline.ring(), SampleType.rollup(SampleType.HEART_RATE, SampleType.STAT_COUNT));
+        List<double[]> means = drain(pipeline.ring(), SampleType.rollup(SampleType.HEART_RATE, SampleType.STAT_MEAN));
+        assertEquals(3, counts.size());
+        for (int window = 0; window < 3; window++) {
+            assertEquals(START + window * MINUTE, (long) counts.get(window)[0]);
+            assertEquals(60, counts.get(window)[1], 0);
+            assertEquals(72, means.get(window)[1], 0);
+        }
+    }
+
+    @Test
+    public void rollupMeanIsNotSkewedTowardChanges() {
+        CapturePipeline pipeline = new CapturePipeline(4096, accepted -> { });
+        pipeline.start(FilterPolicy.forWorkout(DAILY), MINUTE);
+        // 50 s a 60 bpm e 10 s a 120: la media vera e' 70, quella dei soli campioni
+        // che passano il deadband sarebbe (60 + 120) / 2
+        for (int i = 0; i < 60; i++) {
+            pipeline.add(SampleType.HEART_RATE, START + i * 1000L, i < 50 ? 60 : 120);
+        }
+        pipeline.flush();
+
+        List<double[]> means = drain(pipeline.ring(), SampleType.rollup(SampleType.HEART_RATE, SampleType.STAT_MEAN));
+        assertEquals(1, means.size());
+        assertEquals(70, means.get(0)[1], 1e-9);
+    }
+
+    @Test
+    public void filterStillAppliesWithoutRollups() {
+        CapturePipeline pipeline = new CapturePipeline(4096, accepted -> { });
+        pipeline.start(FilterPolicy.forWorkout(DAILY), 0);
+        // Senza aggregati anche il monitoraggio giornaliero usa le regole degli allenamenti:
+        // valore fermo, passa solo il keep-alive ogni 30 secondi
+        for (int i = 0; i < 180; i++) {
+            pipeline.add(SampleType.HEART_RATE, START + i * 1000L, 72);
+        }
+
+        assertEquals(6, drain(pipeline.ring(), SampleType.HEART_RATE).size());
+        assertEquals(174, pipeline.filter().suppressed(SampleType.HEART_RATE));
+    }
+
+    // {timestamp, valore} dei campioni del tipo richiesto, svuotando il ring
+    private static List<double[]> drain(SampleRing ring, int type) {
+        List<double[]> samples = new ArrayList<>();
+        List<double[]> others = new ArrayList<>();
+        while (!ring.isEmpty()) {
+            double[] sample = {ring.peekTimestamp(), ring.peekValue(), ring.peekType()};
+            (ring.peekType() == type ? samples : others).add(sample);
+            ring.poll();
+        }
+        for (double[] other : others) {
+            ring.offer((int) other[2], (long) other[0], other[1]);
+        }
+        return samples;
+    }
+}
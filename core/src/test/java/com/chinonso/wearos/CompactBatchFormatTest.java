@@ -0,0 +1,243 @@
+package com.chinonso.wearos;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import okio.Buffer;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Test;
+
+public class CompactBatchFormatTest {
+    private static final long BASE = 1700000000000L;
+
+    @Test
+    public void emptyBatch() throws IOException {
+        CompactBatchFormat.Batch batch = roundTrip(new SampleBuffer(1));
+        assertEquals(0, batch.samples.size());
+        assertEquals("user", batch.userId);
+        assertEquals("Running", batch.workout);
+        assertEquals("", batch.deviceId);
+        assertNull(batch.sequences);
+    }
+
+    @Test
+    public void singleSample() throws IOException {
+        SampleBuffer samples = new SampleBuffer(1);
+        samples.add(SampleType.ALTITUDE, BASE, 123.25);
+        assertSameSamples(samples, roundTrip(samples).samples);
+    }
+
+    @Test
+    public void nanAndInfinities() throws IOException {
+        SampleBuffer samples = new SampleBuffer(8);
+        samples.add(SampleType.ALTITUDE, BASE, Double.NaN);
+        samples.add(SampleType.ALTITUDE, BASE + 1000, 120.5);
+        samples.add(SampleType.ALTITUDE, BASE + 2000, Double.NaN);
+        samples.add(SampleType.ALTITUDE, BASE + 3000, Double.POSITIVE_INFINITY);
+        samples.add(SampleType.ALTITUDE, BASE + 4000, -0.0);
+        samples.addLocation(BASE + 5000, new LocationRecord(45.1, 9.2, Double.NaN, 4, Float.NaN, Float.NaN, "network"));
+        assertSameSamples(samples, roundTrip(samples).samples);
+    }
+
+    @Test
+    public void negativeDeltas() throws IOException {
+        SampleBuffer samples = new SampleBuffer(8);
+        // Valori interi che scendono e timestamp fuori ordine (orologio corretto all'indietro)
+        samples.add(SampleType.HEART_RATE, BASE + 5000, 150);
+        samples.add(SampleType.HEART_RATE, BASE + 6000, 90);
+        samples.add(SampleType.HEART_RATE, BASE + 2000, 60);
+        samples.add(SampleType.HEART_RATE, BASE, 0);
+        samples.add(SampleType.STEP_COUNT, BASE + 1000, 12000);
+        samples.add(SampleType.STEP_COUNT, BASE + 500, 11000);
+        samples.add(SampleType.ALTITUDE, BASE + 3000, -12.5);
+        samples.add(SampleType.ALTITUDE, BASE + 1000, -400.75);
+        assertSameSamples(samples, roundTrip(samples).samples);
+    }
+
+    @Test
+    public void mixedSeries() throws IOException {
+        SampleBuffer samples = new SampleBuffer(16);
+        samples.addText(SampleType.START, BASE, "Running");
+        for (int i = 0; i < 100; i++) {
+            samples.add(SampleType.HEART_RATE, BASE + i * 1000, 70 + i % 7);
+            samples.add(SampleType.ALTITUDE, BASE + i * 1000 + 13, 100 + i * 0.1);
+        }
+        samples.addLocation(BASE + 7000, new LocationRecord(45.46, 9.19, 122, 5, 2.5f, 180, "gps"));
+        samples.add(SampleType.rollup(SampleType.HEART_RATE, SampleType.STAT_MEAN), BASE, 72.4);
+        samples.addText(SampleType.STOP, BASE + 100000, "Running");
+        assertSameSamples(samples, roundTrip(samples).samples);
+    }
+
+    @Test
+    public void sequencedBatchCarriesSequences() throws IOException {
+        SampleBuffer samples = new SampleBuffer(8);
+        samples.add(SampleType.HEART_RATE, BASE, 70);
+        samples.add(SampleType.ALTITUDE, BASE, 120);
+        samples.add(SampleType.HEART_RATE, BASE + 1000, 71);
+        samples.addText(SampleType.STOP, BASE + 2000, "Running");
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        CompactBatchFormat.encode(samples, "user", "Running", "device", 1000, out);
+        CompactBatchFormat.Batch batch = CompactBatchFormat.decode(new ByteArrayInputStream(out.toByteArray()));
+
+        assertEquals("device", batch.deviceId);
+        assertEquals(1000, batch.firstSequence);
+        // Raggruppati per serie: heart_rate (0, 2), altitude (1), stop (3)
+        assertArrayEquals(new long[]{1000, 1002, 1001, 1003}, batch.sequences);
+    }
+
+    @Test
+    public void matchesJsonEncoding() throws IOException {
+        SampleBuffer samples = workoutBatch();
+        Buffer json = new Buffer();
+        JsonBatchWriter.write(samples, "user", "Running", "device", 1000, json);
+        long jsonBytes = json.size();
+        JSONArray expected = new JSONArray(json.readUtf8());
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        CompactBatchFormat.encode(samples, "user", "Running", "device", 1000, out);
+        CompactBatchFormat.Batch batch = CompactBatchFormat.decode(new ByteArrayInputStream(out.toByteArray()));
+        assertEquals(expected.length(), batch.samples.size());
+
+        // Stesso ordine del decoder: per serie, in ordine di tipo
+        int index = 0;
+        for (int type = 1; type <= 255; type++) {
+            for (int i = 0; i < expected.length(); i++) {
+                JSONObject sample = expected.getJSONObject(i);
+                if (SampleType.fromName(sample.getString("type")) != type) {
+                    continue;
+                }
+                String where = "sample " + i + " (" + SampleType.name(type) + ")";
+                assertEquals(where, sample.getString("userId"), batch.userId);
+                assertEquals(where, sample.getString("workout"), batch.workout);
+                assertEquals(where, sample.getString("deviceId"), batch.deviceId);
+                assertEquals(where, sample.getLong("seq"), batch.sequences[index]);
+                assertEquals(where, type, batch.samples.type(index));
+                assertEquals(where, sample.getLong("timestamp"), batch.samples.timestamp(index));
+                if (SampleType.isText(type)) {
+                    assertEquals(where, sample.getString("value"), batch.samples.text(index));
+                } else if (SampleType.isLocation(type)) {
+                    JSONObject a = sample.getJSONObject("value");
+                    LocationRecord b = batch.samples.location(index);
+                    assertEquals(where, a.getDouble("lat"), b.latitude, 0);
+                    assertEquals(where, a.getDouble("lon"), b.longitude, 0);
+                    assertEquals(where, a.optDouble("altitude"), b.altitude, 0);
+                    assertEquals(where, (float) a.optDouble("accuracy"), b.accuracy, 0);
+                    assertEquals(where, (float) a.optDouble("speed"), b.speed, 0);
+                    assertEquals(where, (float) a.optDouble("bearing"), b.bearing, 0);
+                    assertEquals(where, a.getString("provider"), b.provider);
+                } else {
+                    assertEquals(where, sample.getDouble("value"), batch.samples.value(index), 0);
+                }
+                index++;
+            }
+        }
+        assertEquals(expected.length(), index);
+
+        double ratio = (double) jsonBytes / out.size();
+        assertTrue("JSON " + jsonBytes + " byte, compatto " + out.size() + " byte", ratio >= 5);
+    }
+
+    @Test
+    public void rejectsOtherVersions() throws IOException {
+        byte[] payload = CompactBatchFormat.encode(new SampleBuffer(1), "user", "Running");
+        for (int version : new int[]{0, 2, 3}) {
+            payload[2] = (byte) version;
+            try {
+                CompactBatchFormat.decode(new ByteArrayInputStream(payload));
+                fail("version " + version + " accepted");
+            } catch (IOException expected) {
+                // ok
+            }
+        }
+    }
+
+    @Test
+    public void varintAndZigzag() throws IOException {
+        long[] values = {0, 1, -1, 63, -64, 300, Long.MAX_VALUE, Long.MIN_VALUE};
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (long value : values) {
+            CompactBatchFormat.writeVarint(out, CompactBatchFormat.zigzag(value));
+        }
+        ByteArrayInputStream in = new ByteArrayInputStream(out.toByteArray());
+        for (long value : values) {
+            assertEquals(value, CompactBatchFormat.unzigzag(CompactBatchFormat.readVarint(in)));
+        }
+    }
+
+    // Mezz'ora di corsa: battito a 1 Hz, contapassi ogni 2 secondi, fix GPS ogni 5 secondi
+    private static SampleBuffer workoutBatch() {
+        Random random = new Random(42);
+        SampleBuffer samples = new SampleBuffer(4096);
+        samples.addText(SampleType.START, BASE, "Running");
+        int bpm = 90;
+        long steps = 5230;
+        double latitude = 45.4642035;
+        double longitude = 9.1899820;
+        double altitude = 122;
+        for (int second = 0; second < 30 * 60; second++) {
+            long timestamp = BASE + second * 1000L + random.nextInt(40);
+            bpm = Math.max(80, Math.min(175, bpm + random.nextInt(5) - 2));
+            samples.add(SampleType.HEART_RATE, timestamp, bpm);
+            if (second % 2 == 0) {
+                steps += 5 + random.nextInt(2);
+                samples.add(SampleType.STEP_COUNT, timestamp + 7, steps);
+            }
+            if (second % 5 == 0) {
+                latitude += 0.00004 + random.nextGaussian() * 0.000005;
+                longitude += 0.00003 + random.nextGaussian() * 0.000005;
+                altitude += random.nextGaussian() * 0.3;
+                samples.addLocation(timestamp + 11, new LocationRecord(latitude, longitude, altitude,
+                        4 + random.nextInt(8), 2.8f + random.nextInt(10) / 10f, random.nextInt(360), "fused"));
+            }
+        }
+        samples.addText(SampleType.STOP, BASE + 30 * 60 * 1000L, "Running");
+        return samples;
+    }
+
+    private static CompactBatchFormat.Batch roundTrip(SampleBuffer samples) throws IOException {
+        byte[] payload = CompactBatchFormat.encode(samples, "user", "Running");
+        return CompactBatchFormat.decode(new ByteArrayInputStream(payload));
+    }
+
+    // Il decoder restituisce i campioni raggruppati per serie, in ordine di tipo
+    private static void assertSameSamples(SampleBuffer expected, SampleBuffer actual) {
+        assertEquals(expected.size(), actual.size());
+        int index = 0;
+        for (int type = 1; type <= 255; type++) {
+            for (int i = 0; i < expected.size(); i++) {
+                if (expected.type(i) != type) {
+                    continue;
+                }
+                String where = "sample " + i + " (" + SampleType.name(type) + ")";
+                assertEquals(where, type, actual.type(index));
+                assertEquals(where, expected.timestamp(i), actual.timestamp(index));
+                if (SampleType.isText(type)) {
+                    assertEquals(where, expected.text(i), actual.text(index));
+                } else if (SampleType.isLocation(type)) {
+                    LocationRecord a = expected.location(i);
+                    LocationRecord b = actual.location(index);
+                    assertEquals(where, a.latitude, b.latitude, 0);
+                    assertEquals(where, a.longitude, b.longitude, 0);
+                    assertEquals(where, a.altitude, b.altitude, 0);
+                    assertEquals(where, a.accuracy, b.accuracy, 0);
+                    assertEquals(where, a.speed, b.speed, 0);
+                    assertEquals(where, a.bearing, b.bearing, 0);
+                    assertEquals(where, a.provider, b.provider);
+                } else {
+                    assertEquals(where, Double.doubleToLongBits(expected.value(i)),
+                            Double.doubleToLongBits(actual.value(index)));
+                }
+                index++;
+            }
+        }
+    }
+}
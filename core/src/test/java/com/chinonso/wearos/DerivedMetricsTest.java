@@ -0,0 +1,105 @@
+package com.chinonso.wearos;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+// Riavvio a sessione in corso: i totali ricostruiti dallo storico devono coincidere con
+// quelli che il servizio aveva in memoria.
+public class DerivedMetricsTest {
+    private static final long MINUTE = 60 * 1000;
+    private static final long START = 1700000000000L - Math.floorMod(1700000000000L, MINUTE);
+    private static final CalorieModel MODEL = CalorieModel.forSession("Running", 154, "male", 30);
+
+    @Test
+    public void restoreFromRawSamplesMatchesLiveTotals() {
+        DerivedMetrics live = new DerivedMetrics();
+        live.start(START, MODEL);
+        SampleBuffer history = new SampleBuffer(16);
+        for (int i = 0; i < 600; i++) {
+            int bpm = 100 + i % 40;
+            live.onHeartRate(START + i * 1000L, bpm);
+            history.add(SampleType.HEART_RATE, START + i * 1000L, bpm);
+        }
+        live.onSteps(900);
+        history.add(SampleType.STEP_COUNT, START + 590 * 1000L, 900);
+
+        DerivedMetrics restored = new DerivedMetrics();
+        restored.start(START, MODEL);
+        restored.restore(history);
+
+        assertEquals(live.heartRateCalories(), restored.heartRateCalories(), 1e-9);
+        assertEquals(live.averageHeartRate(), restored.averageHeartRate());
+        assertEquals(139, restored.maxHeartRate());
+        assertEquals(900, restored.steps());
+        long now = START + 600 * 1000L;
+        assertEquals(live.calories(now), restored.calories(now), 1e-9);
+    }
+
+    @Test
+    public void restoreFromRollupsWhenRawWasCompacted() {
+        SampleBuffer history = new SampleBuffer(16);
+        // 10 finestre da un minuto a 120 bpm (massimo 130), solo aggregati
+        for (int window = 0; window < 10; window++) {
+            long timestamp = START + window * MINUTE;
+            history.add(SampleType.rollup(SampleType.HEART_RATE, SampleType.STAT_COUNT), timestamp, 60);
+            history.add(SampleType.rollup(SampleType.HEART_RATE, SampleType.STAT_MEAN), timestamp, 120);
+            history.add(SampleType.rollup(SampleType.HEART_RATE, SampleType.STAT_MAX), timestamp, 130);
+            history.add(SampleType.rollup(SampleType.STEP_COUNT, SampleType.STAT_MAX), timestamp, 150 * (window + 1));
+        }
+
+        DerivedMetrics metrics = new DerivedMetrics();
+        metrics.start(START, MODEL);
+        metrics.restore(history);
+
+        assertEquals(120, metrics.averageHeartRate());
+        assertEquals(130, metrics.maxHeartRate());
+        assertEquals(1500, metrics.steps());
+        // Integrale delle medie fra le finestre: 9 minuti a 120 bpm
+        assertEquals(9 * MODEL.heartRateKcalPerMinute(120), metrics.heartRateCalories(), 1e-9);
+    }
+
+    @Test
+    public void rawSamplesWinOverTheirOwnRollups() {
+        SampleBuffer history = new SampleBuffer(16);
+        // Ora piu' vecchia compattata (solo aggregati), poi grezzi con i loro aggregati
+        history.add(SampleType.rollup(SampleType.HEART_RATE, SampleType.STAT_COUNT), START, 60);
+        history.add(SampleType.rollup(SampleType.HEART_RATE, SampleType.STAT_MEAN), START, 80);
+        for (int i = 0; i < 60; i++) {
+            history.add(SampleType.HEART_RATE, START + MINUTE + i * 1000L, 100);
+        }
+        history.add(SampleType.rollup(SampleType.HEART_RATE, SampleType.STAT_COUNT), START + MINUTE, 60);
+        history.add(SampleType.rollup(SampleType.HEART_RATE, SampleType.STAT_MEAN), START + MINUTE, 100);
+
+        DerivedMetrics metrics = new DerivedMetrics();
+        metrics.start(START, MODEL);
+        metrics.restore(history);
+
+        assertEquals(90, metrics.averageHeartRate());
+        assertEquals(100, metrics.maxHeartRate());
+        double expected = MODEL.heartRateKcalPerMinute(80) + 59 * MODEL.heartRateKcalPerMinute(100) / 60.0;
+        assertEquals(expected, metrics.heartRateCalories(), 1e-9);
+    }
+
+    @Test
+    public void restoreAddsToSamplesArrivedMeanwhile() {
+        DerivedMetrics metrics = new DerivedMetrics();
+        metrics.start(START, MODEL);
+        // Il sensore riparte prima che lo storico sia stato letto
+        metrics.onHeartRate(START + 10 * MINUTE, 140);
+        metrics.onHeartRate(START + 10 * MINUTE + 1000, 140);
+        metrics.onSteps(0);
+
+        SampleBuffer history = new SampleBuffer(16);
+        history.add(SampleType.HEART_RATE, START, 100);
+        history.add(SampleType.HEART_RATE, START + 1000, 100);
+        history.add(SampleType.STEP_COUNT, START + 1000, 42);
+        metrics.restore(history);
+
+        assertEquals(120, metrics.averageHeartRate());
+        assertEquals(140, metrics.maxHeartRate());
+        assertEquals(42, metrics.steps());
+        double expected = (MODEL.heartRateKcalPerMinute(100) + MODEL.heartRateKcalPerMinute(140)) / 60.0;
+        assertEquals(expected, metrics.heartRateCalories(), 1e-9);
+    }
+}
@@ -0,0 +1,95 @@
+package com.chinonso.wearos;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class EnergyLedgerTest {
+    private static final long SESSION_START = 1700000000000L;
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void totalsIncludeOpenPeriods() {
+        EnergyLedger ledger = new EnergyLedger(SESSION_START);
+        ledger.onWakeLockAcquired(EnergyLedger.WAKE_LOCK_SESSION, 1000);
+        // Un secondo acquire non sposta l'inizio del periodo
+        ledger.onWakeLockAcquired(EnergyLedger.WAKE_LOCK_SESSION, 2000);
+        ledger.onWakeLockAcquired(EnergyLedger.WAKE_LOCK_UPLOAD, 3000);
+        ledger.onWakeLockReleased(EnergyLedger.WAKE_LOCK_UPLOAD, 5000);
+        ledger.onWakeLockReleased(EnergyLedger.WAKE_LOCK_UPLOAD, 9000);
+
+        assertEquals(9000, ledger.wakeLockHeld(EnergyLedger.WAKE_LOCK_SESSION, 10000));
+        assertEquals(2000, ledger.wakeLockHeld(EnergyLedger.WAKE_LOCK_UPLOAD, 10000));
+
+        ledger.onProviderStarted("gps", 1000);
+        ledger.onProviderStarted("network", 4000);
+        ledger.onProvidersStopped(6000);
+        ledger.onProviderStarted("gps", 8000);
+        assertEquals(5000 + 2000, ledger.providerOn("gps", 10000));
+        assertEquals(2000, ledger.providerOn("network", 10000));
+        assertEquals(0, ledger.providerOn("passive", 10000));
+    }
+
+    @Test
+    public void batteryDelta() {
+        EnergyLedger ledger = new EnergyLedger(SESSION_START);
+        assertEquals(0, ledger.batteryDelta());
+        ledger.onBatteryLevel(80);
+        ledger.onBatteryLevel(71);
+        // In carica durante la sessione: il delta e' fra la prima e l'ultima lettura
+        ledger.onBatteryLevel(74);
+        assertEquals(-6, ledger.batteryDelta());
+    }
+
+    @Test
+    public void reloadAfterRestartContinuesFromSave() throws IOException {
+        EnergyLedger ledger = new EnergyLedger(SESSION_START);
+        ledger.onWakeLockAcquired(EnergyLedger.WAKE_LOCK_SESSION, 1000);
+        ledger.onWakeLockAcquired(EnergyLedger.WAKE_LOCK_UPLOAD, 2000);
+        ledger.onWakeLockReleased(EnergyLedger.WAKE_LOCK_UPLOAD, 2500);
+        ledger.onProviderStarted("gps", 3000);
+        ledger.onWakeup(EnergyLedger.WAKEUP_DRAIN);
+        ledger.onWakeup(EnergyLedger.WAKEUP_DRAIN);
+        ledger.onWakeup(EnergyLedger.WAKEUP_WARM_UP);
+        ledger.onRequest(1200, true);
+        ledger.onRequest(300, false);
+        ledger.onBatteryLevel(90);
+        ledger.onBatteryLevel(85);
+
+        File file = new File(folder.getRoot(), "energy.properties");
+        // Periodi ancora aperti: salvati come chiusi a 7000
+        ledger.save(file, 7000);
+        EnergyLedger reloaded = EnergyLedger.load(file);
+
+        assertEquals(SESSION_START, reloaded.sessionStart());
+        assertEquals(6000, reloaded.wakeLockHeld(EnergyLedger.WAKE_LOCK_SESSION, 50000));
+        assertEquals(500, reloaded.wakeLockHeld(EnergyLedger.WAKE_LOCK_UPLOAD, 50000));
+        assertEquals(4000, reloaded.providerOn("gps", 50000));
+        assertEquals(2, reloaded.wakeups(EnergyLedger.WAKEUP_DRAIN));
+        assertEquals(1, reloaded.wakeups(EnergyLedger.WAKEUP_WARM_UP));
+        assertEquals(0, reloaded.wakeups(EnergyLedger.WAKEUP_LOCATION_CHECK));
+        assertEquals(-5, reloaded.batteryDelta());
+
+        // Dopo il riavvio i periodi riaprono sul nuovo orologio e si sommano ai totali salvati
+        reloaded.onWakeLockAcquired(EnergyLedger.WAKE_LOCK_SESSION, 100);
+        reloaded.onProviderStarted("gps", 100);
+        assertEquals(6000 + 400, reloaded.wakeLockHeld(EnergyLedger.WAKE_LOCK_SESSION, 500));
+        assertEquals(4000 + 400, reloaded.providerOn("gps", 500));
+        reloaded.onBatteryLevel(80);
+        assertEquals(-10, reloaded.batteryDelta());
+
+        // Il dump riporta anche il traffico ricaricato
+        StringWriter out = new StringWriter();
+        reloaded.dump(new PrintWriter(out), 500);
+        assertTrue(out.toString().contains("2 requests (1 failed), 1500 bytes"));
+    }
+}
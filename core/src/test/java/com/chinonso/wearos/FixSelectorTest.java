@@ -0,0 +1,92 @@
+package com.chinonso.wearos;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Before;
+import org.junit.Test;
+
+public class FixSelectorTest {
+    private static final long WINDOW = 1000;
+    private static final long MAX_AGE = 10000;
+    private static final float MAX_SPEED = 50;
+    private static final long WALL = 1700000000000L;
+
+    private final List<LocationRecord> emitted = new ArrayList<>();
+    private final List<Long> timestamps = new ArrayList<>();
+    private FixSelector selector;
+
+    @Before
+    public void setUp() {
+        selector = new FixSelector(WINDOW, MAX_AGE, MAX_SPEED, (timestamp, location) -> {
+            timestamps.add(timestamp);
+            emitted.add(location);
+        });
+    }
+
+    @Test
+    public void keepsMostAccurateFixInWindow() {
+        LocationRecord network = fix(45.0, 9.0, 40, "network");
+        LocationRecord gps = fix(45.0001, 9.0001, 5, "gps");
+        assertTrue(selector.add(0, WALL, 0, network));
+        assertFalse(selector.add(300, WALL + 300, 0, gps));
+        selector.closeWindow();
+
+        assertEquals(1, emitted.size());
+        assertSame(gps, emitted.get(0));
+        assertEquals(WALL + 300, (long) timestamps.get(0));
+    }
+
+    @Test
+    public void agePenalizesOldFixes() {
+        // 4 m ma vecchio di 8 s (12 m di punteggio) contro 10 m fresco
+        LocationRecord old = fix(45.0, 9.0, 4, "gps");
+        LocationRecord fresh = fix(45.0, 9.0, 10, "network");
+        selector.add(0, WALL, 8000, old);
+        selector.add(100, WALL + 100, 0, fresh);
+        selector.closeWindow();
+        assertSame(fresh, emitted.get(0));
+    }
+
+    @Test
+    public void rejectsStaleAndOutOfOrderFixes() {
+        selector.add(0, WALL, 0, fix(45.0, 9.0, 5, "gps"));
+        selector.closeWindow();
+
+        assertFalse(selector.add(2000, WALL + 2000, MAX_AGE + 1, fix(45.0, 9.0, 5, "gps")));
+        assertFalse(selector.add(2000, WALL - 1000, 0, fix(45.0, 9.0, 5, "gps")));
+        assertEquals(2, selector.rejectedStale());
+        assertEquals(1, selector.emitted());
+    }
+
+    @Test
+    public void implausibleJumpAcceptedAfterRepeatedRejections() {
+        selector.add(0, WALL, 0, fix(45.0, 9.0, 5, "gps"));
+        selector.closeWindow();
+
+        // ~11 km in pochi secondi: scartato tre volte, alla quarta l'ancora si sposta
+        for (int i = 1; i <= 3; i++) {
+            assertFalse(selector.add(i * 1000, WALL + i * 1000, 0, fix(45.1, 9.0, 5, "gps")));
+        }
+        assertEquals(3, selector.rejectedImplausible());
+        assertTrue(selector.add(4000, WALL + 4000, 0, fix(45.1, 9.0, 5, "gps")));
+        selector.closeWindow();
+        assertEquals(2, emitted.size());
+        assertEquals(45.1, emitted.get(1).latitude, 0);
+    }
+
+    @Test
+    public void newFixAfterWindowClosesPreviousOne() {
+        selector.add(0, WALL, 0, fix(45.0, 9.0, 5, "gps"));
+        assertTrue(selector.add(WINDOW, WALL + WINDOW, 0, fix(45.0, 9.0001, 5, "gps")));
+        assertEquals(1, emitted.size());
+    }
+
+    private static LocationRecord fix(double latitude, double longitude, float accuracy, String provider) {
+        return new LocationRecord(latitude, longitude, Double.NaN, accuracy, Float.NaN, Float.NaN, provider);
+    }
+}
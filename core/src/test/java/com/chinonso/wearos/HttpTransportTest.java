@@ -0,0 +1,134 @@
+package com.chinonso.wearos;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import okhttp3.Protocol;
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class HttpTransportTest {
+    private static final int BATCHES = 10;
+    private static final long RESPONSE_DELAY_MS = 200;
+
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicInteger maxInFlight = new AtomicInteger();
+    private MockWebServer server;
+    private HttpTransport transport;
+
+    // HTTP/2 senza TLS (prior knowledge); ogni batch resta in volo RESPONSE_DELAY_MS
+    @Before
+    public void startServer() throws IOException {
+        server = new MockWebServer();
+        server.setProtocols(Collections.singletonList(Protocol.H2_PRIOR_KNOWLEDGE));
+        server.setDispatcher(new Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) throws InterruptedException {
+                if ("HEAD".equals(request.getMethod())) {
+                    return new MockResponse();
+                }
+                int current = inFlight.incrementAndGet();
+                maxInFlight.accumulateAndGet(current, Math::max);
+                Thread.sleep(RESPONSE_DELAY_MS);
+                inFlight.decrementAndGet();
+                return new MockResponse().setBody("{\"status\":\"ok\"}");
+            }
+        });
+        server.start();
+        transport = new HttpTransport(true);
+    }
+
+    @After
+    public void stopServer() throws IOException {
+        transport.client().dispatcher().executorService().shutdown();
+        transport.client().connectionPool().evictAll();
+        server.shutdown();
+    }
+
+    @Test
+    public void parallelBatchesShareTheWarmConnection() throws InterruptedException {
+        String url = server.url("/api/bulk-data").toString();
+        transport.warmUp(url);
+        RecordedRequest warmUp = server.takeRequest(5, TimeUnit.SECONDS);
+        assertNotNull(warmUp);
+        assertEquals("HEAD", warmUp.getMethod());
+
+        List<BatchRequestBody> batches = new ArrayList<>();
+        for (int i = 0; i < BATCHES; i++) {
+            SampleBuffer batch = new SampleBuffer(100);
+            for (int j = 0; j < 100; j++) {
+                batch.add(SampleType.HEART_RATE, 1700000000000L + j * 1000, 70 + j % 5);
+            }
+            batches.add(new BatchRequestBody(batch, "check", "Running", false));
+        }
+        CountDownLatch done = new CountDownLatch(1);
+        AtomicReference<boolean[]> results = new AtomicReference<>();
+        transport.postBatches(url, batches, (successful, ackedThrough) -> {
+            results.set(successful);
+            done.countDown();
+        });
+        assertTrue(done.await(30, TimeUnit.SECONDS));
+
+        boolean[] accepted = new boolean[BATCHES];
+        Arrays.fill(accepted, true);
+        assertArrayEquals(accepted, results.get());
+        assertEquals(1, transport.connectionCount());
+        // Numero progressivo della richiesta sulla sua connessione: con una sola connessione arriva a BATCHES
+        int lastSequence = -1;
+        for (int i = 0; i < BATCHES; i++) {
+            lastSequence = Math.max(lastSequence, server.takeRequest(1, TimeUnit.SECONDS).getSequenceNumber());
+        }
+        assertEquals(BATCHES, lastSequence);
+        assertTrue("max in volo " + maxInFlight.get(),
+                maxInFlight.get() > 1 && maxInFlight.get() <= HttpTransport.MAX_IN_FLIGHT);
+    }
+
+    @Test
+    public void ackedThroughFromResponse() {
+        assertEquals(41, HttpTransport.ackedThrough("{\"ackedThrough\":41}"));
+        assertEquals(41, HttpTransport.ackedThrough("{ \"status\": \"ok\",\n  \"ackedThrough\" : 41 }"));
+        assertEquals(5000000000L, HttpTransport.ackedThrough("{\"accepted\":3,\"ackedThrough\":5000000000}"));
+        // Nulla ricevuto finora
+        assertEquals(-1, HttpTransport.ackedThrough("{\"ackedThrough\":-1}"));
+    }
+
+    @Test
+    public void missingFieldMeansNoCursor() {
+        // Server vecchio: risposta senza cursore o senza corpo
+        assertEquals(-1, HttpTransport.ackedThrough("{\"status\":\"ok\"}"));
+        assertEquals(-1, HttpTransport.ackedThrough("{}"));
+        assertEquals(-1, HttpTransport.ackedThrough(""));
+        assertEquals(-1, HttpTransport.ackedThrough("OK"));
+        // La chiave conta solo al primo livello
+        assertEquals(-1, HttpTransport.ackedThrough("{\"device\":{\"ackedThrough\":41}}"));
+        assertEquals(-1, HttpTransport.ackedThrough("{\"note\":\"\\\"ackedThrough\\\": 41\"}"));
+    }
+
+    @Test
+    public void malformedFieldMeansNoCursor() {
+        assertEquals(-1, HttpTransport.ackedThrough("{\"ackedThrough\":\"41\"}"));
+        assertEquals(-1, HttpTransport.ackedThrough("{\"ackedThrough\":41.5}"));
+        assertEquals(-1, HttpTransport.ackedThrough("{\"ackedThrough\":null}"));
+        assertEquals(-1, HttpTransport.ackedThrough("{\"ackedThrough\":[41]}"));
+        assertEquals(-1, HttpTransport.ackedThrough("{\"ackedThrough\":-7}"));
+        assertEquals(-1, HttpTransport.ackedThrough("{\"ackedThrough\":99999999999999999999}"));
+        assertEquals(-1, HttpTransport.ackedThrough("{\"ackedThrough\":41"));
+        assertEquals(-1, HttpTransport.ackedThrough("[{\"ackedThrough\":41}]"));
+    }
+}
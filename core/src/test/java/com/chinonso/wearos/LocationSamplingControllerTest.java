@@ -0,0 +1,131 @@
+package com.chinonso.wearos;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Before;
+import org.junit.Test;
+
+// Replay di una sessione su un LocationSource finto che registra le chiamate: fissa le
+// transizioni GPS -> fermo -> GPS e le riconfigurazioni del listener.
+public class LocationSamplingControllerTest {
+    private final List<String> calls = new ArrayList<>();
+    private LocationSamplingController controller;
+    private long now;
+
+    @Before
+    public void setUp() {
+        controller = new LocationSamplingController(new LocationSamplingController.LocationSource() {
+            @Override
+            public void removeUpdates() {
+                calls.add("remove");
+            }
+
+            @Override
+            public void requestUpdates(String provider, long interval, float minDistance) {
+                calls.add(provider + " " + interval + " " + minDistance);
+            }
+
+            @Override
+            public void watchForMotion(boolean enabled) {
+                calls.add("motion " + enabled);
+            }
+        });
+        now = 10000000;
+    }
+
+    @Test
+    public void runningSessionReplay() {
+        controller.start("Running", now);
+        // 15 m a 3 m/s: un fix ogni 5 s, GPS piu' rete lenta
+        assertCalls("remove", "gps 5000 7.5", "network 60000 7.5");
+        assertEquals(LocationSamplingController.MODE_GPS, controller.mode());
+
+        // Stessa velocita': nessuna nuova registrazione
+        at(1000).onLocation(3.0f, now);
+        at(1000).onLocation(Float.NaN, now);
+        assertCalls();
+        assertEquals(1, controller.reconfigurations());
+
+        // Accelera: l'intervallo scende al gradino di 2 s
+        at(2000).onLocation(6.0f, now);
+        assertEquals(5000, controller.interval());
+        at(2000).onLocation(6.0f, now);
+        assertEquals(2000, controller.interval());
+        assertCalls("remove", "gps 2000 7.5", "network 60000 7.5");
+
+        // Lento ma senza passi: il GPS resta finche' non scade STATIONARY_DELAY
+        at(2000).onLocation(0.2f, now);
+        long untilStationary = controller.poll(now);
+        assertTrue(untilStationary > 0 && untilStationary <= LocationSamplingController.STATIONARY_DELAY);
+        calls.clear();
+        at(untilStationary);
+        assertEquals(-1, controller.poll(now));
+        assertTrue(controller.isStationary());
+        assertEquals(LocationSamplingController.MODE_NETWORK, controller.mode());
+        assertCalls("motion true", "remove", "network 60000 0.0");
+
+        // Da fermi il poll non serve e un fix lento non cambia nulla
+        assertEquals(-1, controller.poll(now));
+        at(30000).onLocation(0.1f, now);
+        assertCalls();
+
+        // Il primo passo riporta subito il GPS alla velocita' tipica
+        at(1000).onSteps(now);
+        assertFalse(controller.isStationary());
+        assertEquals(LocationSamplingController.MODE_GPS, controller.mode());
+        assertCalls("motion false", "remove", "gps 5000 7.5", "network 60000 7.5");
+
+        controller.stop();
+        assertCalls("remove");
+        // Dopo stop() gli eventi vengono ignorati
+        at(1000).onSteps(now);
+        at(1000).onLocation(8.0f, now);
+        assertEquals(-1, controller.poll(now));
+        assertCalls();
+    }
+
+    @Test
+    public void dailyMonitoringTurnsLocationOffWhenStill() {
+        controller.start("Monitoraggio Giornaliero", now);
+        assertEquals(LocationSamplingController.MODE_GPS, controller.mode());
+        // 100 m a 1 m/s: il gradino piu' vicino e' il massimo della policy
+        assertEquals(120000, controller.interval());
+        calls.clear();
+
+        at(LocationSamplingController.STATIONARY_DELAY);
+        assertEquals(-1, controller.poll(now));
+        assertEquals(LocationSamplingController.MODE_OFF, controller.mode());
+        assertCalls("motion true", "remove");
+
+        at(5000).onSignificantMotion(now);
+        assertEquals(LocationSamplingController.MODE_GPS, controller.mode());
+        assertCalls("motion false", "remove", "gps 120000 50.0", "network 120000 50.0");
+
+        at(LocationSamplingController.STATIONARY_DELAY).poll(now);
+        calls.clear();
+        controller.stop();
+        assertCalls("remove", "motion false");
+    }
+
+    @Test
+    public void unknownWorkoutUsesDefaultPolicy() {
+        controller.start(null, now);
+        // 20 m a 1.5 m/s = 13.3 s: gradino da 15 s
+        assertCalls("remove", "gps 15000 10.0", "network 60000 10.0");
+    }
+
+    private LocationSamplingController at(long elapsed) {
+        now += elapsed;
+        return controller;
+    }
+
+    private void assertCalls(String... expected) {
+        assertEquals(Arrays.asList(expected), calls);
+        calls.clear();
+    }
+}
@@ -0,0 +1,69 @@
+package com.chinonso.wearos;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class QrCodeFilesTest {
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void keyDependsOnUserIdAndSize() {
+        String key = QrCodeFiles.key("user-a", 200);
+        assertEquals(key, QrCodeFiles.key("user-a", 200));
+        assertTrue(key.matches("[0-9a-f]{16}_200"));
+        assertNotEquals(key, QrCodeFiles.key("user-b", 200));
+        assertNotEquals(key, QrCodeFiles.key("user-a", 180));
+        // L'userId non finisce in chiaro nel nome del file
+        assertFalse(QrCodeFiles.file(folder.getRoot(), "user-a", 200).getName().contains("user-a"));
+    }
+
+    @Test
+    public void newUserIdInvalidatesPreviousFile() throws IOException {
+        File dir = new File(folder.getRoot(), "qr");
+        File first = QrCodeFiles.file(dir, "user-a", 200);
+        QrCodeFiles.save(first, out -> out.write(new byte[]{1, 2, 3}));
+        assertTrue(first.exists());
+        assertArrayEquals(new byte[]{1, 2, 3}, Files.readAllBytes(first.toPath()));
+
+        // Nuova registrazione: il file dell'userId precedente non viene trovato e sparisce
+        File second = QrCodeFiles.file(dir, "user-b", 200);
+        assertFalse(second.exists());
+        QrCodeFiles.save(second, out -> out.write(new byte[]{4}));
+        assertTrue(second.exists());
+        assertFalse(first.exists());
+        assertEquals(1, dir.listFiles().length);
+
+        // Anche un'altra dimensione sostituisce il file
+        File resized = QrCodeFiles.file(dir, "user-b", 180);
+        QrCodeFiles.save(resized, out -> out.write(new byte[]{5}));
+        assertFalse(second.exists());
+        assertEquals(1, dir.listFiles().length);
+    }
+
+    @Test
+    public void failedWriteLeavesNoFile() throws IOException {
+        File dir = folder.newFolder("qr");
+        File file = QrCodeFiles.file(dir, "user-a", 200);
+        try {
+            QrCodeFiles.save(file, out -> {
+                out.write(1);
+                throw new IOException("disk full");
+            });
+        } catch (IOException expected) {
+            assertEquals("disk full", expected.getMessage());
+        }
+        assertFalse(file.exists());
+        assertEquals(0, dir.listFiles().length);
+    }
+}
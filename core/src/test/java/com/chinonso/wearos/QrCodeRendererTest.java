@@ -0,0 +1,99 @@
+package com.chinonso.wearos;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import com.google.zxing.BarcodeFormat;
+import com.google.zxing.MultiFormatWriter;
+import com.google.zxing.WriterException;
+import com.google.zxing.common.BitMatrix;
+import com.google.zxing.qrcode.decoder.ErrorCorrectionLevel;
+import com.google.zxing.qrcode.encoder.ByteMatrix;
+import com.google.zxing.qrcode.encoder.Encoder;
+import org.junit.Test;
+
+public class QrCodeRendererTest {
+    private static final String USER_ID = "3f2c9a7e-5b1d-4e8a-9c61-0d7f4b2a8e15";
+
+    @Test
+    public void modulesMapToScaledCenteredPixels() throws WriterException {
+        ByteMatrix modules = Encoder.encode(USER_ID, ErrorCorrectionLevel.L).getMatrix();
+        int width = modules.getWidth() + 8;
+        int scale = 5;
+        // 3 pixel in piu': 1 di margine a sinistra/in alto, 2 a destra/in basso
+        int size = width * scale + 3;
+        int[] pixels = QrCodeRenderer.render(USER_ID, size);
+
+        for (int y = 0; y < size; y++) {
+            for (int x = 0; x < size; x++) {
+                int column = (x - 1) / scale - 4;
+                int row = (y - 1) / scale - 4;
+                boolean black = x >= 1 && y >= 1 && column >= 0 && row >= 0
+                        && column < modules.getWidth() && row < modules.getHeight() && modules.get(column, row) == 1;
+                assertEquals("pixel " + x + "," + y, black ? QrCodeRenderer.BLACK : QrCodeRenderer.WHITE,
+                        pixels[y * size + x]);
+            }
+        }
+    }
+
+    @Test
+    public void quietZoneIsFourWhiteModules() throws WriterException {
+        ByteMatrix modules = Encoder.encode(USER_ID, ErrorCorrectionLevel.L).getMatrix();
+        int scale = 3;
+        int size = (modules.getWidth() + 8) * scale;
+        int[] pixels = QrCodeRenderer.render(USER_ID, size);
+        int margin = 4 * scale;
+
+        for (int i = 0; i < size; i++) {
+            for (int m = 0; m < margin; m++) {
+                assertEquals(QrCodeRenderer.WHITE, pixels[m * size + i]);
+                assertEquals(QrCodeRenderer.WHITE, pixels[(size - 1 - m) * size + i]);
+                assertEquals(QrCodeRenderer.WHITE, pixels[i * size + m]);
+                assertEquals(QrCodeRenderer.WHITE, pixels[i * size + size - 1 - m]);
+            }
+        }
+        // Il finder pattern in alto a sinistra parte subito dopo il margine
+        assertEquals(QrCodeRenderer.BLACK, pixels[margin * size + margin]);
+    }
+
+    @Test
+    public void matchesMultiFormatWriter() throws WriterException {
+        int width = Encoder.encode(USER_ID, ErrorCorrectionLevel.L).getMatrix().getWidth() + 8;
+        for (int size : new int[]{width, width + 1, 100, 199, 200, 256, 320}) {
+            BitMatrix expected = new MultiFormatWriter().encode(USER_ID, BarcodeFormat.QR_CODE, size, size);
+            int[] pixels = QrCodeRenderer.render(USER_ID, size);
+            int[] reference = new int[size * size];
+            for (int y = 0; y < size; y++) {
+                for (int x = 0; x < size; x++) {
+                    reference[y * size + x] = expected.get(x, y) ? QrCodeRenderer.BLACK : QrCodeRenderer.WHITE;
+                }
+            }
+            assertArrayEquals("size " + size, reference, pixels);
+        }
+    }
+
+    @Test
+    public void smallerThanModulesSamplesNearest() throws WriterException {
+        ByteMatrix modules = Encoder.encode(USER_ID, ErrorCorrectionLevel.L).getMatrix();
+        int width = modules.getWidth() + 8;
+        int size = width - 7;
+        int[] pixels = QrCodeRenderer.render(USER_ID, size);
+
+        for (int y = 0; y < size; y++) {
+            for (int x = 0; x < size; x++) {
+                int column = x * width / size - 4;
+                int row = y * width / size - 4;
+                boolean black = column >= 0 && row >= 0 && column < modules.getWidth() && row < modules.getHeight()
+                        && modules.get(column, row) == 1;
+                assertEquals(black ? QrCodeRenderer.BLACK : QrCodeRenderer.WHITE, pixels[y * size + x]);
+            }
+        }
+    }
+
+    @Test
+    public void reusesCallerArray() throws WriterException {
+        int[] pixels = new int[64 * 64];
+        QrCodeRenderer.render(USER_ID, 64, pixels);
+        assertArrayEquals(QrCodeRenderer.render(USER_ID, 64), pixels);
+    }
+}
@@ -0,0 +1,93 @@
+package com.chinonso.wearos;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import java.lang.management.ManagementFactory;
+import org.junit.Test;
+
+public class SampleBufferTest {
+    private static final int SAMPLES = 100000;
+    // Margine per il lavoro della misura stessa, molto sotto un byte per campione
+    private static final long ALLOCATION_SLACK = 4096;
+
+    @Test
+    public void keepsColumnsAndObjects() {
+        SampleBuffer buffer = new SampleBuffer(1);
+        buffer.add(SampleType.HEART_RATE, 1000, 72);
+        buffer.addText(SampleType.START, 2000, "Running");
+        buffer.add(SampleType.ALTITUDE, 3000, 120.5);
+        buffer.addLocation(4000, new LocationRecord(45, 9, Double.NaN, 5, 1, 90, "gps"));
+
+        assertEquals(4, buffer.size());
+        assertEquals(SampleType.HEART_RATE, buffer.type(0));
+        assertEquals(72, buffer.value(0), 0);
+        assertEquals("Running", buffer.text(1));
+        assertEquals(120.5, buffer.value(2), 0);
+        assertEquals(3000, buffer.timestamp(2));
+        assertEquals(45, buffer.location(3).latitude, 0);
+
+        buffer.clear();
+        assertTrue(buffer.isEmpty());
+    }
+
+    @Test
+    public void addDoesNotAllocateOnceGrown() {
+        com.sun.management.ThreadMXBean threads = threadBean();
+        SampleBuffer buffer = new SampleBuffer(SAMPLES);
+        fill(buffer);
+        buffer.clear();
+
+        long before = threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+        fill(buffer);
+        long allocated = threads.getThreadAllocatedBytes(Thread.currentThread().getId()) - before;
+
+        assertEquals(SAMPLES, buffer.size());
+        assertTrue("allocated " + allocated + " bytes for " + SAMPLES + " samples", allocated < ALLOCATION_SLACK);
+    }
+
+    @Test
+    public void ingestionPathDoesNotAllocate() {
+        com.sun.management.ThreadMXBean threads = threadBean();
+        int[] accepted = new int[1];
+        CapturePipeline pipeline = new CapturePipeline(1024, ok -> accepted[0] += ok ? 1 : 0);
+        pipeline.start(FilterPolicy.forWorkout("Running"), 0);
+        SampleRing ring = pipeline.ring();
+        ingest(pipeline, ring);
+
+        long before = threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+        ingest(pipeline, ring);
+        long allocated = threads.getThreadAllocatedBytes(Thread.currentThread().getId()) - before;
+
+        assertTrue(accepted[0] > 0);
+        assertTrue("allocated " + allocated + " bytes for " + SAMPLES + " samples", allocated < ALLOCATION_SLACK);
+    }
+
+    private static void fill(SampleBuffer buffer) {
+        for (int i = 0; i < SAMPLES; i++) {
+            buffer.add(SampleType.HEART_RATE, 1700000000000L + i * 1000L, 60 + i % 40);
+        }
+    }
+
+    // Sensore -> filtro -> ring -> consumatore, tutto sullo stesso thread
+    private static void ingest(CapturePipeline pipeline, SampleRing ring) {
+        long timestamp = 1700000000000L;
+        for (int i = 0; i < SAMPLES; i++) {
+            timestamp += 1000;
+            pipeline.add(SampleType.HEART_RATE, timestamp, 60 + i % 40);
+            while (!ring.isEmpty()) {
+                ring.peekValue();
+                ring.poll();
+            }
+        }
+    }
+
+    private static com.sun.management.ThreadMXBean threadBean() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+        assumeTrue(threads.isThreadAllocatedMemorySupported() && threads.isThreadAllocatedMemoryEnabled());
+        return threads;
+    }
+}
@@ -0,0 +1,98 @@
+package com.chinonso.wearos;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+// Segmenti danneggiati sul disco: l'outbox si apre lo stesso e l'upload non si ferma
+public class SampleOutboxTest {
+    private static final long TIMESTAMP = 1700000000000L;
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void recordPastTheEndClosesTheSegment() throws IOException {
+        File dir = folder.newFolder("outbox");
+        ByteBuffer segment = ByteBuffer.allocate(64);
+        segment.put((byte) 0); // allenamento vuoto
+        segment.put((byte) SampleType.HEART_RATE).putLong(TIMESTAMP).putDouble(72);
+        // Testo con una lunghezza che esce dal file
+        segment.put((byte) SampleType.START).putLong(TIMESTAMP + 1000).putShort((short) 30000).put((byte) 'R');
+        write(new File(dir, "0.seg"), segment);
+
+        SampleOutbox outbox = new SampleOutbox(dir, 4096);
+        assertEquals(1, outbox.pendingSamples());
+        assertEquals(1, outbox.nextSequence());
+
+        UploadBatcher batcher = new UploadBatcher(outbox, 4, 16);
+        assertEquals(1, batcher.prepare(100));
+        assertEquals(72, batcher.batch(0).value(0), 0);
+    }
+
+    @Test
+    public void truncatedLocationIsDropped() throws IOException {
+        File dir = folder.newFolder("outbox");
+        ByteBuffer segment = ByteBuffer.allocate(40);
+        segment.put((byte) 0);
+        segment.put((byte) SampleType.HEART_RATE).putLong(TIMESTAMP).putDouble(72);
+        segment.put((byte) SampleType.LOCATION).putLong(TIMESTAMP).putDouble(45.0);
+        write(new File(dir, "0.seg"), segment);
+
+        SampleOutbox outbox = new SampleOutbox(dir, 4096);
+        SampleBuffer samples = new SampleBuffer(4);
+        assertEquals(1, outbox.read(outbox.oldestSealed(), samples));
+        assertEquals(SampleType.HEART_RATE, samples.type(0));
+    }
+
+    @Test
+    public void unreadableHeaderDropsOnlyThatSegment() throws IOException {
+        File dir = folder.newFolder("outbox");
+        // Intestazione che dichiara un allenamento piu' lungo del file
+        ByteBuffer damaged = ByteBuffer.allocate(4);
+        damaged.put((byte) 200).put((byte) 'x');
+        File damagedFile = new File(dir, "0.seg");
+        write(damagedFile, damaged);
+        ByteBuffer good = ByteBuffer.allocate(32);
+        good.put((byte) 0);
+        good.put((byte) SampleType.HEART_RATE).putLong(TIMESTAMP).putDouble(80);
+        write(new File(dir, "5.seg"), good);
+
+        SampleOutbox outbox = new SampleOutbox(dir, 4096);
+        assertFalse(damagedFile.exists());
+        assertEquals(1, outbox.pendingSegments());
+        assertEquals(6, outbox.nextSequence());
+    }
+
+    @Test
+    public void appendedSamplesRoundTrip() throws IOException {
+        File dir = folder.newFolder("outbox");
+        SampleOutbox outbox = new SampleOutbox(dir, 4096);
+        outbox.appendText(SampleType.START, TIMESTAMP, "Running");
+        outbox.append(SampleType.HEART_RATE, TIMESTAMP + 1000, 90);
+        outbox.appendLocation(TIMESTAMP + 2000, new LocationRecord(45.1, 9.2, 120, 5, 3, 90, "gps"));
+        outbox.seal();
+
+        SampleOutbox reopened = new SampleOutbox(dir, 4096);
+        SampleBuffer samples = new SampleBuffer(4);
+        assertEquals(3, reopened.read(reopened.oldestSealed(), samples));
+        assertEquals("Running", samples.text(0));
+        assertEquals(90, samples.value(1), 0);
+        assertEquals(9.2, samples.location(2).longitude, 0);
+        assertEquals("gps", samples.location(2).provider);
+        assertEquals("Running", reopened.workout(reopened.oldestSealed()));
+    }
+
+    private static void write(File file, ByteBuffer content) throws IOException {
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(content.array(), 0, content.position());
+        }
+    }
+}
@@ -0,0 +1,108 @@
+package com.chinonso.wearos;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.Test;
+
+public class SampleRingTest {
+    private static final int STRESS_SAMPLES = 5000000;
+    private static final int TEXT_EVERY = 1000;
+
+    @Test(expected = IllegalArgumentException.class)
+    public void capacityMustBePowerOfTwo() {
+        new SampleRing(100);
+    }
+
+    @Test
+    public void dropsWhenFullAndCountsThem() {
+        SampleRing ring = new SampleRing(4);
+        for (int i = 0; i < 4; i++) {
+            assertTrue(ring.offer(SampleType.HEART_RATE, i, i));
+        }
+        assertFalse(ring.offer(SampleType.HEART_RATE, 4, 4));
+        assertEquals(1, ring.dropped());
+        assertEquals(4, ring.size());
+
+        assertEquals(0, ring.peekTimestamp());
+        ring.poll();
+        assertTrue(ring.offer(SampleType.HEART_RATE, 5, 5));
+        for (long expected : new long[]{1, 2, 3, 5}) {
+            assertFalse(ring.isEmpty());
+            assertEquals(expected, ring.peekTimestamp());
+            ring.poll();
+        }
+        assertTrue(ring.isEmpty());
+    }
+
+    @Test
+    public void pollReleasesObjects() {
+        SampleRing ring = new SampleRing(2);
+        ring.offerText(SampleType.START, 1, "Running");
+        assertEquals("Running", ring.peekText());
+        ring.poll();
+        ring.offer(SampleType.HEART_RATE, 2, 70);
+        ring.offer(SampleType.HEART_RATE, 3, 71);
+        // Lo slot del testo e' stato riusato: nessun riferimento rimasto
+        assertNull(ring.peekText());
+    }
+
+    // Un produttore e un consumatore su thread diversi con un ring piccolo, cosi' che si
+    // riempia spesso: ogni campione deve arrivare una volta sola, in ordine e con tutte le colonne
+    @Test(timeout = 60000)
+    public void producerConsumerStress() throws InterruptedException {
+        SampleRing ring = new SampleRing(64);
+        AtomicLong rejected = new AtomicLong();
+        AtomicReference<String> failure = new AtomicReference<>();
+
+        Thread producer = new Thread(() -> {
+            long full = 0;
+            for (int i = 0; i < STRESS_SAMPLES; i++) {
+                boolean accepted;
+                do {
+                    accepted = i % TEXT_EVERY == 0
+                            ? ring.offerText(SampleType.START, i, Integer.toString(i))
+                            : ring.offer(SampleType.HEART_RATE, i, i * 0.5);
+                    if (!accepted) {
+                        full++;
+                        Thread.yield();
+                    }
+                } while (!accepted);
+            }
+            rejected.set(full);
+        }, "producer");
+
+        Thread consumer = new Thread(() -> {
+            for (int i = 0; i < STRESS_SAMPLES; i++) {
+                while (ring.isEmpty()) {
+                    Thread.yield();
+                }
+                long timestamp = ring.peekTimestamp();
+                int type = ring.peekType();
+                if (timestamp != i) {
+                    failure.compareAndSet(null, "expected sample " + i + ", got " + timestamp);
+                } else if (i % TEXT_EVERY == 0) {
+                    if (type != SampleType.START || !Integer.toString(i).equals(ring.peekText())) {
+                        failure.compareAndSet(null, "wrong text sample at " + i);
+                    }
+                } else if (type != SampleType.HEART_RATE || ring.peekValue() != i * 0.5) {
+                    failure.compareAndSet(null, "wrong value at " + i + ": " + ring.peekValue());
+                }
+                ring.poll();
+            }
+        }, "consumer");
+
+        producer.start();
+        consumer.start();
+        producer.join();
+        consumer.join();
+
+        assertNull(failure.get(), failure.get());
+        assertTrue(ring.isEmpty());
+        assertEquals(rejected.get(), ring.dropped());
+    }
+}
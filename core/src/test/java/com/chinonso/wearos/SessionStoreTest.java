@@ -0,0 +1,249 @@
+package com.chinonso.wearos;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.List;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class SessionStoreTest {
+    private static final long MINUTE = 60 * 1000;
+    private static final long HOUR = SessionStore.HOUR;
+    private static final long DAY = 24 * HOUR;
+    // Inizio di un'ora di orologio
+    private static final long BASE = 1700000000000L - Math.floorMod(1700000000000L, HOUR);
+    private static final long HEART_RATE = SessionStore.typeMask(SampleType.HEART_RATE);
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void queryAcrossHourBoundary() throws IOException {
+        SessionStore store = open(folder.newFolder("history"), Long.MAX_VALUE);
+        long start = BASE + HOUR - 30 * MINUTE;
+        store.beginSession(start, "Running");
+        // Un'ora a cavallo fra due ore di orologio, un campione ogni 10 secondi
+        for (int minute = 0; minute < 60; minute++) {
+            SampleBuffer batch = new SampleBuffer(6);
+            for (int i = 0; i < 6; i++) {
+                long timestamp = start + minute * MINUTE + i * 10000L;
+                batch.add(SampleType.HEART_RATE, timestamp, heartRate(timestamp));
+            }
+            store.append(batch);
+        }
+        assertEquals(2, store.blockCount());
+
+        SampleBuffer result = new SampleBuffer(16);
+        long from = BASE + HOUR - 10 * MINUTE;
+        long to = BASE + HOUR + 10 * MINUTE;
+        assertEquals(120, store.query(from, to, 0, HEART_RATE, result));
+        assertEquals(120, result.size());
+        for (int i = 0; i < result.size(); i++) {
+            assertEquals(SampleType.HEART_RATE, result.type(i));
+            assertEquals(from + i * 10000L, result.timestamp(i));
+            assertEquals(heartRate(result.timestamp(i)), result.value(i), 0);
+        }
+    }
+
+    @Test
+    public void filtersBySessionAndType() throws IOException {
+        SessionStore store = open(folder.newFolder("history"), Long.MAX_VALUE);
+        long first = BASE + MINUTE;
+        long second = BASE + 20 * MINUTE;
+        record(store, first, "Running", 5);
+        record(store, second, "Walking", 3);
+
+        List<SessionStore.Session> sessions = store.sessions(BASE, BASE + HOUR);
+        assertEquals(2, sessions.size());
+        assertEquals(second, sessions.get(0).start);
+        assertEquals("Running", sessions.get(1).workout);
+
+        SampleBuffer result = new SampleBuffer(16);
+        assertEquals(5 * 60, store.query(BASE, BASE + HOUR, first, HEART_RATE, result));
+        for (int i = 0; i < result.size(); i++) {
+            assertEquals(SampleType.HEART_RATE, result.type(i));
+            assertTrue(result.timestamp(i) < second);
+        }
+
+        // Tutte le sessioni, due tipi: nessun aggregato e nessuna quota
+        result.clear();
+        long mask = SessionStore.typeMask(SampleType.HEART_RATE, SampleType.LOCATION);
+        assertEquals(8 * 60 + 8, store.query(BASE, BASE + HOUR, 0, mask, result));
+
+        result.clear();
+        assertEquals(3, store.track(sessions.get(0), result));
+        for (int i = 0; i < result.size(); i++) {
+            assertEquals(SampleType.LOCATION, result.type(i));
+            assertTrue(result.timestamp(i) >= second);
+        }
+    }
+
+    @Test
+    public void compactKeepsRollupsOnly() throws IOException {
+        File dir = folder.newFolder("history");
+        SessionStore store = open(dir, Long.MAX_VALUE);
+        record(store, BASE, "Running", 3);
+        long rawBytes = store.totalBytes();
+
+        // Ancora dentro rawRetention: non cambia niente
+        store.compact(BASE + HOUR + DAY - 1);
+        assertEquals(rawBytes, store.totalBytes());
+
+        store.compact(BASE + HOUR + DAY);
+        assertEquals(1, store.blockCount());
+        assertTrue(store.totalBytes() < rawBytes);
+        assertTrue(new File(dir, BASE + ".cblk").exists());
+        assertFalse(new File(dir, BASE + ".blk").exists());
+
+        SampleBuffer result = new SampleBuffer(16);
+        assertEquals(0, store.query(BASE, BASE + HOUR, 0, HEART_RATE, result));
+        // Restano gli aggregati al minuto e i campioni non aggregabili
+        int count = SampleType.rollup(SampleType.HEART_RATE, SampleType.STAT_COUNT);
+        int mean = SampleType.rollup(SampleType.HEART_RATE, SampleType.STAT_MEAN);
+        assertEquals(6, store.query(BASE, BASE + HOUR, 0, SessionStore.typeMask(count, mean), result));
+        // Un chunk per serie: prima i conteggi, poi le medie
+        for (int i = 0; i < result.size(); i++) {
+            long window = BASE + (i % 3) * MINUTE;
+            assertEquals(window, result.timestamp(i));
+            if (result.type(i) == count) {
+                assertEquals(60, result.value(i), 0);
+            } else {
+                assertEquals(mean, result.type(i));
+                assertEquals(meanHeartRate(window), result.value(i), 1e-9);
+            }
+        }
+        result.clear();
+        assertEquals(3, store.query(BASE, BASE + HOUR, 0, SessionStore.typeMask(SampleType.LOCATION), result));
+
+        // La compattazione sopravvive alla riapertura
+        assertEquals(store.totalBytes(), open(dir, Long.MAX_VALUE).totalBytes());
+    }
+
+    @Test
+    public void retentionAndMaxBytesDropOldestHours() throws IOException {
+        File dir = folder.newFolder("history");
+        SessionStore store = open(dir, Long.MAX_VALUE);
+        for (int hour = 0; hour < 4; hour++) {
+            record(store, BASE + hour * HOUR, "Running", 2);
+        }
+        assertEquals(4, store.blockCount());
+        assertEquals(4, store.sessionCount());
+
+        // Dopo 7 giorni la prima ora se ne va, con la sua sessione
+        store.compact(BASE + HOUR + 7 * DAY);
+        assertEquals(3, store.blockCount());
+        assertEquals(3, store.sessionCount());
+        // Le ore rimaste sono state compattate: si contano i fix GPS
+        long location = SessionStore.typeMask(SampleType.LOCATION);
+        SampleBuffer result = new SampleBuffer(16);
+        assertEquals(0, store.query(BASE, BASE + HOUR, 0, location, result));
+        assertEquals(2, store.query(BASE + HOUR, BASE + 2 * HOUR, 0, location, result));
+
+        // Oltre maxBytes: si cancellano le ore piu' vecchie finche' non si rientra
+        long bytes = open(dir, Long.MAX_VALUE).totalBytes();
+        SessionStore small = open(dir, bytes - 1);
+        small.compact(BASE + HOUR + 7 * DAY);
+        assertEquals(2, small.blockCount());
+        assertTrue(small.totalBytes() < bytes);
+        result.clear();
+        assertEquals(0, small.query(BASE, BASE + 2 * HOUR, 0, location, result));
+        assertEquals(2, small.query(BASE + 3 * HOUR, BASE + 4 * HOUR, 0, location, result));
+
+        // Anche l'ultima ora resta, qualunque sia maxBytes
+        SessionStore tiny = open(dir, 1);
+        tiny.compact(BASE + HOUR + 7 * DAY);
+        assertEquals(1, tiny.blockCount());
+    }
+
+    @Test
+    public void reopenContinuesOpenSession() throws IOException {
+        File dir = folder.newFolder("history");
+        SessionStore store = open(dir, Long.MAX_VALUE);
+        store.beginSession(BASE, "Running");
+        store.append(heartRates(BASE, 90));
+
+        // Processo terminato senza endSession
+        SessionStore reopened = open(dir, Long.MAX_VALUE);
+        assertTrue(reopened.hasOpenSession());
+        assertEquals(BASE, reopened.lastSession().start);
+        assertEquals(0, reopened.lastSession().end);
+        reopened.append(heartRates(BASE + 90 * 1000L, 90));
+        reopened.endSession(BASE + 180 * 1000L);
+        assertFalse(reopened.hasOpenSession());
+        assertEquals(BASE + 180 * 1000L, reopened.lastSession().end);
+
+        SampleBuffer result = new SampleBuffer(16);
+        assertEquals(180, reopened.query(BASE, BASE + HOUR, BASE, HEART_RATE, result));
+        for (int i = 0; i < result.size(); i++) {
+            assertEquals(BASE + i * 1000L, result.timestamp(i));
+        }
+
+        assertFalse(open(dir, Long.MAX_VALUE).hasOpenSession());
+    }
+
+    @Test
+    public void truncatedChunkIsSkipped() throws IOException {
+        File dir = folder.newFolder("history");
+        SessionStore store = open(dir, Long.MAX_VALUE);
+        store.beginSession(BASE, "Running");
+        // Due chunk nello stesso minuto, cosi' non ci sono aggregati in mezzo
+        store.append(heartRates(BASE, 5));
+        store.append(heartRates(BASE + 5000, 5));
+
+        // Scrittura interrotta a meta' del secondo chunk
+        try (RandomAccessFile file = new RandomAccessFile(new File(dir, BASE + ".blk"), "rw")) {
+            file.setLength(file.length() - 3);
+        }
+
+        SampleBuffer result = new SampleBuffer(16);
+        SessionStore reopened = open(dir, Long.MAX_VALUE);
+        assertEquals(5, reopened.query(BASE, BASE + HOUR, 0, HEART_RATE, result));
+        for (int i = 0; i < result.size(); i++) {
+            assertEquals(BASE + i * 1000L, result.timestamp(i));
+        }
+    }
+
+    private static SessionStore open(File dir, long maxBytes) throws IOException {
+        return new SessionStore(dir, DAY, 7 * DAY, maxBytes);
+    }
+
+    // Sessione di "minutes" minuti: battito a 1 Hz, quota e un fix GPS al minuto
+    private static void record(SessionStore store, long start, String workout, int minutes) throws IOException {
+        store.beginSession(start, workout);
+        for (int minute = 0; minute < minutes; minute++) {
+            long timestamp = start + minute * MINUTE;
+            SampleBuffer batch = heartRates(timestamp, 60);
+            batch.add(SampleType.ALTITUDE, timestamp, 120 + minute);
+            batch.addLocation(timestamp, new LocationRecord(45.46 + minute * 0.001, 9.19, 120, 5, 2.5f, 90, "gps"));
+            store.append(batch);
+        }
+        store.endSession(start + minutes * MINUTE);
+    }
+
+    private static SampleBuffer heartRates(long start, int seconds) {
+        SampleBuffer samples = new SampleBuffer(seconds + 2);
+        for (int i = 0; i < seconds; i++) {
+            long timestamp = start + i * 1000L;
+            samples.add(SampleType.HEART_RATE, timestamp, heartRate(timestamp));
+        }
+        return samples;
+    }
+
+    private static int heartRate(long timestamp) {
+        return 100 + (int) (timestamp / 1000 % 40);
+    }
+
+    private static double meanHeartRate(long window) {
+        double sum = 0;
+        for (int i = 0; i < 60; i++) {
+            sum += heartRate(window + i * 1000L);
+        }
+        return sum / 60;
+    }
+}
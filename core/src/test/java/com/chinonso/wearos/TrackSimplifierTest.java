@@ -0,0 +1,158 @@
+package com.chinonso.wearos;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import org.junit.Test;
+
+// Stessi parametri del service: 10 metri di scarto, un punto ogni 5 minuti da fermi
+public class TrackSimplifierTest {
+    private static final long BASE = 1700000000000L;
+    private static final double MAX_DEVIATION = 10;
+    private static final long MAX_INTERVAL = 5 * 60 * 1000;
+    private static final double METERS_PER_DEGREE = Math.toRadians(6371008.8);
+    private static final double LATITUDE = 45.4642;
+    private static final double LONGITUDE = 9.19;
+
+    private final List<Long> timestamps = new ArrayList<>();
+    private final List<LocationRecord> locations = new ArrayList<>();
+    private final TrackSimplifier simplifier = new TrackSimplifier(MAX_DEVIATION, MAX_INTERVAL, (timestamp, location) -> {
+        timestamps.add(timestamp);
+        locations.add(location);
+    });
+
+    @Test
+    public void straightLineKeepsEndpoints() {
+        // Circa 3 m/s verso nord-est per 2 minuti
+        for (int i = 0; i < 120; i++) {
+            simplifier.add(BASE + i * 1000L, fix(i * 2.0, i * 2.0));
+        }
+        assertEquals(1, simplifier.emitted());
+        simplifier.flush();
+
+        assertEquals(2, locations.size());
+        assertEquals(BASE, (long) timestamps.get(0));
+        assertEquals(BASE + 119 * 1000L, (long) timestamps.get(1));
+        assertEquals(120, simplifier.received());
+    }
+
+    @Test
+    public void droppedFixesStayWithinMaxDeviation() {
+        List<Long> inputTimestamps = new ArrayList<>();
+        List<LocationRecord> input = new ArrayList<>();
+        noisyRoute(new Random(7), inputTimestamps, input);
+        for (int i = 0; i < input.size(); i++) {
+            simplifier.add(inputTimestamps.get(i), input.get(i));
+        }
+        simplifier.flush();
+
+        // Ogni fix scartato sta entro maxDeviation dal segmento fra i due punti emessi intorno
+        int segment = 0;
+        for (int i = 0; i < input.size(); i++) {
+            long timestamp = inputTimestamps.get(i);
+            while (timestamps.get(segment + 1) < timestamp) {
+                segment++;
+            }
+            if (timestamps.get(segment) == timestamp || timestamps.get(segment + 1) == timestamp) {
+                continue;
+            }
+            double deviation = distanceToSegment(locations.get(segment), locations.get(segment + 1), input.get(i));
+            assertTrue("fix " + i + " a " + deviation + " m", deviation <= MAX_DEVIATION);
+        }
+    }
+
+    @Test
+    public void stationaryTrackIsKeptAlive() {
+        // Fermi per 20 minuti, un fix ogni 5 secondi con un po' di rumore
+        Random random = new Random(3);
+        for (int i = 0; i < 20 * 12; i++) {
+            simplifier.add(BASE + i * 5000L, fix(random.nextGaussian(), random.nextGaussian()));
+        }
+        assertEquals(4, locations.size());
+        for (int i = 0; i < locations.size(); i++) {
+            assertEquals(BASE + i * MAX_INTERVAL, (long) timestamps.get(i));
+        }
+    }
+
+    @Test
+    public void flushEmitsLastFixOnce() {
+        simplifier.add(BASE, fix(0, 0));
+        simplifier.add(BASE + 1000, fix(3, 0));
+        simplifier.add(BASE + 2000, fix(6, 0));
+        assertEquals(1, locations.size());
+
+        simplifier.flush();
+        assertEquals(2, locations.size());
+        assertEquals(BASE + 2000, (long) timestamps.get(1));
+        assertEquals(6, north(locations.get(1)), 1e-6);
+
+        // Niente in finestra: flush non emette di nuovo
+        simplifier.flush();
+        assertEquals(2, locations.size());
+
+        // Dopo reset() il primo fix riparte come ancora
+        simplifier.reset();
+        simplifier.add(BASE + 3000, fix(100, 0));
+        assertEquals(3, locations.size());
+        assertEquals(BASE + 3000, (long) timestamps.get(2));
+    }
+
+    @Test
+    public void noisyRouteShrinksAtLeastFiveTimes() {
+        List<Long> inputTimestamps = new ArrayList<>();
+        List<LocationRecord> input = new ArrayList<>();
+        noisyRoute(new Random(11), inputTimestamps, input);
+        for (int i = 0; i < input.size(); i++) {
+            simplifier.add(inputTimestamps.get(i), input.get(i));
+        }
+        simplifier.flush();
+
+        assertEquals(input.size(), simplifier.received());
+        assertEquals(locations.size(), simplifier.emitted());
+        assertTrue(input.size() + " fix, " + locations.size() + " emessi", input.size() >= 5 * locations.size());
+    }
+
+    // Mezz'ora di corsa a 1 Hz: tratti dritti di 1-3 minuti, curve, rumore GPS di ~3 metri
+    private static void noisyRoute(Random random, List<Long> timestamps, List<LocationRecord> locations) {
+        double north = 0;
+        double east = 0;
+        double heading = 0;
+        int straight = 0;
+        for (int i = 0; i < 30 * 60; i++) {
+            if (straight == 0) {
+                heading += Math.toRadians(30 + random.nextInt(120)) * (random.nextBoolean() ? 1 : -1);
+                straight = 60 + random.nextInt(120);
+            }
+            straight--;
+            north += 3 * Math.cos(heading);
+            east += 3 * Math.sin(heading);
+            timestamps.add(BASE + i * 1000L);
+            locations.add(fix(north + random.nextGaussian() * 3, east + random.nextGaussian() * 3));
+        }
+    }
+
+    private static LocationRecord fix(double north, double east) {
+        double latitude = LATITUDE + north / METERS_PER_DEGREE;
+        double longitude = LONGITUDE + east / (METERS_PER_DEGREE * Math.cos(Math.toRadians(LATITUDE)));
+        return new LocationRecord(latitude, longitude, 120, 5, 3, 0, "gps");
+    }
+
+    private static double north(LocationRecord location) {
+        return (location.latitude - LATITUDE) * METERS_PER_DEGREE;
+    }
+
+    // Stessa proiezione del simplifier, centrata sull'inizio del segmento
+    private static double distanceToSegment(LocationRecord start, LocationRecord end, LocationRecord point) {
+        double cos = Math.cos(Math.toRadians(start.latitude));
+        double endX = (end.longitude - start.longitude) * cos * METERS_PER_DEGREE;
+        double endY = (end.latitude - start.latitude) * METERS_PER_DEGREE;
+        double px = (point.longitude - start.longitude) * cos * METERS_PER_DEGREE;
+        double py = (point.latitude - start.latitude) * METERS_PER_DEGREE;
+        double lengthSquared = endX * endX + endY * endY;
+        double t = lengthSquared == 0 ? 0 : Math.max(0, Math.min(1, (px * endX + py * endY) / lengthSquared));
+        return Math.hypot(px - t * endX, py - t * endY);
+    }
+}
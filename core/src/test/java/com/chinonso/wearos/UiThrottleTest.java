@@ -0,0 +1,60 @@
+package com.chinonso.wearos;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class UiThrottleTest {
+    private final UiThrottle throttle = new UiThrottle();
+
+    @Test
+    public void interactivePublishesImmediatelyAndTicks() {
+        assertEquals(0, throttle.frameDelay(5000));
+        throttle.onPublished(5000);
+        assertEquals(0, throttle.frameDelay(5001));
+        assertEquals(UiThrottle.TICK_INTERVAL, throttle.tickDelay(true));
+        assertEquals(-1, throttle.tickDelay(false));
+    }
+
+    @Test
+    public void ambientPublishesOncePerInterval() {
+        assertTrue(throttle.setAmbient(true));
+        assertFalse(throttle.setAmbient(true));
+        // Il primo frame in ambient non aspetta
+        assertEquals(0, throttle.frameDelay(1000));
+        throttle.onPublished(1000);
+
+        assertEquals(UiThrottle.AMBIENT_INTERVAL - 500, throttle.frameDelay(1500));
+        assertEquals(0, throttle.frameDelay(1000 + UiThrottle.AMBIENT_INTERVAL));
+        assertEquals(0, throttle.frameDelay(1000 + 2 * UiThrottle.AMBIENT_INTERVAL));
+        // Niente tick: il timer avanza con onUpdateAmbient()
+        assertEquals(-1, throttle.tickDelay(true));
+    }
+
+    @Test
+    public void leavingAmbientPublishesImmediately() {
+        throttle.setAmbient(true);
+        throttle.onPublished(1000);
+        assertTrue(throttle.frameDelay(2000) > 0);
+
+        assertTrue(throttle.setAmbient(false));
+        assertFalse(throttle.isAmbient());
+        assertEquals(0, throttle.frameDelay(2000));
+        assertEquals(UiThrottle.TICK_INTERVAL, throttle.tickDelay(true));
+    }
+
+    @Test
+    public void diffReportsOnlyChangedFields() {
+        UiState first = new UiState(70, 100, 12.5, 120, "Lat: 45", 59);
+        assertEquals(UiState.ALL, first.diff(null));
+        assertEquals(0, first.diff(new UiState(70, 100, 12.5, 120, "Lat: 45", 59)));
+
+        UiState next = new UiState(71, 100, 12.5, Double.NaN, null, 60);
+        assertEquals(UiState.HEART_RATE | UiState.ALTITUDE | UiState.GPS | UiState.TIMER, next.diff(first));
+        assertEquals(0, next.diff(new UiState(71, 100, 12.5, Double.NaN, null, 60)));
+        assertEquals("00:01:00", next.timerText());
+        assertEquals("01:01:01", UiState.formatTimer(3661));
+    }
+}
@@ -0,0 +1,180 @@
+package com.chinonso.wearos;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class UploadBatcherTest {
+    private static final int SEGMENT_SAMPLES = 100;
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private SampleOutbox outbox;
+    private UploadBatcher batcher;
+    private long timestamp = 1700000000000L;
+
+    @Before
+    public void setUp() throws IOException {
+        outbox = new SampleOutbox(folder.newFolder("outbox"), 64 * 1024);
+        batcher = new UploadBatcher(outbox, 4, 16);
+    }
+
+    @Test
+    public void batchesFollowSegmentsAndLimits() throws IOException {
+        append(1000);
+        // 300 campioni per batch, al massimo 4 batch: 1200 > 1000, ma i segmenti sono da 100
+        assertEquals(4, batcher.prepare(300));
+        assertEquals(300, batcher.batch(0).size());
+        assertEquals(0, batcher.firstSequence(0));
+        assertEquals(300, batcher.firstSequence(1));
+        assertEquals(900, batcher.firstSequence(3));
+        assertEquals(100, batcher.batch(3).size());
+        assertEquals(1000, batcher.samples());
+        assertEquals(timestamp(300), batcher.batch(1).timestamp(0));
+
+        // Al massimo maxBatches: il resto aspetta il giro successivo
+        assertEquals(4, batcher.prepare(200));
+        assertEquals(800, batcher.samples());
+    }
+
+    @Test
+    public void cursorTrimsExactlyThroughTheGap() throws IOException {
+        append(1000);
+        assertEquals(4, batcher.prepare(300));
+        // Il secondo batch e' fallito: il server ha tutto fino a 299, poi 600..999
+        assertTrue(batcher.finish(new boolean[]{true, false, true, true}, 299));
+        assertEquals(700, outbox.pendingSamples());
+        assertEquals(299, outbox.ackedThrough());
+
+        assertEquals(3, batcher.prepare(300));
+        assertEquals(300, batcher.firstSequence(0));
+        assertTrue(batcher.finish(new boolean[]{true, true, true}, 999));
+        assertEquals(0, outbox.pendingSamples());
+        assertEquals(0, batcher.prepare(300));
+    }
+
+    @Test
+    public void cursorCanStopInsideASegment() throws IOException {
+        append(200);
+        assertEquals(1, batcher.prepare(300));
+        assertTrue(batcher.finish(new boolean[]{true}, 149));
+        assertEquals(50, outbox.pendingSamples());
+
+        assertEquals(1, batcher.prepare(300));
+        assertEquals(150, batcher.firstSequence(0));
+        assertEquals(50, batcher.batch(0).size());
+        assertEquals(timestamp(150), batcher.batch(0).timestamp(0));
+    }
+
+    @Test
+    public void withoutCursorSuccessfulBatchesAreAcknowledged() throws IOException {
+        append(600);
+        assertEquals(2, batcher.prepare(300));
+        // Server vecchio: nessun cursore nella risposta
+        assertFalse(batcher.finish(new boolean[]{false, true}, -1));
+        assertEquals(300, outbox.pendingSamples());
+        assertEquals(-1, outbox.ackedThrough());
+
+        assertEquals(1, batcher.prepare(300));
+        assertEquals(0, batcher.firstSequence(0));
+    }
+
+    @Test
+    public void cursorBehindALostGapFallsBackToSegments() throws IOException {
+        append(300);
+        // I campioni 0..99 non ci sono piu' (segmento perso): il cursore del server resta
+        // prima del buco e non potrebbe piu' avanzare
+        outbox.acknowledge(outbox.oldestSealed());
+        assertEquals(1, batcher.prepare(300));
+        assertEquals(100, batcher.firstSequence(0));
+        assertFalse(batcher.finish(new boolean[]{true}, 50));
+        assertEquals(0, outbox.pendingSamples());
+    }
+
+    @Test
+    public void sequenceGapStartsANewBatch() throws IOException {
+        append(300);
+        outbox.acknowledge(outbox.sealedSegments().get(1));
+        assertEquals(2, batcher.prepare(1000));
+        assertEquals(0, batcher.firstSequence(0));
+        assertEquals(100, batcher.batch(0).size());
+        assertEquals(200, batcher.firstSequence(1));
+    }
+
+    @Test
+    public void samplesAppendedInFlightStayQueued() throws IOException {
+        append(300);
+        assertEquals(1, batcher.prepare(300));
+        append(50);
+        assertTrue(batcher.finish(new boolean[]{true}, 299));
+        assertEquals(50, outbox.pendingSamples());
+
+        // Il segmento attivo viene sigillato al giro successivo
+        assertEquals(1, batcher.prepare(300));
+        assertEquals(300, batcher.firstSequence(0));
+        assertEquals(50, batcher.samples());
+    }
+
+    @Test
+    public void batchesCarryTheWorkoutOfTheirSession() throws IOException {
+        outbox.appendText(SampleType.START, timestamp, "Running");
+        append(150);
+        outbox.appendText(SampleType.STOP, timestamp, "Running");
+        // La sessione successiva parte da un segmento nuovo anche se il precedente non e' pieno
+        outbox.appendText(SampleType.START, timestamp, "Cycling");
+        append(50);
+
+        assertEquals(2, batcher.prepare(1000));
+        assertEquals("Running", batcher.workout(0));
+        assertEquals(152, batcher.batch(0).size());
+        assertEquals("Cycling", batcher.workout(1));
+        assertEquals(SampleType.START, batcher.batch(1).type(0));
+        assertEquals(152, batcher.firstSequence(1));
+    }
+
+    @Test
+    public void workoutSurvivesRestart() throws IOException {
+        outbox.appendText(SampleType.START, timestamp, "Running");
+        append(100);
+        outbox.appendText(SampleType.START, timestamp, "Walking");
+        append(30);
+        outbox.seal();
+
+        // Processo terminato: l'outbox riaperto sa di che sessione e' ogni segmento
+        outbox = new SampleOutbox(folder.getRoot().toPath().resolve("outbox").toFile(), 64 * 1024);
+        batcher = new UploadBatcher(outbox, 4, 16);
+        assertEquals("Walking", outbox.workout());
+        // La sessione riprende senza START: i nuovi campioni restano di "Walking"
+        append(20);
+        assertEquals(2, batcher.prepare(1000));
+        assertEquals("Running", batcher.workout(0));
+        assertEquals("Walking", batcher.workout(1));
+        assertEquals(51, batcher.batch(1).size());
+
+        // Confermato tutto, l'allenamento corrente resta
+        assertTrue(batcher.finish(new boolean[]{true, true}, outbox.nextSequence() - 1));
+        outbox = new SampleOutbox(folder.getRoot().toPath().resolve("outbox").toFile(), 64 * 1024);
+        assertEquals("Walking", outbox.workout());
+    }
+
+    private void append(int samples) throws IOException {
+        for (int i = 0; i < samples; i++) {
+            outbox.append(SampleType.HEART_RATE, timestamp, 60 + i % 40);
+            timestamp += 1000;
+            if (outbox.activeCount() == SEGMENT_SAMPLES) {
+                outbox.seal();
+            }
+        }
+    }
+
+    private static long timestamp(long sequence) {
+        return 1700000000000L + sequence * 1000;
+    }
+}
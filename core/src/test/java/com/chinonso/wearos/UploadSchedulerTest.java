@@ -0,0 +1,181 @@
+package com.chinonso.wearos;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+import org.junit.Before;
+import org.junit.Test;
+
+public class UploadSchedulerTest {
+    private long now;
+    private int uploads;
+    private UploadScheduler scheduler;
+
+    @Before
+    public void setUp() {
+        now = 1000000;
+        uploads = 0;
+        scheduler = new UploadScheduler(() -> now, maxSamples -> uploads++, new Random(1));
+    }
+
+    @Test
+    public void nothingToUploadDoesNotMeasureRtt() {
+        scheduler.setBacklog(10);
+        scheduler.requestFlush();
+        scheduler.poll();
+        assertEquals(1, uploads);
+        assertTrue(scheduler.isInFlight());
+
+        now += 1;
+        scheduler.onNothingToUpload();
+
+        assertFalse(scheduler.isInFlight());
+        assertEquals(0, scheduler.averageRtt());
+        assertEquals(UploadScheduler.MIN_BATCH, scheduler.batchSize());
+    }
+
+    @Test
+    public void nothingToUploadKeepsBackoff() {
+        scheduler.setBacklog(10);
+        scheduler.requestFlush();
+        scheduler.poll();
+        now += 500;
+        scheduler.onUploadFinished(false, 0);
+        long retryAt = scheduler.nextAttemptAt();
+        assertTrue(retryAt > now);
+
+        now = retryAt;
+        scheduler.poll();
+        scheduler.onNothingToUpload();
+
+        assertEquals(1, scheduler.consecutiveFailures());
+        assertEquals(retryAt, scheduler.nextAttemptAt());
+    }
+
+    @Test
+    public void successfulUploadMeasuresRttAndGrowsBatch() {
+        scheduler.setBacklog(UploadScheduler.MIN_BATCH);
+        scheduler.poll();
+        assertEquals(1, uploads);
+
+        now += 200;
+        scheduler.onUploadFinished(true, UploadScheduler.MIN_BATCH);
+
+        assertEquals(200, scheduler.averageRtt());
+        assertEquals(2 * UploadScheduler.MIN_BATCH, scheduler.batchSize());
+    }
+
+    @Test
+    public void failuresBackOffAndHalveBatch() {
+        scheduler.setBacklog(UploadScheduler.MIN_BATCH);
+        scheduler.poll();
+        now += 100;
+        scheduler.onUploadFinished(true, UploadScheduler.MIN_BATCH);
+        int grown = scheduler.batchSize();
+
+        for (int i = 1; i <= 3; i++) {
+            assertBackoff(i, fail());
+        }
+        assertEquals(Math.max(UploadScheduler.MIN_BATCH, grown / 8), scheduler.batchSize());
+        // Durante il backoff non parte nulla
+        scheduler.requestFlush();
+        scheduler.poll();
+        assertEquals(4, uploads);
+    }
+
+    @Test
+    public void backoffIsCappedAtMaxBackoff() {
+        scheduler.setBacklog(UploadScheduler.MIN_BATCH);
+        // 30 s, 1, 2, 4 ... 64 minuti: dall'ottavo errore in poi vale il tetto
+        for (int i = 1; i <= 12; i++) {
+            assertBackoff(i, fail());
+        }
+        assertEquals(12, scheduler.consecutiveFailures());
+        assertEquals(UploadScheduler.MIN_BATCH, scheduler.batchSize());
+    }
+
+    @Test
+    public void lowBatteryDefersUploads() {
+        scheduler.setPowerState(UploadScheduler.LOW_BATTERY_PERCENT, false);
+        // Batch pieno, ma con batteria scarica non basta a far partire l'upload
+        scheduler.setBacklog(10 * UploadScheduler.MAX_BATCH);
+        long interval = UploadScheduler.LOW_BATTERY_FACTOR * UploadScheduler.DEFAULT_INTERVAL;
+        assertEquals(interval, scheduler.poll());
+        now += UploadScheduler.DEFAULT_INTERVAL;
+        assertEquals(interval - UploadScheduler.DEFAULT_INTERVAL, scheduler.poll());
+        assertEquals(0, uploads);
+
+        now += interval - UploadScheduler.DEFAULT_INTERVAL;
+        scheduler.poll();
+        assertEquals(1, uploads);
+
+        // Con la batteria sopra la soglia il batch pieno parte subito
+        now += 100;
+        scheduler.onUploadFinished(true, UploadScheduler.MIN_BATCH);
+        scheduler.setPowerState(UploadScheduler.LOW_BATTERY_PERCENT + 1, false);
+        scheduler.poll();
+        assertEquals(2, uploads);
+    }
+
+    @Test
+    public void chargingOrUnmeteredUsesPreferredInterval() {
+        scheduler.setBacklog(10);
+        assertEquals(UploadScheduler.DEFAULT_INTERVAL, scheduler.poll());
+
+        // In carica vale l'intervallo breve anche con la batteria scarica
+        scheduler.setPowerState(5, true);
+        assertEquals(UploadScheduler.PREFERRED_INTERVAL, scheduler.poll());
+        now += UploadScheduler.PREFERRED_INTERVAL;
+        scheduler.poll();
+        assertEquals(1, uploads);
+        scheduler.onUploadFinished(true, 10);
+
+        scheduler.setPowerState(80, false);
+        scheduler.setUnmetered(true);
+        assertEquals(UploadScheduler.PREFERRED_INTERVAL, scheduler.poll());
+        now += UploadScheduler.PREFERRED_INTERVAL - 1;
+        scheduler.poll();
+        assertEquals(1, uploads);
+        now += 1;
+        scheduler.poll();
+        assertEquals(2, uploads);
+    }
+
+    @Test
+    public void pollWhileInFlightDoesNotUploadAgain() {
+        scheduler.setBacklog(10 * UploadScheduler.MAX_BATCH);
+        scheduler.requestFlush();
+        scheduler.poll();
+        assertEquals(1, uploads);
+
+        // Flush richiesto, batch pieno e intervallo scaduto: si aspetta comunque la fine
+        scheduler.requestFlush();
+        now += 2 * UploadScheduler.DEFAULT_INTERVAL;
+        assertEquals(UploadScheduler.DEFAULT_INTERVAL, scheduler.poll());
+        scheduler.poll();
+        assertEquals(1, uploads);
+        assertTrue(scheduler.isInFlight());
+
+        scheduler.onUploadFinished(true, UploadScheduler.MIN_BATCH);
+        scheduler.poll();
+        assertEquals(2, uploads);
+    }
+
+    // Un upload fallito; restituisce il ritardo prima del tentativo successivo
+    private long fail() {
+        scheduler.requestFlush();
+        now = Math.max(now, scheduler.nextAttemptAt());
+        scheduler.poll();
+        scheduler.onUploadFinished(false, 0);
+        return scheduler.nextAttemptAt() - now;
+    }
+
+    // Equal jitter: fra meta' e tutto il tetto MIN_BACKOFF * 2^(errori - 1), al massimo MAX_BACKOFF
+    private void assertBackoff(int failures, long delay) {
+        assertEquals(failures, scheduler.consecutiveFailures());
+        long ceiling = Math.min(UploadScheduler.MAX_BACKOFF, UploadScheduler.MIN_BACKOFF << (failures - 1));
+        assertTrue("backoff " + delay + " after " + failures + " failures", delay >= ceiling / 2 && delay <= ceiling);
+    }
+}
@@ -0,0 +1,589 @@
+package com.chinonso.wearos;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.ConnectionPool;
+import okhttp3.Dispatcher;
+import okhttp3.MediaType;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+
+// Simula una flotta di orologi contro un solo server di ingest. Ogni orologio virtuale
+// rigioca la stessa traccia (sintetica o registrata) da un punto diverso, attraverso
+// la pipeline dell'orologio (FixSelector, TrackSimplifier, CapturePipeline) e decide
+// gli invii con il proprio UploadScheduler, come MonitoringService. Al primo avvio si
+// registra su /api/register. Le richieste vanno a StandInServer o al server indicato con --url.
+//
+// Il tempo e' simulato a passi di un secondo e scorre --speed volte piu' veloce del
+// reale: anche il server riceve le richieste --speed volte piu' fitte. Le latenze sono
+// misurate in tempo reale. Per non essere sommersi dai dati, l'outbox di ogni orologio
+// e' in memoria.
+//
+//   FleetSimulator [--devices 1000] [--hours 2] [--speed 60] [--start-spread minuti]
+//                  [--workout nome] [--compact] [--trace file] [--connections 64]
+//                  [--server-threads 4] [--url http://host:porta]
+// --start-spread 0 (default): tutti gli orologi partono insieme, il caso peggiore.
+// --speed 0 va alla massima velocita', ma allora ogni risposta arriva "tardi" in tempo
+// simulato e UploadScheduler vede RTT gonfiati (batch piu' piccoli del reale).
+public final class FleetSimulator {
+    // Costanti di android.hardware.Sensor
+    private static final int TYPE_PRESSURE = 6;
+    private static final int TYPE_STEP_COUNTER = 19;
+    private static final int TYPE_HEART_RATE = 21;
+
+    private static final String DAILY_WORKOUT = "Monitoraggio Giornaliero";
+    private static final int SAMPLE_RING_CAPACITY = 512;
+    private static final long ROLLUP_RESOLUTION = 60 * 1000;
+    private static final long SECOND = 1000;
+    private static final long HOUR = 60 * 60 * 1000;
+    private static final long SIMULATION_START = 1700000000000L / HOUR * HOUR;
+    private static final long DRAIN_TIMEOUT = 30 * 1000;
+    private static final MediaType JSON = MediaType.get("application/json; charset=utf-8");
+
+    // La traccia, caricata una volta sola e condivisa da tutti gli orologi
+    private static final class Trace {
+        final int size;
+        final byte[] kinds;
+        final int[] sensorTypes;
+        final long[] deliveredNanos;
+        final long[] eventNanos;
+        final float[] values;
+        final LocationRecord[] locations;
+        final long duration;
+        // Il contapassi e' cumulativo: a ogni giro della traccia si riparte da qui
+        final float stepsPerLap;
+
+        Trace(File file) throws IOException {
+            List<SensorTrace.Event> events = new ArrayList<>();
+            long start;
+            try (SensorTrace.Reader reader = new SensorTrace.Reader(new FileInputStream(file))) {
+                start = reader.startElapsedNanos;
+                SensorTrace.Event event = new SensorTrace.Event();
+                while (reader.next(event)) {
+                    SensorTrace.Event copy = new SensorTrace.Event();
+                    copy.kind = event.kind;
+                    copy.sensorType = event.sensorType;
+                    copy.deliveredNanos = event.deliveredNanos;
+                    copy.eventNanos = event.eventNanos;
+                    copy.values[0] = event.values[0];
+                    copy.location = event.location;
+                    events.add(copy);
+                }
+            }
+            if (events.isEmpty()) {
+                throw new IOException("Empty trace " + file);
+            }
+            size = events.size();
+            kinds = new byte[size];
+            sensorTypes = new int[size];
+            deliveredNanos = new long[size];
+            eventNanos = new long[size];
+            values = new float[size];
+            locations = new LocationRecord[size];
+            float firstSteps = Float.NaN;
+            float lastSteps = 0;
+            for (int i = 0; i < size; i++) {
+                SensorTrace.Event event = events.get(i);
+                kinds[i] = (byte) event.kind;
+                sensorTypes[i] = event.sensorType;
+                deliveredNanos[i] = event.deliveredNanos - start;
+                eventNanos[i] = event.eventNanos - start;
+                values[i] = event.values[0];
+                locations[i] = event.location;
+                if (event.kind == SensorTrace.KIND_SENSOR && event.sensorType == TYPE_STEP_COUNTER) {
+                    if (Float.isNaN(firstSteps)) {
+                        firstSteps = event.values[0];
+                    }
+                    lastSteps = event.values[0];
+                }
+            }
+            duration = deliveredNanos[size - 1] + SECOND * 1000000;
+            stepsPerLap = Float.isNaN(firstSteps) ? 0 : lastSteps - firstSteps;
+        }
+    }
+
+    // Esito di una richiesta, prodotto sui thread di OkHttp e consumato dal ciclo principale
+    private static final class Completion {
+        final Watch watch;
+        final boolean registration;
+        final boolean successful;
+        final long latencyNanos;
+        final long bytes;
+
+        Completion(Watch watch, boolean registration, boolean successful, long latencyNanos, long bytes) {
+            this.watch = watch;
+            this.registration = registration;
+            this.successful = successful;
+            this.latencyNanos = latencyNanos;
+            this.bytes = bytes;
+        }
+    }
+
+    private final class Watch {
+        final String userId;
+        final long startAt;
+        final long phaseNanos;
+        final CapturePipeline capture = new CapturePipeline(SAMPLE_RING_CAPACITY, accepted -> {});
+        final SampleRing ring = capture.ring();
+        final TrackSimplifier trackSimplifier = new TrackSimplifier(10, 5 * 60 * 1000, capture::addLocation);
+        final FixSelector fixSelector = new FixSelector(2000, 30000, 50, trackSimplifier::add);
+        UploadScheduler scheduler;
+        SampleBuffer outbox = new SampleBuffer(256);
+        SampleBuffer spare = new SampleBuffer(256);
+        SampleBuffer sending = new SampleBuffer(256);
+
+        boolean started;
+        int index;
+        long lap;
+        float initialSteps = Float.NaN;
+        long nextPollAt;
+
+        Watch(int number, long startAt, long phaseNanos) {
+            this.userId = "fleet-" + number;
+            this.startAt = startAt;
+            this.phaseNanos = phaseNanos;
+        }
+
+        void start() {
+            started = true;
+            scheduler = new UploadScheduler(() -> now, this::upload, new Random(userId.hashCode()));
+            capture.start(FilterPolicy.forWorkout(workout), DAILY_WORKOUT.equals(workout) ? ROLLUP_RESOLUTION : 0);
+            capture.addText(SampleType.START, now, workout);
+            index = Arrays.binarySearch(trace.deliveredNanos, phaseNanos);
+            index = index >= 0 ? index : -index - 1;
+            if (index == trace.size) {
+                index = 0;
+                lap = 1;
+            }
+            register(this);
+        }
+
+        // Eventi della traccia fino a now, poi controllo degli upload se e' il momento
+        void advance() {
+            long traceNow = (now - startAt) * 1000000 + phaseNanos;
+            while (lap * trace.duration + trace.deliveredNanos[index] <= traceNow) {
+                onEvent(index, lap * trace.duration);
+                if (++index == trace.size) {
+                    index = 0;
+                    lap++;
+                }
+            }
+            drainRing();
+            if (now >= nextPollAt) {
+                capture.closeWindowsBefore(now);
+                drainRing();
+                scheduler.setBacklog(outbox.size());
+                nextPollAt = now + scheduler.poll();
+            }
+        }
+
+        private void onEvent(int i, long lapNanos) {
+            long timestamp = startAt + (lapNanos + trace.eventNanos[i] - phaseNanos) / 1000000;
+            if (trace.kinds[i] == SensorTrace.KIND_LOCATION) {
+                long age = (trace.deliveredNanos[i] - trace.eventNanos[i]) / 1000000;
+                fixSelector.add(now, timestamp, age, trace.locations[i]);
+                return;
+            }
+            float value = trace.values[i];
+            switch (trace.sensorTypes[i]) {
+                case TYPE_HEART_RATE:
+                    capture.add(SampleType.HEART_RATE, timestamp, (int) value);
+                    break;
+                case TYPE_STEP_COUNTER:
+                    float totalSteps = value + lap * trace.stepsPerLap;
+                    if (Float.isNaN(initialSteps)) {
+                        initialSteps = totalSteps;
+                    }
+                    capture.add(SampleType.STEP_COUNT, timestamp, totalSteps - initialSteps);
+                    break;
+                case TYPE_PRESSURE:
+                    capture.add(SampleType.ALTITUDE, timestamp, Barometer.altitude(Barometer.PRESSURE_STANDARD_ATMOSPHERE, value));
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        private void drainRing() {
+            while (!ring.isEmpty()) {
+                int type = ring.peekType();
+                if (SampleType.isText(type)) {
+                    outbox.addText(type, ring.peekTimestamp(), ring.peekText());
+                } else if (SampleType.isLocation(type)) {
+                    outbox.addLocation(ring.peekTimestamp(), ring.peekLocation());
+                } else {
+                    outbox.add(type, ring.peekTimestamp(), ring.peekValue());
+                }
+                ring.poll();
+            }
+        }
+
+        // Transport di UploadScheduler: i primi maxSamples campioni dell'outbox in un batch
+        private void upload(int maxSamples) {
+            if (outbox.isEmpty()) {
+                scheduler.onNothingToUpload();
+                return;
+            }
+            sending.clear();
+            spare.clear();
+            for (int i = 0; i < outbox.size(); i++) {
+                copy(outbox, i, i < maxSamples ? sending : spare);
+            }
+            SampleBuffer drained = outbox;
+            outbox = spare;
+            spare = drained;
+            post(this, new BatchRequestBody(sending, userId, workout, compact));
+        }
+
+        void onUploadFinished(boolean successful) {
+            int samples = sending.size();
+            if (!successful) {
+                // Il batch torna in testa all'outbox, come i segmenti non confermati
+                spare.clear();
+                for (int i = 0; i < sending.size(); i++) {
+                    copy(sending, i, spare);
+                }
+                for (int i = 0; i < outbox.size(); i++) {
+                    copy(outbox, i, spare);
+                }
+                SampleBuffer merged = spare;
+                spare = outbox;
+                outbox = merged;
+            }
+            sending.clear();
+            scheduler.onUploadFinished(successful, samples);
+            nextPollAt = now;
+        }
+    }
+
+    private final Trace trace;
+    private final String workout;
+    private final boolean compact;
+    private final double speed;
+    private final String bulkDataUrl;
+    private final String registerUrl;
+    private final OkHttpClient client;
+    private final List<Watch> watches = new ArrayList<>();
+    private final ConcurrentLinkedQueue<Completion> completions = new ConcurrentLinkedQueue<>();
+
+    // Tempo simulato in ms; tutti gli orologi condividono lo stesso
+    private long now = SIMULATION_START;
+    private int inFlight;
+
+    private long requests;
+    private long failedRequests;
+    private long registrations;
+    private long failedRegistrations;
+    private long samplesSent;
+    private long[] latencies = new long[1024];
+    private int latencyCount;
+    private long[] registerLatencies = new long[1024];
+    private int registerLatencyCount;
+    private long[] payloadSizes = new long[1024];
+    private final int[] perSimulatedSecond;
+    private final int[] perMinuteOfHour = new int[60];
+    private long[] realSendTimes = new long[1024];
+    private long realStart;
+
+    private FleetSimulator(Trace trace, int devices, int hours, long startSpread, String workout, boolean compact,
+                           double speed, int connections, String baseUrl, long seed) {
+        this.trace = trace;
+        this.workout = workout;
+        this.compact = compact;
+        this.speed = speed;
+        this.bulkDataUrl = baseUrl + StandInServer.BULK_DATA_PATH;
+        this.registerUrl = baseUrl + StandInServer.REGISTER_PATH;
+        // Il client condiviso dell'app limita le richieste per host: qui ogni connessione
+        // rappresenta un orologio diverso, quindi il limite e' --connections
+        Dispatcher dispatcher = new Dispatcher();
+        dispatcher.setMaxRequests(connections);
+        dispatcher.setMaxRequestsPerHost(connections);
+        client = new HttpTransport(false).client().newBuilder()
+                .dispatcher(dispatcher)
+                .connectionPool(new ConnectionPool(connections, 5, TimeUnit.MINUTES))
+                .build();
+        Random random = new Random(seed);
+        for (int i = 0; i < devices; i++) {
+            long startAt = SIMULATION_START + (startSpread > 0 ? (long) (random.nextDouble() * startSpread) / SECOND * SECOND : 0);
+            watches.add(new Watch(i, startAt, (long) (random.nextDouble() * trace.duration)));
+        }
+        perSimulatedSecond = new int[(int) ((hours * HOUR + startSpread) / SECOND) + 1];
+    }
+
+    public static void main(String[] args) throws Exception {
+        int devices = 1000;
+        int hours = 2;
+        double speed = 60;
+        long startSpread = 0;
+        String workout = DAILY_WORKOUT;
+        boolean compact = false;
+        String tracePath = null;
+        int connections = 64;
+        int serverThreads = 4;
+        String url = null;
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--devices":
+                    devices = Integer.parseInt(args[++i]);
+                    break;
+                case "--hours":
+                    hours = Integer.parseInt(args[++i]);
+                    break;
+                case "--speed":
+                    speed = Double.parseDouble(args[++i]);
+                    break;
+                case "--start-spread":
+                    startSpread = Long.parseLong(args[++i]) * 60 * SECOND;
+                    break;
+                case "--workout":
+                    workout = args[++i];
+                    break;
+                case "--compact":
+                    compact = true;
+                    break;
+                case "--trace":
+                    tracePath = args[++i];
+                    break;
+                case "--connections":
+                    connections = Integer.parseInt(args[++i]);
+                    break;
+                case "--server-threads":
+                    serverThreads = Integer.parseInt(args[++i]);
+                    break;
+                case "--url":
+                    url = args[++i];
+                    break;
+                default:
+                    System.err.println("Usage: FleetSimulator [--devices n] [--hours h] [--speed x] [--start-spread minutes]"
+                            + " [--workout name] [--compact] [--trace file] [--connections n] [--server-threads n] [--url base]");
+                    System.exit(2);
+                    return;
+            }
+        }
+
+        File traceFile;
+        if (tracePath != null) {
+            traceFile = new File(tracePath);
+        } else {
+            traceFile = File.createTempFile("synthetic", ".trace");
+            traceFile.deleteOnExit();
+            SyntheticTrace.write(traceFile, Math.min(hours, 24), 42);
+        }
+        Trace trace = new Trace(traceFile);
+
+        StandInServer server = url == null ? new StandInServer(serverThreads) : null;
+        try {
+            String baseUrl = server != null ? server.url("") : url;
+            FleetSimulator simulator = new FleetSimulator(trace, devices, hours, startSpread, workout, compact,
+                    speed, connections, baseUrl, 42);
+            simulator.run(hours * HOUR + startSpread);
+            if (server != null) {
+                System.out.println("Stand-in server saw " + server.requests() + " uploads, "
+                        + server.registrations() + " registrations, " + server.bytesReceived() + " bytes");
+            }
+        } finally {
+            if (server != null) {
+                server.close();
+            }
+        }
+    }
+
+    private void run(long duration) throws InterruptedException {
+        realStart = System.nanoTime();
+        long end = SIMULATION_START + duration;
+        for (; now < end; now += SECOND) {
+            collectCompletions();
+            for (Watch watch : watches) {
+                if (!watch.started) {
+                    if (now < watch.startAt) {
+                        continue;
+                    }
+                    watch.start();
+                }
+                watch.advance();
+            }
+            if (speed > 0) {
+                long realTarget = (long) ((now + SECOND - SIMULATION_START) * 1000000 / speed);
+                long ahead = realTarget - (System.nanoTime() - realStart);
+                if (ahead > 1000000) {
+                    Thread.sleep(ahead / 1000000);
+                }
+            }
+        }
+        long drainUntil = System.nanoTime() + DRAIN_TIMEOUT * 1000000;
+        while (inFlight > 0 && System.nanoTime() < drainUntil) {
+            Thread.sleep(10);
+            collectCompletions();
+        }
+        report((System.nanoTime() - realStart) / 1e9, duration);
+        client.dispatcher().executorService().shutdown();
+        client.connectionPool().evictAll();
+    }
+
+    private void register(Watch watch) {
+        String json = "{\"userId\":\"" + watch.userId + "\",\"name\":\"" + watch.userId
+                + "\",\"weight\":160,\"height\":70,\"gender\":\"male\"}";
+        send(watch, true, new Request.Builder().url(registerUrl).post(RequestBody.create(json, JSON)).build());
+    }
+
+    private void post(Watch watch, BatchRequestBody body) {
+        requests++;
+        samplesSent += watch.sending.size();
+        int second = (int) ((now - SIMULATION_START) / SECOND);
+        if (second < perSimulatedSecond.length) {
+            perSimulatedSecond[second]++;
+        }
+        perMinuteOfHour[(int) (now % HOUR / (60 * SECOND))]++;
+        if (realSendTimes.length == requests) {
+            realSendTimes = Arrays.copyOf(realSendTimes, realSendTimes.length * 2);
+        }
+        realSendTimes[(int) requests - 1] = System.nanoTime() - realStart;
+        send(watch, false, new Request.Builder()
+                .url(bulkDataUrl)
+                .header("Content-Encoding", BatchRequestBody.CONTENT_ENCODING)
+                .post(body)
+                .build());
+    }
+
+    private void send(Watch watch, boolean registration, Request request) {
+        RequestBody body = request.body();
+        inFlight++;
+        long sentAt = System.nanoTime();
+        client.newCall(request).enqueue(new Callback() {
+            @Override
+            public void onFailure(Call call, IOException e) {
+                completions.add(new Completion(watch, registration, false, System.nanoTime() - sentAt, bytes(body)));
+            }
+
+            @Override
+            public void onResponse(Call call, Response response) {
+                boolean successful = response.isSuccessful();
+                response.close();
+                completions.add(new Completion(watch, registration, successful, System.nanoTime() - sentAt, bytes(body)));
+            }
+        });
+    }
+
+    private static long bytes(RequestBody body) {
+        return body instanceof BatchRequestBody ? ((BatchRequestBody) body).bytesWritten() : 0;
+    }
+
+    private void collectCompletions() {
+        for (Completion completion; (completion = completions.poll()) != null; ) {
+            inFlight--;
+            if (completion.registration) {
+                registrations++;
+                if (!completion.successful) {
+                    failedRegistrations++;
+                }
+                if (registerLatencyCount == registerLatencies.length) {
+                    registerLatencies = Arrays.copyOf(registerLatencies, registerLatencyCount * 2);
+                }
+                registerLatencies[registerLatencyCount++] = completion.latencyNanos;
+                continue;
+            }
+            if (!completion.successful) {
+                failedRequests++;
+            }
+            if (latencyCount == latencies.length) {
+                latencies = Arrays.copyOf(latencies, latencyCount * 2);
+                payloadSizes = Arrays.copyOf(payloadSizes, latencyCount * 2);
+            }
+            payloadSizes[latencyCount] = completion.bytes;
+            latencies[latencyCount++] = completion.latencyNanos;
+            completion.watch.onUploadFinished(completion.successful);
+        }
+    }
+
+    private void report(double realSeconds, long duration) {
+        System.out.printf(Locale.US, "Fleet: %d devices, %s, %s, %.1f h simulated in %.1f s%n",
+                watches.size(), workout, compact ? "compact" : "json", duration / (double) HOUR, realSeconds);
+        System.out.println("Registrations: " + registrations + " (" + failedRegistrations + " failed), latency ms "
+                + percentiles(registerLatencies, registerLatencyCount, 1e6));
+        System.out.println("Uploads: " + requests + " requests (" + failedRequests + " failed), " + samplesSent + " samples");
+        if (requests == 0) {
+            return;
+        }
+
+        int peakSecond = 0;
+        for (int i = 1; i < perSimulatedSecond.length; i++) {
+            if (perSimulatedSecond[i] > perSimulatedSecond[peakSecond]) {
+                peakSecond = i;
+            }
+        }
+        double averagePerSecond = requests / (duration / (double) SECOND);
+        System.out.printf(Locale.US, "Rate (simulated time): avg %.2f req/s, peak %d req/s at +%s (%.0fx the average)%n",
+                averagePerSecond, perSimulatedSecond[peakSecond], UiState.formatTimer(peakSecond),
+                perSimulatedSecond[peakSecond] / averagePerSecond);
+        System.out.printf(Locale.US, "Rate (seen by the server): avg %.1f req/s, peak %d req/s%n",
+                requests / realSeconds, peakRealRate());
+
+        System.out.println("Payload bytes (gzip): " + percentiles(payloadSizes, latencyCount, 1));
+        System.out.println("Upload latency ms: " + percentiles(latencies, latencyCount, 1e6));
+
+        int busiest = 0;
+        for (int minute = 1; minute < 60; minute++) {
+            if (perMinuteOfHour[minute] > perMinuteOfHour[busiest]) {
+                busiest = minute;
+            }
+        }
+        System.out.printf(Locale.US, "Burst alignment: %.1f%% of uploads in minute :%02d of the hour (uniform would be 1.7%%)%n",
+                100.0 * perMinuteOfHour[busiest] / requests, busiest);
+        StringBuilder histogram = new StringBuilder("Uploads by minute of the hour:");
+        for (int bucket = 0; bucket < 60; bucket += 5) {
+            int count = 0;
+            for (int minute = bucket; minute < bucket + 5; minute++) {
+                count += perMinuteOfHour[minute];
+            }
+            histogram.append(String.format(Locale.US, " :%02d %d", bucket, count));
+        }
+        System.out.println(histogram);
+    }
+
+    // Richieste partite nel secondo reale piu' affollato
+    private int peakRealRate() {
+        int peak = 0;
+        int first = 0;
+        for (int i = 0; i < requests; i++) {
+            while (realSendTimes[i] - realSendTimes[first] >= 1000000000L) {
+                first++;
+            }
+            peak = Math.max(peak, i - first + 1);
+        }
+        return peak;
+    }
+
+    private static String percentiles(long[] values, int count, double unit) {
+        if (count == 0) {
+            return "-";
+        }
+        long[] sorted = Arrays.copyOf(values, count);
+        Arrays.sort(sorted);
+        return String.format(Locale.US, "p50 %.1f, p90 %.1f, p99 %.1f, p99.9 %.1f, max %.1f",
+                sorted[(int) (count * 0.5)] / unit, sorted[(int) (count * 0.9)] / unit,
+                sorted[(int) (count * 0.99)] / unit, sorted[(int) (count * 0.999)] / unit, sorted[count - 1] / unit);
+    }
+
+    private static void copy(SampleBuffer from, int index, SampleBuffer to) {
+        int type = from.type(index);
+        if (SampleType.isText(type)) {
+            to.addText(type, from.timestamp(index), from.text(index));
+        } else if (SampleType.isLocation(type)) {
+            to.addLocation(from.timestamp(index), from.location(index));
+        } else {
+            to.add(type, from.timestamp(index), from.value(index));
+        }
+    }
+}
@@ -0,0 +1,312 @@
+package com.chinonso.wearos;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import okhttp3.Request;
+import okhttp3.Response;
+
+// Rigioca una traccia registrata da MonitoringService (preferenza "recordTrace") attraverso
+// la stessa pipeline dell'orologio: FixSelector, TrackSimplifier, CapturePipeline, SampleOutbox,
+// UploadScheduler e BatchRequestBody, con un orologio finto e StandInServer al posto del server.
+// Tutto gira su un thread solo: ingestion e upload thread qui coincidono.
+//
+//   ReplayHarness <trace> [--speed 1|100|0] [--workout nome] [--compact]
+//   ReplayHarness --synthetic <ore> [...]
+// --speed 0 (default) va alla massima velocita'.
+public final class ReplayHarness {
+    // Costanti di android.hardware.Sensor
+    private static final int TYPE_PRESSURE = 6;
+    private static final int TYPE_STEP_COUNTER = 19;
+    private static final int TYPE_HEART_RATE = 21;
+
+    private static final String DAILY_WORKOUT = "Monitoraggio Giornaliero";
+    private static final int OUTBOX_SEGMENT_SIZE = 16 * 1024;
+    private static final int SAMPLE_RING_CAPACITY = 4096;
+    private static final long ROLLUP_RESOLUTION = 60 * 1000;
+    private static final String USER_ID = "replay";
+    private static final int HEAP_SAMPLE_EVENTS = 1024;
+
+    private final String workout;
+    private final boolean compact;
+    private final double speed;
+    private final StandInServer server;
+    private final HttpTransport transport = new HttpTransport(false);
+
+    // Orologio finto: elapsedRealtime della traccia, in ns
+    private long nowNanos;
+    private long startWall;
+    private long startNanos;
+
+    private final CapturePipeline capture = new CapturePipeline(SAMPLE_RING_CAPACITY, accepted -> {});
+    private final SampleRing ring = capture.ring();
+    private final TrackSimplifier trackSimplifier = new TrackSimplifier(10, 5 * 60 * 1000, capture::addLocation);
+    private final FixSelector fixSelector = new FixSelector(2000, 30000, 50, trackSimplifier::add);
+    private final UploadScheduler scheduler;
+    private final SampleOutbox outbox;
+    private final SampleBuffer uploadBatch = new SampleBuffer(UploadScheduler.MAX_BATCH);
+    private final List<File> uploadingSegments = new ArrayList<>();
+
+    private int initialStepCount = -1;
+    private long nextPollNanos;
+
+    private long events;
+    private long uploads;
+    private long failedUploads;
+    private long samplesUploaded;
+    private long bytesUploaded;
+
+    private final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+    private long peakHeap;
+
+    private ReplayHarness(File outboxDir, String workout, boolean compact, double speed, StandInServer server) throws IOException {
+        this.workout = workout;
+        this.compact = compact;
+        this.speed = speed;
+        this.server = server;
+        this.outbox = new SampleOutbox(outboxDir, OUTBOX_SEGMENT_SIZE);
+        this.scheduler = new UploadScheduler(() -> nowNanos / 1000000, this::uploadBatch, new Random(1));
+    }
+
+    public static void main(String[] args) throws Exception {
+        String tracePath = null;
+        int syntheticHours = 0;
+        double speed = 0;
+        String workout = DAILY_WORKOUT;
+        boolean compact = false;
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--speed":
+                    speed = Double.parseDouble(args[++i]);
+                    break;
+                case "--workout":
+                    workout = args[++i];
+                    break;
+                case "--compact":
+                    compact = true;
+                    break;
+                case "--synthetic":
+                    syntheticHours = Integer.parseInt(args[++i]);
+                    break;
+                default:
+                    tracePath = args[i];
+            }
+        }
+        File trace;
+        if (syntheticHours > 0) {
+            trace = File.createTempFile("synthetic", ".trace");
+            trace.deleteOnExit();
+            SyntheticTrace.write(trace, syntheticHours, 42);
+        } else if (tracePath != null) {
+            trace = new File(tracePath);
+        } else {
+            System.err.println("Usage: ReplayHarness <trace> | --synthetic <hours> [--speed 1|100|0] [--workout name] [--compact]");
+            System.exit(2);
+            return;
+        }
+
+        File outboxDir = File.createTempFile("outbox", "");
+        outboxDir.delete();
+        try (StandInServer server = new StandInServer()) {
+            ReplayHarness harness = new ReplayHarness(outboxDir, workout, compact, speed, server);
+            harness.run(trace);
+        } finally {
+            File[] files = outboxDir.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    file.delete();
+                }
+            }
+            outboxDir.delete();
+        }
+    }
+
+    private void run(File trace) throws IOException, InterruptedException {
+        long realStart = System.nanoTime();
+        SensorTrace.Event event = new SensorTrace.Event();
+        try (SensorTrace.Reader reader = new SensorTrace.Reader(new FileInputStream(trace))) {
+            startWall = reader.startWall;
+            startNanos = reader.startElapsedNanos;
+            nowNanos = startNanos;
+            capture.start(FilterPolicy.forWorkout(workout), DAILY_WORKOUT.equals(workout) ? ROLLUP_RESOLUTION : 0);
+            capture.addText(SampleType.START, startWall, workout);
+            while (reader.next(event)) {
+                advanceTo(event.deliveredNanos, realStart);
+                if (event.kind == SensorTrace.KIND_SENSOR) {
+                    onSensorEvent(event);
+                } else {
+                    onLocation(event);
+                }
+                drainRing();
+                if (++events % HEAP_SAMPLE_EVENTS == 0) {
+                    sampleHeap();
+                }
+            }
+        }
+        fixSelector.closeWindow();
+        trackSimplifier.flush();
+        capture.flush();
+        capture.addText(SampleType.STOP, wallNow(), workout);
+        drainRing();
+        // Fine sessione: come flushUploads, finche' l'outbox non e' vuoto
+        while (outbox.pendingSamples() > 0 || outbox.activeCount() > 0) {
+            long uploadsBefore = uploads;
+            scheduler.requestFlush();
+            pollScheduler();
+            if (uploads == uploadsBefore) {
+                // backoff dopo un errore: il tempo finto avanza fino al prossimo tentativo
+                nowNanos = Math.max(nowNanos, scheduler.nextAttemptAt() * 1000000);
+            }
+        }
+        long realNanos = System.nanoTime() - realStart;
+        sampleHeap();
+        double simulatedSeconds = (nowNanos - startNanos) / 1e9;
+        double realSeconds = realNanos / 1e9;
+        System.out.printf(java.util.Locale.US, "Replayed %d events, %.1f h simulated in %.2f s (%.0fx)%n",
+                events, simulatedSeconds / 3600, realSeconds, simulatedSeconds / realSeconds);
+        System.out.printf(java.util.Locale.US, "Throughput: %.0f events/s%n", events / realSeconds);
+        System.out.printf(java.util.Locale.US, "Peak heap used: %.1f MB%n", peakHeap / 1048576.0);
+        System.out.println("Uploads: " + uploads + " requests (" + failedUploads + " failed), "
+                + samplesUploaded + " samples, " + bytesUploaded + " bytes gzip"
+                + " (server saw " + server.requests() + " requests, " + server.bytesReceived() + " bytes)");
+        System.out.println("Fixes: " + fixSelector.received() + " received, " + fixSelector.emitted() + " chosen, "
+                + trackSimplifier.emitted() + " sent");
+        java.io.PrintWriter writer = new java.io.PrintWriter(System.out, true);
+        capture.filter().dump(writer);
+    }
+
+    // Fa avanzare l'orologio finto fino all'evento, eseguendo quello che l'orologio vero
+    // avrebbe fatto nel frattempo (controlli di upload). Con speed > 0 aspetta il tempo reale.
+    private void advanceTo(long deliveredNanos, long realStart) throws InterruptedException {
+        while (true) {
+            nowNanos = Math.max(nowNanos, Math.min(deliveredNanos, nextPollNanos));
+            if (nowNanos >= nextPollNanos) {
+                pollScheduler();
+            }
+            if (nowNanos >= deliveredNanos) {
+                break;
+            }
+        }
+        if (speed > 0) {
+            long realTarget = (long) ((deliveredNanos - startNanos) / speed);
+            long ahead = realTarget - (System.nanoTime() - realStart);
+            if (ahead > 1000000) {
+                Thread.sleep(ahead / 1000000);
+            }
+        }
+    }
+
+    private long wallNow() {
+        return startWall + (nowNanos - startNanos) / 1000000;
+    }
+
+    // Stessa logica di MonitoringService.onSensorChanged
+    private void onSensorEvent(SensorTrace.Event event) {
+        long timestamp = EventClock.toWallClock(event.eventNanos, event.deliveredNanos, wallNow());
+        if (event.sensorType == TYPE_HEART_RATE) {
+            capture.add(SampleType.HEART_RATE, timestamp, (int) event.values[0]);
+        } else if (event.sensorType == TYPE_STEP_COUNTER) {
+            int totalSteps = (int) event.values[0];
+            if (initialStepCount == -1) {
+                initialStepCount = totalSteps;
+            }
+            capture.add(SampleType.STEP_COUNT, timestamp, totalSteps - initialStepCount);
+        } else if (event.sensorType == TYPE_PRESSURE) {
+            capture.add(SampleType.ALTITUDE, timestamp, Barometer.altitude(Barometer.PRESSURE_STANDARD_ATMOSPHERE, event.values[0]));
+        }
+    }
+
+    private void onLocation(SensorTrace.Event event) {
+        long now = nowNanos / 1000000;
+        long age = (event.deliveredNanos - event.eventNanos) / 1000000;
+        fixSelector.add(now, event.time, age, event.location);
+    }
+
+    private void drainRing() throws IOException {
+        while (!ring.isEmpty()) {
+            int type = ring.peekType();
+            if (SampleType.isText(type)) {
+                outbox.appendText(type, ring.peekTimestamp(), ring.peekText());
+            } else if (SampleType.isLocation(type)) {
+                outbox.appendLocation(ring.peekTimestamp(), ring.peekLocation());
+            } else {
+                outbox.append(type, ring.peekTimestamp(), ring.peekValue());
+            }
+            ring.poll();
+        }
+    }
+
+    // Heap usato in quel momento, garbage non ancora raccolto compreso. Il massimo dei
+    // campionamenti vale per l'heap intero: i picchi dei singoli pool cadono in momenti
+    // diversi e la loro somma lo sovrastima.
+    private void sampleHeap() {
+        peakHeap = Math.max(peakHeap, memory.getHeapMemoryUsage().getUsed());
+    }
+
+    private void pollScheduler() {
+        capture.closeWindowsBefore(wallNow());
+        scheduler.setBacklog(outbox.pendingSamples());
+        nextPollNanos = nowNanos + scheduler.poll() * 1000000;
+    }
+
+    // Transport di UploadScheduler: come MonitoringService.uploadBatch, ma sincrono
+    private void uploadBatch(int maxSamples) {
+        try {
+            drainRing();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        outbox.seal();
+        uploadBatch.clear();
+        uploadingSegments.clear();
+        for (File segment : outbox.sealedSegments()) {
+            if (!uploadBatch.isEmpty() && uploadBatch.size() + outbox.sampleCount(segment) > maxSamples) {
+                break;
+            }
+            try {
+                outbox.read(segment, uploadBatch);
+            } catch (IOException e) {
+                System.err.println("Unreadable outbox segment " + segment.getName() + ": " + e);
+            }
+            uploadingSegments.add(segment);
+        }
+        if (uploadBatch.isEmpty()) {
+            scheduler.onNothingToUpload();
+            return;
+        }
+
+        int samples = uploadBatch.size();
+        BatchRequestBody body = new BatchRequestBody(uploadBatch, USER_ID, workout, compact);
+        Request request = new Request.Builder()
+                .url(server.url(StandInServer.BULK_DATA_PATH))
+                .header("Content-Encoding", BatchRequestBody.CONTENT_ENCODING)
+                .post(body)
+                .build();
+        boolean successful;
+        try (Response response = transport.client().newCall(request).execute()) {
+            successful = response.isSuccessful();
+        } catch (IOException e) {
+            System.err.println("Upload failed: " + e);
+            successful = false;
+        }
+        // Il batch e' ancora in memoria: e' il momento di massimo heap
+        sampleHeap();
+        uploads++;
+        bytesUploaded += body.bytesWritten();
+        if (successful) {
+            samplesUploaded += samples;
+            for (File segment : uploadingSegments) {
+                outbox.acknowledge(segment);
+            }
+        } else {
+            failedUploads++;
+        }
+        uploadingSegments.clear();
+        scheduler.onUploadFinished(successful, samples);
+    }
+}
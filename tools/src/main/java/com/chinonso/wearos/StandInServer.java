@@ -0,0 +1,233 @@
+package com.chinonso.wearos;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+
+// Finto server locale per /api/bulk-data e /api/register: legge il corpo, conta richieste
+// e byte e risponde 200. Serve a ReplayHarness e FleetSimulator per misurare il traffico
+// senza toccare il server vero. Con threads > 1 le richieste vengono servite in parallelo.
+// I batch numerati (deviceId + seq) vengono deduplicati come farebbe il server vero:
+// per ogni dispositivo si tiene l'ultima sequenza ricevuta senza buchi, restituita come
+// "ackedThrough", e le sequenze gia' arrivate oltre il buco. failNext() e dropNextResponses()
+// simulano richieste perse prima e dopo essere state salvate.
+public final class StandInServer implements AutoCloseable {
+    public static final String BULK_DATA_PATH = "/api/bulk-data";
+    public static final String REGISTER_PATH = "/api/register";
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong bytesReceived = new AtomicLong();
+    private final AtomicLong registrations = new AtomicLong();
+    private final AtomicLong acceptedSamples = new AtomicLong();
+    private final AtomicLong duplicateSamples = new AtomicLong();
+    private final AtomicInteger failNext = new AtomicInteger();
+    private final AtomicInteger dropNextResponses = new AtomicInteger();
+    private final Map<String, DeviceCursor> devices = new HashMap<>();
+
+    private static final Pattern JSON_SEQUENCE = Pattern.compile("\"deviceId\":\"([^\"]*)\",\"seq\":(\\d+)");
+
+    private static final class DeviceCursor {
+        long ackedThrough = -1;
+        final TreeSet<Long> ahead = new TreeSet<>();
+    }
+
+    public StandInServer() throws IOException {
+        this(1);
+    }
+
+    public StandInServer(int threads) throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext(BULK_DATA_PATH, this::handleBulkData);
+        server.createContext(REGISTER_PATH, this::handleRegister);
+        executor = threads > 1 ? Executors.newFixedThreadPool(threads) : null;
+        server.setExecutor(executor);
+        server.start();
+    }
+
+    public String url(String path) {
+        return "http://127.0.0.1:" + server.getAddress().getPort() + path;
+    }
+
+    public long requests() {
+        return requests.get();
+    }
+
+    public long bytesReceived() {
+        return bytesReceived.get();
+    }
+
+    public long registrations() {
+        return registrations.get();
+    }
+
+    // Campioni numerati salvati, ognuno una volta sola
+    public long acceptedSamples() {
+        return acceptedSamples.get();
+    }
+
+    // Campioni numerati ricevuti di nuovo e scartati
+    public long duplicateSamples() {
+        return duplicateSamples.get();
+    }
+
+    public synchronized long ackedThrough(String deviceId) {
+        DeviceCursor cursor = devices.get(deviceId);
+        return cursor != null ? cursor.ackedThrough : -1;
+    }
+
+    // Le prossime n richieste rispondono 503 senza salvare nulla
+    public void failNext(int n) {
+        failNext.set(n);
+    }
+
+    // Le prossime n richieste vengono salvate ma rispondono 500, come una risposta persa
+    public void dropNextResponses(int n) {
+        dropNextResponses.set(n);
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+
+    private void handleBulkData(HttpExchange exchange) throws IOException {
+        byte[] body = readBody(exchange);
+        requests.incrementAndGet();
+        bytesReceived.addAndGet(body.length);
+        if (takeOne(failNext)) {
+            respond(exchange, 503, "{\"status\":\"unavailable\"}");
+            return;
+        }
+        long ackedThrough;
+        try {
+            ackedThrough = accept(exchange, body);
+        } catch (IOException e) {
+            respond(exchange, 400, "{\"status\":\"bad request\"}");
+            return;
+        }
+        if (takeOne(dropNextResponses)) {
+            respond(exchange, 500, "{\"status\":\"error\"}");
+        } else if (ackedThrough >= 0) {
+            respond(exchange, 200, "{\"status\":\"ok\",\"ackedThrough\":" + ackedThrough + "}");
+        } else {
+            respondOk(exchange);
+        }
+    }
+
+    private void handleRegister(HttpExchange exchange) throws IOException {
+        readBody(exchange);
+        registrations.incrementAndGet();
+        respondOk(exchange);
+    }
+
+    // Registra le sequenze del batch; restituisce il cursore del dispositivo, -1 se il batch
+    // non e' numerato
+    private long accept(HttpExchange exchange, byte[] body) throws IOException {
+        byte[] payload = body;
+        if ("gzip".equals(exchange.getRequestHeaders().getFirst("Content-Encoding"))) {
+            payload = readAll(new GZIPInputStream(new ByteArrayInputStream(body)));
+        }
+        String contentType = exchange.getRequestHeaders().getFirst("Content-Type");
+        if (contentType != null && contentType.startsWith(CompactBatchFormat.CONTENT_TYPE)) {
+            CompactBatchFormat.Batch batch = CompactBatchFormat.decode(new ByteArrayInputStream(payload));
+            if (batch.sequences == null) {
+                return -1;
+            }
+            synchronized (this) {
+                DeviceCursor cursor = cursor(batch.deviceId);
+                for (long sequence : batch.sequences) {
+                    record(cursor, sequence);
+                }
+                return cursor.ackedThrough;
+            }
+        }
+        Matcher matcher = JSON_SEQUENCE.matcher(new String(payload, StandardCharsets.UTF_8));
+        DeviceCursor cursor = null;
+        synchronized (this) {
+            while (matcher.find()) {
+                cursor = cursor(matcher.group(1));
+                record(cursor, Long.parseLong(matcher.group(2)));
+            }
+            return cursor != null ? cursor.ackedThrough : -1;
+        }
+    }
+
+    private DeviceCursor cursor(String deviceId) {
+        DeviceCursor cursor = devices.get(deviceId);
+        if (cursor == null) {
+            cursor = new DeviceCursor();
+            devices.put(deviceId, cursor);
+        }
+        return cursor;
+    }
+
+    private void record(DeviceCursor cursor, long sequence) {
+        if (sequence <= cursor.ackedThrough || !cursor.ahead.add(sequence)) {
+            duplicateSamples.incrementAndGet();
+            return;
+        }
+        acceptedSamples.incrementAndGet();
+        while (!cursor.ahead.isEmpty() && cursor.ahead.first() == cursor.ackedThrough + 1) {
+            cursor.ackedThrough = cursor.ahead.pollFirst();
+        }
+    }
+
+    private static boolean takeOne(AtomicInteger counter) {
+        for (int n; (n = counter.get()) > 0; ) {
+            if (counter.compareAndSet(n, n - 1)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static byte[] readBody(HttpExchange exchange) throws IOException {
+        try (InputStream in = exchange.getRequestBody()) {
+            return readAll(in);
+        }
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(8192);
+        byte[] buffer = new byte[8192];
+        for (int n; (n = in.read(buffer)) != -1; ) {
+            out.write(buffer, 0, n);
+        }
+        return out.toByteArray();
+    }
+
+    private static void respondOk(HttpExchange exchange) throws IOException {
+        respond(exchange, 200, "{\"status\":\"ok\"}");
+    }
+
+    private static void respond(HttpExchange exchange, int code, String body) throws IOException {
+        byte[] response = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(code, response.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(response);
+        }
+    }
+}
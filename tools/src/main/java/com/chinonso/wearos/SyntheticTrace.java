@@ -0,0 +1,63 @@
+package com.chinonso.wearos;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+// Traccia finta di monitoraggio giornaliero, per provare ReplayHarness senza un orologio:
+// barometro a 5 Hz (SENSOR_DELAY_NORMAL), battito a 1 Hz, contapassi a raffiche
+// durante le camminate, un fix di rete al minuto e GPS ogni 30 s mentre si cammina.
+final class SyntheticTrace {
+    private static final int TYPE_PRESSURE = 6;
+    private static final int TYPE_STEP_COUNTER = 19;
+    private static final int TYPE_HEART_RATE = 21;
+    private static final long SECOND = 1000L * 1000 * 1000;
+
+    private SyntheticTrace() {}
+
+    static void write(File file, int hours, long seed) throws IOException {
+        Random random = new Random(seed);
+        long startWall = 1700000000000L;
+        long startNanos = 3600 * SECOND;
+        float[] value = new float[1];
+        float pressure = 1002.0f;
+        float heartRate = 70;
+        float steps = 12000;
+        double latitude = 45.4642;
+        double longitude = 9.19;
+        try (SensorTrace.Writer writer = new SensorTrace.Writer(new FileOutputStream(file), startWall, startNanos)) {
+            long end = startNanos + hours * 3600 * SECOND;
+            for (long second = startNanos; second < end; second += SECOND) {
+                // Si cammina dieci minuti ogni ora
+                boolean walking = (second - startNanos) / SECOND % 3600 < 600;
+                for (int i = 0; i < 5; i++) {
+                    long nanos = second + i * SECOND / 5;
+                    pressure += (float) random.nextGaussian() * 0.02f;
+                    value[0] = pressure;
+                    writer.sensor(TYPE_PRESSURE, nanos, nanos + 2 * 1000 * 1000, value);
+                }
+                heartRate += ((walking ? 100 : 65) - heartRate) * 0.02f + (float) random.nextGaussian() * 0.5f;
+                value[0] = Math.round(heartRate);
+                writer.sensor(TYPE_HEART_RATE, second, second + 3 * 1000 * 1000, value);
+                if (walking) {
+                    steps += 2;
+                    value[0] = steps;
+                    writer.sensor(TYPE_STEP_COUNTER, second, second + 3 * 1000 * 1000, value);
+                    latitude += 1.2e-5;
+                }
+                long elapsed = (second - startNanos) / SECOND;
+                long time = startWall + (second - startNanos) / 1000000;
+                if (walking && elapsed % 30 == 0) {
+                    writer.location(second + 5 * 1000 * 1000, time, second,
+                            new LocationRecord(latitude, longitude, 120, 6, 1.4f, 0, "gps"));
+                }
+                if (elapsed % 60 == 0) {
+                    writer.location(second + 5 * 1000 * 1000, time, second,
+                            new LocationRecord(latitude + random.nextGaussian() * 1e-4, longitude + random.nextGaussian() * 1e-4,
+                                    Double.NaN, 40, Float.NaN, Float.NaN, "network"));
+                }
+            }
+        }
+    }
+}